@@ -271,6 +271,22 @@ public abstract class AbstractManager {
         return null;
     }
 
+    /**
+     * Retrieve the value of a property from the System.properties or
+     * properties object, without removing it, so that it is still available to
+     * the tasks.
+     *
+     * @param propName
+     * @return the trimmed property value
+     */
+    protected String getProperty(String propName) {
+        String val = System.getProperty(propName);
+        if (val == null && this.properties != null) {
+            val = this.properties.getProperty(propName);
+        }
+        return trim(val);
+    }
+
     protected void prepareContentSource() throws XccConfigException, GeneralSecurityException {
         String error_msg_ssl = "Problem creating content source with ssl. {0}";
         try {
@@ -21,14 +21,24 @@ package com.marklogic.developer.corb;
 import static com.marklogic.developer.corb.Manager.DEFAULT_BATCH_URI_DELIM;
 import static com.marklogic.developer.corb.Manager.URIS_BATCH_REF;
 import static com.marklogic.developer.corb.Options.BATCH_URI_DELIM;
+import static com.marklogic.developer.corb.Options.ERROR_FILE_FORMAT;
 import static com.marklogic.developer.corb.Options.ERROR_FILE_NAME;
+import static com.marklogic.developer.corb.Options.HEDGE_REQUEST_PERCENTILE;
+import static com.marklogic.developer.corb.Options.POINT_IN_TIME;
+import static com.marklogic.developer.corb.Options.POST_BATCH_MODULE;
+import static com.marklogic.developer.corb.Options.PROCESS_MODULE;
+import static com.marklogic.developer.corb.Options.PROCESS_RESULT_BUFFER_SIZE;
+import static com.marklogic.developer.corb.Options.PROCESS_RESULT_CACHE;
 import static com.marklogic.developer.corb.Options.QUERY_RETRY_LIMIT;
 import static com.marklogic.developer.corb.Options.QUERY_RETRY_INTERVAL;
 import static com.marklogic.developer.corb.Options.QUERY_RETRY_ERROR_CODES;
 import static com.marklogic.developer.corb.Options.QUERY_RETRY_ERROR_MESSAGE;
+import static com.marklogic.developer.corb.Options.TRANSACTION_GROUP_MAX_TIME;
+import static com.marklogic.developer.corb.Options.TRANSACTION_GROUP_SIZE;
 import static com.marklogic.developer.corb.Options.XCC_CONNECTION_RETRY_INTERVAL;
 import static com.marklogic.developer.corb.Options.XCC_CONNECTION_RETRY_LIMIT;
 import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import com.marklogic.developer.corb.util.IOUtils;
 import com.marklogic.developer.corb.util.StringUtils;
 import static com.marklogic.developer.corb.util.StringUtils.commaSeparatedValuesToList;
 import static com.marklogic.developer.corb.util.StringUtils.isEmpty;
@@ -36,24 +46,45 @@ import static com.marklogic.developer.corb.util.StringUtils.isNotEmpty;
 import static com.marklogic.developer.corb.util.StringUtils.trim;
 import com.marklogic.xcc.ContentSource;
 import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
 import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.QueryException;
 import com.marklogic.xcc.exceptions.RequestException;
 import com.marklogic.xcc.exceptions.RequestPermissionException;
+import com.marklogic.xcc.exceptions.RequestServerException;
 import com.marklogic.xcc.exceptions.RetryableQueryException;
 import com.marklogic.xcc.exceptions.ServerConnectionException;
 import com.marklogic.xcc.types.XdmBinary;
 import com.marklogic.xcc.types.XdmItem;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
 import java.util.logging.Logger;
@@ -65,7 +96,6 @@ import java.util.logging.Logger;
  */
 public abstract class AbstractTask implements Task {
 
-    private static final Object ERROR_SYNC_OBJ = new Object();
 
     protected static final String TRUE = "true";
     protected static final String FALSE = "false";
@@ -73,6 +103,7 @@ public abstract class AbstractTask implements Task {
     protected static final byte[] NEWLINE
             = System.getProperty("line.separator") != null ? System.getProperty("line.separator").getBytes() : "\n".getBytes();
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+    protected static final Charset UTF_8 = Charset.forName("UTF-8");
 
     protected ContentSource cs;
     protected String moduleType;
@@ -94,6 +125,21 @@ public abstract class AbstractTask implements Task {
 
     protected int retryCount = 0;
     protected boolean failOnError = true;
+    protected CircuitBreaker circuitBreaker;
+    protected AtomicLong failedUriCount;
+    protected boolean replay;
+    protected long sequence = -1;
+
+    protected static final LatencyTracker PROCESS_LATENCY = new LatencyTracker();
+    /**
+     * The shortest time, in milliseconds, to wait before issuing a hedged
+     * request, so that very fast requests are not all duplicated.
+     */
+    protected static final long MIN_HEDGE_DELAY = 50;
+    private static ThreadPoolExecutor hedgeExecutor;
+    private static int hedgeThreadCount = 1;
+    private static volatile String invalidHedgePercentile;
+    private Session hedgeSession;
 
     private static final Logger LOG = Logger.getLogger(AbstractTask.class.getName());
     private static final String AT_URI = " at URI: ";
@@ -147,6 +193,26 @@ public abstract class AbstractTask implements Task {
         return this.exportDir;
     }
 
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param failedUriCount incremented with the number of URIs that failed and
+     * were skipped because FAIL-ON-ERROR is false
+     */
+    public void setFailedUriCount(AtomicLong failedUriCount) {
+        this.failedUriCount = failedUriCount;
+    }
+
+    /**
+     * @param sequence the position of this task's batch in the order that the
+     * batches were queued, starting from 0
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     public Session newSession() {
         return cs.newSession();
     }
@@ -165,98 +231,424 @@ public abstract class AbstractTask implements Task {
             return new String[0];
         }
 
+        TransactionGroup transactionGroup = getTransactionGroup();
+        if (transactionGroup != null) {
+            return invokeModule(transactionGroup);
+        }
+
         Session session = null;
         ResultSequence seq = null;
         Thread.yield();// try to avoid thread starvation
         try {
             session = newSession();
-            Request request;
-
-            Set<String> modulePropNames = MODULE_PROPS.get(moduleType);
-            if (modulePropNames == null) {
-                synchronized (SYNC_OBJ) {
-                    modulePropNames = MODULE_PROPS.get(moduleType);
-                    if (modulePropNames == null) {
-                        Set<String> propSet = new HashSet<String>();
-                        if (properties != null) {
-                            for (String propName : properties.stringPropertyNames()) {
-                                if (propName.startsWith(moduleType + ".")) {
-                                    propSet.add(propName);
-                                }
-                            }
-                        }
-                        for (String propName : System.getProperties().stringPropertyNames()) {
+            Request request = newRequest(session);
+
+            Thread.yield();// try to avoid thread starvation
+            seq = submitRequest(session, request);
+            retryCount = 0;
+            if (circuitBreaker != null) {
+                circuitBreaker.recordSuccess();
+            }
+            if (seq.isCached()) {
+                // no need to hold on to the session as results are cached.
+                session.close();
+            }
+            Thread.yield();// try to avoid thread starvation
+
+            processResult(seq);
+            seq.close();
+            Thread.yield();// try to avoid thread starvation
+
+            return inputUris;
+        } catch (RequestException exc) {
+            return handleRequestException(exc);
+        } catch (Exception exc) {
+            throw new CorbException(exc.getMessage() + AT_URI + asString(inputUris), exc);
+        } finally {
+            if (null != session && !session.isClosed()) {
+                session.close();
+                session = null;
+            }
+            if (null != hedgeSession && !hedgeSession.isClosed()) {
+                hedgeSession.close();
+            }
+            hedgeSession = null;
+            if (null != seq && !seq.isClosed()) {
+                seq.close();
+                seq = null;
+            }
+            Thread.yield();// try to avoid thread starvation
+        }
+    }
+
+    /**
+     * @return the transaction group of the current thread, if
+     * {@value Options#TRANSACTION_GROUP_SIZE} is greater than 1 and this is a
+     * {@value Options#PROCESS_MODULE} task, otherwise {@code null}
+     */
+    protected TransactionGroup getTransactionGroup() {
+        if (replay || !PROCESS_MODULE.equals(moduleType) || getPointInTime() != null) {
+            return null;
+        }
+        int groupSize = getIntProperty(TRANSACTION_GROUP_SIZE);
+        if (groupSize < 2) {
+            return null;
+        }
+        int maxTime = getIntProperty(TRANSACTION_GROUP_MAX_TIME);
+        return TransactionGroup.getCurrent(cs, groupSize, Math.max(0, maxTime));
+    }
+
+    /**
+     * @return the {@value Options#POINT_IN_TIME} timestamp to run
+     * {@value Options#PROCESS_MODULE} and {@value Options#POST_BATCH_MODULE}
+     * requests at, or {@code null} if they should run at the current timestamp
+     */
+    protected BigInteger getPointInTime() {
+        if (!PROCESS_MODULE.equals(moduleType) && !POST_BATCH_MODULE.equals(moduleType)) {
+            return null;
+        }
+        String pointInTime = getProperty(POINT_IN_TIME);
+        if (isEmpty(pointInTime) || "false".equalsIgnoreCase(pointInTime)) {
+            return null;
+        }
+        try {
+            return new BigInteger(pointInTime);
+        } catch (NumberFormatException ex) {
+            LOG.log(WARNING, "Unable to parse {0} value {1} as a timestamp", new Object[]{POINT_IN_TIME, pointInTime});
+            return null;
+        }
+    }
+
+    /**
+     * Run the request in the open transaction of the transaction group. The
+     * result is processed immediately, but the updates are not committed until
+     * the group is full. If the request fails, the transaction is rolled back
+     * and the batches that ran before it are replayed in their own
+     * transactions.
+     *
+     * @param transactionGroup
+     * @return
+     * @throws CorbException
+     */
+    protected String[] invokeModule(TransactionGroup transactionGroup) throws CorbException {
+        AbstractTask replayTask = newReplayTask();
+        ResultSequence seq = null;
+        synchronized (transactionGroup) {
+            transactionGroup.checkExpiryError();
+            try {
+                Session session = transactionGroup.getSession();
+                seq = session.submitRequest(newRequest(session));
+                retryCount = 0;
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordSuccess();
+                }
+                processResult(seq);
+            } catch (RequestException exc) {
+                transactionGroup.rollbackAndReplay();
+                return handleRequestException(exc);
+            } catch (Exception exc) {
+                transactionGroup.rollbackAndReplay();
+                throw new CorbException(exc.getMessage() + AT_URI + asString(inputUris), exc);
+            } finally {
+                if (null != seq && !seq.isClosed()) {
+                    seq.close();
+                }
+            }
+            transactionGroup.add(replayTask);
+        }
+        return inputUris;
+    }
+
+    /**
+     * Create a task that will run this batch again in its own transaction,
+     * should the transaction group that it ran in be rolled back. The result
+     * has already been processed, so the replay discards it.
+     *
+     * @return
+     */
+    protected AbstractTask newReplayTask() {
+        Transform task = new Transform();
+        task.cs = cs;
+        task.moduleType = moduleType;
+        task.moduleUri = moduleUri;
+        task.adhocQuery = adhocQuery;
+        task.language = language;
+        task.properties = properties;
+        task.inputUris = inputUris;
+        task.failOnError = failOnError;
+        task.exportDir = exportDir;
+        task.circuitBreaker = circuitBreaker;
+        task.failedUriCount = failedUriCount;
+        task.replay = true;
+        return task;
+    }
+
+    protected Request newRequest(Session session) {
+        Request request;
+
+        Set<String> modulePropNames = MODULE_PROPS.get(moduleType);
+        if (modulePropNames == null) {
+            synchronized (SYNC_OBJ) {
+                modulePropNames = MODULE_PROPS.get(moduleType);
+                if (modulePropNames == null) {
+                    Set<String> propSet = new HashSet<String>();
+                    if (properties != null) {
+                        for (String propName : properties.stringPropertyNames()) {
                             if (propName.startsWith(moduleType + ".")) {
                                 propSet.add(propName);
                             }
                         }
-                        MODULE_PROPS.put(moduleType, modulePropNames = propSet);
                     }
+                    for (String propName : System.getProperties().stringPropertyNames()) {
+                        if (propName.startsWith(moduleType + ".")) {
+                            propSet.add(propName);
+                        }
+                    }
+                    MODULE_PROPS.put(moduleType, modulePropNames = propSet);
                 }
             }
+        }
 
-            if (moduleUri == null) {
-                request = session.newAdhocQuery(adhocQuery);
+        if (moduleUri == null) {
+            request = session.newAdhocQuery(adhocQuery);
+        } else {
+            request = session.newModuleInvoke(moduleUri);
+        }
+
+        RequestOptions requestOptions = new RequestOptions();
+        if (language != null) {
+            requestOptions.setQueryLanguage(language);
+        }
+
+        BigInteger pointInTime = getPointInTime();
+        if (pointInTime != null) {
+            requestOptions.setEffectivePointInTime(pointInTime);
+        }
+
+        if (PROCESS_MODULE.equals(moduleType)) {
+            // stream the results, so that processResult() can handle items as they arrive
+            requestOptions.setCacheResult(TRUE.equalsIgnoreCase(getProperty(PROCESS_RESULT_CACHE)));
+            int bufferSize = getIntProperty(PROCESS_RESULT_BUFFER_SIZE);
+            if (bufferSize > 0) {
+                requestOptions.setResultBufferSize(bufferSize);
+            }
+        }
+        request.setOptions(requestOptions);
+
+        if (inputUris != null && inputUris.length > 0) {
+            if (inputUris.length == 1) {
+                request.setNewStringVariable(URI, inputUris[0]);
             } else {
-                request = session.newModuleInvoke(moduleUri);
+                String delim = getProperty(BATCH_URI_DELIM);
+                if (isEmpty(delim)) {
+                    delim = DEFAULT_BATCH_URI_DELIM;
+                }
+                request.setNewStringVariable(URI, StringUtils.join(inputUris, delim));
             }
+        }
+
+        if (properties != null && properties.containsKey(URIS_BATCH_REF)) {
+            request.setNewStringVariable(URIS_BATCH_REF, properties.getProperty(URIS_BATCH_REF));
+        }
+
+        for (String propName : modulePropNames) {
+            if (propName.startsWith(moduleType + ".")) {
+                String varName = propName.substring(moduleType.length() + 1);
+                String value = getProperty(propName);
+                if (value != null) {
+                    request.setNewStringVariable(varName, value);
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Submit the request and record how long it took to respond. If
+     * {@value Options#HEDGE_REQUEST_PERCENTILE} is specified and the
+     * {@value Options#PROCESS_MODULE} request takes longer than that percentile
+     * of recent requests, a duplicate request is submitted with a new session
+     * and whichever responds first is used.
+     *
+     * @param session
+     * @param request
+     * @return
+     * @throws RequestException
+     */
+    protected ResultSequence submitRequest(Session session, Request request) throws RequestException {
+        boolean isProcessModule = PROCESS_MODULE.equals(moduleType);
+        long hedgeDelay = isProcessModule ? getHedgeDelay() : -1;
+        long start = System.currentTimeMillis();
+        ResultSequence seq = hedgeDelay < 0 ? session.submitRequest(request) : submitHedgedRequest(session, request, hedgeDelay);
+        if (isProcessModule) {
+            PROCESS_LATENCY.record(System.currentTimeMillis() - start);
+        }
+        return seq;
+    }
 
-            if (language != null) {
-                request.getOptions().setQueryLanguage(language);
+    /**
+     * @return the number of milliseconds to wait for a response before issuing
+     * a hedged request, or {@code -1} if requests should not be hedged
+     */
+    protected long getHedgeDelay() {
+        String percentile = getProperty(HEDGE_REQUEST_PERCENTILE);
+        if (isEmpty(percentile)) {
+            return -1;
+        }
+        try {
+            long delay = PROCESS_LATENCY.getPercentile(Double.parseDouble(percentile));
+            return delay < 0 ? -1 : Math.max(MIN_HEDGE_DELAY, delay);
+        } catch (IllegalArgumentException ex) {
+            if (!percentile.equals(invalidHedgePercentile)) {
+                invalidHedgePercentile = percentile;
+                LOG.log(WARNING, "Unable to use {0} value {1}", new Object[]{HEDGE_REQUEST_PERCENTILE, percentile});
             }
+            return -1;
+        }
+    }
 
-            if (inputUris != null && inputUris.length > 0) {
-                if (inputUris.length == 1) {
-                    request.setNewStringVariable(URI, inputUris[0]);
+    private ResultSequence submitHedgedRequest(Session session, Request request, long hedgeDelay) throws RequestException {
+        CompletionService<ResultSequence> completionService = new ExecutorCompletionService<ResultSequence>(getHedgeExecutor());
+        SubmitRequest primaryRequest = new SubmitRequest(session, request);
+        Future<ResultSequence> primary = completionService.submit(primaryRequest);
+        SubmitRequest hedgeRequest = null;
+        Future<ResultSequence> hedge = null;
+        try {
+            Future<ResultSequence> first = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                LOG.log(INFO, "No response after {0} ms, issuing hedged request{1}{2}", new Object[]{hedgeDelay, AT_URI, asString(inputUris)});
+                hedgeSession = newSession();
+                hedgeRequest = new SubmitRequest(hedgeSession, newRequest(hedgeSession));
+                hedge = completionService.submit(hedgeRequest);
+                first = completionService.take();
+            }
+            try {
+                ResultSequence seq = first.get();
+                if (first == primary) {
+                    cancel(hedgeRequest, hedge);
                 } else {
-                    String delim = getProperty(BATCH_URI_DELIM);
-                    if (isEmpty(delim)) {
-                        delim = DEFAULT_BATCH_URI_DELIM;
-                    }
-                    request.setNewStringVariable(URI, StringUtils.join(inputUris, delim));
+                    cancel(primaryRequest, primary);
+                }
+                return seq;
+            } catch (ExecutionException ex) {
+                if (hedge == null) {
+                    throw ex;
                 }
+                //the first response was an error, so wait for the other request before giving up
+                ResultSequence seq = completionService.take().get();
+                return seq;
             }
+        } catch (ExecutionException ex) {
+            Throwable cause = primary.isDone() && !primary.isCancelled() ? getCause(primary) : ex.getCause();
+            if (cause instanceof RequestException) {
+                throw (RequestException) cause;
+            }
+            throw new RequestServerException(cause == null ? ex.getMessage() : cause.getMessage(), request);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            cancel(primaryRequest, primary);
+            cancel(hedgeRequest, hedge);
+            throw new RequestServerException("Interrupted while waiting for hedged request", request);
+        }
+    }
 
-            if (properties != null && properties.containsKey(URIS_BATCH_REF)) {
-                request.setNewStringVariable(URIS_BATCH_REF, properties.getProperty(URIS_BATCH_REF));
+    private static Throwable getCause(Future<ResultSequence> future) {
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Abandon the losing request, closing its result whenever it arrives, and
+     * its session.
+     */
+    private static void cancel(SubmitRequest submitRequest, Future<ResultSequence> future) {
+        if (submitRequest == null) {
+            return;
+        }
+        submitRequest.abandon();
+        future.cancel(true);
+        if (!submitRequest.session.isClosed()) {
+            submitRequest.session.close();
+        }
+    }
+
+    /**
+     * Size the pool that hedged requests are submitted with. Each worker thread
+     * waits on at most two requests at once, the original and its hedge, so
+     * the pool has two threads per worker thread.
+     *
+     * @param threadCount the number of worker threads
+     */
+    protected static synchronized void setHedgeThreadCount(int threadCount) {
+        hedgeThreadCount = Math.max(1, threadCount);
+        if (hedgeExecutor != null) {
+            int size = hedgeThreadCount * 2;
+            if (size < hedgeExecutor.getMaximumPoolSize()) {
+                hedgeExecutor.setCorePoolSize(size);
+                hedgeExecutor.setMaximumPoolSize(size);
+            } else {
+                hedgeExecutor.setMaximumPoolSize(size);
+                hedgeExecutor.setCorePoolSize(size);
             }
+        }
+    }
 
-            for (String propName : modulePropNames) {
-                if (propName.startsWith(moduleType + ".")) {
-                    String varName = propName.substring(moduleType.length() + 1);
-                    String value = getProperty(propName);
-                    if (value != null) {
-                        request.setNewStringVariable(varName, value);
-                    }
+    private static synchronized ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            int size = hedgeThreadCount * 2;
+            hedgeExecutor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = threadFactory.newThread(runnable);
+                    thread.setName("hedge-" + thread.getName());
+                    thread.setDaemon(true);
+                    return thread;
                 }
-            }
+            });
+            hedgeExecutor.allowCoreThreadTimeOut(true);
+        }
+        return hedgeExecutor;
+    }
 
-            Thread.yield();// try to avoid thread starvation
-            seq = session.submitRequest(request);
-            retryCount = 0;
-            // no need to hold on to the session as results will be cached.
-            session.close();
-            Thread.yield();// try to avoid thread starvation
+    private static class SubmitRequest implements Callable<ResultSequence> {
 
-            processResult(seq);
-            seq.close();
-            Thread.yield();// try to avoid thread starvation
+        private final Session session;
+        private final Request request;
+        private boolean abandoned;
+        private ResultSequence result;
 
-            return inputUris;
-        } catch (RequestException exc) {
-            return handleRequestException(exc);
-        } catch (Exception exc) {
-            throw new CorbException(exc.getMessage() + AT_URI + asString(inputUris), exc);
-        } finally {
-            if (null != session && !session.isClosed()) {
-                session.close();
-                session = null;
+        SubmitRequest(Session session, Request request) {
+            this.session = session;
+            this.request = request;
+        }
+
+        @Override
+        public ResultSequence call() throws RequestException {
+            ResultSequence seq = session.submitRequest(request);
+            synchronized (this) {
+                if (!abandoned) {
+                    result = seq;
+                    return seq;
+                }
             }
-            if (null != seq && !seq.isClosed()) {
-                seq.close();
-                seq = null;
+            seq.close();
+            return seq;
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            if (result != null) {
+                result.close();
             }
-            Thread.yield();// try to avoid thread starvation
         }
     }
 
@@ -292,6 +684,9 @@ public abstract class AbstractTask implements Task {
     protected String[] handleRequestException(RequestException requestException) throws CorbException {
         String name = requestException.getClass().getSimpleName();
 
+        if (requestException instanceof ServerConnectionException && circuitBreaker != null && circuitBreaker.recordFailure()) {
+            return awaitCircuitBreaker(requestException);
+        }
         if (shouldRetry(requestException)) {
             int retryLimit = requestException instanceof ServerConnectionException ? this.getConnectRetryLimit() : this.getQueryRetryLimit();
             int retryInterval = requestException instanceof ServerConnectionException ? this.getConnectRetryInterval() : this.getQueryRetryInterval();
@@ -309,18 +704,39 @@ public abstract class AbstractTask implements Task {
                 throw new CorbException(requestException.getMessage() + AT_URI + asString(inputUris), requestException);
             } else {
                 LOG.log(WARNING, failOnErrorIsFalseMessage(name, inputUris), requestException);
-                writeToErrorFile(inputUris, requestException.getMessage());
+                recordFailure(inputUris, requestException);
                 return inputUris;
             }
         } else if (failOnError) {
             throw new CorbException(requestException.getMessage() + AT_URI + asString(inputUris), requestException);
         } else {
             LOG.log(WARNING, failOnErrorIsFalseMessage(name, inputUris), requestException);
-            writeToErrorFile(inputUris, requestException.getMessage());
+            recordFailure(inputUris, requestException);
             return inputUris;
         }
     }
 
+    /**
+     * Wait for the shared {@link CircuitBreaker} to close and then retry,
+     * rather than retrying independently of the other threads.
+     *
+     * @param requestException
+     * @return
+     * @throws CorbException if the server could not be reached
+     */
+    protected String[] awaitCircuitBreaker(RequestException requestException) throws CorbException {
+        LOG.log(WARNING, "Encountered {0} from Marklogic Server. Waiting for the server to respond..: {1}{2}{3}",
+                new Object[]{requestException.getClass().getSimpleName(), requestException.getMessage(), AT_URI, asString(inputUris)});
+        try {
+            if (circuitBreaker.awaitClosed()) {
+                return invokeModule();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        throw new CorbException(requestException.getMessage() + AT_URI + asString(inputUris), requestException);
+    }
+
     private String failOnErrorIsFalseMessage(final String name, final String... inputUris) {
         return "failOnError is false. Encountered " + name + AT_URI + asString(inputUris);
     }
@@ -361,6 +777,50 @@ public abstract class AbstractTask implements Task {
         }
     }
 
+    /**
+     * Write the value of the item to the channel without materializing it in
+     * memory. Binary items are copied from their <code>InputStream</code>, and
+     * all other items are encoded as UTF-8 from their <code>Reader</code>.
+     *
+     * @param item
+     * @param channel
+     * @throws IOException
+     */
+    static protected void writeValue(XdmItem item, WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = IOUtils.getBuffer();
+        writeValue(item, buffer, channel);
+        IOUtils.flush(buffer, channel);
+    }
+
+    /**
+     * Write the value of the item into the buffer, which is written to the
+     * channel whenever it is full, so that small items are collected into
+     * fewer writes.
+     *
+     * @param item
+     * @param buffer the thread's pooled buffer, from
+     * {@link IOUtils#getBuffer()}
+     * @param channel
+     * @throws IOException
+     */
+    static protected void writeValue(XdmItem item, ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        if (item instanceof XdmBinary) {
+            InputStream in = item.asInputStream();
+            try {
+                IOUtils.copy(in, buffer, channel);
+            } finally {
+                closeQuietly(in);
+            }
+        } else if (item != null) {
+            Reader reader = item.asReader();
+            try {
+                IOUtils.copy(reader, buffer, channel, UTF_8.newEncoder());
+            } finally {
+                closeQuietly(reader);
+            }
+        }
+    }
+
     private int getConnectRetryLimit() {
         int connectRetryLimit = getIntProperty(XCC_CONNECTION_RETRY_LIMIT);
         return connectRetryLimit < 0 ? DEFAULT_CONNECTION_RETRY_LIMIT : connectRetryLimit;
@@ -401,7 +861,57 @@ public abstract class AbstractTask implements Task {
         return intVal;
     }
 
-    private void writeToErrorFile(String[] uris, String message) {
+    /**
+     * Retrieves a long value.
+     *
+     * @param key The key name.
+     * @return The requested value (<code>-1</code> if not found or could not
+     * parse value as long).
+     */
+    protected long getLongProperty(String key) {
+        long longVal = -1;
+        String value = getProperty(key);
+        if (isNotEmpty(value)) {
+            try {
+                longVal = Long.parseLong(value);
+            } catch (Exception exc) {
+                LOG.log(WARNING, "Unable to parse '{0}' value '{1}' as a long", new Object[]{key, value});
+            }
+        }
+        return longVal;
+    }
+
+    /**
+     * @return {@code true} if {@value Options#ERROR_FILE_FORMAT} is
+     * {@code json}
+     */
+    protected boolean isJsonErrorFile() {
+        String format = getProperty(ERROR_FILE_FORMAT);
+        if (isEmpty(format) || ErrorJournal.TEXT.equalsIgnoreCase(format)) {
+            return false;
+        } else if (ErrorJournal.JSON.equalsIgnoreCase(format)) {
+            return true;
+        }
+        throw new IllegalArgumentException("Unsupported " + ERROR_FILE_FORMAT + " " + format);
+    }
+
+    // count the failed URIs, so that the incremental mark is not saved
+    private void recordFailure(String[] uris, RequestException requestException) {
+        if (failedUriCount != null && uris != null) {
+            failedUriCount.addAndGet(uris.length);
+        }
+        writeToErrorFile(uris, requestException);
+    }
+
+    /**
+     * Hand the failed URIs off to the shared writer for the error file, so that
+     * a burst of failures does not hold up the other threads. The file is
+     * flushed when the writers are closed at the end of the job.
+     *
+     * @param uris
+     * @param requestException
+     */
+    private void writeToErrorFile(String[] uris, RequestException requestException) {
         if (uris == null || uris.length == 0) {
             return;
         }
@@ -416,24 +926,32 @@ public abstract class AbstractTask implements Task {
             delim = DEFAULT_BATCH_URI_DELIM;
         }
 
-        synchronized (ERROR_SYNC_OBJ) {
-            BufferedOutputStream writer = null;
-            try {
-                writer = new BufferedOutputStream(new FileOutputStream(new File(exportDir, errorFileName), true));
+        String message = requestException.getMessage();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        try {
+            if (isJsonErrorFile()) {
+                String code = requestException instanceof QueryException
+                        ? ((QueryException) requestException).getCode() : requestException.getClass().getSimpleName();
+                String timestamp = ErrorJournal.formatTimestamp(System.currentTimeMillis());
                 for (String uri : uris) {
-                    writer.write(uri.getBytes());
+                    entries.write(ErrorJournal.toJson(uri, code, message, retryCount + 1, timestamp).getBytes());
+                    entries.write(NEWLINE);
+                }
+            } else {
+                for (String uri : uris) {
+                    entries.write(uri.getBytes());
                     if (isNotEmpty(message)) {
-                        writer.write(delim.getBytes());
-                        writer.write(message.getBytes());
+                        entries.write(delim.getBytes());
+                        entries.write(message.getBytes());
                     }
-                    writer.write(NEWLINE);
+                    entries.write(NEWLINE);
                 }
-                writer.flush();
-            } catch (Exception exc) {
-                LOG.log(SEVERE, "Problem writing uris to " + ERROR_FILE_NAME, exc);
-            } finally {
-                closeQuietly(writer);
             }
+            // closed by Manager, along with the export files
+            ExportFileWriter writer = ExportFileWriter.getInstance(new File(exportDir, errorFileName));
+            writer.write(ByteBuffer.wrap(entries.toByteArray()));
+        } catch (IOException exc) {
+            LOG.log(SEVERE, "Problem writing uris to " + ERROR_FILE_NAME, exc);
         }
     }
 
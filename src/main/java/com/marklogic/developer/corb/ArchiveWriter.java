@@ -0,0 +1,498 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes exported documents as entries of ZIP or TAR archives, rather than as
+ * individual files. Each thread appends to its own archive segment, so that
+ * entries can be written without locking, and starts a new segment once the
+ * current one has reached the segment size. Segments are named
+ * {@code export-00001.zip}, {@code export-00002.zip} and so on.
+ * <p>
+ * Entries are streamed into ZIP segments as they are rendered. Since a TAR
+ * header has to state the size of the entry, TAR entries are first spooled to
+ * memory, or to a temporary file once they are larger than
+ * {@value #SPOOL_THRESHOLD} bytes. Sizes that do not fit the octal size field
+ * are written in the GNU base-256 encoding.
+ * <p>
+ * A ZIP archive can not contain the same name twice, so an entry whose name is
+ * already in the current segment is written to a new segment.
+ * <p>
+ * Writers are shared by directory, and must be closed with {@link #closeAll()}.
+ *
+ * @since 2.3.2
+ */
+public class ArchiveWriter {
+
+    private static final Logger LOG = Logger.getLogger(ArchiveWriter.class.getName());
+    public static final String ZIP = "zip";
+    public static final String TAR = "tar";
+    protected static final String SEGMENT_PREFIX = "export-";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int TAR_NAME_SIZE = 100;
+    private static final int TAR_PREFIX_SIZE = 155;
+    private static final long TAR_MAX_OCTAL_SIZE = 077777777777L;
+    protected static final int SPOOL_THRESHOLD = 1024 * 1024;
+    private static final Map<String, ArchiveWriter> WRITERS = new HashMap<String, ArchiveWriter>();
+
+    private final File dir;
+    private final String format;
+    private final long segmentSize;
+    private final AtomicInteger segmentCount = new AtomicInteger();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final ThreadLocal<Segment> threadSegment = new ThreadLocal<Segment>();
+
+    /**
+     * @param dir the directory to write the segments to
+     * @param format {@value #ZIP} or {@value #TAR}
+     * @param segmentSize the number of bytes after which a new segment is
+     * started
+     */
+    public ArchiveWriter(File dir, String format, long segmentSize) {
+        if (!ZIP.equalsIgnoreCase(format) && !TAR.equalsIgnoreCase(format)) {
+            throw new IllegalArgumentException("Unsupported archive format " + format);
+        }
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize must be greater than 0");
+        }
+        this.dir = dir;
+        this.format = format.toLowerCase();
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @param dir
+     * @return the shared writer for the directory, or {@code null} if none has
+     * been registered
+     * @throws IOException
+     */
+    public static ArchiveWriter getInstance(File dir) throws IOException {
+        synchronized (WRITERS) {
+            return WRITERS.get(dir.getCanonicalPath());
+        }
+    }
+
+    /**
+     * Share the writer for its directory, unless another writer has already
+     * been registered for the directory.
+     *
+     * @param writer
+     * @return the shared writer for the directory
+     * @throws IOException
+     */
+    public static ArchiveWriter register(ArchiveWriter writer) throws IOException {
+        String key = writer.dir.getCanonicalPath();
+        synchronized (WRITERS) {
+            ArchiveWriter existing = WRITERS.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            WRITERS.put(key, writer);
+            return writer;
+        }
+    }
+
+    /**
+     * Close all of the shared writers, completing their segments.
+     *
+     * @throws IOException
+     */
+    public static void closeAll() throws IOException {
+        List<ArchiveWriter> writers;
+        synchronized (WRITERS) {
+            writers = new ArrayList<ArchiveWriter>(WRITERS.values());
+            WRITERS.clear();
+        }
+        for (ArchiveWriter writer : writers) {
+            writer.close();
+        }
+    }
+
+    /**
+     * Renders the content of an entry.
+     */
+    public interface EntryWriter {
+
+        /**
+         * @param out the stream to write the content of the entry to, which
+         * must not be closed
+         * @throws IOException
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Append an entry to the current thread's segment.
+     *
+     * @param name the path of the entry within the archive
+     * @param content
+     * @throws IOException
+     */
+    public void write(String name, final byte[] content) throws IOException {
+        write(name, new EntryWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(content);
+            }
+        });
+    }
+
+    /**
+     * Append an entry to the current thread's segment, streaming its content.
+     *
+     * @param name the path of the entry within the archive
+     * @param entry
+     * @throws IOException
+     */
+    public void write(String name, EntryWriter entry) throws IOException {
+        Segment segment = threadSegment.get();
+        if (segment == null) {
+            segment = newSegment();
+        }
+        synchronized (segment) {
+            try {
+                segment.write(name, entry);
+            } catch (ZipException ex) {
+                // thrown by putNextEntry before anything is written
+                if (ex.getMessage() == null || !ex.getMessage().startsWith("duplicate entry")) {
+                    throw ex;
+                }
+                LOG.info("Duplicate entry " + name + ", starting a new archive segment");
+                closeSegment(segment);
+                segment = newSegment();
+                synchronized (segment) {
+                    segment.write(name, entry);
+                }
+            }
+            if (segment.out.count >= segmentSize) {
+                closeSegment(segment);
+            }
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        dir.mkdirs();
+        File file = new File(dir, String.format("%s%05d.%s", SEGMENT_PREFIX, segmentCount.incrementAndGet(), format));
+        Segment segment = new Segment(file);
+        synchronized (segments) {
+            segments.add(segment);
+        }
+        threadSegment.set(segment);
+        return segment;
+    }
+
+    private void closeSegment(Segment segment) throws IOException {
+        segment.close();
+        threadSegment.remove();
+        synchronized (segments) {
+            segments.remove(segment);
+        }
+    }
+
+    /**
+     * @return the number of segments that have been started
+     */
+    public int getSegmentCount() {
+        return segmentCount.get();
+    }
+
+    /**
+     * Complete all of the segments.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        List<Segment> open;
+        synchronized (segments) {
+            open = new ArrayList<Segment>(segments);
+            segments.clear();
+        }
+        IOException error = null;
+        for (Segment segment : open) {
+            synchronized (segment) {
+                try {
+                    segment.close();
+                } catch (IOException ex) {
+                    error = ex;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private class Segment {
+
+        private final CountingOutputStream out;
+        private final ZipOutputStream zip;
+        private boolean closed;
+
+        Segment(File file) throws IOException {
+            out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            zip = ZIP.equals(format) ? new ZipOutputStream(out) : null;
+        }
+
+        void write(String name, EntryWriter entry) throws IOException {
+            if (zip != null) {
+                zip.putNextEntry(new ZipEntry(name));
+                entry.writeTo(new UnclosableOutputStream(zip));
+                zip.closeEntry();
+            } else {
+                SpoolOutputStream spool = new SpoolOutputStream(SPOOL_THRESHOLD);
+                try {
+                    entry.writeTo(spool);
+                    writeTarHeader(out, name, spool.size());
+                    spool.copyTo(out);
+                    out.write(new byte[padding(spool.size())]);
+                } finally {
+                    spool.delete();
+                }
+            }
+        }
+
+        void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (zip != null) {
+                    zip.close();
+                } else {
+                    // the end of a tar archive is marked by two empty blocks
+                    out.write(new byte[TAR_BLOCK_SIZE * 2]);
+                }
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
+    private static int padding(long size) {
+        int remainder = (int) (size % TAR_BLOCK_SIZE);
+        return remainder == 0 ? 0 : TAR_BLOCK_SIZE - remainder;
+    }
+
+    protected static void writeTarHeader(OutputStream out, String name, long size) throws IOException {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        String prefix = "";
+        if (nameBytes.length > TAR_NAME_SIZE) {
+            // ustar names can be split at a slash, into a prefix and a name
+            for (int split = name.indexOf('/'); split > 0 && prefix.isEmpty(); split = name.indexOf('/', split + 1)) {
+                byte[] suffix = name.substring(split + 1).getBytes(UTF_8);
+                if (suffix.length <= TAR_NAME_SIZE && name.substring(0, split).getBytes(UTF_8).length <= TAR_PREFIX_SIZE) {
+                    prefix = name.substring(0, split);
+                    nameBytes = suffix;
+                }
+            }
+            if (prefix.isEmpty()) {
+                // GNU long name: the full name is the content of a preceding entry
+                byte[] longName = new byte[nameBytes.length + 1];
+                System.arraycopy(nameBytes, 0, longName, 0, nameBytes.length);
+                out.write(newTarHeader("././@LongLink".getBytes(UTF_8), "", longName.length, 'L'));
+                out.write(longName);
+                out.write(new byte[padding(longName.length)]);
+                byte[] truncated = new byte[TAR_NAME_SIZE];
+                System.arraycopy(nameBytes, 0, truncated, 0, TAR_NAME_SIZE);
+                nameBytes = truncated;
+            }
+        }
+        out.write(newTarHeader(nameBytes, prefix, size, '0'));
+    }
+
+    private static byte[] newTarHeader(byte[] name, String prefix, long size, char type) {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        putOctal(header, 100, 8, 0644); // mode
+        putOctal(header, 108, 8, 0); // uid
+        putOctal(header, 116, 8, 0); // gid
+        putSize(header, 124, 12, size);
+        putOctal(header, 136, 12, System.currentTimeMillis() / 1000); // mtime
+        header[156] = (byte) type;
+        byte[] magic = {'u', 's', 't', 'a', 'r', 0, '0', '0'};
+        System.arraycopy(magic, 0, header, 257, magic.length);
+        byte[] prefixBytes = prefix.getBytes(UTF_8);
+        System.arraycopy(prefixBytes, 0, header, 345, prefixBytes.length);
+        // the checksum is calculated with the checksum field as spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Sizes of 8 GiB or more do not fit in the octal field, and are written in
+     * the GNU base-256 encoding instead: the high bit of the first byte is set
+     * and the remaining bytes hold the size in big-endian order.
+     */
+    private static void putSize(byte[] header, int offset, int length, long size) {
+        if (size <= TAR_MAX_OCTAL_SIZE) {
+            putOctal(header, offset, length, size);
+            return;
+        }
+        header[offset] = (byte) 0x80;
+        for (int i = length - 1; i > 0; i--) {
+            header[offset + i] = (byte) size;
+            size >>>= 8;
+        }
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            header[offset + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+        }
+        header[offset + digits] = 0;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class UnclosableOutputStream extends FilterOutputStream {
+
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Keeps the content in memory until it reaches the threshold, and then
+     * moves it to a temporary file.
+     */
+    private static class SpoolOutputStream extends OutputStream {
+
+        private final int threshold;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File file;
+        private OutputStream fileOut;
+        private long size;
+
+        SpoolOutputStream(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOut == null && memory.size() + (long) len > threshold) {
+                file = File.createTempFile("corb-archive-entry", ".tmp");
+                fileOut = new BufferedOutputStream(new FileOutputStream(file));
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+            if (fileOut == null) {
+                memory.write(b, off, len);
+            } else {
+                fileOut.write(b, off, len);
+            }
+            size += len;
+        }
+
+        long size() {
+            return size;
+        }
+
+        void copyTo(OutputStream out) throws IOException {
+            if (fileOut == null) {
+                memory.writeTo(out);
+                return;
+            }
+            fileOut.close();
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        void delete() {
+            closeQuietly(fileOut);
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
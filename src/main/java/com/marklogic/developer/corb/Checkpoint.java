@@ -0,0 +1,576 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Records the progress of a job in a journal, so that a job that dies part way
+ * through can be resumed without processing the completed URIs again.
+ * <p>
+ * URIs are identified by their position in the order that they were loaded,
+ * and the positions of the completed batches are kept as ranges, along with a
+ * digest of the URIs in each range, so that a resumed job can verify that the
+ * loader provides the same URIs in the same order. Every
+ * interval, a background thread appends a checkpoint to the journal with the
+ * completed ranges, the loader position, and the length of each of the export
+ * part files.
+ * <p>
+ * The batches in progress are not waited for. Instead, the length of each part
+ * file is recorded along with each batch as it is completed, so that it only
+ * includes the output of completed batches: once the writer thread has written
+ * the output of a batch to the shared part file, or once the batch returns for
+ * a part file that is only written by its thread. The part files are forced to
+ * the storage device before the checkpoint is appended.
+ * <p>
+ * When the job is resumed, the export part files are truncated to the lengths
+ * recorded in the last complete checkpoint, so that the output of any batch
+ * that finished after it is discarded along with the record of the batch, and
+ * processed again.
+ *
+ * @since 2.3.2
+ */
+public class Checkpoint {
+
+    private static final Logger LOG = Logger.getLogger(Checkpoint.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    protected static final String CHECKPOINT = "checkpoint";
+    private static final String TAB = "\t";
+    private static final String NONE = "-";
+    private static final ThreadLocal<Batch> CURRENT_BATCH = new ThreadLocal<Batch>();
+
+    private final File file;
+    private final File exportFile;
+    private final TreeMap<Long, Range> completed = new TreeMap<Long, Range>();
+    private final TreeMap<Long, Range> unverified = new TreeMap<Long, Range>();
+    private long verifiedDigest;
+    private final Map<String, Long> lengths = new TreeMap<String, Long>();
+    private final Object journalLock = new Object();
+    private long total;
+    private long queued;
+    private int headerLineCount = -1;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param file the journal
+     * @param exportFile the export part file, or {@code null} if the job does
+     * not export to a file. The part files written by each thread when
+     * {@value Options#EXPORT_FILE_PART_PER_THREAD} is specified are recorded
+     * along with it.
+     */
+    public Checkpoint(File file, File exportFile) {
+        this.file = file;
+        this.exportFile = exportFile;
+    }
+
+    /**
+     * Load the last complete checkpoint from the journal, and truncate the
+     * export part files to the lengths that it recorded.
+     *
+     * @return {@code true} if there was a checkpoint to resume from
+     * @throws IOException if the export files do not match the checkpoint
+     */
+    public boolean restore() throws IOException {
+        String[] fields = readLastCheckpoint();
+        if (fields == null) {
+            return false;
+        }
+        Map<String, Long> lengths = new LinkedHashMap<String, Long>();
+        synchronized (this) {
+            total = Long.parseLong(fields[2]);
+            queued = Long.parseLong(fields[3]);
+            headerLineCount = Integer.parseInt(fields[4]);
+            completed.clear();
+            unverified.clear();
+            verifiedDigest = 0;
+            if (!NONE.equals(fields[5])) {
+                for (String range : fields[5].split(",")) {
+                    int dash = range.indexOf('-');
+                    int colon = range.indexOf(':', dash);
+                    if (dash < 1 || colon < 0) {
+                        throw new IOException(file + " does not record the digest of the completed URIs, and can not be resumed");
+                    }
+                    long start = Long.parseLong(range.substring(0, dash));
+                    long end = Long.parseLong(range.substring(dash + 1, colon));
+                    long digest = Long.parseLong(range.substring(colon + 1));
+                    completed.put(start, new Range(end, digest));
+                    unverified.put(start, new Range(end, digest));
+                }
+            }
+        }
+        for (int i = 6; i + 1 < fields.length; i += 2) {
+            lengths.put(fields[i], Long.parseLong(fields[i + 1]));
+        }
+        restoreExportFiles(new LinkedHashMap<String, Long>(lengths));
+        synchronized (this) {
+            this.lengths.clear();
+            this.lengths.putAll(lengths);
+        }
+        return true;
+    }
+
+    private String[] readLastCheckpoint() throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                content.write(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        String[] lines = new String(content.toByteArray(), UTF_8).split("\n", -1);
+        // the last element is empty unless the last line was not completely written
+        for (int i = lines.length - 2; i >= 0; i--) {
+            String[] fields = lines[i].split(TAB, -1);
+            if (fields.length >= 6 && fields.length % 2 == 0 && CHECKPOINT.equals(fields[0])) {
+                return fields;
+            }
+        }
+        return null;
+    }
+
+    private void restoreExportFiles(Map<String, Long> lengths) throws IOException {
+        for (File partFile : listExportFiles()) {
+            Long length = lengths.remove(partFile.getName());
+            if (length == null) {
+                // created after the checkpoint, so only contains output that will be written again
+                if (!partFile.delete()) {
+                    throw new IOException("Unable to delete " + partFile);
+                }
+            } else if (partFile.length() < length) {
+                throw new IOException(partFile + " is shorter than its checkpoint, and can not be resumed");
+            } else if (partFile.length() > length) {
+                RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        for (Map.Entry<String, Long> missing : lengths.entrySet()) {
+            if (missing.getValue() > 0) {
+                throw new IOException(missing.getKey() + " is missing, and can not be resumed");
+            }
+        }
+    }
+
+    private File[] listExportFiles() {
+        if (exportFile == null) {
+            return new File[0];
+        }
+        final String exportFileName = exportFile.getName();
+        final Pattern threadPartFile = Pattern.compile(Pattern.quote(exportFileName + ExportBatchToFileTask.THREAD_PART_EXT) + "\\d+");
+        final File journal = file.getAbsoluteFile();
+        File[] files = exportFile.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return (name.equals(exportFileName) || threadPartFile.matcher(name).matches())
+                        && !journal.equals(new File(dir, name).getAbsoluteFile());
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * @param position
+     * @return {@code true} if the URI at the position was completed before the
+     * last checkpoint that was restored, or since
+     */
+    public synchronized boolean isCompleted(long position) {
+        Map.Entry<Long, Range> range = completed.floorEntry(position);
+        return range != null && range.getValue().end >= position;
+    }
+
+    /**
+     * Check the URIs of the ranges that were restored against their digests.
+     * Must be called with each URI that was completed before the checkpoint
+     * was restored, in position order.
+     *
+     * @param position
+     * @param uri
+     * @return {@code false} if the position is the last of a restored range,
+     * and the URIs of the range do not match its digest
+     */
+    public synchronized boolean verify(long position, String uri) {
+        Map.Entry<Long, Range> range = unverified.floorEntry(position);
+        if (range == null || range.getValue().end < position) {
+            return true;
+        }
+        verifiedDigest += digest(position, uri);
+        if (position < range.getValue().end) {
+            return true;
+        }
+        boolean matches = verifiedDigest == range.getValue().digest;
+        verifiedDigest = 0;
+        unverified.remove(range.getKey());
+        return matches;
+    }
+
+    /**
+     * @param position
+     * @param uri
+     * @return a hash of the URI at the position, which is summed for each
+     * range so that ranges can be merged in any order
+     */
+    protected static long digest(long position, String uri) {
+        return DistinctFilter.fingerprint(uri) ^ (position * 0x9e3779b97f4a7c15L);
+    }
+
+    /**
+     * @return the number of URIs that have been completed
+     */
+    public synchronized long getCompletedCount() {
+        long count = 0;
+        for (Map.Entry<Long, Range> range : completed.entrySet()) {
+            count += range.getValue().end - range.getKey() + 1;
+        }
+        return count;
+    }
+
+    /**
+     * @return the total number of URIs recorded by the last checkpoint
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized void setTotal(long total) {
+        this.total = total;
+    }
+
+    /**
+     * @return the number of URIs that the loader had provided
+     */
+    public synchronized long getQueued() {
+        return queued;
+    }
+
+    /**
+     * @param queued the number of URIs that the loader has provided
+     */
+    public synchronized void setQueued(long queued) {
+        this.queued = Math.max(this.queued, queued);
+    }
+
+    /**
+     * @return the number of header lines at the start of the export file, or
+     * {@code -1} if unknown
+     */
+    public synchronized int getHeaderLineCount() {
+        return headerLineCount;
+    }
+
+    public synchronized void setHeaderLineCount(int headerLineCount) {
+        this.headerLineCount = headerLineCount;
+    }
+
+    /**
+     * Record the range of URIs as completed once the task returns, along with
+     * the length of the part file written by the current thread, unless the
+     * task deferred its completion with {@link #deferCompletion()}.
+     *
+     * @param task
+     * @param start the position of the first URI of the batch
+     * @param uris the URIs of the batch
+     * @return
+     */
+    public Callable<String[]> track(final Callable<String[]> task, final long start, String... uris) {
+        final long end = start + uris.length - 1;
+        long batchDigest = 0;
+        for (int i = 0; i < uris.length; i++) {
+            batchDigest += digest(start + i, uris[i]);
+        }
+        final long digest = batchDigest;
+        return new Callable<String[]>() {
+            @Override
+            public String[] call() throws Exception {
+                Batch batch = new Batch(start, end, digest);
+                String[] result;
+                CURRENT_BATCH.set(batch);
+                try {
+                    result = task.call();
+                } finally {
+                    CURRENT_BATCH.remove();
+                }
+                if (!batch.deferred) {
+                    File threadPartFile = getThreadPartFile();
+                    if (threadPartFile != null && threadPartFile.exists()) {
+                        complete(batch, threadPartFile.getName(), threadPartFile.length());
+                    } else {
+                        complete(batch, null, 0);
+                    }
+                }
+                return result;
+            }
+        };
+    }
+
+    private File getThreadPartFile() {
+        if (exportFile == null) {
+            return null;
+        }
+        return new File(exportFile.getAbsoluteFile().getParentFile(),
+                exportFile.getName() + ExportBatchToFileTask.THREAD_PART_EXT + Thread.currentThread().getId());
+    }
+
+    /**
+     * Defer recording the batch that the current thread is processing as
+     * completed until its output has been written to a shared export file.
+     * The output of the batch must be written with a single buffer.
+     *
+     * @return the listener to pass to
+     * {@link ExportFileWriter#write(java.nio.ByteBuffer, ExportFileWriter.WriteListener)},
+     * or {@code null} if the current thread is not processing a batch that is
+     * tracked by a checkpoint
+     */
+    public static ExportFileWriter.WriteListener deferCompletion() {
+        final Batch batch = CURRENT_BATCH.get();
+        if (batch == null) {
+            return null;
+        }
+        if (batch.deferred) {
+            throw new IllegalStateException("The completion of the batch has already been deferred");
+        }
+        batch.deferred = true;
+        return new ExportFileWriter.WriteListener() {
+            @Override
+            public void written(File file, long length) {
+                batch.complete(file.getName(), length);
+            }
+        };
+    }
+
+    private synchronized void complete(Batch batch, String fileName, long length) {
+        complete(batch.start, batch.end, batch.digest);
+        if (fileName != null) {
+            Long previous = lengths.get(fileName);
+            lengths.put(fileName, previous == null ? length : Math.max(previous, length));
+        }
+    }
+
+    /**
+     * @param start
+     * @param end
+     * @param digest the sum of the {@link #digest(long, String)} of each URI
+     * in the range
+     */
+    protected synchronized void complete(long start, long end, long digest) {
+        Map.Entry<Long, Range> before = completed.floorEntry(start);
+        if (before != null && before.getValue().end >= start - 1) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue().end);
+            digest += before.getValue().digest;
+        }
+        Map.Entry<Long, Range> after = completed.ceilingEntry(start);
+        while (after != null && after.getKey() <= end + 1) {
+            if (after.getKey() != start) {
+                end = Math.max(end, after.getValue().end);
+                digest += after.getValue().digest;
+            }
+            completed.remove(after.getKey());
+            after = completed.ceilingEntry(start);
+        }
+        completed.put(start, new Range(end, digest));
+    }
+
+    /**
+     * Record the length of the export part files that were written before
+     * the first batch, such as the header, and append a checkpoint to the
+     * journal at a regular interval.
+     *
+     * @param intervalMillis
+     */
+    public synchronized void start(long intervalMillis) {
+        if (executor != null) {
+            return;
+        }
+        for (File partFile : listExportFiles()) {
+            if (!lengths.containsKey(partFile.getName())) {
+                lengths.put(partFile.getName(), partFile.length());
+            }
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "Unable to write checkpoint to " + file, ex);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Append a checkpoint to the journal with the batches that have been
+     * completed so far.
+     *
+     * @throws IOException
+     */
+    public void write() throws IOException {
+        synchronized (journalLock) {
+            writeCheckpoint();
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        StringBuilder line = new StringBuilder(CHECKPOINT);
+        Map<String, Long> partFileLengths;
+        synchronized (this) {
+            line.append(TAB).append(System.currentTimeMillis());
+            line.append(TAB).append(total);
+            line.append(TAB).append(queued);
+            line.append(TAB).append(headerLineCount);
+            line.append(TAB);
+            if (completed.isEmpty()) {
+                line.append(NONE);
+            } else {
+                boolean first = true;
+                for (Map.Entry<Long, Range> range : completed.entrySet()) {
+                    if (!first) {
+                        line.append(',');
+                    }
+                    line.append(range.getKey()).append('-').append(range.getValue().end)
+                            .append(':').append(range.getValue().digest);
+                    first = false;
+                }
+            }
+            partFileLengths = new TreeMap<String, Long>(lengths);
+        }
+        File dir = exportFile == null ? null : exportFile.getAbsoluteFile().getParentFile();
+        for (Map.Entry<String, Long> partFile : partFileLengths.entrySet()) {
+            // the output up to the recorded length was written before the batches were completed
+            force(new File(dir, partFile.getKey()));
+            line.append(TAB).append(partFile.getKey()).append(TAB).append(partFile.getValue());
+        }
+        line.append('\n');
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(line.toString().getBytes(UTF_8));
+            out.getChannel().force(false);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void force(File partFile) throws IOException {
+        FileOutputStream out = new FileOutputStream(partFile, true);
+        try {
+            out.getChannel().force(false);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Stop writing checkpoints at an interval, and write a final checkpoint
+     * once the output that has been queued for the shared export files has
+     * been written.
+     */
+    public void close() {
+        stop();
+        try {
+            ExportFileWriter.flushAll();
+            write();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Unable to write the final checkpoint to " + file, ex);
+        }
+    }
+
+    private synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Delete the journal once the job has completed, so that it is not resumed.
+     */
+    public void delete() {
+        stop();
+        if (file.exists() && !file.delete()) {
+            LOG.log(Level.WARNING, "Unable to delete checkpoint {0}", file);
+        }
+    }
+
+    private final class Batch {
+
+        private final long start;
+        private final long end;
+        private final long digest;
+        private boolean deferred;
+
+        private Batch(long start, long end, long digest) {
+            this.start = start;
+            this.end = end;
+            this.digest = digest;
+        }
+
+        private void complete(String fileName, long length) {
+            Checkpoint.this.complete(this, fileName, length);
+        }
+    }
+
+    private static final class Range {
+
+        private final long end;
+        private final long digest;
+
+        private Range(long end, long digest) {
+            this.end = end;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared by all of the worker threads to detect when the MarkLogic server has
+ * become unavailable. After a number of consecutive connection failures the
+ * circuit opens: the thread pool is paused, workers wait rather than retry on
+ * their own, and a single probe request is sent at a regular interval. When the
+ * probe succeeds, the circuit closes and all of the workers resume together. If
+ * the probe retry limit is exhausted, the circuit fails and the workers give
+ * up. A failed circuit becomes half-open after the probe interval: a successful
+ * request closes it, and another connection failure opens it again, with a new
+ * probe retry limit. A successful request also closes a failed circuit.
+ * <p>
+ * The circuit only resumes the thread pool if it paused the pool itself, and
+ * the pool has not since been paused or resumed by a command.
+ *
+ * @since 2.3.2
+ */
+public class CircuitBreaker {
+
+    protected enum State {
+        CLOSED, OPEN, FAILED, HALF_OPEN
+    }
+
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+    protected static final String PROBE_QUERY = "()";
+
+    private final PausableThreadPoolExecutor pool;
+    private final ContentSource contentSource;
+    private final int threshold;
+    private final long probeIntervalMillis;
+    private final int probeLimit;
+    private final ScheduledExecutorService probeExecutor;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private int probeCount;
+    private boolean pausedPool;
+    private ScheduledFuture<?> probe;
+
+    /**
+     * @param pool the thread pool to pause while the circuit is open
+     * @param contentSource used to probe the server while the circuit is open
+     * @param threshold the number of consecutive connection failures that will
+     * open the circuit
+     * @param probeIntervalMillis the time to wait between probes
+     * @param probeLimit the number of failed probes before giving up
+     */
+    public CircuitBreaker(PausableThreadPoolExecutor pool, ContentSource contentSource, int threshold, long probeIntervalMillis, int probeLimit) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be greater than 0");
+        }
+        this.pool = pool;
+        this.contentSource = contentSource;
+        this.threshold = threshold;
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.probeLimit = probeLimit;
+        this.probeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "circuit-breaker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Reset the count of consecutive failures after a successful request.
+     */
+    public synchronized void recordSuccess() {
+        if (state == State.CLOSED) {
+            consecutiveFailures = 0;
+        } else if (state == State.FAILED || state == State.HALF_OPEN) {
+            LOG.info("Server is responding again");
+            close(State.CLOSED);
+        }
+    }
+
+    /**
+     * Record a connection failure, opening the circuit if the threshold has
+     * been reached.
+     *
+     * @return {@code true} if the circuit is not closed, and the caller should
+     * call {@link #awaitClosed()} instead of retrying on its own
+     */
+    public synchronized boolean recordFailure() {
+        if (state == State.CLOSED) {
+            consecutiveFailures++;
+            if (consecutiveFailures >= threshold) {
+                open();
+            }
+        } else if (state == State.HALF_OPEN) {
+            open();
+        }
+        return state != State.CLOSED;
+    }
+
+    /**
+     * Block until the circuit is no longer open.
+     *
+     * @return {@code true} if the circuit closed and the request can be retried,
+     * {@code false} if the server could not be reached
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitClosed() throws InterruptedException {
+        while (state == State.OPEN) {
+            wait();
+        }
+        return state == State.CLOSED;
+    }
+
+    public synchronized boolean isOpen() {
+        return state == State.OPEN;
+    }
+
+    public synchronized boolean isFailed() {
+        return state == State.FAILED;
+    }
+
+    public synchronized boolean isHalfOpen() {
+        return state == State.HALF_OPEN;
+    }
+
+    /**
+     * Called when the thread pool is paused or resumed by a command, which
+     * takes over any pause started by the circuit, so that closing the circuit
+     * does not resume a pool that was paused on purpose.
+     */
+    public synchronized void releasePause() {
+        pausedPool = false;
+    }
+
+    private void open() {
+        LOG.log(Level.WARNING, "{0} consecutive connection failures, pausing until the server responds", consecutiveFailures);
+        state = State.OPEN;
+        probeCount = 0;
+        if (pool != null && pool.isRunning()) {
+            pool.pause();
+            pausedPool = true;
+        }
+        probe = probeExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected void probe() {
+        boolean available = isAvailable();
+        synchronized (this) {
+            if (state != State.OPEN) {
+                return;
+            }
+            probeCount++;
+            if (available) {
+                LOG.info("Server is responding, resuming");
+                close(State.CLOSED);
+            } else if (probeCount >= probeLimit) {
+                LOG.log(Level.SEVERE, "Server did not respond after {0} attempts", probeCount);
+                close(State.FAILED);
+                scheduleHalfOpen();
+            } else {
+                LOG.log(Level.WARNING, "Server is not responding, attempt {0} of {1}", new Object[]{probeCount, probeLimit});
+            }
+        }
+    }
+
+    private void scheduleHalfOpen() {
+        probe = probeExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                halfOpen();
+            }
+        }, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected synchronized void halfOpen() {
+        if (state == State.FAILED) {
+            LOG.info("Allowing requests to test whether the server is responding");
+            state = State.HALF_OPEN;
+        }
+    }
+
+    protected boolean isAvailable() {
+        Session session = null;
+        try {
+            session = contentSource.newSession();
+            session.submitRequest(session.newAdhocQuery(PROBE_QUERY)).close();
+            return true;
+        } catch (RequestException ex) {
+            LOG.log(Level.FINE, "probe failed", ex);
+            return false;
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    private void close(State newState) {
+        state = newState;
+        consecutiveFailures = 0;
+        if (probe != null) {
+            probe.cancel(false);
+            probe = null;
+        }
+        if (pausedPool) {
+            pool.resume();
+            pausedPool = false;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stop probing and release any waiting threads.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (state == State.OPEN) {
+                close(State.FAILED);
+            } else if (probe != null) {
+                probe.cancel(false);
+                probe = null;
+            }
+        }
+        probeExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * Derives a conflict key from a URI. Batches that contain URIs with the same
+ * conflict key are never processed concurrently, which avoids deadlocks when
+ * the {@value Options#PROCESS_MODULE} updates documents that are shared by
+ * those URIs.
+ *
+ * @since 2.3.2
+ * @see Options#CONFLICT_KEY_RESOLVER
+ */
+public interface ConflictKeyResolver {
+
+    /**
+     * @param uri
+     * @return the conflict key for the URI, or {@code null} if it does not
+     * conflict with any other URI
+     */
+    String getConflictKey(String uri);
+}
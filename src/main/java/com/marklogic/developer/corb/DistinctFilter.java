@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import com.marklogic.developer.corb.util.FileUtils;
+import com.marklogic.developer.corb.util.LongHashSet;
+import com.marklogic.developer.corb.util.ParallelGzipOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes duplicate lines from an export file as it is written, without
+ * sorting. A 64-bit fingerprint of each line is kept in memory, divided into
+ * partitions by the fingerprint's high bits. Once a partition reaches its
+ * share of the memory budget, new lines for that partition are spilled to a
+ * file instead, and de-duplicated on their own when the filter is closed. A
+ * spilled partition is de-duplicated within the same budget, and whatever does
+ * not fit is spilled again, divided by the next bits of the fingerprint.
+ * <p>
+ * Lines with the same fingerprint are treated as duplicates. With 64-bit
+ * fingerprints, the chance of any two different lines colliding is about one
+ * in 37 million for a million distinct lines, and about one in 40 for a billion
+ * distinct lines.
+ * <p>
+ * Filters are shared by file, and must be closed with {@link #closeAll()} to
+ * append the spilled lines to the file.
+ *
+ * @since 2.3.2
+ */
+public class DistinctFilter {
+
+    private static final Logger LOG = Logger.getLogger(DistinctFilter.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    protected static final int PARTITION_BITS = 6;
+    protected static final int PARTITIONS = 1 << PARTITION_BITS;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final byte[] NEWLINE
+            = System.getProperty("line.separator") != null ? System.getProperty("line.separator").getBytes() : "\n".getBytes();
+    private static final Map<String, DistinctFilter> FILTERS = new HashMap<String, DistinctFilter>();
+
+    private final File file;
+    private final boolean gzip;
+    private final File spillDir;
+    private final long partitionMaxMemory;
+    private final Partition[] partitions = new Partition[PARTITIONS];
+
+    /**
+     * @param file the export file, which spilled lines are appended to when
+     * the filter is closed
+     * @param spillDir the directory for spilled lines, or {@code null} for the
+     * default temporary directory
+     * @param maxMemory the number of bytes of fingerprints to hold in memory
+     */
+    public DistinctFilter(File file, File spillDir, long maxMemory) {
+        this(file, spillDir, maxMemory, false);
+    }
+
+    /**
+     * @param file the export file, which spilled lines are appended to when
+     * the filter is closed
+     * @param spillDir the directory for spilled lines, or {@code null} for the
+     * default temporary directory
+     * @param maxMemory the number of bytes of fingerprints to hold in memory
+     * @param gzip whether spilled lines should be appended as gzip members
+     */
+    public DistinctFilter(File file, File spillDir, long maxMemory, boolean gzip) {
+        this.file = file;
+        this.gzip = gzip;
+        this.spillDir = spillDir;
+        // at least the initial table of a set, so that every partition and spilled file makes progress
+        this.partitionMaxMemory = Math.max(new LongHashSet(INITIAL_CAPACITY).getNextMemoryUsage(), maxMemory / PARTITIONS);
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * @param file
+     * @return the shared filter for the file, or {@code null} if none has been
+     * registered
+     * @throws IOException
+     */
+    public static DistinctFilter getInstance(File file) throws IOException {
+        synchronized (FILTERS) {
+            return FILTERS.get(file.getCanonicalPath());
+        }
+    }
+
+    /**
+     * Share the filter for its file, unless another filter has already been
+     * registered for the file.
+     *
+     * @param filter
+     * @return the shared filter for the file
+     * @throws IOException
+     */
+    public static DistinctFilter register(DistinctFilter filter) throws IOException {
+        String key = filter.file.getCanonicalPath();
+        synchronized (FILTERS) {
+            DistinctFilter existing = FILTERS.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            FILTERS.put(key, filter);
+            return filter;
+        }
+    }
+
+    /**
+     * Close all of the shared filters, appending any spilled lines to their
+     * files.
+     *
+     * @throws IOException
+     */
+    public static void closeAll() throws IOException {
+        List<DistinctFilter> filters;
+        synchronized (FILTERS) {
+            filters = new ArrayList<DistinctFilter>(FILTERS.values());
+            FILTERS.clear();
+        }
+        for (DistinctFilter filter : filters) {
+            filter.close();
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters, with a final avalanche so that the
+     * high bits are well distributed.
+     *
+     * @param line
+     * @return
+     */
+    protected static long fingerprint(String line) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < line.length(); i++) {
+            hash ^= line.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Remove the lines that have been seen before.
+     *
+     * @param content UTF-8 encoded lines
+     * @return the UTF-8 encoded lines that have not been seen before, and were
+     * not spilled
+     * @throws IOException
+     */
+    public byte[] filter(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+        BufferedReader reader = new BufferedReader(new StringReader(new String(content, UTF_8)));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            long fingerprint = fingerprint(line);
+            Partition partition = partitions[(int) (fingerprint >>> (64 - PARTITION_BITS))];
+            synchronized (partition) {
+                if (partition.fingerprints.contains(fingerprint)) {
+                    continue;
+                }
+                if (partition.spill == null && partition.fingerprints.getNextMemoryUsage() > partitionMaxMemory) {
+                    partition.spill = File.createTempFile("corb-distinct", ".tmp", spillDir);
+                    partition.spill.deleteOnExit();
+                    partition.writer = new OutputStreamWriter(new FileOutputStream(partition.spill), UTF_8);
+                }
+                if (partition.spill != null) {
+                    partition.writer.write(line);
+                    partition.writer.write('\n');
+                    continue;
+                }
+                partition.fingerprints.add(fingerprint);
+            }
+            out.write(line.getBytes(UTF_8));
+            out.write(NEWLINE);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the number of partitions that have spilled to disk
+     */
+    public int getSpillCount() {
+        int count = 0;
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                if (partition.spill != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Append the distinct lines of each spilled partition to the file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        BufferedWriter out = null;
+        try {
+            for (Partition partition : partitions) {
+                synchronized (partition) {
+                    if (partition.spill == null) {
+                        continue;
+                    }
+                    partition.writer.close();
+                    if (out == null) {
+                        LOG.log(Level.INFO, "De-duplicating lines spilled to disk for {0}", file);
+                        OutputStream stream = new FileOutputStream(file, true);
+                        out = new BufferedWriter(new OutputStreamWriter(gzip ? newGzipOutputStream(stream) : stream, UTF_8));
+                    }
+                    appendDistinct(partition.spill, out, 1);
+                    partition.spill = null;
+                }
+            }
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static OutputStream newGzipOutputStream(OutputStream out) {
+        // BGZF blocks are also plain gzip members, so suit either EXPORT-FILE-COMPRESSION
+        return new ParallelGzipOutputStream(out, Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * Append the distinct lines of the spilled file, and delete it. Lines are
+     * only spilled if their fingerprint is not in memory, so only need to be
+     * compared with each other. Once the fingerprints of the file reach the
+     * budget, the remaining new lines are spilled again by the next
+     * {@value #PARTITION_BITS} bits of their fingerprint, so that any duplicates
+     * are spilled to the same file, and each of those files is appended in
+     * turn.
+     *
+     * @param spill
+     * @param out
+     * @param depth the number of times the lines have been partitioned
+     * @throws IOException
+     */
+    private void appendDistinct(File spill, Writer out, int depth) throws IOException {
+        int shift = 64 - PARTITION_BITS * (depth + 1);
+        File[] spills = new File[PARTITIONS];
+        Writer[] writers = new Writer[PARTITIONS];
+        LongHashSet fingerprints = new LongHashSet(INITIAL_CAPACITY);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(spill), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long fingerprint = fingerprint(line);
+                if (fingerprints.contains(fingerprint)) {
+                    continue;
+                }
+                // once the bits run out, the few fingerprints left to tell apart always fit
+                if (shift >= 0 && fingerprints.getNextMemoryUsage() > partitionMaxMemory) {
+                    int i = (int) (fingerprint >>> shift) & (PARTITIONS - 1);
+                    if (writers[i] == null) {
+                        spills[i] = File.createTempFile("corb-distinct", ".tmp", spillDir);
+                        spills[i].deleteOnExit();
+                        writers[i] = new OutputStreamWriter(new FileOutputStream(spills[i]), UTF_8);
+                    }
+                    writers[i].write(line);
+                    writers[i].write('\n');
+                    continue;
+                }
+                fingerprints.add(fingerprint);
+                out.write(line);
+                out.write(new String(NEWLINE, UTF_8));
+            }
+            for (Writer writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        } finally {
+            closeQuietly(reader);
+            for (Writer writer : writers) {
+                closeQuietly(writer);
+            }
+            FileUtils.deleteFile(spill);
+        }
+        // release the fingerprints before the nested files are de-duplicated
+        fingerprints = null;
+        for (int i = 0; i < PARTITIONS; i++) {
+            if (spills[i] != null) {
+                appendDistinct(spills[i], out, depth + 1);
+            }
+        }
+    }
+
+    private static class Partition {
+
+        private final LongHashSet fingerprints = new LongHashSet(INITIAL_CAPACITY);
+        private File spill;
+        private Writer writer;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Formats the entries of {@value Options#ERROR_FILE_NAME}, and reads the URIs
+ * back out of them to replay the failures with
+ * {@value Options#URIS_REPLAY_FILE}.
+ *
+ * @since 2.3.2
+ * @see Options#ERROR_FILE_FORMAT
+ */
+public final class ErrorJournal {
+
+    public static final String TEXT = "text";
+    public static final String JSON = "json";
+    private static final String URI_FIELD = "{\"uri\":\"";
+
+    private ErrorJournal() {
+    }
+
+    /**
+     * @param timestamp the time in milliseconds
+     * @return the time in ISO 8601 format, in UTC
+     */
+    public static String formatTimestamp(long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timestamp));
+    }
+
+    /**
+     * @param uri
+     * @param code the error code, or the type of the exception
+     * @param message
+     * @param attempts the number of times the request was attempted
+     * @param timestamp the time of the failure in milliseconds
+     * @return a JSON object for the failure, on a single line of ASCII
+     */
+    public static String toJson(String uri, String code, String message, int attempts, long timestamp) {
+        return toJson(uri, code, message, attempts, formatTimestamp(timestamp));
+    }
+
+    /**
+     * @param uri
+     * @param code the error code, or the type of the exception
+     * @param message
+     * @param attempts the number of times the request was attempted
+     * @param timestamp the time of the failure, formatted with
+     * {@link #formatTimestamp(long)} once for all of the URIs of a batch
+     * @return a JSON object for the failure, on a single line of ASCII
+     */
+    public static String toJson(String uri, String code, String message, int attempts, String timestamp) {
+        StringBuilder json = new StringBuilder(URI_FIELD);
+        escape(uri, json);
+        json.append("\",\"code\":");
+        quote(code, json);
+        json.append(",\"message\":");
+        quote(message, json);
+        json.append(",\"attempts\":").append(attempts);
+        json.append(",\"timestamp\":\"").append(timestamp).append("\"}");
+        return json.toString();
+    }
+
+    private static void quote(String value, StringBuilder json) {
+        if (value == null) {
+            json.append("null");
+        } else {
+            json.append('"');
+            escape(value, json);
+            json.append('"');
+        }
+    }
+
+    private static void escape(String value, StringBuilder json) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+    }
+
+    /**
+     * @param line an entry written in either format
+     * @param delim the delimiter between the URI and the message of a text
+     * entry
+     * @return the URI of the entry
+     */
+    public static String getUri(String line, String delim) {
+        if (line.startsWith(URI_FIELD)) {
+            return unescape(line, URI_FIELD.length());
+        }
+        int end = line.indexOf(delim);
+        return end < 0 ? line : line.substring(0, end);
+    }
+
+    private static String unescape(String line, int start) {
+        StringBuilder value = new StringBuilder();
+        for (int i = start; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                return value.toString();
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char escaped = line.charAt(++i);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated uri in " + line);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.Manager.DEFAULT_BATCH_URI_DELIM;
+import static com.marklogic.developer.corb.Options.BATCH_URI_DELIM;
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import static com.marklogic.developer.corb.util.StringUtils.isBlank;
+import static com.marklogic.developer.corb.util.StringUtils.isEmpty;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Loads the URIs of the failures recorded in a previous job's
+ * {@value Options#ERROR_FILE_NAME}, in either
+ * {@value Options#ERROR_FILE_FORMAT}, so that only those URIs are processed
+ * again. URIs that failed more than once are only loaded once, in the order
+ * that they first failed.
+ * <p>
+ * The URIs in the file have already had {@value Options#URIS_REPLACE_PATTERN}
+ * applied, so it is not applied again.
+ *
+ * @since 2.3.2
+ * @see Options#URIS_REPLAY_FILE
+ */
+public class ErrorJournalUrisLoader extends AbstractUrisLoader {
+
+    private Iterator<String> uris;
+
+    @Override
+    public void open() throws CorbException {
+        String fileName = getOptions().getUrisReplayFile();
+        String delim = getProperty(BATCH_URI_DELIM);
+        if (isEmpty(delim)) {
+            delim = DEFAULT_BATCH_URI_DELIM;
+        }
+        Set<String> distinctUris = new LinkedHashSet<String>();
+        BufferedReader reader = null;
+        try {
+            // text entries are written in the default encoding, and json entries are ASCII
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName)));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!isBlank(line)) {
+                    distinctUris.add(ErrorJournal.getUri(line, delim));
+                }
+            }
+        } catch (Exception exc) {
+            throw new CorbException("Problem loading data from uris replay file " + fileName, exc);
+        } finally {
+            closeQuietly(reader);
+        }
+        setTotalCount(distinctUris.size());
+        uris = distinctUris.iterator();
+    }
+
+    @Override
+    public boolean hasNext() throws CorbException {
+        return uris != null && uris.hasNext();
+    }
+
+    @Override
+    public String next() throws CorbException {
+        return hasNext() ? uris.next() : null;
+    }
+
+    @Override
+    public void close() {
+        cleanup();
+    }
+
+    @Override
+    protected void cleanup() {
+        super.cleanup();
+        uris = null;
+    }
+}
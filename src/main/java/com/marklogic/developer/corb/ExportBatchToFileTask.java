@@ -18,22 +18,61 @@
  */
 package com.marklogic.developer.corb;
 
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_COMPRESSION;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_COMPRESSION_THREADS;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_MAX_BYTES;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_MAX_LINES;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_NAME;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_ORDERED;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_PART_EXT;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_PARTITIONER;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_PARTITIONS;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_PARTITION_KEY;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_PART_PER_THREAD;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_COMPARATOR;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_COMPRESS;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_LIMIT;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_MAX_MEMORY;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_RUN_SIZE;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_TEMP_DIR;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_THREADS;
 import static com.marklogic.developer.corb.Options.URIS_BATCH_REF;
 import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import static com.marklogic.developer.corb.util.StringUtils.isBlank;
 import static com.marklogic.developer.corb.util.StringUtils.isEmpty;
+import static com.marklogic.developer.corb.util.StringUtils.isNotBlank;
 import static com.marklogic.developer.corb.util.StringUtils.isNotEmpty;
 import static com.marklogic.developer.corb.util.StringUtils.trim;
+import com.google.code.externalsorting.ExternalSort;
+import com.marklogic.developer.corb.util.IOUtils;
+import com.marklogic.developer.corb.util.ParallelExternalSort;
+import com.marklogic.developer.corb.util.ParallelGzipOutputStream;
 import com.marklogic.xcc.ResultSequence;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 public class ExportBatchToFileTask extends ExportToFileTask {
 
 	private static final Object SYNC_OBJ = new Object();
+	protected static final String THREAD_PART_EXT = ".thread-";
+	protected static final String SORTED_RUN_EXT = ".run-";
+	protected static final String GZIP_EXT = ".gz";
+	protected static final String GZIP = "gzip";
+	protected static final String BGZF = "bgzf";
+	protected static final String ROLLED_FILE_FORMAT = "-%05d";
+	protected static final String PARTITION_FILE_FORMAT = "-p%05d";
+	protected static final String SORT_DIRECTION = "(?i)^(a|de)sc.*";
+	protected static final String DESCENDING = "(?i)^desc.*";
+	protected static final String DISTINCT = "(?i).*(distinct|uniq).*";
 
 	@Override
 	protected String getFileName() {
@@ -51,7 +90,10 @@ public class ExportBatchToFileTask extends ExportToFileTask {
 	}
 	
 	protected String getPartFileName() {
-		String fileName = getFileName();
+		return getPartFileName(getFileName());
+	}
+
+	protected String getPartFileName(String fileName) {
 		if (isNotEmpty(fileName)) {
 			String partExt = getProperty(EXPORT_FILE_PART_EXT);
 			if (isNotEmpty(partExt)) {
@@ -64,22 +106,494 @@ public class ExportBatchToFileTask extends ExportToFileTask {
 		return fileName;
 	}
 	      
+	/**
+	 * @return {@code true} if {@value Options#EXPORT_FILE_MAX_BYTES} or
+	 * {@value Options#EXPORT_FILE_MAX_LINES} is specified
+	 */
+	protected boolean isRolling() {
+		return getLongProperty(EXPORT_FILE_MAX_BYTES) > 0 || getLongProperty(EXPORT_FILE_MAX_LINES) > 0;
+	}
+
+	/**
+	 * @param number
+	 * @return the name of the numbered file that the output rolls over to,
+	 * with the number inserted before the extension of the file name
+	 */
+	protected String getRolledFileName(int number) {
+		return String.format(getNumberedFilePattern(getFileName(), ROLLED_FILE_FORMAT), number);
+	}
+
+	private static String getNumberedFilePattern(String fileName, String numberFormat) {
+		int nameStart = fileName.lastIndexOf('/') + 1;
+		int extStart = fileName.indexOf('.', nameStart + 1);
+		if (extStart < 0) {
+			extStart = fileName.length();
+		}
+		return escapeFormat(fileName.substring(0, extStart)) + numberFormat + escapeFormat(fileName.substring(extStart));
+	}
+
+	private static String escapeFormat(String value) {
+		return value.replace("%", "%%");
+	}
+
+	/**
+	 * @return the rolled files after the first, which is the part file, in
+	 * order
+	 */
+	protected List<File> getRolledPartFiles() {
+		List<File> files = new ArrayList<File>();
+		for (int number = 2;; number++) {
+			File file = new File(exportDir, getPartFileName(getRolledFileName(number)));
+			if (!file.exists()) {
+				return files;
+			}
+			files.add(file);
+		}
+	}
+
+	/**
+	 * @param partFile
+	 * @return the shared writer for the part file, which rolls over to numbered
+	 * files if {@value Options#EXPORT_FILE_MAX_BYTES} or
+	 * {@value Options#EXPORT_FILE_MAX_LINES} is specified
+	 * @throws IOException
+	 */
+	protected ExportFileWriter getExportFileWriter(File partFile) throws IOException {
+		if (!isRolling()) {
+			return ExportFileWriter.getInstance(partFile);
+		}
+		long maxBytes = getLongProperty(EXPORT_FILE_MAX_BYTES);
+		long maxLines = getLongProperty(EXPORT_FILE_MAX_LINES);
+		if (maxLines > 0 && isGzipCompression()) {
+			throw new IllegalArgumentException(EXPORT_FILE_MAX_LINES + " can not be combined with " + EXPORT_FILE_COMPRESSION);
+		}
+		String pattern = new File(getPartFileName(getNumberedFilePattern(getFileName(), ROLLED_FILE_FORMAT))).getName();
+		return ExportFileWriter.getInstance(partFile, maxBytes, maxLines, pattern);
+	}
+
+	/**
+	 * @return {@code true} if {@value Options#EXPORT_FILE_PARTITIONS} is
+	 * specified
+	 */
+	protected boolean isPartitioned() {
+		return getIntProperty(EXPORT_FILE_PARTITIONS) > 0;
+	}
+
+	/**
+	 * @param partition
+	 * @return the name of the partition file, with the partition number
+	 * inserted before the extension of the file name
+	 */
+	protected String getPartitionFileName(int partition) {
+		return String.format(getNumberedFilePattern(getFileName(), PARTITION_FILE_FORMAT), partition);
+	}
+
+	/**
+	 * @return the part files of each of the partitions, in order
+	 */
+	protected List<File> getPartitionPartFiles() {
+		List<File> files = new ArrayList<File>();
+		int partitions = getIntProperty(EXPORT_FILE_PARTITIONS);
+		for (int partition = 0; partition < partitions; partition++) {
+			files.add(new File(exportDir, getPartFileName(getPartitionFileName(partition))));
+		}
+		return files;
+	}
+
+	/**
+	 * @return the {@value Options#EXPORT_FILE_PARTITIONER}, or a
+	 * {@link HashPartitioner} of the {@value Options#EXPORT_FILE_PARTITION_KEY}
+	 */
+	protected Partitioner getPartitioner() {
+		String className = trim(getProperty(EXPORT_FILE_PARTITIONER));
+		if (isEmpty(className)) {
+			return new HashPartitioner(getProperty(EXPORT_FILE_PARTITION_KEY));
+		}
+		Class<?> cls;
+		try {
+			cls = Class.forName(className);
+			if (Partitioner.class.isAssignableFrom(cls)) {
+				return (Partitioner) cls.newInstance();
+			}
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Unable to create " + EXPORT_FILE_PARTITIONER + " " + ex.getMessage(), ex);
+		}
+		throw new IllegalArgumentException(EXPORT_FILE_PARTITIONER + " must be of type com.marklogic.developer.corb.Partitioner");
+	}
+
+	/**
+	 * @param partFile
+	 * @return the shared writer that divides the output of each PROCESS batch
+	 * between the partition files, or {@code null} if
+	 * {@value Options#EXPORT_FILE_PARTITIONS} does not apply
+	 * @throws IOException
+	 */
+	protected PartitionedFileWriter getPartitionedFileWriter(File partFile) throws IOException {
+		if (!Options.PROCESS_MODULE.equals(moduleType) || !isPartitioned()) {
+			return null;
+		}
+		if (isRolling()) {
+			throw new IllegalArgumentException(EXPORT_FILE_PARTITIONS + " can not be combined with " + EXPORT_FILE_MAX_BYTES + " or " + EXPORT_FILE_MAX_LINES);
+		}
+		if (newSortComparator() != null) {
+			throw new IllegalArgumentException(EXPORT_FILE_PARTITIONS + " can not be combined with " + EXPORT_FILE_SORT + " ordering");
+		}
+		String pattern = new File(getPartFileName(getNumberedFilePattern(getFileName(), PARTITION_FILE_FORMAT))).getName();
+		return PartitionedFileWriter.getInstance(partFile, pattern, getIntProperty(EXPORT_FILE_PARTITIONS), getPartitioner());
+	}
+
+	/**
+	 * @return the part file that is written to only by the current thread
+	 */
+	protected String getThreadPartFileName() {
+		return getPartFileName() + THREAD_PART_EXT + Thread.currentThread().getId();
+	}
+
+	/**
+	 * @return the part files written by each of the threads, in name order
+	 */
+	protected List<File> getThreadPartFiles() {
+		return listPartFiles(THREAD_PART_EXT);
+	}
+
+	/**
+	 * @return the sorted runs written by each of the threads when
+	 * {@value Options#EXPORT_FILE_SORT_RUN_SIZE} is specified
+	 */
+	protected List<File> getSortedRunFiles() {
+		return listPartFiles(SORTED_RUN_EXT);
+	}
+
+	private List<File> listPartFiles(String ext) {
+		final String prefix = new File(getPartFileName()).getName() + ext;
+		File dir = new File(exportDir, getPartFileName()).getParentFile();
+		File[] files = dir == null ? null : dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix);
+			}
+		});
+		if (files == null) {
+			return new ArrayList<File>();
+		}
+		Arrays.sort(files);
+		return new ArrayList<File>(Arrays.asList(files));
+	}
+
+	/**
+	 * @return the comparator for {@value Options#EXPORT_FILE_SORT} or
+	 * {@value Options#EXPORT_FILE_SORT_COMPARATOR}, or {@code null} if the
+	 * export file is not sorted
+	 * @throws ClassNotFoundException
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	protected Comparator<String> getSortComparator() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		String sort = getProperty(EXPORT_FILE_SORT);
+		String comparatorCls = getProperty(EXPORT_FILE_SORT_COMPARATOR);
+		if (isNotBlank(comparatorCls)) {
+			return getComparatorCls(comparatorCls).newInstance();
+		} else if (sort == null || !sort.matches(SORT_DIRECTION)) {
+			return null;
+		} else if (sort.matches(DESCENDING)) {
+			return Collections.reverseOrder();
+		}
+		return ExternalSort.defaultcomparator;
+	}
+
+	protected boolean isSortDistinct() {
+		String sort = getProperty(EXPORT_FILE_SORT);
+		return isBlank(sort) ? false : sort.matches(DISTINCT);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected Class<? extends Comparator<String>> getComparatorCls(String className) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		Class<?> cls = Class.forName(className);
+		if (Comparator.class.isAssignableFrom(cls)) {
+			cls.newInstance(); // sanity check
+			return (Class<? extends Comparator<String>>) cls.asSubclass(Comparator.class);
+		} else {
+			throw new IllegalArgumentException("Comparator must be of type java.util.Comparator");
+		}
+	}
+
+	/**
+	 * @param defaultTempDir
+	 * @return {@value Options#EXPORT_FILE_SORT_TEMP_DIR}, or the default
+	 */
+	protected File getSortTempDir(File defaultTempDir) {
+		String tempDirName = getProperty(EXPORT_FILE_SORT_TEMP_DIR);
+		File tempDir = isBlank(tempDirName) ? defaultTempDir : new File(tempDirName);
+		if (!tempDir.isDirectory() || !tempDir.canWrite()) {
+			throw new IllegalArgumentException("Unable to write to " + EXPORT_FILE_SORT_TEMP_DIR + " " + tempDir);
+		}
+		return tempDir;
+	}
+
+	/**
+	 * Create a sorter configured by {@value Options#EXPORT_FILE_SORT_TEMP_DIR},
+	 * {@value Options#EXPORT_FILE_SORT_COMPRESS},
+	 * {@value Options#EXPORT_FILE_SORT_MAX_MEMORY} and
+	 * {@value Options#EXPORT_FILE_SORT_THREADS}.
+	 *
+	 * @param comparator
+	 * @param distinct
+	 * @param defaultTempDir used if no temp directory is configured
+	 * @return
+	 */
+	protected ParallelExternalSort newSorter(Comparator<String> comparator, boolean distinct, File defaultTempDir) {
+		File tempDir = getSortTempDir(defaultTempDir);
+		boolean compress = TRUE.equalsIgnoreCase(getProperty(EXPORT_FILE_SORT_COMPRESS));
+		int maxMemoryMegabytes = getIntProperty(EXPORT_FILE_SORT_MAX_MEMORY);
+		long maxMemory = maxMemoryMegabytes > 0 ? maxMemoryMegabytes * 1024L * 1024L : ExternalSort.estimateAvailableMemory() / 2;
+		int threads = getIntProperty(EXPORT_FILE_SORT_THREADS);
+		if (threads < 1) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		return new ParallelExternalSort(comparator, UTF_8, tempDir, distinct, compress, maxMemory, threads);
+	}
+
+	private Comparator<String> newSortComparator() {
+		try {
+			return getSortComparator();
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Unable to create " + EXPORT_FILE_SORT_COMPARATOR + " " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * @param partFile
+	 * @return the collector that keeps only the top lines of the output of
+	 * each PROCESS batch, or {@code null} if
+	 * {@value Options#EXPORT_FILE_SORT_LIMIT} does not apply
+	 * @throws IOException
+	 */
+	protected TopLinesCollector getTopLinesCollector(File partFile) throws IOException {
+		int limit = getIntProperty(EXPORT_FILE_SORT_LIMIT);
+		if (!Options.PROCESS_MODULE.equals(moduleType) || limit < 1) {
+			return null;
+		}
+		TopLinesCollector collector = TopLinesCollector.getInstance(partFile);
+		if (collector != null) {
+			return collector;
+		}
+		Comparator<String> comparator = newSortComparator();
+		if (comparator == null) {
+			return null;
+		}
+		return TopLinesCollector.register(new TopLinesCollector(partFile, comparator, isSortDistinct(), limit, isGzipCompression()));
+	}
+
+	/**
+	 * @param partFile
+	 * @return the writer that sorts the output of each PROCESS batch into runs
+	 * as it is received, or {@code null} if
+	 * {@value Options#EXPORT_FILE_SORT_RUN_SIZE} does not apply
+	 * @throws IOException
+	 */
+	protected SortedRunWriter getSortedRunWriter(File partFile) throws IOException {
+		int runSize = getIntProperty(EXPORT_FILE_SORT_RUN_SIZE);
+		if (!Options.PROCESS_MODULE.equals(moduleType) || runSize < 1) {
+			return null;
+		}
+		SortedRunWriter runWriter = SortedRunWriter.getInstance(partFile);
+		if (runWriter != null) {
+			return runWriter;
+		}
+		Comparator<String> comparator = newSortComparator();
+		if (comparator == null) {
+			return null;
+		}
+		ParallelExternalSort sorter = newSorter(comparator, isSortDistinct(), partFile.getAbsoluteFile().getParentFile());
+		return SortedRunWriter.register(new SortedRunWriter(partFile, SORTED_RUN_EXT, sorter, runSize * 1024L * 1024L));
+	}
+
+	/**
+	 * @param partFile
+	 * @return the filter that removes duplicate lines from the output of each
+	 * PROCESS batch when {@value Options#EXPORT_FILE_SORT} is only
+	 * "{@code distinct}", otherwise {@code null}
+	 * @throws IOException
+	 */
+	protected DistinctFilter getDistinctFilter(File partFile) throws IOException {
+		return getDistinctFilter(partFile, 1);
+	}
+
+	/**
+	 * @param partFile
+	 * @param shares the number of filters that share the memory budget
+	 * @return the filter for the file
+	 * @throws IOException
+	 * @see #getDistinctFilter(File)
+	 */
+	protected DistinctFilter getDistinctFilter(File partFile, int shares) throws IOException {
+		String sort = getProperty(EXPORT_FILE_SORT);
+		if (!Options.PROCESS_MODULE.equals(moduleType) || !isSortDistinct() || sort.matches(SORT_DIRECTION)
+				|| isNotBlank(getProperty(EXPORT_FILE_SORT_COMPARATOR))) {
+			return null;
+		}
+		DistinctFilter distinctFilter = DistinctFilter.getInstance(partFile);
+		if (distinctFilter != null) {
+			return distinctFilter;
+		}
+		int maxMemoryMegabytes = getIntProperty(EXPORT_FILE_SORT_MAX_MEMORY);
+		long maxMemory = (maxMemoryMegabytes > 0 ? maxMemoryMegabytes * 1024L * 1024L : Runtime.getRuntime().maxMemory() / 4) / Math.max(1, shares);
+		File tempDir = getSortTempDir(partFile.getAbsoluteFile().getParentFile());
+		return DistinctFilter.register(new DistinctFilter(partFile, tempDir, maxMemory, isGzipCompression()));
+	}
+
+	/**
+	 * @return {@code true} if {@value Options#EXPORT_FILE_COMPRESSION} is
+	 * {@code gzip} or {@code bgzf}
+	 */
+	protected boolean isGzipCompression() {
+		String compression = trim(getProperty(EXPORT_FILE_COMPRESSION));
+		if (isEmpty(compression) || "none".equalsIgnoreCase(compression)) {
+			return false;
+		} else if (GZIP.equalsIgnoreCase(compression) || BGZF.equalsIgnoreCase(compression)) {
+			return true;
+		}
+		throw new IllegalArgumentException("Unsupported " + EXPORT_FILE_COMPRESSION + " " + compression);
+	}
+
+	/**
+	 * @return {@code true} if {@value Options#EXPORT_FILE_COMPRESSION} is
+	 * {@code bgzf}
+	 */
+	protected boolean isBgzfCompression() {
+		return isGzipCompression() && BGZF.equalsIgnoreCase(trim(getProperty(EXPORT_FILE_COMPRESSION)));
+	}
+
+	/**
+	 * @return the number of threads to compress whole export files with
+	 */
+	protected int getCompressionThreads() {
+		int threads = getIntProperty(EXPORT_FILE_COMPRESSION_THREADS);
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @param content
+	 * @return the content as gzip members if
+	 * {@value Options#EXPORT_FILE_COMPRESSION} is {@code gzip} or
+	 * {@code bgzf}, so that it can be appended to the other output
+	 * @throws IOException
+	 */
+	protected byte[] compress(byte[] content) throws IOException {
+		return content.length > 0 && isGzipCompression() ? ParallelGzipOutputStream.compress(content, isBgzfCompression()) : content;
+	}
+
+	/**
+	 * @return {@code true} if the output of each PROCESS batch should be written
+	 * in the order that the batches were queued
+	 */
+	protected boolean isOrdered() {
+		return Options.PROCESS_MODULE.equals(moduleType) && sequence >= 0
+				&& TRUE.equalsIgnoreCase(getProperty(EXPORT_FILE_ORDERED));
+	}
+
+	@Override
+	public String[] call() throws Exception {
+		File orderedFile = isOrdered() ? new File(exportDir, getPartFileName()) : null;
+		try {
+			return super.call();
+		} finally {
+			if (orderedFile != null) {
+				// release the batches queued after this one, even if there was nothing to write
+				getExportFileWriter(orderedFile).getReorderBuffer().skip(sequence);
+			}
+		}
+	}
+
+	private byte[] renderItems(ResultSequence seq, DistinctFilter distinctFilter) throws IOException {
+		byte[] content = renderItems(seq);
+		return compress(distinctFilter == null ? content : distinctFilter.filter(content));
+	}
+
+	/**
+	 * Split the content between the partitions, and remove duplicates from
+	 * each partition with its own {@link DistinctFilter}, since the same line
+	 * always has the same key.
+	 */
+	private void writePartitions(PartitionedFileWriter partitionedWriter, byte[] content) throws IOException {
+		byte[][] parts = partitionedWriter.split(content);
+		for (int partition = 0; partition < parts.length; partition++) {
+			byte[] part = parts[partition];
+			if (part == null) {
+				continue;
+			}
+			DistinctFilter distinctFilter = getDistinctFilter(partitionedWriter.getFile(partition), parts.length);
+			if (distinctFilter != null) {
+				part = distinctFilter.filter(part);
+			}
+			if (part.length > 0) {
+				partitionedWriter.write(partition, compress(part));
+			}
+		}
+	}
+
 	@Override
 	protected void writeToFile(ResultSequence seq) throws IOException {
 		if (seq == null || !seq.hasNext()) {
 			return;
 		}
-		synchronized (SYNC_OBJ) {
-			BufferedOutputStream writer = null;
+		File partFile = new File(exportDir, getPartFileName());
+		PartitionedFileWriter partitionedWriter = getPartitionedFileWriter(partFile);
+		if (partitionedWriter != null) {
+			writePartitions(partitionedWriter, renderItems(seq));
+			return;
+		}
+		TopLinesCollector collector = getTopLinesCollector(partFile);
+		if (collector != null) {
+			// only the top lines are kept; written by Manager before the post batch
+			collector.add(renderItems(seq));
+			return;
+		}
+		SortedRunWriter runWriter = getSortedRunWriter(partFile);
+		if (runWriter != null) {
+			// sorted into runs by each thread; only merged by PostBatchUpdateFileTask
+			runWriter.add(renderItems(seq));
+			return;
+		}
+		DistinctFilter distinctFilter = getDistinctFilter(partFile);
+		if (isOrdered()) {
+			getExportFileWriter(partFile).getReorderBuffer().put(sequence, ByteBuffer.wrap(renderItems(seq, distinctFilter)));
+		} else if (Options.PROCESS_MODULE.equals(moduleType) && TRUE.equalsIgnoreCase(getProperty(EXPORT_FILE_PART_PER_THREAD))) {
+			// no other thread writes to this file; combined by PostBatchUpdateFileTask
+			FileOutputStream writer = null;
 			try {
-				writer = new BufferedOutputStream(new FileOutputStream(new File(exportDir, getPartFileName()), true));
-				while (seq.hasNext()) {
-					writer.write(getValueAsBytes(seq.next().getItem()));
-					writer.write(NEWLINE);
+				writer = new FileOutputStream(new File(exportDir, getThreadPartFileName()), true);
+				if (distinctFilter == null && !isGzipCompression()) {
+					writeItems(seq, writer.getChannel());
+				} else {
+					IOUtils.write(ByteBuffer.wrap(renderItems(seq, distinctFilter)), writer.getChannel());
 				}
-				writer.flush();
 			} finally {
-                closeQuietly(writer);
+				closeQuietly(writer);
+			}
+		} else if (Options.PROCESS_MODULE.equals(moduleType)) {
+			// hand off to the writer thread; flushed by Manager before the post batch
+			ExportFileWriter exportFileWriter = getExportFileWriter(partFile);
+			ExportFileWriter.WriteListener listener = Checkpoint.deferCompletion();
+			if (listener == null && distinctFilter == null && !isGzipCompression() && !isRolling()) {
+				writeItems(seq, exportFileWriter, DEFAULT_CHUNK_SIZE);
+			} else {
+				// filtered, compressed, rolled and checkpointed output is handed off as one buffer per batch
+				exportFileWriter.write(ByteBuffer.wrap(renderItems(seq, distinctFilter)), listener);
+			}
+		} else {
+			synchronized (SYNC_OBJ) {
+				FileOutputStream writer = null;
+				try {
+					writer = new FileOutputStream(partFile, true);
+					if (isGzipCompression()) {
+						IOUtils.write(ByteBuffer.wrap(renderItems(seq, null)), writer.getChannel());
+					} else {
+						writeItems(seq, writer.getChannel());
+					}
+				} finally {
+					closeQuietly(writer);
+				}
 			}
 		}
 	}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends to a shared export file from a single, dedicated thread. Worker
+ * threads hand off pre-rendered buffers and return to their work immediately,
+ * instead of each one taking a lock and opening, writing and closing the file.
+ * The writer thread keeps the file open for the duration of the job and writes
+ * whatever has accumulated in its queue with a single gathering write.
+ * <p>
+ * A writer can also roll over to numbered files once a file reaches a number of
+ * bytes or lines. Each rolled file starts with the content that the first file
+ * had when the writer was opened, such as the top content, and batches are
+ * never split across files.
+ * <p>
+ * Writers are shared by file, and must be closed with {@link #closeAll()} before
+ * the file is read or modified by anything else.
+ *
+ * @since 2.3.2
+ */
+public class ExportFileWriter {
+
+    private static final Logger LOG = Logger.getLogger(ExportFileWriter.class.getName());
+    protected static final long DEFAULT_QUEUE_CAPACITY = 32L * 1024 * 1024;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final Map<String, ExportFileWriter> WRITERS = new HashMap<String, ExportFileWriter>();
+
+    private final File file;
+    private FileChannel channel;
+    private final BlockingQueue<ByteBuffer> queue;
+    private final Thread thread;
+    private volatile IOException error;
+    private boolean closed;
+    private ReorderBuffer reorderBuffer;
+    private final long maxBytes;
+    private final long maxLines;
+    private final String rolledFilePattern;
+    private final byte[] header;
+    private int fileCount = 1;
+    private long fileBytes;
+    private long fileLines;
+    private final long queueCapacity;
+    private long queuedBytes;
+    private long queuedCount;
+    private long writtenCount;
+    private final Map<ByteBuffer, WriteListener> listeners = new IdentityHashMap<ByteBuffer, WriteListener>();
+
+    /**
+     * Notified by the writer thread once a buffer has been written.
+     */
+    public interface WriteListener {
+
+        /**
+         * @param file the file that the buffer was written to
+         * @param length the length of the file after the buffer, which only
+         * includes buffers queued before it
+         */
+        void written(File file, long length);
+    }
+
+    /**
+     * @param file the file to append to
+     * @param queueCapacity the number of bytes that can be waiting to be
+     * written before callers of {@link #write(ByteBuffer)} are blocked. A
+     * larger buffer is queued once nothing else is waiting.
+     * @throws IOException
+     */
+    public ExportFileWriter(File file, long queueCapacity) throws IOException {
+        this(file, queueCapacity, 0, 0, null);
+    }
+
+    /**
+     * @param file the file to append to
+     * @param queueCapacity the number of bytes that can be waiting to be
+     * written before callers of {@link #write(ByteBuffer)} are blocked. A
+     * larger buffer is queued once nothing else is waiting.
+     * @param maxBytes the number of bytes after which to roll to a new file,
+     * or 0 for no limit
+     * @param maxLines the number of lines after which to roll to a new file,
+     * or 0 for no limit
+     * @param rolledFilePattern the format of the name of each rolled file in
+     * the same directory, given the file number starting at 2
+     * @throws IOException
+     */
+    public ExportFileWriter(File file, long queueCapacity, long maxBytes, long maxLines, String rolledFilePattern) throws IOException {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be greater than 0");
+        }
+        if ((maxBytes > 0 || maxLines > 0) && rolledFilePattern == null) {
+            throw new IllegalArgumentException("rolledFilePattern is required to roll files");
+        }
+        this.file = file;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxLines = Math.max(0, maxLines);
+        this.rolledFilePattern = rolledFilePattern;
+        this.header = isRolling() ? readHeader(file) : null;
+        this.channel = new FileOutputStream(file, true).getChannel();
+        this.queueCapacity = queueCapacity;
+        this.queue = new LinkedBlockingQueue<ByteBuffer>();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "export-file-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the shared writer for the file, opening it if necessary.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static ExportFileWriter getInstance(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        synchronized (WRITERS) {
+            ExportFileWriter writer = WRITERS.get(key);
+            if (writer == null) {
+                writer = new ExportFileWriter(file, DEFAULT_QUEUE_CAPACITY);
+                WRITERS.put(key, writer);
+            }
+            return writer;
+        }
+    }
+
+    /**
+     * Get the shared writer for the file, opening it with the rolling limits
+     * if necessary.
+     *
+     * @param file
+     * @param maxBytes
+     * @param maxLines
+     * @param rolledFilePattern
+     * @return
+     * @throws IOException
+     * @see #ExportFileWriter(File, long, long, long, String)
+     */
+    public static ExportFileWriter getInstance(File file, long maxBytes, long maxLines, String rolledFilePattern) throws IOException {
+        String key = file.getCanonicalPath();
+        synchronized (WRITERS) {
+            ExportFileWriter writer = WRITERS.get(key);
+            if (writer == null) {
+                writer = new ExportFileWriter(file, DEFAULT_QUEUE_CAPACITY, maxBytes, maxLines, rolledFilePattern);
+                WRITERS.put(key, writer);
+            }
+            return writer;
+        }
+    }
+
+    private static byte[] readHeader(File file) throws IOException {
+        if (!file.exists()) {
+            return new byte[0];
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) in.getChannel().size());
+            while (buffer.hasRemaining() && in.getChannel().read(buffer) != -1) {
+                // read the whole header
+            }
+            return buffer.array();
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean isRolling() {
+        return maxBytes > 0 || maxLines > 0;
+    }
+
+    /**
+     * @return the number of files that have been written to, including the
+     * first
+     */
+    public synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Close all of the shared writers, waiting for any queued buffers to be
+     * written.
+     *
+     * @throws IOException the first error encountered by any of the writers
+     */
+    public static void closeAll() throws IOException {
+        List<ExportFileWriter> writers;
+        synchronized (WRITERS) {
+            writers = new ArrayList<ExportFileWriter>(WRITERS.values());
+            WRITERS.clear();
+        }
+        IOException firstError = null;
+        for (ExportFileWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                if (firstError == null) {
+                    firstError = ex;
+                } else {
+                    LOG.log(Level.SEVERE, "Unable to write " + writer.file, ex);
+                }
+            }
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+
+    /**
+     * Wait for all of the shared writers to write the buffers that have been
+     * queued so far, and force them to the storage device.
+     *
+     * @throws IOException the first error encountered by any of the writers
+     */
+    public static void flushAll() throws IOException {
+        List<ExportFileWriter> writers;
+        synchronized (WRITERS) {
+            writers = new ArrayList<ExportFileWriter>(WRITERS.values());
+        }
+        for (ExportFileWriter writer : writers) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Wait for the buffers that have been queued so far to be written, and
+     * force them to the storage device.
+     *
+     * @throws IOException if any of the writes failed
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            long target = queuedCount;
+            while (writtenCount < target && thread.isAlive()) {
+                try {
+                    wait(1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while flushing " + file);
+                }
+            }
+            checkError();
+            if (!closed) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Queue the buffer to be appended to the file. Blocks only if the bytes
+     * already queued would exceed the capacity.
+     *
+     * @param buffer
+     * @throws IOException if a previous write has failed, or the writer is
+     * closed
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        write(buffer, null);
+    }
+
+    /**
+     * Queue the buffer to be appended to the file, and notify the listener
+     * once it has been written. Blocks only if the bytes already queued would
+     * exceed the capacity.
+     *
+     * @param buffer
+     * @param listener notified even if the buffer is empty, or {@code null}
+     * @throws IOException if a previous write has failed, or the writer is
+     * closed
+     */
+    public void write(ByteBuffer buffer, WriteListener listener) throws IOException {
+        checkError();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException(file + " has been closed");
+            }
+        }
+        if (!buffer.hasRemaining() && listener == null) {
+            return;
+        }
+        int size = buffer.remaining();
+        synchronized (this) {
+            while (queuedBytes > 0 && queuedBytes + size > queueCapacity && !closed && error == null) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while writing to " + file);
+                }
+            }
+            checkError();
+            if (closed) {
+                throw new IOException(file + " has been closed");
+            }
+            queuedBytes += size;
+            queuedCount++;
+            if (listener != null) {
+                listeners.put(buffer, listener);
+            }
+            // added while holding the lock, so that END is always last
+            queue.add(buffer);
+        }
+    }
+
+    /**
+     * @return a buffer that writes batches to this file in the order they were
+     * queued
+     */
+    public synchronized ReorderBuffer getReorderBuffer() {
+        if (reorderBuffer == null) {
+            reorderBuffer = new ReorderBuffer(this, ReorderBuffer.DEFAULT_MAX_BUFFERED_BYTES, file.getAbsoluteFile().getParentFile());
+        }
+        return reorderBuffer;
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Unable to write " + file + ": " + error.getMessage(), error);
+        }
+    }
+
+    protected void drain() {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        boolean done = false;
+        while (!done) {
+            try {
+                buffers.add(queue.take());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            queue.drainTo(buffers);
+            int size = buffers.size();
+            if (buffers.get(size - 1) == END) {
+                buffers.remove(--size);
+                done = true;
+            }
+            long bytes = 0;
+            for (int i = 0; i < size; i++) {
+                bytes += buffers.get(i).remaining();
+            }
+            if (error == null && size > 0) {
+                try {
+                    ByteBuffer[] group = buffers.toArray(new ByteBuffer[size]);
+                    if (isRolling()) {
+                        writeRolling(group);
+                    } else {
+                        write(group, 0, size);
+                    }
+                } catch (IOException ex) {
+                    LOG.log(Level.SEVERE, "Unable to write " + file, ex);
+                    error = ex;
+                }
+            }
+            synchronized (this) {
+                queuedBytes -= bytes;
+                writtenCount += size;
+                notifyAll();
+            }
+            buffers.clear();
+        }
+    }
+
+    private void write(ByteBuffer[] group, int offset, int length) throws IOException {
+        int end = offset + length;
+        WriteListener[] notify = null;
+        long[] sizes = null;
+        synchronized (this) {
+            if (!listeners.isEmpty()) {
+                notify = new WriteListener[length];
+                sizes = new long[length];
+                for (int i = 0; i < length; i++) {
+                    notify[i] = listeners.remove(group[offset + i]);
+                    sizes[i] = group[offset + i].remaining();
+                }
+            }
+        }
+        long position = notify == null ? 0 : channel.position();
+        int next = offset;
+        while (next < end) {
+            channel.write(group, next, end - next);
+            while (next < end && !group[next].hasRemaining()) {
+                next++;
+            }
+        }
+        if (notify != null) {
+            File current = fileCount == 1 ? file : new File(file.getAbsoluteFile().getParentFile(), String.format(rolledFilePattern, fileCount));
+            for (int i = 0; i < length; i++) {
+                position += sizes[i];
+                if (notify[i] != null) {
+                    notify[i].written(current, position);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the buffers, rolling to a new file before any buffer that would
+     * take the current file over one of the limits.
+     */
+    private void writeRolling(ByteBuffer[] group) throws IOException {
+        int start = 0;
+        for (int i = 0; i < group.length; i++) {
+            long bytes = group[i].remaining();
+            long lines = maxLines > 0 ? countLines(group[i]) : 0;
+            boolean overBytes = maxBytes > 0 && fileBytes + bytes > maxBytes;
+            boolean overLines = maxLines > 0 && fileLines + lines > maxLines;
+            if ((overBytes || overLines) && (fileBytes > 0 || fileLines > 0)) {
+                write(group, start, i - start);
+                start = i;
+                roll();
+            }
+            fileBytes += bytes;
+            fileLines += lines;
+        }
+        write(group, start, group.length - start);
+    }
+
+    private static long countLines(ByteBuffer buffer) {
+        long lines = 0;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private void roll() throws IOException {
+        // flush() forces the channel from other threads while holding the same lock
+        synchronized (this) {
+            channel.close();
+            int number = ++fileCount;
+            File rolled = new File(file.getAbsoluteFile().getParentFile(), String.format(rolledFilePattern, number));
+            channel = new FileOutputStream(rolled, false).getChannel();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        fileBytes = 0;
+        fileLines = 0;
+    }
+
+    /**
+     * Wait for any queued buffers to be written, and then close the file.
+     *
+     * @throws IOException if any of the writes failed
+     */
+    public void close() throws IOException {
+        ReorderBuffer reorder;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            reorder = reorderBuffer;
+        }
+        if (reorder != null) {
+            reorder.close();
+        }
+        synchronized (this) {
+            closed = true;
+            queue.add(END);
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            thread.interrupt();
+            throw new InterruptedIOException("interrupted while closing " + file);
+        } finally {
+            channel.close();
+        }
+        checkError();
+    }
+}
@@ -18,19 +18,40 @@
  */
 package com.marklogic.developer.corb;
 
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_ARCHIVE;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_ARCHIVE_SEGMENT_SIZE;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_URI_TO_PATH;
 import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import static com.marklogic.developer.corb.util.StringUtils.isBlank;
+import static com.marklogic.developer.corb.util.StringUtils.trim;
+import com.marklogic.developer.corb.util.IOUtils;
 import com.marklogic.xcc.ResultSequence;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Bhagat Bandlamudi, MarkLogic Corporation
  */
 public class ExportToFileTask extends AbstractTask {
-    
+
+	protected static final int DEFAULT_ARCHIVE_SEGMENT_SIZE = 1024;
+	protected static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_CACHED_DIRS = 100000;
+	/**
+	 * Directories that are known to exist, so that mkdirs() is not called for
+	 * every file.
+	 */
+	private static final Set<String> CREATED_DIRS = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
 	protected String getFileName() {
 		String filename = inputUris[0].charAt(0) == '/' ? inputUris[0].substring(1) : inputUris[0];
 		String uriInPath = getProperty(EXPORT_FILE_URI_TO_PATH);
@@ -41,25 +62,122 @@ public class ExportToFileTask extends AbstractTask {
 		return filename;
 	}
 
-	protected void writeToFile(ResultSequence seq) throws IOException {
+	protected void writeToFile(final ResultSequence seq) throws IOException {
 		if (seq == null || !seq.hasNext()) {
 			return;
 		}
-		BufferedOutputStream writer = null;
+		ArchiveWriter archiveWriter = getArchiveWriter();
+		if (archiveWriter != null) {
+			archiveWriter.write(getFileName(), new ArchiveWriter.EntryWriter() {
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					writeItems(seq, Channels.newChannel(out));
+				}
+			});
+			return;
+		}
+		FileOutputStream writer = null;
 		try {
 			File f = new File(exportDir, getFileName());
-			f.getParentFile().mkdirs();
-			writer = new BufferedOutputStream(new FileOutputStream(f));
-			while (seq.hasNext()) {
-				writer.write(getValueAsBytes(seq.next().getItem()));
-				writer.write(NEWLINE);
-			}
-			writer.flush();
+			makeParentDirs(f);
+			writer = new FileOutputStream(f);
+			writeItems(seq, writer.getChannel());
 		} finally {
             closeQuietly(writer);
 		}
 	}
 
+	/**
+	 * @return the writer that appends each file to a rolling archive segment,
+	 * or {@code null} if {@value Options#EXPORT_FILE_ARCHIVE} is not specified
+	 * @throws IOException
+	 */
+	protected ArchiveWriter getArchiveWriter() throws IOException {
+		String format = trim(getProperty(EXPORT_FILE_ARCHIVE));
+		if (isBlank(format)) {
+			return null;
+		}
+		File dir = new File(exportDir);
+		ArchiveWriter archiveWriter = ArchiveWriter.getInstance(dir);
+		if (archiveWriter != null) {
+			return archiveWriter;
+		}
+		int segmentSize = getIntProperty(EXPORT_FILE_ARCHIVE_SEGMENT_SIZE);
+		if (segmentSize < 1) {
+			segmentSize = DEFAULT_ARCHIVE_SEGMENT_SIZE;
+		}
+		return ArchiveWriter.register(new ArchiveWriter(dir, format, segmentSize * 1024L * 1024L));
+	}
+
+	/**
+	 * Create the parent directories of the file, unless they are already known
+	 * to exist.
+	 *
+	 * @param file
+	 */
+	protected static void makeParentDirs(File file) {
+		File parent = file.getParentFile();
+		if (parent == null || CREATED_DIRS.contains(parent.getPath())) {
+			return;
+		}
+		if (parent.mkdirs() || parent.isDirectory()) {
+			if (CREATED_DIRS.size() >= MAX_CACHED_DIRS) {
+				CREATED_DIRS.clear();
+			}
+			CREATED_DIRS.add(parent.getPath());
+		}
+	}
+
+	protected byte[] renderItems(ResultSequence seq) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		writeItems(seq, Channels.newChannel(buffer));
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Stream the items to the writer thread in chunks of whole items, as they
+	 * are read, instead of rendering the whole batch first.
+	 *
+	 * @param seq
+	 * @param writer
+	 * @param chunkSize the number of bytes after which a chunk is handed off
+	 * @throws IOException
+	 */
+	protected void writeItems(ResultSequence seq, ExportFileWriter writer, int chunkSize) throws IOException {
+		ChunkBuffer chunk = new ChunkBuffer(chunkSize);
+		WritableByteChannel channel = Channels.newChannel(chunk);
+		while (seq.hasNext()) {
+			writeValue(seq.next().getItem(), channel);
+			IOUtils.write(ByteBuffer.wrap(NEWLINE), channel);
+			if (chunk.size() >= chunkSize) {
+				writer.write(chunk.toByteBuffer());
+				chunk = new ChunkBuffer(chunkSize);
+				channel = Channels.newChannel(chunk);
+			}
+		}
+		if (chunk.size() > 0) {
+			writer.write(chunk.toByteBuffer());
+		}
+	}
+
+	/**
+	 * Stream each item to the channel, followed by a newline. The items are
+	 * collected in the thread's pooled buffer, which is written to the channel
+	 * whenever it is full.
+	 * 
+	 * @param seq
+	 * @param channel
+	 * @throws IOException
+	 */
+	protected void writeItems(ResultSequence seq, WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = IOUtils.getBuffer();
+		while (seq.hasNext()) {
+			writeValue(seq.next().getItem(), buffer, channel);
+			IOUtils.put(NEWLINE, buffer, channel);
+		}
+		IOUtils.flush(buffer, channel);
+	}
+
 	@Override
 	protected String processResult(ResultSequence seq) throws CorbException {
 		try {
@@ -70,4 +188,18 @@ public class ExportToFileTask extends AbstractTask {
 		}
 	}
 
+	/**
+	 * Hands off its buffer without copying it, since it is not written to
+	 * again.
+	 */
+	private static class ChunkBuffer extends ByteArrayOutputStream {
+
+		ChunkBuffer(int size) {
+			super(size);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
 }
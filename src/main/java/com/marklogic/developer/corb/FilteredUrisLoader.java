@@ -0,0 +1,495 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.google.code.externalsorting.ExternalSort;
+import static com.marklogic.developer.corb.Options.EXCLUDE_URIS_FILE;
+import static com.marklogic.developer.corb.Options.INCLUDE_URIS_FILE;
+import static com.marklogic.developer.corb.Options.URIS_DEDUP;
+import static com.marklogic.developer.corb.Options.URIS_FILTER_MAX_IN_MEMORY_SIZE;
+import com.marklogic.developer.corb.util.BloomFilter;
+import com.marklogic.developer.corb.util.FileUtils;
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import com.marklogic.developer.corb.util.NumberUtils;
+import com.marklogic.developer.corb.util.ParallelExternalSort;
+import static com.marklogic.developer.corb.util.StringUtils.isBlank;
+import static com.marklogic.developer.corb.util.StringUtils.stringToBoolean;
+import static com.marklogic.developer.corb.util.StringUtils.trim;
+import com.marklogic.xcc.ContentSource;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import static java.util.logging.Level.INFO;
+import java.util.logging.Logger;
+
+/**
+ * Filters the URIs of another loader before they are queued, so that the URIs
+ * that are removed are never sent to the server. URIs can be removed if they
+ * are listed in {@value Options#EXCLUDE_URIS_FILE}, or are not listed in
+ * {@value Options#INCLUDE_URIS_FILE}, and repeated URIs can be removed with
+ * {@value Options#URIS_DEDUP}. The lists are files with one URI per line, which
+ * may be gzip compressed, and have {@value Options#URIS_REPLACE_PATTERN}
+ * applied to them, as the loader does to its URIs.
+ * <p>
+ * If the lists, and the URIs to remove repeats from, are no larger than
+ * {@value Options#URIS_FILTER_MAX_IN_MEMORY_SIZE}, they are held in memory and
+ * the URIs are filtered as they are read, in the order of the loader. Each list
+ * is held in a Bloom filter, so that most URIs that are not listed are
+ * rejected without a lookup in the set of listed URIs. The URIs to keep are
+ * written to a temporary file before any are queued, so that the total count
+ * is exact.
+ * <p>
+ * Larger lists are not held in memory. Instead, the URIs of the loader are
+ * written to a temporary file, and it is sorted along with the lists, so that
+ * the URIs to keep can be found by merging the sorted files in a single pass.
+ * The URIs are then queued in sorted order. This is also done if the loader
+ * turns out to have more distinct URIs than it estimated, once the URIs
+ * checked for repeats reach the maximum.
+ *
+ * @since 2.3.2
+ */
+public class FilteredUrisLoader extends AbstractUrisLoader {
+
+    private static final Logger LOG = Logger.getLogger(FilteredUrisLoader.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    protected static final int DEFAULT_MAX_IN_MEMORY_SIZE = 1000000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final UrisLoader loader;
+    private UriList excluded;
+    private UriList included;
+    private Set<String> seen;
+    private File tempDir;
+    private BufferedReader filteredUris;
+    private String nextUri;
+    private long filteredCount;
+
+    /**
+     * @param loader the loader of the URIs to filter
+     */
+    public FilteredUrisLoader(UrisLoader loader) {
+        this.loader = loader;
+    }
+
+    public UrisLoader getLoader() {
+        return loader;
+    }
+
+    @Override
+    public void setOptions(TransformOptions options) {
+        super.setOptions(options);
+        loader.setOptions(options);
+    }
+
+    @Override
+    public void setContentSource(ContentSource cs) {
+        super.setContentSource(cs);
+        loader.setContentSource(cs);
+    }
+
+    @Override
+    public void setCollection(String collection) {
+        super.setCollection(collection);
+        loader.setCollection(collection);
+    }
+
+    @Override
+    public void setProperties(Properties properties) {
+        super.setProperties(properties);
+        loader.setProperties(properties);
+    }
+
+    @Override
+    public void open() throws CorbException {
+        parseUriReplacePatterns();
+        File excludeFile = getFile(EXCLUDE_URIS_FILE);
+        File includeFile = getFile(INCLUDE_URIS_FILE);
+        boolean dedup = stringToBoolean(getProperty(URIS_DEDUP));
+        int maxInMemorySize = NumberUtils.toInt(getProperty(URIS_FILTER_MAX_IN_MEMORY_SIZE), DEFAULT_MAX_IN_MEMORY_SIZE);
+
+        loader.open();
+        setBatchRef(loader.getBatchRef());
+        setTotalCount(loader.getTotalCount());
+        try {
+            long excludeCount = countUris(excludeFile);
+            long includeCount = countUris(includeFile);
+            if (excludeCount > maxInMemorySize || includeCount > maxInMemorySize
+                    || (dedup && loader.getTotalCount() > maxInMemorySize)) {
+                openSorted(excludeFile, includeFile, dedup);
+            } else {
+                if (excludeFile != null) {
+                    excluded = new UriList(excludeFile, excludeCount);
+                }
+                if (includeFile != null) {
+                    included = new UriList(includeFile, includeCount);
+                }
+                if (dedup) {
+                    seen = new HashSet<String>();
+                }
+                openInMemory(excludeFile, includeFile, dedup, maxInMemorySize);
+            }
+        } catch (IOException ex) {
+            throw new CorbException("Problem loading uris filter", ex);
+        }
+    }
+
+    private File getFile(String option) throws CorbException {
+        String fileName = getProperty(option);
+        if (isBlank(fileName)) {
+            return null;
+        }
+        File file = new File(fileName);
+        if (!file.isFile()) {
+            throw new CorbException(option + " " + fileName + " not found");
+        }
+        return file;
+    }
+
+    private String replace(String uri) {
+        for (int i = 0; i < replacements.length - 1; i += 2) {
+            uri = uri.replaceAll(replacements[i], replacements[i + 1]);
+        }
+        return uri;
+    }
+
+    private static BufferedReader newReader(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(FileUtils.openInputStream(file), UTF_8));
+    }
+
+    private static Writer newWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+    }
+
+    private static long countUris(File file) throws IOException {
+        long count = 0;
+        if (file != null) {
+            BufferedReader reader = newReader(file);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!isBlank(line)) {
+                        count++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return count;
+    }
+
+    private void createTempDir() throws IOException {
+        File parentDir = options == null ? null : options.getDiskQueueTempDir();
+        tempDir = File.createTempFile("corb-uris-filter", "", parentDir);
+        if (!tempDir.delete() || !tempDir.mkdir()) {
+            throw new IOException("Unable to create directory " + tempDir);
+        }
+    }
+
+    /**
+     * Write the rest of the URIs of the loader.
+     *
+     * @return the number of URIs written
+     */
+    private long writeUris(Writer writer) throws IOException, CorbException {
+        long count = 0;
+        while (loader.hasNext()) {
+            String uri = loader.next();
+            if (!isBlank(uri)) {
+                writer.write(uri);
+                writer.write('\n');
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Filter the URIs with the lists held in memory, writing the URIs to keep
+     * to a temporary file. If the URIs checked for repeats reach the maximum,
+     * the rest of the URIs are appended unfiltered, and the file is filtered
+     * again by sorting.
+     */
+    private void openInMemory(File excludeFile, File includeFile, boolean dedup, int maxInMemorySize) throws IOException, CorbException {
+        LOG.log(INFO, "filtering uris in memory");
+        createTempDir();
+        File uris = new File(tempDir, "uris");
+        long loadedCount = 0;
+        int count = 0;
+        boolean spilled = false;
+        Writer writer = newWriter(uris);
+        try {
+            while (loader.hasNext()) {
+                String uri = loader.next();
+                if (isBlank(uri)) {
+                    continue;
+                }
+                loadedCount++;
+                if (seen != null && seen.size() >= maxInMemorySize && !seen.contains(uri)) {
+                    LOG.log(INFO, "more than {0} distinct uris, sorting uris to filter in {1}", new Object[]{maxInMemorySize, tempDir});
+                    // the URIs kept so far are filtered again, along with the rest
+                    writer.write(uri);
+                    writer.write('\n');
+                    loadedCount += writeUris(writer);
+                    spilled = true;
+                    break;
+                }
+                if (accept(uri)) {
+                    writer.write(uri);
+                    writer.write('\n');
+                    count++;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (spilled) {
+            excluded = null;
+            included = null;
+            seen = null;
+            sortAndJoin(uris, excludeFile, includeFile, dedup, loadedCount);
+        } else {
+            filteredCount = loadedCount - count;
+            setTotalCount(count);
+            LOG.log(INFO, "filtered {0} of {1} uris", new Object[]{filteredCount, loadedCount});
+            filteredUris = newReader(uris);
+        }
+    }
+
+    private void openSorted(File excludeFile, File includeFile, boolean dedup) throws IOException, CorbException {
+        createTempDir();
+        LOG.log(INFO, "sorting uris to filter in {0}", tempDir);
+        File uris = new File(tempDir, "uris");
+        long loadedCount;
+        Writer writer = newWriter(uris);
+        try {
+            loadedCount = writeUris(writer);
+        } finally {
+            writer.close();
+        }
+        sortAndJoin(uris, excludeFile, includeFile, dedup, loadedCount);
+    }
+
+    private void sortAndJoin(File uris, File excludeFile, File includeFile, boolean dedup, long loadedCount) throws IOException {
+        File sortedUris = sort(uris, dedup);
+        File sortedExcluded = excludeFile == null ? null : sort(copyUris(excludeFile, new File(tempDir, "exclude")), true);
+        File sortedIncluded = includeFile == null ? null : sort(copyUris(includeFile, new File(tempDir, "include")), true);
+        File filtered = new File(tempDir, "filtered");
+        int count = join(sortedUris, sortedIncluded, sortedExcluded, filtered);
+        FileUtils.deleteFile(sortedUris);
+        if (sortedExcluded != null) {
+            FileUtils.deleteFile(sortedExcluded);
+        }
+        if (sortedIncluded != null) {
+            FileUtils.deleteFile(sortedIncluded);
+        }
+        filteredCount = loadedCount - count;
+        setTotalCount(count);
+        LOG.log(INFO, "filtered {0} of {1} uris", new Object[]{filteredCount, loadedCount});
+        filteredUris = newReader(filtered);
+    }
+
+    private File copyUris(File file, File copy) throws IOException {
+        BufferedReader reader = newReader(file);
+        try {
+            Writer writer = newWriter(copy);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!isBlank(line)) {
+                        writer.write(replace(trim(line)));
+                        writer.write('\n');
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+        return copy;
+    }
+
+    private File sort(File file, boolean distinct) throws IOException {
+        ParallelExternalSort sorter = new ParallelExternalSort(ExternalSort.defaultcomparator, UTF_8, tempDir, distinct, false,
+                ExternalSort.estimateAvailableMemory() / 2, Runtime.getRuntime().availableProcessors());
+        List<File> runs = sorter.sortInBatch(file, 0);
+        File sorted = new File(file.getPath() + ".sorted");
+        if (runs.isEmpty()) {
+            newWriter(sorted).close();
+        } else {
+            sorter.mergeSortedFiles(runs, sorted, false);
+        }
+        FileUtils.deleteFile(file);
+        return sorted;
+    }
+
+    /**
+     * Write the sorted URIs that are in the included URIs, if any, and are not
+     * in the excluded URIs.
+     *
+     * @return the number of URIs written
+     */
+    private static int join(File sortedUris, File sortedIncluded, File sortedExcluded, File output) throws IOException {
+        Comparator<String> comparator = ExternalSort.defaultcomparator;
+        BufferedReader uris = newReader(sortedUris);
+        BufferedReader included = sortedIncluded == null ? null : newReader(sortedIncluded);
+        BufferedReader excluded = sortedExcluded == null ? null : newReader(sortedExcluded);
+        Writer writer = newWriter(output);
+        int count = 0;
+        try {
+            String includedUri = included == null ? null : included.readLine();
+            String excludedUri = excluded == null ? null : excluded.readLine();
+            String uri;
+            while ((uri = uris.readLine()) != null) {
+                if (included != null) {
+                    while (includedUri != null && comparator.compare(includedUri, uri) < 0) {
+                        includedUri = included.readLine();
+                    }
+                    if (includedUri == null || comparator.compare(includedUri, uri) != 0) {
+                        continue;
+                    }
+                }
+                if (excluded != null) {
+                    while (excludedUri != null && comparator.compare(excludedUri, uri) < 0) {
+                        excludedUri = excluded.readLine();
+                    }
+                    if (excludedUri != null && comparator.compare(excludedUri, uri) == 0) {
+                        continue;
+                    }
+                }
+                writer.write(uri);
+                writer.write('\n');
+                count++;
+            }
+        } finally {
+            closeQuietly(writer);
+            closeQuietly(uris);
+            closeQuietly(included);
+            closeQuietly(excluded);
+        }
+        return count;
+    }
+
+    private boolean accept(String uri) {
+        if (included != null && !included.contains(uri)) {
+            return false;
+        }
+        if (excluded != null && excluded.contains(uri)) {
+            return false;
+        }
+        return seen == null || seen.add(uri);
+    }
+
+    @Override
+    public boolean hasNext() throws CorbException {
+        if (nextUri != null) {
+            return true;
+        }
+        if (filteredUris != null) {
+            try {
+                nextUri = filteredUris.readLine();
+            } catch (IOException ex) {
+                throw new CorbException("Problem reading filtered uris", ex);
+            }
+        }
+        return nextUri != null;
+    }
+
+    @Override
+    public String next() throws CorbException {
+        String uri = hasNext() ? nextUri : null;
+        nextUri = null;
+        return uri;
+    }
+
+    /**
+     * @return the number of URIs that have been removed
+     */
+    public long getFilteredCount() {
+        return filteredCount;
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(filteredUris);
+        closeQuietly(loader);
+        if (tempDir != null) {
+            try {
+                FileUtils.deleteFile(tempDir);
+            } catch (IOException ex) {
+                LOG.log(INFO, "Unable to delete " + tempDir, ex);
+            }
+        }
+        cleanup();
+    }
+
+    @Override
+    protected void cleanup() {
+        super.cleanup();
+        excluded = null;
+        included = null;
+        seen = null;
+        filteredUris = null;
+        tempDir = null;
+        nextUri = null;
+    }
+
+    /**
+     * The URIs of a list, held in a Bloom filter in front of the set of URIs.
+     */
+    private class UriList {
+
+        private final BloomFilter bloomFilter;
+        private final Set<String> uris;
+
+        UriList(File file, long count) throws IOException {
+            bloomFilter = new BloomFilter(count, FALSE_POSITIVE_RATE);
+            uris = new HashSet<String>((int) Math.min(Integer.MAX_VALUE, count * 4 / 3 + 1));
+            BufferedReader reader = newReader(file);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!isBlank(line)) {
+                        String uri = replace(trim(line));
+                        bloomFilter.add(DistinctFilter.fingerprint(uri));
+                        uris.add(uri);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        boolean contains(String uri) {
+            return bloomFilter.mightContain(DistinctFilter.fingerprint(uri)) && uris.contains(uri);
+        }
+    }
+}
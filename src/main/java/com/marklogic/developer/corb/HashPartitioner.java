@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the partition for a line by the hash of its key, so lines with the
+ * same key are always written to the same partition, from one job to the next.
+ * The key is the first capturing group of a regular expression, or the entire
+ * match if the expression has no groups. Lines that do not match are written to
+ * the first partition. Without an expression, the whole line is the key.
+ *
+ * @since 2.3.2
+ * @see Options#EXPORT_FILE_PARTITION_KEY
+ */
+public class HashPartitioner implements Partitioner {
+
+    private final Pattern pattern;
+
+    public HashPartitioner() {
+        this.pattern = null;
+    }
+
+    public HashPartitioner(String regex) {
+        this(regex == null ? null : Pattern.compile(regex));
+    }
+
+    /**
+     * @param pattern extracts the key from each line, or {@code null} to use
+     * the whole line
+     */
+    public HashPartitioner(Pattern pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * @param line
+     * @return the key of the line, or {@code null} if it does not match
+     */
+    public String getKey(String line) {
+        if (line == null || pattern == null) {
+            return line;
+        }
+        Matcher matcher = pattern.matcher(line);
+        if (!matcher.find()) {
+            return null;
+        }
+        return matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+    }
+
+    @Override
+    public int getPartition(String line, int partitions) {
+        String key = getKey(line);
+        if (key == null || partitions < 2) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        // spread the high bits into the low bits, as String.hashCode is weak for short keys
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % partitions;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the high-water mark of an incremental job in a local state file, so
+ * that the next run of the job only selects what has changed since the last
+ * successful run.
+ * <p>
+ * The mark is read from the server when the job starts, before any URIs are
+ * selected, so that changes made while the job is running are selected again
+ * by the next run. It is either the server timestamp, or the server's current
+ * dateTime to compare with a last-modified value. The mark is only saved when
+ * the job has completed successfully, so a failed run is repeated in full.
+ *
+ * @since 2.3.2
+ */
+public class IncrementalState {
+
+    private static final Logger LOG = Logger.getLogger(IncrementalState.class.getName());
+    public static final String TIMESTAMP = "timestamp";
+    public static final String DATE_TIME = "dateTime";
+    /**
+     * The name of the {@value Options#URIS_MODULE} external variable that is
+     * set to the mark of the last successful run, or an empty string for the
+     * first run.
+     */
+    public static final String SINCE = "SINCE";
+    protected static final String CURRENT_DATE_TIME_QUERY = "fn:current-dateTime()";
+    private static final String MARK = "mark";
+    private static final String TYPE = "type";
+    private static final String UPDATED = "updated";
+    private static final String TEMP_EXT = ".tmp";
+
+    private final File file;
+    private final String markType;
+    private String pendingMark;
+
+    /**
+     * @param file the state file
+     * @param markType {@value #TIMESTAMP} or {@value #DATE_TIME}
+     */
+    public IncrementalState(File file, String markType) {
+        if (!isMarkType(markType)) {
+            throw new IllegalArgumentException("Unsupported mark " + markType);
+        }
+        this.file = file;
+        this.markType = markType;
+    }
+
+    public static boolean isMarkType(String markType) {
+        return TIMESTAMP.equals(markType) || DATE_TIME.equals(markType);
+    }
+
+    /**
+     * @return the mark saved by the last successful run, or {@code null} if
+     * there is none, or it is a different type of mark
+     * @throws IOException
+     */
+    public String getMark() throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties state = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            state.load(in);
+        } finally {
+            in.close();
+        }
+        if (!markType.equals(state.getProperty(TYPE))) {
+            LOG.log(Level.WARNING, "{0} has a {1} mark instead of {2}, selecting everything", new Object[]{file, state.getProperty(TYPE), markType});
+            return null;
+        }
+        return state.getProperty(MARK);
+    }
+
+    /**
+     * Read the current mark from the server, to be saved when the job
+     * completes.
+     *
+     * @param session
+     * @return the mark
+     * @throws RequestException
+     */
+    public String capture(Session session) throws RequestException {
+        if (TIMESTAMP.equals(markType)) {
+            pendingMark = session.getCurrentServerPointInTime().toString();
+        } else {
+            ResultSequence result = session.submitRequest(session.newAdhocQuery(CURRENT_DATE_TIME_QUERY));
+            try {
+                pendingMark = result.asString();
+            } finally {
+                result.close();
+            }
+        }
+        return pendingMark;
+    }
+
+    public String getPendingMark() {
+        return pendingMark;
+    }
+
+    /**
+     * Save the captured mark, replacing the state file only once the new state
+     * has been completely written.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (pendingMark == null) {
+            return;
+        }
+        Properties state = new Properties();
+        state.setProperty(MARK, pendingMark);
+        state.setProperty(TYPE, markType);
+        state.setProperty(UPDATED, String.valueOf(System.currentTimeMillis()));
+        File tempFile = new File(file.getPath() + TEMP_EXT);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            state.store(out, null);
+            out.getChannel().force(false);
+        } finally {
+            closeQuietly(out);
+        }
+        if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+        LOG.log(Level.INFO, "saved {0} mark {1} to {2}", new Object[]{markType, pendingMark, file});
+    }
+}
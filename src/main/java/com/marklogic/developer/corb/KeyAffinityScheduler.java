@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Submits tasks so that no two tasks with the same conflict key are queued or
+ * running at the same time. A task that conflicts with one in flight is held
+ * back until the conflicting task completes, while tasks that do not conflict
+ * continue to be dispatched to the thread pool. Tasks that share a conflict
+ * key are dispatched in the order that they were submitted.
+ *
+ * @since 2.3.2
+ * @see ConflictKeyResolver
+ */
+public class KeyAffinityScheduler {
+
+    private static final long WAIT_MILLIS = 100;
+    private static final ThreadLocal<Boolean> NON_BLOCKING = new ThreadLocal<Boolean>();
+
+    private final ThreadPoolExecutor pool;
+    private final CompletionService<String[]> completionService;
+    private final ConflictKeyResolver resolver;
+    private final int maxPending;
+
+    private final Set<String> activeKeys = new HashSet<String>();
+    private final Map<String, Integer> pendingKeys = new HashMap<String, Integer>();
+    private final LinkedList<PendingTask> pending = new LinkedList<PendingTask>();
+    private int dispatching;
+    private boolean shutdown;
+
+    /**
+     * @param pool the thread pool that executes the tasks
+     * @param completionService the completion service to submit the tasks to
+     * @param resolver derives the conflict key from each URI
+     * @param maxPending the maximum number of tasks to hold back before
+     * {@link #submit(Callable, String...)} blocks
+     */
+    public KeyAffinityScheduler(ThreadPoolExecutor pool, CompletionService<String[]> completionService, ConflictKeyResolver resolver, int maxPending) {
+        if (resolver == null) {
+            throw new NullPointerException("resolver must not be null");
+        }
+        this.pool = pool;
+        this.completionService = completionService;
+        this.resolver = resolver;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * Submit the task for execution as soon as it does not conflict with any
+     * task that is in flight. Blocks if too many tasks are being held back.
+     *
+     * @param task
+     * @param uris the URIs that will be processed by the task
+     * @throws InterruptedException
+     */
+    public void submit(Callable<String[]> task, String... uris) throws InterruptedException {
+        Set<String> keys = getConflictKeys(uris);
+        if (keys.isEmpty()) {
+            completionService.submit(task);
+            return;
+        }
+        while (isFull()) {
+            dispatchPending(true);
+            synchronized (this) {
+                if (pending.size() >= maxPending && !shutdown) {
+                    wait(WAIT_MILLIS);
+                }
+            }
+        }
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            if (isConflicting(keys)) {
+                pending.add(new PendingTask(task, keys));
+                for (String key : keys) {
+                    Integer count = pendingKeys.get(key);
+                    pendingKeys.put(key, count == null ? 1 : count + 1);
+                }
+                return;
+            }
+            activeKeys.addAll(keys);
+        }
+        completionService.submit(new KeyedTask(task, keys));
+    }
+
+    /**
+     * Block until all of the tasks that were held back have been dispatched to
+     * the thread pool.
+     *
+     * @throws InterruptedException
+     */
+    public void drain() throws InterruptedException {
+        while (getPendingCount() > 0) {
+            dispatchPending(true);
+            synchronized (this) {
+                if ((!pending.isEmpty() || dispatching > 0) && !shutdown) {
+                    wait(WAIT_MILLIS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard any tasks that are being held back and release blocked callers.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        pending.clear();
+        pendingKeys.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return the number of tasks that are held back, including those being
+     * dispatched that may yet be held back again
+     */
+    public synchronized int getPendingCount() {
+        return shutdown ? 0 : pending.size() + dispatching;
+    }
+
+    /**
+     * @return {@code true} if the current thread is a worker dispatching
+     * held-back tasks, and the task must be rejected rather than block when
+     * the queue is full
+     * @see Manager.CallerBlocksPolicy
+     */
+    public static boolean isNonBlockingDispatch() {
+        return Boolean.TRUE.equals(NON_BLOCKING.get());
+    }
+
+    protected Set<String> getConflictKeys(String... uris) {
+        Set<String> keys = new HashSet<String>();
+        if (uris != null) {
+            for (String uri : uris) {
+                String key = resolver.getConflictKey(uri);
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private synchronized boolean isFull() {
+        return pending.size() >= maxPending && !shutdown;
+    }
+
+    private boolean isConflicting(Set<String> keys) {
+        for (String key : keys) {
+            if (activeKeys.contains(key) || pendingKeys.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void release(Set<String> keys) {
+        activeKeys.removeAll(keys);
+    }
+
+    /**
+     * Dispatch the tasks that are being held back and no longer conflict. The
+     * tasks are submitted outside of the lock, since the submission may block
+     * when the queue is full.
+     *
+     * @param mayBlock if {@code false}, the tasks are offered to the queue
+     * without blocking, and any that it does not accept are held back again.
+     * Worker threads must not block, or they could all end up waiting on the
+     * queue that only they can drain. The free space in the queue can not be
+     * relied on, since the populating thread and the other workers submit to
+     * it at the same time.
+     */
+    protected void dispatchPending(boolean mayBlock) {
+        List<KeyedTask> ready = new ArrayList<KeyedTask>();
+        synchronized (this) {
+            if (shutdown || pool.isShutdown()) {
+                return;
+            }
+            int capacity = mayBlock ? Integer.MAX_VALUE : pool.getQueue().remainingCapacity();
+            Set<String> blocked = new HashSet<String>();
+            Iterator<PendingTask> iterator = pending.iterator();
+            while (iterator.hasNext() && ready.size() < capacity) {
+                PendingTask pendingTask = iterator.next();
+                boolean conflicting = false;
+                for (String key : pendingTask.keys) {
+                    if (activeKeys.contains(key) || blocked.contains(key)) {
+                        conflicting = true;
+                        break;
+                    }
+                }
+                if (conflicting) {
+                    // keep tasks with the same key in submission order
+                    blocked.addAll(pendingTask.keys);
+                    continue;
+                }
+                iterator.remove();
+                for (String key : pendingTask.keys) {
+                    Integer count = pendingKeys.remove(key);
+                    if (count != null && count > 1) {
+                        pendingKeys.put(key, count - 1);
+                    }
+                }
+                activeKeys.addAll(pendingTask.keys);
+                ready.add(new KeyedTask(pendingTask.task, pendingTask.keys));
+            }
+            dispatching += ready.size();
+            notifyAll();
+        }
+        int submitted = 0;
+        try {
+            for (KeyedTask keyedTask : ready) {
+                if (mayBlock) {
+                    completionService.submit(keyedTask);
+                } else {
+                    NON_BLOCKING.set(Boolean.TRUE);
+                    try {
+                        completionService.submit(keyedTask);
+                    } catch (RejectedExecutionException ex) {
+                        break;
+                    } finally {
+                        NON_BLOCKING.remove();
+                    }
+                }
+                submitted++;
+            }
+        } finally {
+            holdBack(ready.subList(submitted, ready.size()));
+            synchronized (this) {
+                dispatching -= ready.size();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Return tasks that were not accepted by the queue to the front of the
+     * held-back tasks, in their original order.
+     */
+    private synchronized void holdBack(List<KeyedTask> rejected) {
+        for (int i = rejected.size() - 1; i >= 0; i--) {
+            KeyedTask keyedTask = rejected.get(i);
+            activeKeys.removeAll(keyedTask.keys);
+            if (shutdown) {
+                continue;
+            }
+            pending.addFirst(new PendingTask(keyedTask.task, keyedTask.keys));
+            for (String key : keyedTask.keys) {
+                Integer count = pendingKeys.get(key);
+                pendingKeys.put(key, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    private static class PendingTask {
+
+        private final Callable<String[]> task;
+        private final Set<String> keys;
+
+        PendingTask(Callable<String[]> task, Set<String> keys) {
+            this.task = task;
+            this.keys = keys;
+        }
+    }
+
+    private class KeyedTask implements Callable<String[]> {
+
+        private final Callable<String[]> task;
+        private final Set<String> keys;
+
+        KeyedTask(Callable<String[]> task, Set<String> keys) {
+            this.task = task;
+            this.keys = keys;
+        }
+
+        @Override
+        public String[] call() throws Exception {
+            try {
+                return task.call();
+            } finally {
+                release(keys);
+                dispatchPending(false);
+            }
+        }
+    }
+}
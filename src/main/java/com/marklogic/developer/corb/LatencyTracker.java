@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a sliding window of the most recent request latencies, so that a
+ * percentile of the observed latencies can be calculated cheaply while a job is
+ * running.
+ *
+ * @since 2.3.2
+ */
+public class LatencyTracker {
+
+    protected static final int DEFAULT_WINDOW_SIZE = 1000;
+    protected static final int DEFAULT_MIN_SAMPLES = 20;
+
+    private final long[] window;
+    private final int minSamples;
+    private int next;
+    private int count;
+
+    public LatencyTracker() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_SAMPLES);
+    }
+
+    /**
+     * @param windowSize the maximum number of recent samples to retain
+     * @param minSamples the number of samples required before a percentile is
+     * reported
+     */
+    public LatencyTracker(int windowSize, int minSamples) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be greater than 0");
+        }
+        this.window = new long[windowSize];
+        this.minSamples = Math.max(1, Math.min(minSamples, windowSize));
+    }
+
+    /**
+     * Record the latency of a completed request.
+     *
+     * @param millis
+     */
+    public synchronized void record(long millis) {
+        window[next] = millis;
+        next = (next + 1) % window.length;
+        if (count < window.length) {
+            count++;
+        }
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * Calculate the latency at the given percentile of the recorded samples.
+     *
+     * @param percentile a value between 0 (exclusive) and 100 (inclusive)
+     * @return the latency in milliseconds, or {@code -1} if not enough samples
+     * have been recorded yet
+     */
+    public long getPercentile(double percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be greater than 0 and no more than 100");
+        }
+        long[] samples;
+        synchronized (this) {
+            if (count < minSamples) {
+                return -1;
+            }
+            samples = Arrays.copyOf(window, count);
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100d * samples.length) - 1;
+        return samples[Math.max(0, index)];
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        count = 0;
+    }
+}
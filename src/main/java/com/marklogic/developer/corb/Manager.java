@@ -19,16 +19,34 @@
 package com.marklogic.developer.corb;
 
 import static com.marklogic.developer.corb.Options.BATCH_SIZE;
+import static com.marklogic.developer.corb.Options.CHECKPOINT_FILE;
+import static com.marklogic.developer.corb.Options.CHECKPOINT_INTERVAL;
 import static com.marklogic.developer.corb.Options.COLLECTION_NAME;
 import static com.marklogic.developer.corb.Options.COMMAND_FILE;
+import static com.marklogic.developer.corb.Options.CONFLICT_KEY_REGEX;
+import static com.marklogic.developer.corb.Options.CONFLICT_KEY_RESOLVER;
 import static com.marklogic.developer.corb.Options.DISK_QUEUE;
+import static com.marklogic.developer.corb.Options.ENDGAME_BATCH_SPLIT;
 import static com.marklogic.developer.corb.Options.DISK_QUEUE_TEMP_DIR;
 import static com.marklogic.developer.corb.Options.DISK_QUEUE_MAX_IN_MEMORY_SIZE;
 import static com.marklogic.developer.corb.Options.ERROR_FILE_NAME;
+import static com.marklogic.developer.corb.Options.EXCLUDE_URIS_FILE;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_ARCHIVE;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_DIR;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_HEADER_LINE_COUNT;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_MAX_BYTES;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_MAX_LINES;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_NAME;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_ORDERED;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_PART_EXT;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_PARTITIONS;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_LIMIT;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_RUN_SIZE;
 import static com.marklogic.developer.corb.Options.FAIL_ON_ERROR;
+import static com.marklogic.developer.corb.Options.INCLUDE_URIS_FILE;
+import static com.marklogic.developer.corb.Options.INCREMENTAL_MARK;
+import static com.marklogic.developer.corb.Options.INCREMENTAL_STATE_FILE;
 import static com.marklogic.developer.corb.Options.INIT_MODULE;
 import static com.marklogic.developer.corb.Options.INIT_TASK;
 import static com.marklogic.developer.corb.Options.INSTALL;
@@ -42,11 +60,19 @@ import static com.marklogic.developer.corb.Options.POST_BATCH_XQUERY_MODULE;
 import static com.marklogic.developer.corb.Options.PRE_BATCH_MODULE;
 import static com.marklogic.developer.corb.Options.PRE_BATCH_TASK;
 import static com.marklogic.developer.corb.Options.PRE_BATCH_XQUERY_MODULE;
+import static com.marklogic.developer.corb.Options.POINT_IN_TIME;
 import static com.marklogic.developer.corb.Options.PROCESS_MODULE;
 import static com.marklogic.developer.corb.Options.PROCESS_TASK;
+import static com.marklogic.developer.corb.Options.RESUME;
 import static com.marklogic.developer.corb.Options.THREAD_COUNT;
+import static com.marklogic.developer.corb.Options.TRANSACTION_GROUP_SIZE;
+import static com.marklogic.developer.corb.Options.URIS_DEDUP;
 import static com.marklogic.developer.corb.Options.URIS_FILE;
 import static com.marklogic.developer.corb.Options.URIS_LOADER;
+import static com.marklogic.developer.corb.Options.URIS_REPLAY_FILE;
+import static com.marklogic.developer.corb.Options.XCC_CONNECTION_FAILURE_THRESHOLD;
+import static com.marklogic.developer.corb.Options.XCC_CONNECTION_RETRY_INTERVAL;
+import static com.marklogic.developer.corb.Options.XCC_CONNECTION_RETRY_LIMIT;
 import static com.marklogic.developer.corb.Options.URIS_MODULE;
 import static com.marklogic.developer.corb.Options.XCC_CONNECTION_URI;
 import static com.marklogic.developer.corb.Options.XQUERY_MODULE;
@@ -73,6 +99,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.math.BigInteger;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.text.MessageFormat;
@@ -84,6 +111,7 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
@@ -93,6 +121,7 @@ import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
@@ -116,9 +145,15 @@ public class Manager extends AbstractManager {
     protected transient Thread monitorThread;
     protected transient CompletionService<String[]> completionService;
     protected transient ScheduledExecutorService scheduledExecutor;
+    protected transient CircuitBreaker circuitBreaker;
+    protected transient KeyAffinityScheduler keyAffinityScheduler;
+    protected transient Checkpoint checkpoint;
+    protected transient IncrementalState incrementalState;
+    protected final transient AtomicLong failedUriCount = new AtomicLong();
 
     protected boolean execError;
     protected boolean stopCommand;
+    protected boolean pendingTasksDropped;
 
     protected static int EXIT_CODE_NO_URIS = EXIT_CODE_SUCCESS;
     protected static final int EXIT_CODE_STOP_COMMAND = 3;
@@ -182,12 +217,14 @@ public class Manager extends AbstractManager {
 
         prepareContentSource();
         registerStatusInfo();
+        initPointInTime();
         prepareModules();
 
         //This is relavant for unit tests only. clear the static map so it gets re-initialized for fresh run
         if (AbstractTask.MODULE_PROPS != null) {
             AbstractTask.MODULE_PROPS.clear();
         }
+        AbstractTask.PROCESS_LATENCY.clear();
 
         EXIT_CODE_NO_URIS = NumberUtils.toInt(getOption(Options.EXIT_CODE_NO_URIS));
 
@@ -221,6 +258,7 @@ public class Manager extends AbstractManager {
         String exportFileName = getOption(args.length > 14 ? args[14] : null, EXPORT_FILE_NAME);
         String urisFile = getOption(args.length > 15 ? args[15] : null, URIS_FILE);
 
+        String urisReplayFile = getOption(URIS_REPLAY_FILE);
         String urisLoader = getOption(URIS_LOADER);
         if (urisLoader != null) {
             options.setUrisLoaderClass(getUrisLoaderCls(urisLoader));
@@ -234,10 +272,19 @@ public class Manager extends AbstractManager {
         String errorFileName = getOption(ERROR_FILE_NAME);
 
         options.setUseDiskQueue(stringToBoolean(getOption(DISK_QUEUE)));
+        options.setUseEndgameBatchSplit(stringToBoolean(getOption(ENDGAME_BATCH_SPLIT)));
         String diskQueueMaxInMemorySize = getOption(DISK_QUEUE_MAX_IN_MEMORY_SIZE);
         String diskQueueTempDir = getOption(DISK_QUEUE_TEMP_DIR);
         
         String numTpsForETC = getOption(NUM_TPS_FOR_ETC);
+        String connectionFailureThreshold = getOption(XCC_CONNECTION_FAILURE_THRESHOLD);
+        String conflictKeyRegex = getOption(CONFLICT_KEY_REGEX);
+        String conflictKeyResolver = getOption(CONFLICT_KEY_RESOLVER);
+        String checkpointFile = getOption(CHECKPOINT_FILE);
+        String checkpointInterval = getOption(CHECKPOINT_INTERVAL);
+        options.setResume(stringToBoolean(getOption(RESUME)));
+        String incrementalStateFile = getOption(INCREMENTAL_STATE_FILE);
+        String incrementalMark = getOption(INCREMENTAL_MARK);
 
         //Check legacy properties keys, for backwards compatability
         if (processModule == null) {
@@ -270,6 +317,9 @@ public class Manager extends AbstractManager {
         if (urisFile != null) {
             options.setUrisFile(urisFile);
         }
+        if (urisReplayFile != null) {
+            options.setUrisReplayFile(urisReplayFile);
+        }
         if (batchSize != null) {
             options.setBatchSize(Integer.parseInt(batchSize));
         }
@@ -279,6 +329,31 @@ public class Manager extends AbstractManager {
         if (diskQueueMaxInMemorySize != null) {
             options.setDiskQueueMaxInMemorySize(Integer.parseInt(diskQueueMaxInMemorySize));
         }
+        if (connectionFailureThreshold != null) {
+            options.setConnectionFailureThreshold(Integer.parseInt(connectionFailureThreshold));
+        }
+        if (conflictKeyResolver != null) {
+            options.setConflictKeyResolver(getConflictKeyResolver(conflictKeyResolver));
+        } else if (conflictKeyRegex != null) {
+            options.setConflictKeyResolver(new RegexConflictKeyResolver(conflictKeyRegex));
+        }
+        if (options.getConflictKeyResolver() != null && NumberUtils.toInt(getProperty(TRANSACTION_GROUP_SIZE), 1) > 1) {
+            // the keys of a batch are released before the transaction that holds its locks is committed
+            throw new IllegalArgumentException((conflictKeyResolver != null ? CONFLICT_KEY_RESOLVER : CONFLICT_KEY_REGEX)
+                    + " can not be combined with " + TRANSACTION_GROUP_SIZE);
+        }
+        if (checkpointFile != null) {
+            options.setCheckpointFile(new File(checkpointFile));
+        }
+        if (checkpointInterval != null) {
+            options.setCheckpointInterval(Integer.parseInt(checkpointInterval));
+        }
+        if (incrementalStateFile != null) {
+            options.setIncrementalStateFile(new File(incrementalStateFile));
+        }
+        if (incrementalMark != null) {
+            options.setIncrementalMark(incrementalMark);
+        }
         if (numTpsForETC != null) {
         		options.setNumTpsForETC(Integer.parseInt(numTpsForETC));
         }
@@ -298,6 +373,14 @@ public class Manager extends AbstractManager {
                 throw new IllegalArgumentException("Uris file " + urisFile + " not found");
             }
         }
+        if (urisReplayFile != null && !new File(urisReplayFile).exists()) {
+            throw new IllegalArgumentException("Uris replay file " + urisReplayFile + " not found");
+        }
+        if (options.getCheckpointFile() != null) {
+            validateCheckpointOptions();
+        } else if (options.shouldResume()) {
+            throw new IllegalArgumentException(RESUME + " requires " + CHECKPOINT_FILE);
+        }
 
         if (initModule != null) {
             options.setInitModule(initModule);
@@ -357,9 +440,11 @@ public class Manager extends AbstractManager {
             }
         }
 
-        // delete the export file if it exists
-        deleteFileIfExists(exportFileDir, exportFileName);
-        deleteFileIfExists(exportFileDir, errorFileName);
+        // delete the export file if it exists, unless it is restored from the checkpoint
+        if (!options.shouldResume()) {
+            deleteFileIfExists(exportFileDir, exportFileName);
+            deleteFileIfExists(exportFileDir, errorFileName);
+        }
 
         normalizeLegacyProperties();
     }
@@ -441,6 +526,15 @@ public class Manager extends AbstractManager {
         }
     }
 
+    protected ConflictKeyResolver getConflictKeyResolver(String className) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+        Class<?> cls = Class.forName(className);
+        if (ConflictKeyResolver.class.isAssignableFrom(cls)) {
+            return (ConflictKeyResolver) cls.newInstance();
+        } else {
+            throw new IllegalArgumentException(CONFLICT_KEY_RESOLVER + " must be of type com.marklogic.developer.corb.ConflictKeyResolver");
+        }
+    }
+
     @Override
     protected void usage() {
         super.usage();
@@ -488,6 +582,8 @@ public class Manager extends AbstractManager {
         LOG.log(INFO, "maximum heap size = {0} MiB", maxMemory);
 
         this.execError = false; //reset execution error flag for a new run
+        this.pendingTasksDropped = false;
+        failedUriCount.set(0);
         monitorThread = preparePool();
 
         try {
@@ -502,10 +598,36 @@ public class Manager extends AbstractManager {
                     LOG.log(SEVERE, "interrupted while waiting for monitor", e);
                 }
             }
+            if (null != circuitBreaker) {
+                circuitBreaker.shutdown();
+            }
+            if (null != checkpoint) {
+                checkpoint.close();
+            }
+            ExportFileWriter.closeAll();
+            PartitionedFileWriter.closeAll();
+            SortedRunWriter.closeAll();
+            DistinctFilter.closeAll();
+            TopLinesCollector.closeAll();
+            ArchiveWriter.closeAll();
+            if (!execError) {
+                TransactionGroup.commitAll();
+            }
             if (!execError && count > 0) {
                 runPostBatchTask(); // post batch tasks
+                ExportFileWriter.closeAll(); // errors written by the post batch task
+                if (null != checkpoint && isAllCompleted()) {
+                    checkpoint.delete();
+                }
                 LOG.info("all done");
             }
+            if (null != incrementalState) {
+                if (isCompleteRun()) {
+                    incrementalState.save();
+                } else {
+                    LOG.log(WARNING, "{0} was not updated because the job did not complete without errors", INCREMENTAL_STATE_FILE);
+                }
+            }
             return count;
         } catch (Exception e) {
             LOG.log(SEVERE, e.getMessage());
@@ -514,6 +636,22 @@ public class Manager extends AbstractManager {
         }
     }
 
+    /**
+     * @return true if the job was not stopped and every queued batch completed
+     */
+    protected boolean isAllCompleted() {
+        return !execError && !stopCommand && !pendingTasksDropped
+                && (null == monitor || monitor.getCompletedCount() >= monitor.getTaskCount());
+    }
+
+    /**
+     * @return true if every queued batch completed, no URIs failed and the job
+     * was not stopped
+     */
+    protected boolean isCompleteRun() {
+        return isAllCompleted() && failedUriCount.get() == 0;
+    }
+
     /**
      * @return
      */
@@ -524,7 +662,16 @@ public class Manager extends AbstractManager {
         BlockingQueue<Runnable> workQueue = new ArrayBlockingQueue<Runnable>(options.getQueueSize());
         pool = new PausableThreadPoolExecutor(threads, threads, 16, TimeUnit.SECONDS, workQueue, policy);
         pool.prestartAllCoreThreads();
+        AbstractTask.setHedgeThreadCount(threads);
         completionService = new ExecutorCompletionService<String[]>(pool);
+        if (options.getConnectionFailureThreshold() > 0) {
+            int retryInterval = NumberUtils.toInt(getProperty(XCC_CONNECTION_RETRY_INTERVAL), AbstractTask.DEFAULT_CONNECTION_RETRY_INTERVAL);
+            int retryLimit = NumberUtils.toInt(getProperty(XCC_CONNECTION_RETRY_LIMIT), AbstractTask.DEFAULT_CONNECTION_RETRY_LIMIT);
+            circuitBreaker = new CircuitBreaker(pool, contentSource, options.getConnectionFailureThreshold(), retryInterval * 1000L, retryLimit);
+        }
+        if (options.getConflictKeyResolver() != null) {
+            keyAffinityScheduler = new KeyAffinityScheduler(pool, completionService, options.getConflictKeyResolver(), options.getQueueSize());
+        }
         monitor = new Monitor(pool, completionService, this);
         Thread thread = new Thread(monitor, "monitor");
         return thread;
@@ -597,6 +744,41 @@ public class Manager extends AbstractManager {
         }
     }
 
+    /**
+     * If {@value Options#POINT_IN_TIME} is {@code true}, capture the current
+     * server timestamp and replace the option value with it, so that every
+     * request of the job runs at the same point in time.
+     *
+     * @throws RequestException
+     */
+    protected void initPointInTime() throws RequestException {
+        String pointInTime = getProperty(POINT_IN_TIME);
+        if (isBlank(pointInTime) || "false".equalsIgnoreCase(pointInTime)) {
+            return;
+        }
+        BigInteger timestamp;
+        if ("true".equalsIgnoreCase(pointInTime)) {
+            Session session = contentSource.newSession();
+            try {
+                timestamp = session.getCurrentServerPointInTime();
+            } finally {
+                session.close();
+            }
+            options.setPointInTimeCaptured(true);
+        } else {
+            try {
+                timestamp = new BigInteger(pointInTime);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(POINT_IN_TIME + " must be true, false, or a timestamp", ex);
+            }
+        }
+        if (System.getProperty(POINT_IN_TIME) != null) {
+            System.setProperty(POINT_IN_TIME, timestamp.toString());
+        }
+        properties.setProperty(POINT_IN_TIME, timestamp.toString());
+        LOG.log(INFO, "Using {0}: {1}", new Object[]{POINT_IN_TIME, timestamp});
+    }
+
     protected void registerStatusInfo() {
         Session session = contentSource.newSession();
         AdhocQuery q = session.newAdhocQuery(XQUERY_VERSION_ML + DECLARE_NAMESPACE_MLSS_XDMP_STATUS_SERVER
@@ -629,6 +811,7 @@ public class Manager extends AbstractManager {
         LOG.log(INFO, "Configured uri module: {0}", options.getUrisModule());
         LOG.log(INFO, "Configured uri file: {0}", options.getUrisFile());
         LOG.log(INFO, "Configured uri loader: {0}", options.getUrisLoaderClass());
+        LOG.log(INFO, "Configured uri replay file: {0}", options.getUrisReplayFile());
         LOG.log(INFO, "Configured process module: {0}", options.getProcessModule());
         LOG.log(INFO, "Configured process task: {0}", options.getProcessTaskClass());
         LOG.log(INFO, "Configured pre batch module: {0}", options.getPreBatchModule());
@@ -678,9 +861,118 @@ public class Manager extends AbstractManager {
         }
     }
 
+    /**
+     * A batch is only recorded as complete in the checkpoint once the output
+     * that it wrote to the export files can be truncated back to, so options
+     * that hold output or uncommitted updates across batches are not supported.
+     */
+    protected void validateCheckpointOptions() {
+        if (NumberUtils.toInt(getProperty(TRANSACTION_GROUP_SIZE), 1) > 1) {
+            throw new IllegalArgumentException(CHECKPOINT_FILE + " can not be combined with " + TRANSACTION_GROUP_SIZE);
+        }
+        if (stringToBoolean(getProperty(EXPORT_FILE_ORDERED))) {
+            throw new IllegalArgumentException(CHECKPOINT_FILE + " can not be combined with " + EXPORT_FILE_ORDERED);
+        }
+        for (String option : new String[]{EXPORT_FILE_ARCHIVE, EXPORT_FILE_MAX_BYTES, EXPORT_FILE_MAX_LINES,
+            EXPORT_FILE_PARTITIONS, EXPORT_FILE_SORT_LIMIT, EXPORT_FILE_SORT_RUN_SIZE}) {
+            if (isNotBlank(getProperty(option))) {
+                throw new IllegalArgumentException(CHECKPOINT_FILE + " can not be combined with " + option);
+            }
+        }
+        String sort = getProperty(EXPORT_FILE_SORT);
+        if (isNotBlank(sort) && sort.matches(ExportBatchToFileTask.DISTINCT) && !sort.matches(ExportBatchToFileTask.SORT_DIRECTION)) {
+            // duplicates are removed as the output is written, instead of when it is sorted
+            throw new IllegalArgumentException(CHECKPOINT_FILE + " can not be combined with " + EXPORT_FILE_SORT + " " + sort);
+        }
+    }
+
+    /**
+     * @return the export part file written by
+     * {@link ExportBatchToFileTask}, or {@code null} if no export file is named
+     */
+    protected File getExportPartFile() {
+        String exportFileName = getProperty(EXPORT_FILE_NAME);
+        if (isBlank(exportFileName)) {
+            String batchRef = properties.getProperty(URIS_BATCH_REF);
+            if (isBlank(batchRef)) {
+                return null;
+            }
+            exportFileName = batchRef.trim().substring(batchRef.trim().lastIndexOf('/') + 1);
+        }
+        String partExt = getProperty(EXPORT_FILE_PART_EXT);
+        if (isNotBlank(partExt)) {
+            exportFileName += partExt.startsWith(".") ? partExt : "." + partExt;
+        }
+        return new File(options.getExportFileDir(), exportFileName);
+    }
+
+    /**
+     * Create the checkpoint for {@value Options#CHECKPOINT_FILE}, restoring the
+     * last checkpoint if {@value Options#RESUME} is specified.
+     *
+     * @param total the number of URIs expected from the loader
+     * @return {@code true} if the job was resumed from a checkpoint
+     * @throws IOException
+     * @throws IllegalStateException if the checkpoint was for a different
+     * number of URIs
+     */
+    protected boolean initCheckpoint(int total) throws IOException {
+        checkpoint = new Checkpoint(options.getCheckpointFile(), getExportPartFile());
+        boolean resumed = false;
+        if (options.shouldResume()) {
+            resumed = checkpoint.restore();
+            if (!resumed) {
+                LOG.log(INFO, "no checkpoint found in {0}, starting from the beginning", options.getCheckpointFile());
+                deleteFileIfExists(options.getExportFileDir(), getProperty(EXPORT_FILE_NAME));
+                deleteFileIfExists(options.getExportFileDir(), getProperty(ERROR_FILE_NAME));
+            } else {
+                if (checkpoint.getTotal() != total) {
+                    throw new IllegalStateException("Expecting total " + total + ", but the checkpoint in "
+                            + options.getCheckpointFile() + " was for " + checkpoint.getTotal() + ", and can not be resumed");
+                }
+                if (checkpoint.getHeaderLineCount() > 0) {
+                    properties.setProperty(EXPORT_FILE_HEADER_LINE_COUNT, String.valueOf(checkpoint.getHeaderLineCount()));
+                }
+                LOG.log(INFO, "resuming from checkpoint with {0} of {1} completed", new Object[]{checkpoint.getCompletedCount(), checkpoint.getQueued()});
+            }
+        }
+        if (!resumed) {
+            FileUtils.deleteFile(options.getCheckpointFile());
+        }
+        checkpoint.setTotal(total);
+        return resumed;
+    }
+
+    /**
+     * Pass the mark of the last successful run to the
+     * {@value Options#URIS_MODULE}, and read the mark to save if this run
+     * succeeds.
+     *
+     * @throws IOException
+     * @throws RequestException
+     */
+    protected void initIncrementalState() throws IOException, RequestException {
+        incrementalState = new IncrementalState(options.getIncrementalStateFile(), options.getIncrementalMark());
+        String since = incrementalState.getMark();
+        String sinceProperty = URIS_MODULE + '.' + IncrementalState.SINCE;
+        if (getProperty(sinceProperty) == null) {
+            properties.setProperty(sinceProperty, since == null ? "" : since);
+        }
+        LOG.log(INFO, "selecting uris changed since {0}", since == null ? "the first run" : since);
+        Session session = contentSource.newSession();
+        try {
+            incrementalState.capture(session);
+        } finally {
+            session.close();
+        }
+    }
+
     private UrisLoader getUriLoader() throws InstantiationException, IllegalAccessException {
         UrisLoader loader = null;
-        if (isNotBlank(options.getUrisModule())) {
+        if (isNotBlank(options.getUrisReplayFile())) {
+            // only the failures of a previous job
+            loader = new ErrorJournalUrisLoader();
+        } else if (isNotBlank(options.getUrisModule())) {
             loader = new QueryUrisLoader();
         } else if (isNotBlank(options.getUrisFile())) {
             loader = new FileUrisLoader();
@@ -690,6 +982,11 @@ public class Manager extends AbstractManager {
             throw new IllegalArgumentException("Cannot find " + URIS_MODULE + ", " + URIS_FILE + " or " + URIS_LOADER);
         }
 
+        if (isNotBlank(getProperty(EXCLUDE_URIS_FILE)) || isNotBlank(getProperty(INCLUDE_URIS_FILE))
+                || stringToBoolean(getProperty(URIS_DEDUP))) {
+            loader = new FilteredUrisLoader(loader);
+        }
+
         loader.setOptions(options);
         loader.setContentSource(contentSource);
         loader.setCollection(collection);
@@ -707,6 +1004,9 @@ public class Manager extends AbstractManager {
             // run init task
             runInitTask(taskFactory);
 
+            if (options.getIncrementalStateFile() != null) {
+                initIncrementalState();
+            }
             urisLoader.open();
             if (urisLoader.getBatchRef() != null) {
                 properties.put(URIS_BATCH_REF, urisLoader.getBatchRef());
@@ -721,11 +1021,23 @@ public class Manager extends AbstractManager {
                 return 0;
             }
 
-            // run pre-batch task, if present.
-            runPreBatchTask(taskFactory);
+            boolean resumed = false;
+            if (options.getCheckpointFile() != null) {
+                resumed = initCheckpoint(expectedTotalCount);
+            }
+            // run pre-batch task, if present. A resumed job already ran it.
+            if (!resumed) {
+                runPreBatchTask(taskFactory);
+            }
+            int skipped = 0;
+            if (checkpoint != null) {
+                checkpoint.setHeaderLineCount(NumberUtils.toInt(properties.getProperty(EXPORT_FILE_HEADER_LINE_COUNT), -1));
+                checkpoint.start(options.getCheckpointInterval() * 1000L);
+                skipped = (int) checkpoint.getCompletedCount();
+            }
 
             // now start process tasks
-            monitor.setTaskCount(expectedTotalCount);
+            monitor.setTaskCount(expectedTotalCount - skipped);
             monitorThread.start();
             Level memoryLogLevel = INFO;
             long lastMessageMillis = System.currentTimeMillis();
@@ -733,6 +1045,9 @@ public class Manager extends AbstractManager {
             long freeMemory;
             String uri;
             List<String> uriBatch = new ArrayList<String>(options.getBatchSize());
+            int batchSize = options.getBatchSize();
+            long batchSequence = 0;
+            int batchStart = 0;
 
             while (urisLoader.hasNext()) {
                 // check pool occasionally, for fast-fail
@@ -744,12 +1059,26 @@ public class Manager extends AbstractManager {
                 if (isBlank(uri)) {
                     continue;
                 }
+                if (checkpoint != null && checkpoint.isCompleted(urisCount)) {
+                    if (!checkpoint.verify(urisCount, uri)) {
+                        throw new IllegalStateException("URIs up to " + urisCount + " do not match the checkpoint in "
+                                + options.getCheckpointFile() + ", and can not be resumed");
+                    }
+                    // keep each batch to a contiguous range of positions
+                    if (!uriBatch.isEmpty()) {
+                        submitBatch(taskFactory, uriBatch, batchSequence++, batchStart);
+                    }
+                    urisCount++;
+                    continue;
+                }
+                if (uriBatch.isEmpty()) {
+                    batchSize = getBatchSize(expectedTotalCount - urisCount);
+                    batchStart = urisCount;
+                }
                 uriBatch.add(uri);
 
-                if (uriBatch.size() >= options.getBatchSize() || urisCount >= expectedTotalCount || !urisLoader.hasNext()) {
-                    String[] uris = uriBatch.toArray(new String[uriBatch.size()]);
-                    uriBatch.clear();
-                    completionService.submit(taskFactory.newProcessTask(uris, options.isFailOnError()));
+                if (uriBatch.size() >= batchSize || urisCount >= expectedTotalCount || !urisLoader.hasNext()) {
+                    submitBatch(taskFactory, uriBatch, batchSequence++, batchStart);
                 }
 
                 urisCount++;
@@ -774,10 +1103,21 @@ public class Manager extends AbstractManager {
             if (urisCount == expectedTotalCount) {
                 LOG.log(INFO, "queue is populated with {0} tasks", urisCount);
             } else {
-                LOG.log(WARNING, "queue is expected to be populated with {0} tasks, but got {1} tasks.", new Object[]{expectedTotalCount, urisCount});
-                monitor.setTaskCount(urisCount);
+                if (urisLoader instanceof FilteredUrisLoader) {
+                    LOG.log(INFO, "queue is populated with {0} tasks, after {1} uris were filtered", new Object[]{urisCount, ((FilteredUrisLoader) urisLoader).getFilteredCount()});
+                } else {
+                    LOG.log(WARNING, "queue is expected to be populated with {0} tasks, but got {1} tasks.", new Object[]{expectedTotalCount, urisCount});
+                }
+                monitor.setTaskCount(urisCount - skipped);
+            }
+            if (!uriBatch.isEmpty()) {
+                // the loader ended with completed URIs after a partial batch
+                submitBatch(taskFactory, uriBatch, batchSequence++, batchStart);
             }
 
+            if (keyAffinityScheduler != null) {
+                keyAffinityScheduler.drain();
+            }
             pool.shutdown();
 
         } catch (Exception exc) {
@@ -790,10 +1130,47 @@ public class Manager extends AbstractManager {
         return urisCount;
     }
 
+    private void submitBatch(TaskFactory taskFactory, List<String> uriBatch, long batchSequence, int batchStart) throws InterruptedException {
+        String[] uris = uriBatch.toArray(new String[uriBatch.size()]);
+        uriBatch.clear();
+        Callable<String[]> task = taskFactory.newProcessTask(uris, options.isFailOnError(), batchSequence);
+        if (checkpoint != null) {
+            task = checkpoint.track(task, batchStart, uris);
+            checkpoint.setQueued(batchStart + (long) uris.length);
+        }
+        if (keyAffinityScheduler == null) {
+            completionService.submit(task);
+        } else {
+            keyAffinityScheduler.submit(task, uris);
+        }
+    }
+
+    /**
+     * Determine the size of the next batch. When {@value Options#ENDGAME_BATCH_SPLIT}
+     * is enabled and fewer than threads x batch size URIs remain to be queued,
+     * the remaining URIs are spread across the threads, so that the last
+     * batches are smaller and no thread is left working through a large batch
+     * while the others are idle.
+     *
+     * @param remaining the number of URIs that have not yet been queued
+     * @return
+     */
+    protected int getBatchSize(int remaining) {
+        int batchSize = options.getBatchSize();
+        if (options.shouldUseEndgameBatchSplit() && batchSize > 1) {
+            int threads = options.getThreadCount();
+            if (remaining < (long) threads * batchSize) {
+                batchSize = Math.max(1, Math.min(batchSize, (remaining + threads - 1) / threads));
+            }
+        }
+        return batchSize;
+    }
+
     public void setThreadCount(int threadCount) {
         if (threadCount > 0) {
             if (threadCount != options.getThreadCount()) {
                 options.setThreadCount(threadCount);
+                AbstractTask.setHedgeThreadCount(threadCount);
                 if (pool != null) {
                     int currentMaxPoolSize = pool.getMaximumPoolSize();
                     try {
@@ -821,6 +1198,9 @@ public class Manager extends AbstractManager {
      * Pause execution of pool tasks
      */
     public void pause() {
+        if (null != circuitBreaker) {
+            circuitBreaker.releasePause();
+        }
         if (pool != null && pool.isRunning()) {
             LOG.info("pausing");
             pool.pause();
@@ -835,6 +1215,9 @@ public class Manager extends AbstractManager {
      * Resume pool execution (if paused).
      */
     public void resume() {
+        if (null != circuitBreaker) {
+            circuitBreaker.releasePause();
+        }
         if (pool != null && pool.isPaused()) {
             LOG.info("resuming");
             pool.resume();
@@ -852,10 +1235,31 @@ public class Manager extends AbstractManager {
             }
             List<Runnable> remaining = pool.shutdownNow();
             if (!remaining.isEmpty()) {
+                pendingTasksDropped = true;
                 LOG.log(WARNING, "thread pool was shut down with {0} pending tasks", remaining.size());
             }
             pool = null;
         }
+        if (null != circuitBreaker) {
+            circuitBreaker.shutdown();
+        }
+        if (null != keyAffinityScheduler) {
+            keyAffinityScheduler.shutdown();
+        }
+        TransactionGroup.rollbackAll();
+        if (null != checkpoint) {
+            checkpoint.close();
+        }
+        try {
+            ExportFileWriter.closeAll();
+            PartitionedFileWriter.closeAll();
+            SortedRunWriter.closeAll();
+            DistinctFilter.closeAll();
+            TopLinesCollector.closeAll();
+            ArchiveWriter.closeAll();
+        } catch (IOException ex) {
+            LOG.log(SEVERE, "unable to close export files", ex);
+        }
         if (null != monitor) {
             monitor.shutdownNow();
         }
@@ -943,6 +1347,10 @@ public class Manager extends AbstractManager {
             if (null == queue) {
                 queue = executor.getQueue();
             }
+            if (KeyAffinityScheduler.isNonBlockingDispatch()) {
+                // a worker must not wait on the queue that only the workers drain
+                throw new RejectedExecutionException("queue is full");
+            }
             try {
                 // block until space becomes available
                 if (!warning) {
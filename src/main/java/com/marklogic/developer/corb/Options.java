@@ -63,6 +63,31 @@ public final class Options {
             + "multiple URIS when BATCH-SIZE is greater than 1.")
     public static final String BATCH_URI_DELIM = "BATCH-URI-DELIM";
 
+    /**
+     * A file that records the progress of the job, so that it can be resumed
+     * with {@value #RESUME} if it does not complete. Every
+     * {@value #CHECKPOINT_INTERVAL} seconds, a checkpoint is appended with the
+     * completed URIs and the length of each of the export part files up to
+     * the output of those URIs. The file is deleted when the job completes.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "A file that records the progress of the job, so that it can be resumed "
+            + "with RESUME if it does not complete. Every CHECKPOINT-INTERVAL seconds, a checkpoint "
+            + "is appended with the completed URIs and the length of each of the export part files "
+            + "up to the output of those URIs. The file is deleted when the job completes.")
+    public static final String CHECKPOINT_FILE = "CHECKPOINT-FILE";
+
+    /**
+     * The number of seconds between checkpoints when
+     * {@value #CHECKPOINT_FILE} is specified. Default is 60.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The number of seconds between checkpoints when CHECKPOINT-FILE is specified. "
+            + "Default is 60.")
+    public static final String CHECKPOINT_INTERVAL = "CHECKPOINT-INTERVAL";
+
     /**
      * Value of this parameter will be passed into the {@value #URIS_MODULE} via
      * external or global variable with the name URIS.
@@ -112,6 +137,40 @@ public final class Options {
             + "Default is 1.")
     public static final String COMMAND_FILE_POLL_INTERVAL = "COMMAND-FILE-POLL-INTERVAL";
 
+    /**
+     * A regular expression used to derive a conflict key from each URI. Batches
+     * that contain URIs with the same conflict key are never processed
+     * concurrently, which avoids deadlocks when the {@value #PROCESS_MODULE}
+     * updates documents that are shared by those URIs. The key is the first
+     * capturing group, or the entire match if there are no groups. URIs that
+     * do not match have no conflict key.
+     *
+     * @since 2.3.2
+     * @see #CONFLICT_KEY_RESOLVER
+     */
+    @Usage(description = "A regular expression used to derive a conflict key from "
+            + "each URI. Batches that contain URIs with the same conflict key are "
+            + "never processed concurrently, which avoids deadlocks when the "
+            + "PROCESS-MODULE updates documents that are shared by those URIs. "
+            + "The key is the first capturing group, or the entire match if there "
+            + "are no groups. URIs that do not match have no conflict key.")
+    public static final String CONFLICT_KEY_REGEX = "CONFLICT-KEY-REGEX";
+
+    /**
+     * The class name of a conflict key resolver, which must implement
+     * {@link com.marklogic.developer.corb.ConflictKeyResolver}. Used instead of
+     * {@value #CONFLICT_KEY_REGEX} when the conflict key cannot be expressed as
+     * a regular expression.
+     *
+     * @since 2.3.2
+     * @see #CONFLICT_KEY_REGEX
+     */
+    @Usage(description = "The class name of a conflict key resolver, which must "
+            + "implement com.marklogic.developer.corb.ConflictKeyResolver. Used "
+            + "instead of CONFLICT-KEY-REGEX when the conflict key cannot be "
+            + "expressed as a regular expression.")
+    public static final String CONFLICT_KEY_RESOLVER = "CONFLICT-KEY-RESOLVER";
+
     /**
      * The class name of the options value decrypter, which must implement
      * {@link com.marklogic.developer.corb.Decrypter}.
@@ -186,6 +245,39 @@ public final class Options {
             + "Default behavior is to use java.io.tmpdir.")
     public static final String DISK_QUEUE_TEMP_DIR = "DISK-QUEUE-TEMP-DIR";
 
+    /**
+     * Boolean value indicating whether the final batches of the job should be
+     * split into smaller batches, so that all threads are kept busy until the
+     * end. Once fewer than {@value #THREAD_COUNT} x {@value #BATCH_SIZE} URIs
+     * remain to be queued, each batch is sized to spread the remaining URIs
+     * across the threads. Default is false.
+     *
+     * @since 2.3.2
+     * @see #BATCH_SIZE
+     */
+    @Usage(description = "Boolean value indicating whether the final batches of "
+            + "the job should be split into smaller batches, so that all threads "
+            + "are kept busy until the end. Once fewer than THREAD-COUNT x BATCH-SIZE "
+            + "URIs remain to be queued, each batch is sized to spread the remaining "
+            + "URIs across the threads. Default is false.")
+    public static final String ENDGAME_BATCH_SPLIT = "ENDGAME-BATCH-SPLIT";
+
+    /**
+     * The format of {@value #ERROR_FILE_NAME}: {@code text} writes each URI
+     * and its error message separated by {@value #BATCH_URI_DELIM}, and
+     * {@code json} writes a JSON object per line with the {@code uri}, error
+     * {@code code}, {@code message}, number of {@code attempts} and UTC
+     * {@code timestamp}. Either format can be replayed with
+     * {@value #URIS_REPLAY_FILE}. Default is text.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The format of ERROR-FILE-NAME: text writes each URI and its error message "
+            + "separated by BATCH-URI-DELIM, and json writes a JSON object per line with the uri, "
+            + "error code, message, number of attempts and UTC timestamp. "
+            + "Either format can be replayed with URIS-REPLAY-FILE. Default is text.")
+    public static final String ERROR_FILE_FORMAT = "ERROR-FILE-FORMAT";
+
     /**
      * Used when {@value #FAIL_ON_ERROR} is {@code false}. If specified true,
      * removes duplicates from, the errored URIs along with error messages will
@@ -198,12 +290,56 @@ public final class Options {
             + "Uses BATCH-URI-DELIM or default ';' to separate URIs and error messages.")
     public static final String ERROR_FILE_NAME = "ERROR-FILE-NAME";
 
+    /**
+     * A file of URIs, one per line, that are not to be processed. URIs from
+     * the {@value #URIS_MODULE}, {@value #URIS_FILE} or {@value #URIS_LOADER}
+     * that are in the file are removed before they are queued. The file may be
+     * gzip compressed.
+     *
+     * @since 2.3.2
+     * @see #INCLUDE_URIS_FILE
+     * @see #URIS_FILTER_MAX_IN_MEMORY_SIZE
+     * @see com.marklogic.developer.corb.FilteredUrisLoader
+     */
+    @Usage(description = "A file of URIs, one per line, that are not to be processed. "
+            + "URIs from the URIS-MODULE, URIS-FILE or URIS-LOADER that are in the file "
+            + "are removed before they are queued. The file may be gzip compressed.")
+    public static final String EXCLUDE_URIS_FILE = "EXCLUDE-URIS-FILE";
+
     /**
      * Default is 0. Returns this exit code when there is nothing to process.
      */
     @Usage(description = "Default is 0. Returns this exit code when there is nothing to process.")
     public static final String EXIT_CODE_NO_URIS = "EXIT-CODE-NO-URIS";
 
+    /**
+     * If {@code zip} or {@code tar},
+     * {@link com.marklogic.developer.corb.ExportToFileTask} writes each
+     * document as an entry of an archive in {@value #EXPORT_FILE_DIR}, rather
+     * than as a separate file. Each thread appends to its own archive segment,
+     * named {@code export-00001.zip} and so on, and starts a new segment once
+     * it reaches {@value #EXPORT_FILE_ARCHIVE_SEGMENT_SIZE}.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "If zip or tar, com.marklogic.developer.corb.ExportToFileTask writes each document "
+            + "as an entry of an archive in EXPORT-FILE-DIR, rather than as a separate file. "
+            + "Each thread appends to its own archive segment, named export-00001.zip and so on, "
+            + "and starts a new segment once it reaches EXPORT-FILE-ARCHIVE-SEGMENT-SIZE.")
+    public static final String EXPORT_FILE_ARCHIVE = "EXPORT-FILE-ARCHIVE";
+
+    /**
+     * The size in megabytes after which
+     * {@link com.marklogic.developer.corb.ExportToFileTask} starts a new
+     * archive segment when {@value #EXPORT_FILE_ARCHIVE} is specified. Default
+     * is 1024.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The size in megabytes after which com.marklogic.developer.corb.ExportToFileTask "
+            + "starts a new archive segment when EXPORT-FILE-ARCHIVE is specified. Default is 1024.")
+    public static final String EXPORT_FILE_ARCHIVE_SEGMENT_SIZE = "EXPORT-FILE-ARCHIVE-SEGMENT-SIZE";
+
     /**
      * If true, {@link com.marklogic.developer.corb.PostBatchUpdateFileTask}
      * compresses the output file as a zip file.
@@ -220,6 +356,44 @@ public final class Options {
             + "to append content to EXPORT-FILE-NAME after batch process is complete.")
     public static final String EXPORT_FILE_BOTTOM_CONTENT = "EXPORT-FILE-BOTTOM-CONTENT";
 
+    /**
+     * If {@code gzip}, the output of
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask},
+     * {@link com.marklogic.developer.corb.PreBatchUpdateFileTask} and
+     * {@link com.marklogic.developer.corb.PostBatchUpdateFileTask} is gzip
+     * compressed as it is written, rather than compressed after the job is
+     * complete. The top content, each batch and the bottom content are written
+     * as concatenated gzip members, which can be read by gunzip as a single
+     * file. If {@code bgzf}, the members are BGZF blocks of up to 64KB, which
+     * can also be read by tools that seek within the file and decompress blocks
+     * in parallel. {@value #EXPORT_FILE_NAME} should end with {@code .gz}.
+     * Default is no compression.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "If gzip, the output of com.marklogic.developer.corb.ExportBatchToFileTask, "
+            + "com.marklogic.developer.corb.PreBatchUpdateFileTask and com.marklogic.developer.corb.PostBatchUpdateFileTask "
+            + "is gzip compressed as it is written, rather than compressed after the job is complete. "
+            + "The top content, each batch and the bottom content are written as concatenated gzip members, "
+            + "which can be read by gunzip as a single file. If bgzf, the members are BGZF blocks of up to 64KB, "
+            + "which can also be read by tools that seek within the file and decompress blocks in parallel. "
+            + "EXPORT-FILE-NAME should end with .gz. Default is no compression.")
+    public static final String EXPORT_FILE_COMPRESSION = "EXPORT-FILE-COMPRESSION";
+
+    /**
+     * The number of threads used by
+     * {@link com.marklogic.developer.corb.PostBatchUpdateFileTask} to
+     * compress a whole export file in blocks when
+     * {@value #EXPORT_FILE_COMPRESSION} is specified, such as after it has been
+     * sorted. Default is the number of available processors.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The number of threads used by com.marklogic.developer.corb.PostBatchUpdateFileTask "
+            + "to compress a whole export file in blocks when EXPORT-FILE-COMPRESSION is specified, "
+            + "such as after it has been sorted. Default is the number of available processors.")
+    public static final String EXPORT_FILE_COMPRESSION_THREADS = "EXPORT-FILE-COMPRESSION-THREADS";
+
     /**
      * Export directory parameter is used by
      * {@link com.marklogic.developer.corb.ExportBatchToFileTask} or similar
@@ -243,6 +417,42 @@ public final class Options {
     @Usage
     public static final String EXPORT_FILE_HEADER_LINE_COUNT = "EXPORT-FILE-HEADER-LINE-COUNT";
 
+    /**
+     * The number of bytes after which
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask} rolls over to
+     * a new numbered file, so that the output can be read in parallel. The
+     * files are named after {@value #EXPORT_FILE_NAME}, such as
+     * {@code export-00001.csv}, {@code export-00002.csv} and so on, and each
+     * one has the {@value #EXPORT_FILE_TOP_CONTENT} and
+     * {@value #EXPORT_FILE_BOTTOM_CONTENT}. A batch is never split across
+     * files, so a file can only be larger than this if a single batch is.
+     * Applies to output that is not sorted or written per thread.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The number of bytes after which com.marklogic.developer.corb.ExportBatchToFileTask "
+            + "rolls over to a new numbered file, so that the output can be read in parallel. "
+            + "The files are named after EXPORT-FILE-NAME, such as export-00001.csv, export-00002.csv and so on, "
+            + "and each one has the EXPORT-FILE-TOP-CONTENT and EXPORT-FILE-BOTTOM-CONTENT. "
+            + "A batch is never split across files, so a file can only be larger than this if a single batch is. "
+            + "Applies to output that is not sorted or written per thread.")
+    public static final String EXPORT_FILE_MAX_BYTES = "EXPORT-FILE-MAX-BYTES";
+
+    /**
+     * The number of lines after which
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask} rolls over to
+     * a new numbered file, not counting the {@value #EXPORT_FILE_TOP_CONTENT}.
+     * Like {@value #EXPORT_FILE_MAX_BYTES}, a batch is never split across
+     * files. Can not be combined with {@value #EXPORT_FILE_COMPRESSION}.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The number of lines after which com.marklogic.developer.corb.ExportBatchToFileTask "
+            + "rolls over to a new numbered file, not counting the EXPORT-FILE-TOP-CONTENT. "
+            + "Like EXPORT-FILE-MAX-BYTES, a batch is never split across files. "
+            + "Can not be combined with EXPORT-FILE-COMPRESSION.")
+    public static final String EXPORT_FILE_MAX_LINES = "EXPORT-FILE-MAX-LINES";
+
     /**
      * Shared file to write output of
      * {@link com.marklogic.developer.corb.ExportBatchToFileTask} - should be a
@@ -264,6 +474,24 @@ public final class Options {
             + "jobs where file name can only be determined by the URIS-MODULE - refer to URIS_BATCH_REF.")
     public static final String EXPORT_FILE_NAME = "EXPORT-FILE-NAME";
 
+    /**
+     * Boolean value indicating whether
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask} should write
+     * the output of each batch in the order that the URIs were received from
+     * the {@value #URIS_MODULE} or {@value #URIS_FILE}, rather than in the
+     * order that the batches complete. Batches that complete early are held
+     * in memory, and spilled to disk if too many are waiting. Default is
+     * false.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "Boolean value indicating whether com.marklogic.developer.corb.ExportBatchToFileTask "
+            + "should write the output of each batch in the order that the URIs were received from "
+            + "the URIS-MODULE or URIS-FILE, rather than in the order that the batches complete. "
+            + "Batches that complete early are held in memory, and spilled to disk if too many are waiting. "
+            + "Default is false.")
+    public static final String EXPORT_FILE_ORDERED = "EXPORT-FILE-ORDERED";
+
     /**
      * The file extension for export files being processed. For example: ".tmp".
      * <p>
@@ -282,17 +510,94 @@ public final class Options {
             + "must be specified as POST-BATCH-TASK.")
     public static final String EXPORT_FILE_PART_EXT = "EXPORT-FILE-PART-EXT";
 
+    /**
+     * Boolean value indicating whether each worker thread of
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask} should write
+     * to its own part file, without any synchronization between threads.
+     * {@link com.marklogic.developer.corb.PostBatchUpdateFileTask} combines the
+     * part files into {@value #EXPORT_FILE_NAME}, merging them in order when
+     * {@value #EXPORT_FILE_SORT} is specified. Default is false.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "Boolean value indicating whether each worker thread of "
+            + "com.marklogic.developer.corb.ExportBatchToFileTask should write to its own "
+            + "part file, without any synchronization between threads. "
+            + "com.marklogic.developer.corb.PostBatchUpdateFileTask combines the part files "
+            + "into EXPORT-FILE-NAME, merging them in order when EXPORT-FILE-SORT is specified. "
+            + "Default is false.")
+    public static final String EXPORT_FILE_PART_PER_THREAD = "EXPORT-FILE-PART-PER-THREAD";
+
+    /**
+     * A regular expression that extracts the key of each line of output when
+     * {@value #EXPORT_FILE_PARTITIONS} is specified. If the expression has a
+     * capturing group, the key is the first group, otherwise it is the whole
+     * match. Lines with the same key are always written to the same partition.
+     * Lines that do not match are written to the first partition. If not
+     * specified, the whole line is the key.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "A regular expression that extracts the key of each line of output "
+            + "when EXPORT-FILE-PARTITIONS is specified. If the expression has a capturing group, "
+            + "the key is the first group, otherwise it is the whole match. "
+            + "Lines with the same key are always written to the same partition. "
+            + "Lines that do not match are written to the first partition. "
+            + "If not specified, the whole line is the key.")
+    public static final String EXPORT_FILE_PARTITION_KEY = "EXPORT-FILE-PARTITION-KEY";
+
+    /**
+     * The name of a class that implements
+     * {@link com.marklogic.developer.corb.Partitioner} to choose the partition
+     * for each line of output when {@value #EXPORT_FILE_PARTITIONS} is
+     * specified, instead of the hash of {@value #EXPORT_FILE_PARTITION_KEY}.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The name of a class that implements com.marklogic.developer.corb.Partitioner "
+            + "to choose the partition for each line of output when EXPORT-FILE-PARTITIONS is specified, "
+            + "instead of the hash of EXPORT-FILE-PARTITION-KEY.")
+    public static final String EXPORT_FILE_PARTITIONER = "EXPORT-FILE-PARTITIONER";
+
+    /**
+     * The number of files that
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask} should divide
+     * the output of the {@value #PROCESS_MODULE} between, by the key of each
+     * line. Each partition file is named after {@value #EXPORT_FILE_NAME} with
+     * the partition number inserted before the extension, for example
+     * {@code export-p00000.csv}, and starts with the top content. Can not be
+     * combined with {@value #EXPORT_FILE_SORT} ordering,
+     * {@value #EXPORT_FILE_MAX_BYTES} or {@value #EXPORT_FILE_MAX_LINES}.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The number of files that com.marklogic.developer.corb.ExportBatchToFileTask "
+            + "should divide the output of the PROCESS-MODULE between, by the key of each line. "
+            + "Each partition file is named after EXPORT-FILE-NAME with the partition number inserted "
+            + "before the extension, for example export-p00000.csv, and starts with the top content. "
+            + "Can not be combined with EXPORT-FILE-SORT ordering, EXPORT-FILE-MAX-BYTES or EXPORT-FILE-MAX-LINES.")
+    public static final String EXPORT_FILE_PARTITIONS = "EXPORT-FILE-PARTITIONS";
+
     /**
      * If "{@code ascending}" or "{@code descending}", lines will be sorted. If
      * "{@code |distinct}" is specified after the sort direction, duplicate
      * lines from {@value #EXPORT_FILE_NAME} will be removed. i.e.
      * "{@code ascending|distinct}" or "{@code descending|distinct}"
+     * <p>
+     * If only "{@code distinct}" is specified, duplicate lines written by
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask} are removed
+     * as they are written, without sorting, and the order of the lines is
+     * not guaranteed.
+     * </p>
      *
      * @since 2.2.1
      */
     @Usage(description = "If ascending or descending, lines will be sorted. If '|distinct' "
             + "is specified after the sort direction, duplicate lines from EXPORT-FILE-NAME "
-            + "will be removed. i.e. ascending|distinct or descending|distinct")
+            + "will be removed. i.e. ascending|distinct or descending|distinct. "
+            + "If only distinct is specified, duplicate lines written by "
+            + "com.marklogic.developer.corb.ExportBatchToFileTask are removed as they are written, "
+            + "without sorting, and the order of the lines is not guaranteed.")
     public static final String EXPORT_FILE_SORT = "EXPORT-FILE-SORT";
 
     /**
@@ -309,6 +614,89 @@ public final class Options {
             + "or descending string comparator even if a value was specified for EXPORT-FILE-SORT.")
     public static final String EXPORT_FILE_SORT_COMPARATOR = "EXPORT-FILE-SORT-COMPARATOR";
 
+    /**
+     * Boolean value indicating whether the temporary files used to sort
+     * {@value #EXPORT_FILE_NAME} should be gzip compressed, which reduces disk
+     * usage and I/O at the cost of CPU. Default is false.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "Boolean value indicating whether the temporary files used to sort "
+            + "EXPORT-FILE-NAME should be gzip compressed, which reduces disk usage and I/O "
+            + "at the cost of CPU. Default is false.")
+    public static final String EXPORT_FILE_SORT_COMPRESS = "EXPORT-FILE-SORT-COMPRESS";
+
+    /**
+     * If specified along with {@value #EXPORT_FILE_SORT} or
+     * {@value #EXPORT_FILE_SORT_COMPARATOR}, only this many lines are kept
+     * from the start of the sorted {@value #EXPORT_FILE_NAME}. Each thread of
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask} only keeps
+     * the top lines in memory as results arrive, so the export file never has
+     * to hold, or sort, more than the limit.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "If specified along with EXPORT-FILE-SORT or EXPORT-FILE-SORT-COMPARATOR, "
+            + "only this many lines are kept from the start of the sorted EXPORT-FILE-NAME. "
+            + "Each thread of com.marklogic.developer.corb.ExportBatchToFileTask only keeps the top "
+            + "lines in memory as results arrive, so the export file never has to hold, or sort, "
+            + "more than the limit.")
+    public static final String EXPORT_FILE_SORT_LIMIT = "EXPORT-FILE-SORT-LIMIT";
+
+    /**
+     * The maximum amount of memory, in megabytes, to hold lines of
+     * {@value #EXPORT_FILE_NAME} in while they are sorted. Default is an
+     * estimate of the free memory available. When {@value #EXPORT_FILE_SORT}
+     * is only "{@code distinct}", this is the memory for the fingerprints of
+     * the lines that have been written, and the default is a quarter of the
+     * maximum heap size.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The maximum amount of memory, in megabytes, to hold lines of "
+            + "EXPORT-FILE-NAME in while they are sorted. Default is an estimate of the "
+            + "free memory available. When EXPORT-FILE-SORT is only distinct, this is the "
+            + "memory for the fingerprints of the lines that have been written, and the "
+            + "default is a quarter of the maximum heap size.")
+    public static final String EXPORT_FILE_SORT_MAX_MEMORY = "EXPORT-FILE-SORT-MAX-MEMORY";
+
+    /**
+     * If specified along with {@value #EXPORT_FILE_SORT} or
+     * {@value #EXPORT_FILE_SORT_COMPARATOR}, each thread of
+     * {@link com.marklogic.developer.corb.ExportBatchToFileTask} holds its
+     * output in memory, and writes it to a sorted run file whenever it reaches
+     * this many megabytes. {@link com.marklogic.developer.corb.PostBatchUpdateFileTask}
+     * then only has to merge the runs, instead of sorting the whole file.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "If specified along with EXPORT-FILE-SORT or EXPORT-FILE-SORT-COMPARATOR, "
+            + "each thread of com.marklogic.developer.corb.ExportBatchToFileTask holds its output "
+            + "in memory, and writes it to a sorted run file whenever it reaches this many megabytes. "
+            + "com.marklogic.developer.corb.PostBatchUpdateFileTask then only has to merge the runs, "
+            + "instead of sorting the whole file.")
+    public static final String EXPORT_FILE_SORT_RUN_SIZE = "EXPORT-FILE-SORT-RUN-SIZE";
+
+    /**
+     * The directory to write temporary files to while sorting
+     * {@value #EXPORT_FILE_NAME}. Default is the directory of the export file.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The directory to write temporary files to while sorting "
+            + "EXPORT-FILE-NAME. Default is the directory of the export file.")
+    public static final String EXPORT_FILE_SORT_TEMP_DIR = "EXPORT-FILE-SORT-TEMP-DIR";
+
+    /**
+     * The number of threads used to sort and merge {@value #EXPORT_FILE_NAME}.
+     * Default is the number of available processors.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The number of threads used to sort and merge EXPORT-FILE-NAME. "
+            + "Default is the number of available processors.")
+    public static final String EXPORT_FILE_SORT_THREADS = "EXPORT-FILE-SORT-THREADS";
+
     /**
      * Used by {@link com.marklogic.developer.corb.PreBatchUpdateFileTask} to
      * insert content at the top of {@value #EXPORT_FILE_NAME} before batch
@@ -345,6 +733,75 @@ public final class Options {
             + "This option will not handle repeated connection failures.")
     public static final String FAIL_ON_ERROR = "FAIL-ON-ERROR";
 
+    /**
+     * A percentile (for example, 95) of the recently observed
+     * {@value #PROCESS_MODULE} response times. If a request has not responded
+     * within that time, or within 50 milliseconds if that is longer, a
+     * duplicate (hedged) request is issued with a new session. Whichever
+     * request responds first is used and the other is cancelled.
+     * <p>
+     * Only use with idempotent jobs, such as read-only reports and exports,
+     * since the {@value #PROCESS_MODULE} may be executed more than once for
+     * the same URIs.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "A percentile (for example, 95) of the recently observed PROCESS-MODULE "
+            + "response times. If a request has not responded within that time, or within 50 "
+            + "milliseconds if that is longer, a duplicate (hedged) request is issued with a new session. Whichever request responds first "
+            + "is used and the other is cancelled. Only use with idempotent jobs, such as "
+            + "read-only reports and exports, since the PROCESS-MODULE may be executed more "
+            + "than once for the same URIs.")
+    public static final String HEDGE_REQUEST_PERCENTILE = "HEDGE-REQUEST-PERCENTILE";
+
+    /**
+     * A file of URIs, one per line, that are the only URIs to be processed.
+     * URIs from the {@value #URIS_MODULE}, {@value #URIS_FILE} or
+     * {@value #URIS_LOADER} that are not in the file are removed before they
+     * are queued. The file may be gzip compressed.
+     *
+     * @since 2.3.2
+     * @see #EXCLUDE_URIS_FILE
+     * @see #URIS_FILTER_MAX_IN_MEMORY_SIZE
+     * @see com.marklogic.developer.corb.FilteredUrisLoader
+     */
+    @Usage(description = "A file of URIs, one per line, that are the only URIs to be processed. "
+            + "URIs from the URIS-MODULE, URIS-FILE or URIS-LOADER that are not in the file "
+            + "are removed before they are queued. The file may be gzip compressed.")
+    public static final String INCLUDE_URIS_FILE = "INCLUDE-URIS-FILE";
+
+    /**
+     * The high-water mark that {@value #INCREMENTAL_STATE_FILE} keeps, either
+     * {@code timestamp} for the server timestamp, or {@code dateTime} for the
+     * server's current dateTime, to compare with a last-modified value.
+     * Default is timestamp.
+     *
+     * @since 2.3.2
+     * @see #INCREMENTAL_STATE_FILE
+     */
+    @Usage(description = "The high-water mark that INCREMENTAL-STATE-FILE keeps, either timestamp "
+            + "for the server timestamp, or dateTime for the server's current dateTime, to compare "
+            + "with a last-modified value. Default is timestamp.")
+    public static final String INCREMENTAL_MARK = "INCREMENTAL-MARK";
+
+    /**
+     * A local file that keeps a high-water mark for jobs that only process
+     * what has changed since the last successful run. The
+     * {@value #INCREMENTAL_MARK} is read from the server when the job starts,
+     * and saved to the file when the job completes successfully. The mark of
+     * the last successful run is passed to the {@value #URIS_MODULE} as the
+     * external variable SINCE, which is an empty string for the first run.
+     *
+     * @since 2.3.2
+     * @see com.marklogic.developer.corb.IncrementalState
+     */
+    @Usage(description = "A local file that keeps a high-water mark for jobs that only process "
+            + "what has changed since the last successful run. The INCREMENTAL-MARK is read from "
+            + "the server when the job starts, and saved to the file when the job completes "
+            + "successfully. The mark of the last successful run is passed to the URIS-MODULE as "
+            + "the external variable SINCE, which is an empty string for the first run.")
+    public static final String INCREMENTAL_STATE_FILE = "INCREMENTAL-STATE-FILE";
+
     /**
      * An XQuery or JavaScript module which, if specified, will be invoked prior
      * to {@value #URIS_MODULE}.
@@ -425,6 +882,25 @@ public final class Options {
             + "Relative and full file system paths are supported.")
     public static final String OPTIONS_FILE = "OPTIONS-FILE";
 
+    /**
+     * Run the {@value #URIS_MODULE}, {@value #PROCESS_MODULE} and
+     * {@value #POST_BATCH_MODULE} requests as lock-free queries at a single
+     * point in time, so that read-only jobs see a consistent snapshot of the
+     * database and do not contend with concurrent updates. If {@code true},
+     * the current server timestamp is captured when the job starts.
+     * Alternatively, a specific timestamp can be specified. The modules must
+     * not perform updates.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "Run the URIS-MODULE, PROCESS-MODULE and POST-BATCH-MODULE "
+            + "requests as lock-free queries at a single point in time, so that "
+            + "read-only jobs see a consistent snapshot of the database and do not "
+            + "contend with concurrent updates. If true, the current server "
+            + "timestamp is captured when the job starts. Alternatively, a specific "
+            + "timestamp can be specified. The modules must not perform updates.")
+    public static final String POINT_IN_TIME = "POINT-IN-TIME";
+
     /**
      * An XQuery or JavaScript module which, if specified, will be run after
      * batch processing is completed. XQuery and JavaScript modules need to have
@@ -583,6 +1059,36 @@ public final class Options {
             + "multiple values from a JavaScript module, values must be returned as ValueIterator.")
     public static final String PROCESS_MODULE = "PROCESS-MODULE";
 
+    /**
+     * The size, in bytes, of the buffer used to read the results of the
+     * {@value #PROCESS_MODULE} as they are streamed from the server. Default
+     * is the XCC default.
+     *
+     * @since 2.3.2
+     * @see #PROCESS_RESULT_CACHE
+     */
+    @Usage(description = "The size, in bytes, of the buffer used to read the "
+            + "results of the PROCESS-MODULE as they are streamed from the server. "
+            + "Default is the XCC default.")
+    public static final String PROCESS_RESULT_BUFFER_SIZE = "PROCESS-RESULT-BUFFER-SIZE";
+
+    /**
+     * Boolean value indicating whether the results of the
+     * {@value #PROCESS_MODULE} should be cached in memory before they are
+     * processed. Default is false, which streams the results, so that large
+     * results do not have to be held in memory. Set to true for a
+     * {@value #PROCESS_TASK} that needs random access to the results.
+     *
+     * @since 2.3.2
+     * @see #PROCESS_RESULT_BUFFER_SIZE
+     */
+    @Usage(description = "Boolean value indicating whether the results of the "
+            + "PROCESS-MODULE should be cached in memory before they are processed. "
+            + "Default is false, which streams the results, so that large results "
+            + "do not have to be held in memory. Set to true for a PROCESS-TASK "
+            + "that needs random access to the results.")
+    public static final String PROCESS_RESULT_CACHE = "PROCESS-RESULT-CACHE";
+
     /**
      * Java Class that implements {@link com.marklogic.developer.corb.Task} or
      * extends {@link com.marklogic.developer.corb.AbstractTask}.
@@ -653,6 +1159,28 @@ public final class Options {
             + "Default is 2.")
     public static final String QUERY_RETRY_LIMIT = "QUERY-RETRY-LIMIT";
 
+    /**
+     * Boolean value indicating whether to resume the job from the last
+     * checkpoint in {@value #CHECKPOINT_FILE}. The URIs must be loaded in the
+     * same order as before, and the job fails if the total number of URIs or
+     * the URIs that were completed do not match. URIs that were completed are
+     * skipped, the {@value #PRE_BATCH_MODULE} and {@value #PRE_BATCH_TASK} are
+     * not run again, and the export part files are truncated to the checkpoint
+     * and appended to, and the {@value #ERROR_FILE_NAME} is appended to. Can not be combined with export options that hold
+     * output in memory, such as {@value #EXPORT_FILE_ORDERED} or
+     * {@value #EXPORT_FILE_SORT_RUN_SIZE}. Default is false.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "Boolean value indicating whether to resume the job from the last checkpoint "
+            + "in CHECKPOINT-FILE. The URIs must be loaded in the same order as before, "
+            + "and the job fails if the total number of URIs or the URIs that were completed do not match. "
+            + "URIs that were completed are skipped, the PRE-BATCH-MODULE and PRE-BATCH-TASK are not run again, "
+            + "and the export part files are truncated to the checkpoint and appended to, and the ERROR-FILE-NAME is appended to. "
+            + "Can not be combined with export options that hold output in memory, "
+            + "such as EXPORT-FILE-ORDERED or EXPORT-FILE-SORT-RUN-SIZE. Default is false.")
+    public static final String RESUME = "RESUME";
+
     /**
      * A comma separated list of acceptable cipher suites used.
      */
@@ -714,12 +1242,96 @@ public final class Options {
     @Usage(description = "The number of worker threads. Default is 1.")
     public static final String THREAD_COUNT = "THREAD-COUNT";
 
+    /**
+     * Used with {@value #TRANSACTION_GROUP_SIZE}. The maximum time, in
+     * milliseconds, that a transaction may stay open. The transaction is
+     * committed once this time is exceeded, after the batch that is running,
+     * even if fewer than {@value #TRANSACTION_GROUP_SIZE} batches have run.
+     *
+     * @since 2.3.2
+     * @see #TRANSACTION_GROUP_SIZE
+     */
+    @Usage(description = "Used with TRANSACTION-GROUP-SIZE. The maximum time, in "
+            + "milliseconds, that a transaction may stay open. The transaction is "
+            + "committed once this time is exceeded, after the batch that is running, "
+            + "even if fewer than TRANSACTION-GROUP-SIZE batches have run.")
+    public static final String TRANSACTION_GROUP_MAX_TIME = "TRANSACTION-GROUP-MAX-TIME";
+
+    /**
+     * The number of consecutive {@value #PROCESS_MODULE} batches that each
+     * thread runs inside one multi-statement transaction before committing,
+     * so that the cost of the commit is shared. If a batch or the commit
+     * fails, the transaction is rolled back and each of its batches is
+     * replayed in its own transaction. Can not be combined with
+     * {@value #CONFLICT_KEY_REGEX} or {@value #CONFLICT_KEY_RESOLVER}. Default
+     * is 1, which commits each batch on its own.
+     *
+     * @since 2.3.2
+     * @see #TRANSACTION_GROUP_MAX_TIME
+     */
+    @Usage(description = "The number of consecutive PROCESS-MODULE batches that "
+            + "each thread runs inside one multi-statement transaction before "
+            + "committing, so that the cost of the commit is shared. If a batch or "
+            + "the commit fails, the transaction is rolled back and each of its "
+            + "batches is replayed in its own transaction. Can not be combined with "
+            + "CONFLICT-KEY-REGEX or CONFLICT-KEY-RESOLVER. Default is 1, which "
+            + "commits each batch on its own.")
+    public static final String TRANSACTION_GROUP_SIZE = "TRANSACTION-GROUP-SIZE";
+
     /**
      * <a href="https://github.com/marklogic/corb2#uris_batch_ref">URIS_BATCH_REF</a>
      */
     @Usage
     public static final String URIS_BATCH_REF = "URIS_BATCH_REF";
 
+    /**
+     * A directory in which to keep the results of {@value #URIS_MODULE}, so
+     * that a job that is run again with the same {@value #URIS_MODULE} and
+     * parameters reads the URIs, {@value #URIS_BATCH_REF} and the custom
+     * module options from a local file instead of running the query again,
+     * until the file is older than {@value #URIS_CACHE_TTL}. Results are kept
+     * separately for each database and user. When {@value #POINT_IN_TIME} is
+     * {@code true}, the cached URIs may have been selected at an earlier point
+     * in time than the one the job runs at. Not used with
+     * {@value #INCREMENTAL_STATE_FILE}, since the URIs must be selected at the
+     * mark that is saved.
+     *
+     * @since 2.3.2
+     * @see #URIS_CACHE_TTL
+     */
+    @Usage(description = "A directory in which to keep the results of URIS-MODULE, so that "
+            + "a job that is run again with the same URIS-MODULE and parameters reads the URIs, "
+            + "URIS_BATCH_REF and the custom module options from a local file instead of running "
+            + "the query again, until the file is older than URIS-CACHE-TTL. Results are kept separately "
+            + "for each database and user. When POINT-IN-TIME is true, the cached URIs may have been selected "
+            + "at an earlier point in time than the one the job runs at. Not used with INCREMENTAL-STATE-FILE, "
+            + "since the URIs must be selected at the mark that is saved.")
+    public static final String URIS_CACHE_DIR = "URIS-CACHE-DIR";
+
+    /**
+     * The number of seconds that the results kept in {@value #URIS_CACHE_DIR}
+     * can be reused. Default is 86400 (24 hours).
+     *
+     * @since 2.3.2
+     * @see #URIS_CACHE_DIR
+     */
+    @Usage(description = "The number of seconds that the results kept in URIS-CACHE-DIR "
+            + "can be reused. Default is 86400 (24 hours).")
+    public static final String URIS_CACHE_TTL = "URIS-CACHE-TTL";
+
+    /**
+     * Boolean value indicating whether URIs that are repeated by the
+     * {@value #URIS_MODULE}, {@value #URIS_FILE} or {@value #URIS_LOADER}
+     * should only be queued the first time. Default is false.
+     *
+     * @since 2.3.2
+     * @see #URIS_FILTER_MAX_IN_MEMORY_SIZE
+     */
+    @Usage(description = "Boolean value indicating whether URIs that are repeated by the "
+            + "URIS-MODULE, URIS-FILE or URIS-LOADER should only be queued the first time. "
+            + "Default is false.")
+    public static final String URIS_DEDUP = "URIS-DEDUP";
+
     /**
      * If defined instead of {@value #URIS_MODULE}, URIs will be loaded from the
      * file located on the client. There should only be one URI per line. This
@@ -736,6 +1348,25 @@ public final class Options {
             + "can query for the document based on this document identifier.")
     public static final String URIS_FILE = "URIS-FILE";
 
+    /**
+     * The maximum number of URIs in {@value #EXCLUDE_URIS_FILE} or
+     * {@value #INCLUDE_URIS_FILE}, or URIs to check with {@value #URIS_DEDUP},
+     * that are held in memory to filter the URIs as they are loaded. If there
+     * are more, the URIs and the files are sorted in temporary files in
+     * {@value #DISK_QUEUE_TEMP_DIR}, and merged to find the URIs to keep, which
+     * are then processed in sorted order. This is also done as soon as more
+     * distinct URIs are found than the loader estimated. Default is 1000000.
+     *
+     * @since 2.3.2
+     */
+    @Usage(description = "The maximum number of URIs in EXCLUDE-URIS-FILE or INCLUDE-URIS-FILE, "
+            + "or URIs to check with URIS-DEDUP, that are held in memory to filter the URIs as "
+            + "they are loaded. If there are more, the URIs and the files are sorted in temporary "
+            + "files in DISK-QUEUE-TEMP-DIR, and merged to find the URIs to keep, which are then "
+            + "processed in sorted order. This is also done as soon as more distinct URIs are "
+            + "found than the loader estimated. Default is 1000000.")
+    public static final String URIS_FILTER_MAX_IN_MEMORY_SIZE = "URIS-FILTER-MAX-IN-MEMORY-SIZE";
+
     /**
      * Java class that implements
      * {@link com.marklogic.developer.corb.UrisLoader}. A custom class to load
@@ -810,6 +1441,40 @@ public final class Options {
             + "PROCESS-MODULE, we need to do let $URI := fn:concat(\"/com/marklogic/sample/\",$URI,\".xml\")")
     public static final String URIS_REPLACE_PATTERN = "URIS-REPLACE-PATTERN";
 
+    /**
+     * An {@value #ERROR_FILE_NAME} from a previous job to use as the source of
+     * URIs, instead of {@value #URIS_MODULE} or {@value #URIS_FILE}, so that
+     * only the URIs that failed are processed again. Each URI is processed
+     * once, however many times it appears in the file.
+     *
+     * @since 2.3.2
+     * @see com.marklogic.developer.corb.ErrorJournalUrisLoader
+     */
+    @Usage(description = "An ERROR-FILE-NAME from a previous job to use as the source of URIs, "
+            + "instead of URIS-MODULE or URIS-FILE, so that only the URIs that failed are "
+            + "processed again. Each URI is processed once, however many times it appears in the file.")
+    public static final String URIS_REPLAY_FILE = "URIS-REPLAY-FILE";
+
+    /**
+     * The number of consecutive connection failures, across all threads, after
+     * which processing is paused and a single request is used to probe the
+     * server every {@value #XCC_CONNECTION_RETRY_INTERVAL} seconds, up to
+     * {@value #XCC_CONNECTION_RETRY_LIMIT} times. When the probe succeeds, all
+     * threads resume together. If not specified, each thread retries
+     * independently.
+     *
+     * @since 2.3.2
+     * @see #XCC_CONNECTION_RETRY_INTERVAL
+     * @see #XCC_CONNECTION_RETRY_LIMIT
+     */
+    @Usage(description = "The number of consecutive connection failures, across "
+            + "all threads, after which processing is paused and a single request "
+            + "is used to probe the server every XCC-CONNECTION-RETRY-INTERVAL "
+            + "seconds, up to XCC-CONNECTION-RETRY-LIMIT times. When the probe "
+            + "succeeds, all threads resume together. If not specified, each "
+            + "thread retries independently.")
+    public static final String XCC_CONNECTION_FAILURE_THRESHOLD = "XCC-CONNECTION-FAILURE-THRESHOLD";
+
     /**
      * Number attempts to connect to ML before giving up. Default is 3
      */
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Divides the output of an export between a number of partition files, routing
+ * each line with a {@link Partitioner}. Each worker thread splits its batch
+ * into per-partition chunks before taking any lock, and then appends each chunk
+ * to a buffered stream that is held open for the duration of the job, so that
+ * threads only contend when they write to the same partition at the same time.
+ * <p>
+ * Each partition file starts with the content that the export file had when
+ * the writer was opened, such as the top content.
+ * <p>
+ * Writers are shared by file, and must be closed with {@link #closeAll()} before
+ * the partition files are read or modified by anything else.
+ *
+ * @since 2.3.2
+ */
+public class PartitionedFileWriter {
+
+    private static final Logger LOG = Logger.getLogger(PartitionedFileWriter.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    protected static final int BUFFER_SIZE = 64 * 1024;
+    private static final Map<String, PartitionedFileWriter> WRITERS = new HashMap<String, PartitionedFileWriter>();
+
+    private final File file;
+    private final Partitioner partitioner;
+    private final File[] files;
+    private final OutputStream[] streams;
+    private boolean closed;
+
+    /**
+     * @param file the export file, whose content is copied to the start of each
+     * partition file
+     * @param partitionFilePattern the format of the name of each partition
+     * file in the same directory, given the partition number starting at 0
+     * @param partitions the number of partition files
+     * @param partitioner
+     * @throws IOException
+     */
+    public PartitionedFileWriter(File file, String partitionFilePattern, int partitions, Partitioner partitioner) throws IOException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be greater than 0");
+        }
+        if (partitioner == null) {
+            throw new NullPointerException("partitioner must not be null");
+        }
+        this.file = file;
+        this.partitioner = partitioner;
+        this.files = new File[partitions];
+        this.streams = new OutputStream[partitions];
+        byte[] header = readHeader(file);
+        File dir = file.getAbsoluteFile().getParentFile();
+        try {
+            for (int i = 0; i < partitions; i++) {
+                files[i] = new File(dir, String.format(partitionFilePattern, i));
+                streams[i] = new BufferedOutputStream(new FileOutputStream(files[i], false), BUFFER_SIZE);
+                streams[i].write(header);
+            }
+        } catch (IOException ex) {
+            for (OutputStream stream : streams) {
+                closeQuietly(stream);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Get the shared writer for the file, opening it if necessary.
+     *
+     * @param file
+     * @param partitionFilePattern
+     * @param partitions
+     * @param partitioner
+     * @return
+     * @throws IOException
+     * @see #PartitionedFileWriter(File, String, int, Partitioner)
+     */
+    public static PartitionedFileWriter getInstance(File file, String partitionFilePattern, int partitions, Partitioner partitioner) throws IOException {
+        String key = file.getCanonicalPath();
+        synchronized (WRITERS) {
+            PartitionedFileWriter writer = WRITERS.get(key);
+            if (writer == null) {
+                writer = new PartitionedFileWriter(file, partitionFilePattern, partitions, partitioner);
+                WRITERS.put(key, writer);
+            }
+            return writer;
+        }
+    }
+
+    private static byte[] readHeader(File file) throws IOException {
+        if (!file.exists()) {
+            return new byte[0];
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) in.getChannel().size());
+            while (buffer.hasRemaining() && in.getChannel().read(buffer) != -1) {
+                // read the whole header
+            }
+            return buffer.array();
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getPartitionCount() {
+        return files.length;
+    }
+
+    /**
+     * @param partition
+     * @return the file that the partition is written to
+     */
+    public File getFile(int partition) {
+        return files[partition];
+    }
+
+    /**
+     * Split rendered output into the lines for each partition, keeping the
+     * line separators.
+     *
+     * @param content UTF-8 encoded lines
+     * @return the content for each partition, or {@code null} for partitions
+     * that have no lines
+     */
+    public byte[][] split(byte[] content) {
+        ByteArrayOutputStream[] chunks = new ByteArrayOutputStream[files.length];
+        int start = 0;
+        while (start < content.length) {
+            int end = start;
+            while (end < content.length && content[end] != '\n') {
+                end++;
+            }
+            int textEnd = end > start && content[end - 1] == '\r' ? end - 1 : end;
+            end = Math.min(end + 1, content.length);
+            int partition = getPartition(new String(content, start, textEnd - start, UTF_8));
+            if (chunks[partition] == null) {
+                chunks[partition] = new ByteArrayOutputStream();
+            }
+            chunks[partition].write(content, start, end - start);
+            start = end;
+        }
+        byte[][] parts = new byte[files.length][];
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                parts[i] = chunks[i].toByteArray();
+            }
+        }
+        return parts;
+    }
+
+    private int getPartition(String line) {
+        int partition = partitioner.getPartition(line, files.length);
+        if (partition < 0 || partition >= files.length) {
+            throw new IllegalStateException(partitioner.getClass().getName() + " returned partition " + partition + " of " + files.length);
+        }
+        return partition;
+    }
+
+    /**
+     * Split rendered output and append the lines to their partitions.
+     *
+     * @param content
+     * @throws IOException
+     */
+    public void write(byte[] content) throws IOException {
+        byte[][] parts = split(content);
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) {
+                write(i, parts[i]);
+            }
+        }
+    }
+
+    /**
+     * Append content to a partition, such as the output of {@link #split}
+     * after it has been compressed.
+     *
+     * @param partition
+     * @param content
+     * @throws IOException if the writer is closed
+     */
+    public void write(int partition, byte[] content) throws IOException {
+        OutputStream stream = streams[partition];
+        synchronized (stream) {
+            if (isClosed()) {
+                throw new IOException("Writer for " + file + " is closed");
+            }
+            stream.write(content);
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Flush and close all of the partition files.
+     *
+     * @throws IOException the first error encountered
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        IOException firstError = null;
+        for (int i = 0; i < streams.length; i++) {
+            synchronized (streams[i]) {
+                try {
+                    streams[i].close();
+                } catch (IOException ex) {
+                    if (firstError == null) {
+                        firstError = ex;
+                    } else {
+                        LOG.log(Level.SEVERE, "Unable to write " + files[i], ex);
+                    }
+                }
+            }
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+
+    /**
+     * Close all of the shared writers.
+     *
+     * @throws IOException the first error encountered by any of the writers
+     */
+    public static void closeAll() throws IOException {
+        List<PartitionedFileWriter> writers;
+        synchronized (WRITERS) {
+            writers = new ArrayList<PartitionedFileWriter>(WRITERS.values());
+            WRITERS.clear();
+        }
+        IOException firstError = null;
+        for (PartitionedFileWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                if (firstError == null) {
+                    firstError = ex;
+                } else {
+                    LOG.log(Level.SEVERE, "Unable to write partitions of " + writer.file, ex);
+                }
+            }
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+/**
+ * Chooses the partition file that each line of output is written to when
+ * {@value Options#EXPORT_FILE_PARTITIONS} is specified. Implementations are
+ * shared by all of the worker threads, so must be thread safe.
+ *
+ * @since 2.3.2
+ * @see Options#EXPORT_FILE_PARTITIONER
+ */
+public interface Partitioner {
+
+    /**
+     * @param line a line of output, without the line separator
+     * @param partitions the number of partitions
+     * @return the partition for the line, from 0 to {@code partitions - 1}
+     */
+    int getPartition(String line, int partitions);
+}
@@ -18,19 +18,18 @@
  */
 package com.marklogic.developer.corb;
 
-import com.google.code.externalsorting.ExternalSort;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_AS_ZIP;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_BOTTOM_CONTENT;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_HEADER_LINE_COUNT;
 import static com.marklogic.developer.corb.Options.EXPORT_FILE_PART_EXT;
-import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT;
-import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_COMPARATOR;
+import static com.marklogic.developer.corb.Options.EXPORT_FILE_SORT_LIMIT;
 import com.marklogic.developer.corb.util.FileUtils;
+import com.marklogic.developer.corb.util.IOUtils;
+import com.marklogic.developer.corb.util.ParallelExternalSort;
+import com.marklogic.developer.corb.util.ParallelGzipOutputStream;
 import static com.marklogic.developer.corb.util.FileUtils.deleteFile;
 import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
-import static com.marklogic.developer.corb.util.StringUtils.isBlank;
 import static com.marklogic.developer.corb.util.StringUtils.isEmpty;
-import static com.marklogic.developer.corb.util.StringUtils.isNotBlank;
 import static com.marklogic.developer.corb.util.StringUtils.isNotEmpty;
 import static com.marklogic.developer.corb.util.StringUtils.trimToEmpty;
 import java.io.BufferedOutputStream;
@@ -39,16 +38,26 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.Collections;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -57,23 +66,20 @@ import java.util.zip.ZipOutputStream;
  */
 public class PostBatchUpdateFileTask extends ExportBatchToFileTask {
     public static final String DISTINCT_FILE_SUFFIX = ".distinct";
-    protected static final String SORT_DIRECTION = "(?i)^(a|de)sc.*";
-    protected static final String DESCENDING = "(?i)^desc.*";
-    protected static final String DISTINCT = "(?i).*(distinct|uniq).*";
     private static final Logger LOG = Logger.getLogger(PostBatchUpdateFileTask.class.getName());
      
     protected void sortAndRemoveDuplicates() {
         File origFile = new File(exportDir, getPartFileName());
-        if (!origFile.exists()) {
+        List<File> threadPartFiles = getThreadPartFiles();
+        List<File> sortedRunFiles = getSortedRunFiles();
+        if (!origFile.exists() && threadPartFiles.isEmpty() && sortedRunFiles.isEmpty()) {
             return;
         }
 
         try {
-            String sort = getProperty(EXPORT_FILE_SORT);
-            String comparatorCls = getProperty(EXPORT_FILE_SORT_COMPARATOR);
-
             //You must either specify asc/desc or provide your own comparator
-            if ((sort == null || !sort.matches(SORT_DIRECTION)) && isBlank(comparatorCls)) {
+            Comparator<String> comparator = getSortComparator();
+            if (comparator == null) {
                 return;
             }
 
@@ -83,50 +89,125 @@ public class PostBatchUpdateFileTask extends ExportBatchToFileTask {
             }
 
             File sortedFile = new File(exportDir, getPartFileName() + getPartExt());
-            File tempFileStore = origFile.getParentFile();
-
-            Comparator<String> comparator = ExternalSort.defaultcomparator;
-            if (isNotBlank(comparatorCls)) {
-                comparator = getComparatorCls(comparatorCls).newInstance();
-            } else if (sort.matches(DESCENDING)) {
-                comparator = Collections.reverseOrder();
-            }
-
-            boolean distinct = isBlank(sort) ? false : sort.matches(DISTINCT);
 
-            Charset charset = Charset.defaultCharset();
-            boolean useGzip = false;
+            ParallelExternalSort sorter = newSorter(comparator, isSortDistinct(), origFile.getAbsoluteFile().getParentFile());
 
-            List<File> fragments = ExternalSort.sortInBatch(origFile, comparator, ExternalSort.DEFAULTMAXTEMPFILES, charset, tempFileStore, distinct, headerLineCount, useGzip);
+            List<File> fragments = new ArrayList<File>();
+            if (origFile.exists()) {
+                fragments.addAll(sorter.sortInBatch(origFile, headerLineCount));
+                copyHeaderIntoFile(origFile, headerLineCount, sortedFile);
+            } else {
+                deleteFile(sortedFile);
+            }
+            // each thread's part file is sorted on its own, and merged with the others in a single pass
+            for (File threadPartFile : threadPartFiles) {
+                fragments.addAll(sorter.sortInBatch(threadPartFile, 0));
+            }
+            // runs sorted by the process tasks only need to be merged (and are deleted by the merge)
+            fragments.addAll(sortedRunFiles);
             LOG.log(INFO, "Created {0} temp files for sort and dedup", fragments.size());
 
-            copyHeaderIntoFile(origFile, headerLineCount, sortedFile);
             boolean append = true;
-            ExternalSort.mergeSortedFiles(fragments, sortedFile, comparator, charset, distinct, append, useGzip);
+            int limit = getIntProperty(EXPORT_FILE_SORT_LIMIT);
+            sorter.mergeSortedFiles(fragments, sortedFile, append, limit > 0 ? limit : -1);
 
-            FileUtils.moveFile(sortedFile, origFile);
+            if (isGzipCompression()) {
+                compressFile(sortedFile, origFile);
+            } else {
+                FileUtils.moveFile(sortedFile, origFile);
+            }
+            for (File threadPartFile : threadPartFiles) {
+                deleteFile(threadPartFile);
+            }
         } catch (Exception exc) {
             LOG.log(WARNING, "Unexpected error while sorting the report file " + origFile.getPath() + ". The file can still be sorted locally after the job is finished.", exc);
         }
     }
-    
-    @SuppressWarnings("unchecked")
-	protected Class<? extends Comparator<String>> getComparatorCls(String className) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
-        Class<?> cls = Class.forName(className);
-        if (Comparator.class.isAssignableFrom(cls)) {
-            cls.newInstance(); // sanity check
-            return (Class<? extends Comparator<String>>) cls.asSubclass(Comparator.class);
-        } else {
-            throw new IllegalArgumentException("Comparator must be of type java.util.Comparator");
+
+    /**
+     * Append any part files written by individual threads, and any sorted runs
+     * that could not be merged, to the part file in the order of their names,
+     * and then delete them.
+     *
+     * @throws IOException
+     */
+    protected void concatenatePartFiles() throws IOException {
+        List<File> partFiles = getThreadPartFiles();
+        partFiles.addAll(getSortedRunFiles());
+        if (partFiles.isEmpty()) {
+            return;
+        }
+        boolean gzip = isGzipCompression();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(new File(exportDir, getPartFileName()), true);
+            FileChannel outChannel = out.getChannel();
+            for (File partFile : partFiles) {
+                FileInputStream in = null;
+                try {
+                    in = new FileInputStream(partFile);
+                    boolean gzipped = partFile.getName().endsWith(GZIP_EXT);
+                    if (gzipped && !gzip) {
+                        IOUtils.copy(new GZIPInputStream(in), outChannel);
+                    } else if (gzip && !gzipped && partFile.getName().contains(SORTED_RUN_EXT)) {
+                        // thread part files are already written as gzip members, sorted runs are not
+                        ParallelGzipOutputStream members = new ParallelGzipOutputStream(Channels.newOutputStream(outChannel), getCompressionThreads(), isBgzfCompression());
+                        copy(in, members);
+                        members.finish();
+                    } else {
+                        FileChannel inChannel = in.getChannel();
+                        long size = inChannel.size();
+                        long position = 0;
+                        while (position < size) {
+                            position += inChannel.transferTo(position, size - position, outChannel);
+                        }
+                    }
+                } finally {
+                    closeQuietly(in);
+                }
+                deleteFile(partFile);
+            }
+        } finally {
+            closeQuietly(out);
         }
     }
-    
+
+    /**
+     * Replace the output file with the gzip compressed content of the input
+     * file, compressed on multiple threads, and delete the input file.
+     *
+     * @param inputFile
+     * @param outputFile
+     * @throws IOException
+     */
+    protected void compressFile(File inputFile, File outputFile) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(inputFile);
+            out = new ParallelGzipOutputStream(new FileOutputStream(outputFile, false), getCompressionThreads(), isBgzfCompression());
+            copy(in, out);
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+        deleteFile(inputFile);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[IOUtils.BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            out.write(buffer, 0, len);
+        }
+    }
+
     protected void copyHeaderIntoFile(File inputFile, int headerLineCount, File outputFile) throws IOException {
         BufferedWriter writer = null;
         BufferedReader reader = null;
         try {
-            reader = new BufferedReader(new FileReader(inputFile));
-            writer = new BufferedWriter(new FileWriter(outputFile, false));
+            reader = new BufferedReader(new InputStreamReader(FileUtils.openInputStream(inputFile), UTF_8));
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile, false), UTF_8));
             String line;
             int currentLine = 0;
             while ((line = reader.readLine()) != null && currentLine < headerLineCount) {
@@ -148,14 +229,17 @@ public class PostBatchUpdateFileTask extends ExportBatchToFileTask {
     }
 
     protected void writeBottomContent() throws IOException {
+        writeBottomContent(getPartFileName());
+    }
+
+    protected void writeBottomContent(String partFileName) throws IOException {
         String bottomContent = getBottomContent();
         bottomContent = trimToEmpty(bottomContent);
         if (isNotEmpty(bottomContent)) {
             BufferedOutputStream writer = null;
             try {
-                writer = new BufferedOutputStream(new FileOutputStream(new File(exportDir, getPartFileName()), true));
-                writer.write(bottomContent.getBytes());
-                writer.write(NEWLINE);
+                writer = new BufferedOutputStream(new FileOutputStream(new File(exportDir, partFileName), true));
+                writer.write(compress((bottomContent + new String(NEWLINE)).getBytes()));
                 writer.flush();
             } finally {
                 closeQuietly(writer);
@@ -163,6 +247,28 @@ public class PostBatchUpdateFileTask extends ExportBatchToFileTask {
         }
     }
     
+    /**
+     * Append the BGZF end of file marker if
+     * {@value Options#EXPORT_FILE_COMPRESSION} is {@code bgzf}.
+     *
+     * @throws IOException
+     */
+    protected void writeEndOfFileMarker() throws IOException {
+        writeEndOfFileMarker(getPartFileName());
+    }
+
+    protected void writeEndOfFileMarker(String partFileName) throws IOException {
+        if (isBgzfCompression()) {
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(new File(exportDir, partFileName), true);
+                out.write(ParallelGzipOutputStream.BGZF_EOF);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
     protected void moveFile(String srcFilename, String destFilename) throws IOException {
         File srcFile = new File(exportDir, srcFilename);
         File destFile = new File(exportDir, destFilename);
@@ -184,8 +290,11 @@ public class PostBatchUpdateFileTask extends ExportBatchToFileTask {
     }
        
     protected void compressFile() throws IOException {
+        compressFile(getFileName());
+    }
+
+    protected void compressFile(String outFileName) throws IOException {
         if ("true".equalsIgnoreCase(getProperty(EXPORT_FILE_AS_ZIP))) {
-            String outFileName = getFileName();
             String outZipFileName = outFileName + ".zip";
             String partExt = getPartExt();
             String partZipFileName = outZipFileName + partExt;
@@ -206,7 +315,7 @@ public class PostBatchUpdateFileTask extends ExportBatchToFileTask {
                     ZipEntry ze = new ZipEntry(outFileName);
                     zos.putNextEntry(ze);
 
-                    byte[] buffer = new byte[2048];
+                    byte[] buffer = new byte[IOUtils.BUFFER_SIZE];
                     FileInputStream fis = null; 
                     try {
                         fis = new FileInputStream(outFile);
@@ -232,14 +341,111 @@ public class PostBatchUpdateFileTask extends ExportBatchToFileTask {
         }
     }
 
+    /**
+     * Finish each of the files that the output rolled over to concurrently:
+     * the part file becomes the first numbered file, and each one gets the
+     * bottom content before it is moved into place and compressed.
+     *
+     * @throws IOException
+     */
+    protected void finishRolledFiles() throws IOException {
+        List<String[]> files = new ArrayList<String[]>();
+        files.add(new String[]{getPartFileName(), getRolledFileName(1)});
+        List<File> rolledPartFiles = getRolledPartFiles();
+        for (int i = 0; i < rolledPartFiles.size(); i++) {
+            String fileName = getRolledFileName(i + 2);
+            files.add(new String[]{getPartFileName(fileName), fileName});
+        }
+        finishFiles(files);
+    }
+
+    /**
+     * Finish each of the partition files concurrently. The part file is only
+     * kept if something other than the header, which each partition file
+     * starts with, was written to it, such as the output of the
+     * {@value Options#POST_BATCH_MODULE}.
+     *
+     * @throws IOException
+     */
+    protected void finishPartitionFiles() throws IOException {
+        List<String[]> files = new ArrayList<String[]>();
+        File partFile = new File(exportDir, getPartFileName());
+        if (partFile.exists()) {
+            int headerLineCount = getIntProperty(EXPORT_FILE_HEADER_LINE_COUNT);
+            if (FileUtils.getLineCount(partFile) > Math.max(0, headerLineCount)) {
+                files.add(new String[]{getPartFileName(), getFileName()});
+            } else {
+                deleteFile(partFile);
+            }
+        }
+        int partitions = getPartitionPartFiles().size();
+        for (int partition = 0; partition < partitions; partition++) {
+            String fileName = getPartitionFileName(partition);
+            files.add(new String[]{getPartFileName(fileName), fileName});
+        }
+        finishFiles(files);
+    }
+
+    /**
+     * Finish each of the files concurrently: each one gets the bottom content
+     * before it is moved into place and compressed.
+     *
+     * @param files the name of each part file, and the name to move it to
+     * @throws IOException
+     */
+    protected void finishFiles(List<String[]> files) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final String[] file : files) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if (new File(exportDir, file[0]).exists()) {
+                            writeBottomContent(file[0]);
+                            writeEndOfFileMarker(file[0]);
+                            moveFile(file[0], file[1]);
+                            compressFile(file[1]);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while finishing " + getFileName());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Override
     public String[] call() throws Exception {
         try {
           	sortAndRemoveDuplicates();
+            concatenatePartFiles();
             invokeModule();
-            writeBottomContent();
-            moveFile();
-            compressFile();
+            if (isPartitioned()) {
+                finishPartitionFiles();
+            } else if (isRolling()) {
+                finishRolledFiles();
+            } else {
+                writeBottomContent();
+                writeEndOfFileMarker();
+                moveFile();
+                compressFile();
+            }
             return new String[0];
         } finally {
             cleanup();
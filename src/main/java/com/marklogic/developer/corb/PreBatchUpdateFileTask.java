@@ -46,6 +46,15 @@ public class PreBatchUpdateFileTask extends ExportBatchToFileTask {
 	private void deleteFileIfExists() throws IOException {
 		File batchFile = new File(exportDir, getPartFileName());
         FileUtils.deleteFile(batchFile);
+		for (File threadPartFile : getThreadPartFiles()) {
+			FileUtils.deleteFile(threadPartFile);
+		}
+		for (File rolledPartFile : getRolledPartFiles()) {
+			FileUtils.deleteFile(rolledPartFile);
+		}
+		for (File partitionPartFile : getPartitionPartFiles()) {
+			FileUtils.deleteFile(partitionPartFile);
+		}
 	}
 
 	protected void writeTopContent() throws IOException {
@@ -55,8 +64,7 @@ public class PreBatchUpdateFileTask extends ExportBatchToFileTask {
 			BufferedOutputStream writer = null;
 			try {
 				writer = new BufferedOutputStream(new FileOutputStream(new File(exportDir, getPartFileName())));
-				writer.write(topContent.getBytes());
-				writer.write(NEWLINE);
+				writer.write(compress((topContent + new String(NEWLINE)).getBytes()));
 				writer.flush();
 			} finally {
                 closeQuietly(writer);
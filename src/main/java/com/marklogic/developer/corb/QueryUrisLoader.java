@@ -18,12 +18,17 @@
  */
 package com.marklogic.developer.corb;
 
+import static com.marklogic.developer.corb.Options.INCREMENTAL_STATE_FILE;
 import static com.marklogic.developer.corb.Options.MAX_OPTS_FROM_MODULE;
+import static com.marklogic.developer.corb.Options.POINT_IN_TIME;
 import static com.marklogic.developer.corb.Options.POST_BATCH_MODULE;
 import static com.marklogic.developer.corb.Options.PRE_BATCH_MODULE;
 import static com.marklogic.developer.corb.Options.PROCESS_MODULE;
+import static com.marklogic.developer.corb.Options.URIS_CACHE_DIR;
+import static com.marklogic.developer.corb.Options.URIS_CACHE_TTL;
 import static com.marklogic.developer.corb.Options.URIS_MODULE;
 import static com.marklogic.developer.corb.Options.XQUERY_MODULE;
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
 import static com.marklogic.developer.corb.util.StringUtils.buildModulePath;
 import static com.marklogic.developer.corb.util.StringUtils.getInlineModuleCode;
 import static com.marklogic.developer.corb.util.StringUtils.isBlank;
@@ -38,10 +43,16 @@ import com.marklogic.xcc.ResultItem;
 import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.RequestException;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.TreeMap;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
@@ -51,6 +62,7 @@ import java.util.regex.Pattern;
 public class QueryUrisLoader extends AbstractUrisLoader {
 
     private static final int DEFAULT_MAX_OPTS_FROM_MODULE = 10;
+    private static final long DEFAULT_URIS_CACHE_TTL = 86400;
     private static final Pattern MODULE_CUSTOM_INPUT = Pattern.compile("("
             + PRE_BATCH_MODULE + "|" + PROCESS_MODULE + "|" + XQUERY_MODULE + "|" + POST_BATCH_MODULE
             + ")\\.[A-Za-z0-9_-]+=.*");
@@ -71,6 +83,28 @@ public class QueryUrisLoader extends AbstractUrisLoader {
 
         parseUriReplacePatterns();
 
+        // custom inputs
+        Map<String, String> customInputs = new TreeMap<String, String>();
+        for (String propName : propertyNames) {
+            if (propName.startsWith(URIS_MODULE + ".")) {
+                String varName = propName.substring((URIS_MODULE + ".").length());
+                String value = getProperty(propName);
+                if (value != null) {
+                    customInputs.put(varName, value);
+                }
+            }
+        }
+
+        UrisCache urisCache = getUrisCache();
+        String cacheKey = null;
+        if (urisCache != null) {
+            cacheKey = getCacheKey(customInputs);
+            if (loadFromCache(urisCache, cacheKey)) {
+                return;
+            }
+        }
+
+        UrisCache.Writer cacheWriter = null;
         try {
             RequestOptions opts = new RequestOptions();
             opts.setCacheResult(false);
@@ -78,6 +112,11 @@ public class QueryUrisLoader extends AbstractUrisLoader {
             opts.setResultBufferSize(0);
             LOG.log(INFO, "buffer size = {0}, caching = {1}",
                     new Object[]{opts.getResultBufferSize(), opts.getCacheResult()});
+            BigInteger pointInTime = getPointInTime();
+            if (pointInTime != null) {
+                opts.setEffectivePointInTime(pointInTime);
+                LOG.log(INFO, "{0} = {1}", new Object[]{POINT_IN_TIME, pointInTime});
+            }
 
             session = cs.newSession();
             Request req;
@@ -114,15 +153,8 @@ public class QueryUrisLoader extends AbstractUrisLoader {
             req.setNewStringVariable("TYPE", TransformOptions.COLLECTION_TYPE);
             req.setNewStringVariable("PATTERN", "[,\\s]+");
 
-            // custom inputs
-            for (String propName : propertyNames) {
-                if (propName.startsWith(URIS_MODULE + ".")) {
-                    String varName = propName.substring((URIS_MODULE + ".").length());
-                    String value = getProperty(propName);
-                    if (value != null) {
-                        req.setNewStringVariable(varName, value);
-                    }
-                }
+            for (Map.Entry<String, String> customInput : customInputs.entrySet()) {
+                req.setNewStringVariable(customInput.getKey(), customInput.getValue());
             }
 
             req.setOptions(opts);
@@ -130,17 +162,21 @@ public class QueryUrisLoader extends AbstractUrisLoader {
             res = session.submitRequest(req);
             ResultItem next = res.next();
 
+            Map<String, String> moduleOptions = new LinkedHashMap<String, String>();
             int maxOpts = this.getMaxOptionsFromModule();
             for (int i = 0; i < maxOpts && next != null && getBatchRef() == null && !(next.getItem().asString().matches("\\d+")); i++) {
                 String value = next.getItem().asString();
                 if (MODULE_CUSTOM_INPUT.matcher(value).matches()) {
                     int idx = value.indexOf('=');
-                    properties.put(value.substring(0, idx).replace(XQUERY_MODULE + ".", PROCESS_MODULE + "."), value.substring(idx + 1));
+                    moduleOptions.put(value.substring(0, idx).replace(XQUERY_MODULE + ".", PROCESS_MODULE + "."), value.substring(idx + 1));
                 } else {
                     setBatchRef(value);
                 }
                 next = res.next();
             }
+            if (!moduleOptions.isEmpty()) {
+                properties.putAll(moduleOptions);
+            }
 
             try {
                 setTotalCount(Integer.parseInt(next.getItem().asString()));
@@ -149,6 +185,9 @@ public class QueryUrisLoader extends AbstractUrisLoader {
             }
 
             queue = getQueue();
+            if (urisCache != null) {
+                cacheWriter = createCacheWriter(urisCache, cacheKey, moduleOptions);
+            }
 
             int i = 0;
             String uri;
@@ -157,32 +196,199 @@ public class QueryUrisLoader extends AbstractUrisLoader {
                 if (isBlank(uri)) {
                   continue;
                 }
-                
-                if (queue.isEmpty()) {
-                    LOG.log(INFO, "received first uri: {0}", uri);
-                }
-                //apply replacements (if any) - can be helpful in reducing in-memory footprint for ArrayQueue
-                for (int j = 0; j < replacements.length - 1; j += 2) {
-                    uri = uri.replaceAll(replacements[j], replacements[j + 1]);
-                }
-                
-                if (!queue.add(uri)) {
-                	LOG.log(SEVERE,"Unabled to add uri {0} to queue. Received uris {1} which is more than expected {2}",new Object[]{uri,(i+1),getTotalCount()});
-                } else if (i >= getTotalCount()) {
-                	LOG.log(WARNING,"Received uri {0} at index {1} which is more than expected {2}",new Object[]{uri,(i+1),getTotalCount()});
+                if (cacheWriter != null) {
+                    cacheWriter = addToCache(cacheWriter, uri);
                 }
-                
-                logQueueStatus(i, uri, getTotalCount());
+                addToQueue(uri, i);
                 i++;
             }
+            if (cacheWriter != null) {
+                commitCache(cacheWriter);
+            }
 
         } catch (RequestException exc) {
             throw new CorbException("While invoking Uris Module", exc);
         } finally {
+            closeQuietly(cacheWriter);
             closeRequestAndSession();
         }
     }
 
+    private void addToQueue(String uri, int i) {
+        if (queue.isEmpty()) {
+            LOG.log(INFO, "received first uri: {0}", uri);
+        }
+        //apply replacements (if any) - can be helpful in reducing in-memory footprint for ArrayQueue
+        for (int j = 0; j < replacements.length - 1; j += 2) {
+            uri = uri.replaceAll(replacements[j], replacements[j + 1]);
+        }
+
+        if (!queue.add(uri)) {
+        	LOG.log(SEVERE,"Unabled to add uri {0} to queue. Received uris {1} which is more than expected {2}",new Object[]{uri,(i+1),getTotalCount()});
+        } else if (i >= getTotalCount()) {
+        	LOG.log(WARNING,"Received uri {0} at index {1} which is more than expected {2}",new Object[]{uri,(i+1),getTotalCount()});
+        }
+
+        logQueueStatus(i, uri, getTotalCount());
+    }
+
+    /**
+     * @return the cache for {@value Options#URIS_CACHE_DIR}, or {@code null}
+     * if the results of the uris module are not cached
+     */
+    protected UrisCache getUrisCache() {
+        String cacheDir = getProperty(URIS_CACHE_DIR);
+        if (isBlank(cacheDir)) {
+            return null;
+        }
+        if (options != null && options.getIncrementalStateFile() != null) {
+            // cached uris were selected before the mark that this job captured, and would be skipped by the next run
+            LOG.log(INFO, "{0} is not used with {1}", new Object[]{URIS_CACHE_DIR, INCREMENTAL_STATE_FILE});
+            return null;
+        }
+        long ttl = DEFAULT_URIS_CACHE_TTL;
+        String ttlStr = getProperty(URIS_CACHE_TTL);
+        if (isNotEmpty(ttlStr)) {
+            try {
+                ttl = Long.parseLong(ttlStr);
+            } catch (NumberFormatException ex) {
+                LOG.log(WARNING, "Unable to parse {0} value: {1}, using default value: {2}",
+                        new Object[]{URIS_CACHE_TTL, ttlStr, DEFAULT_URIS_CACHE_TTL});
+            }
+        }
+        return new UrisCache(new File(cacheDir), ttl * 1000L);
+    }
+
+    /**
+     * The key identifies the server, database and user, the selector and
+     * everything that is passed to it, so that results are only reused for the
+     * same query. A {@value Options#POINT_IN_TIME} that was captured when the
+     * job started is left out, since it is different for every job.
+     *
+     * @param customInputs
+     * @return
+     */
+    protected String getCacheKey(Map<String, String> customInputs) {
+        List<String> parts = new ArrayList<String>();
+        if (cs != null && cs.getConnectionProvider() != null) {
+            parts.add(cs.getConnectionProvider().getHostName() + ":" + cs.getConnectionProvider().getPort());
+        } else {
+            parts.add(null);
+        }
+        // the database and user, from XCC-DBNAME and XCC-USERNAME or the connection URI
+        Session keySession = cs == null ? null : cs.newSession();
+        if (keySession != null) {
+            try {
+                parts.add(keySession.getContentBaseName());
+                parts.add(keySession.getUserCredentials() == null ? null : keySession.getUserCredentials().getUserName());
+            } finally {
+                keySession.close();
+            }
+        } else {
+            parts.add(null);
+            parts.add(null);
+        }
+        String urisModule = options.getUrisModule();
+        parts.add(urisModule);
+        if (isInlineModule(urisModule)) {
+            parts.add(getInlineModuleCode(urisModule));
+        } else if (isInlineOrAdhoc(urisModule)) {
+            parts.add(AbstractManager.getAdhocQuery(urisModule.substring(0, urisModule.indexOf('|'))));
+        } else {
+            parts.add(options.getModuleRoot());
+        }
+        parts.add(collection);
+        // a point in time that is captured when the job starts would never match
+        BigInteger pointInTime = options.isPointInTimeCaptured() ? null : getPointInTime();
+        parts.add(pointInTime == null ? null : pointInTime.toString());
+        parts.add(String.valueOf(getMaxOptionsFromModule()));
+        for (Map.Entry<String, String> customInput : customInputs.entrySet()) {
+            parts.add(customInput.getKey());
+            parts.add(customInput.getValue());
+        }
+        return UrisCache.getKey(parts.toArray(new String[parts.size()]));
+    }
+
+    /**
+     * @param urisCache
+     * @param cacheKey
+     * @return {@code true} if the URIs were read from the cache
+     */
+    protected boolean loadFromCache(UrisCache urisCache, String cacheKey) {
+        UrisCache.Reader reader = urisCache.open(cacheKey);
+        if (reader == null) {
+            return false;
+        }
+        LOG.log(INFO, "reading cached uris from {0}", urisCache.getFile(cacheKey));
+        try {
+            setBatchRef(reader.getBatchRef());
+            if (!reader.getModuleOptions().isEmpty()) {
+                properties.putAll(reader.getModuleOptions());
+            }
+            setTotalCount(reader.getTotalCount());
+            queue = getQueue();
+            int i = 0;
+            String uri;
+            while ((uri = reader.next()) != null) {
+                addToQueue(uri, i);
+                i++;
+            }
+            return true;
+        } catch (IOException ex) {
+            LOG.log(WARNING, "Unable to read cached uris, invoking the uris module", ex);
+            setBatchRef(null);
+            if (queue != null) {
+                queue.clear();
+                queue = null;
+            }
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    // writing to the cache is not allowed to fail the job, it is abandoned instead
+    private UrisCache.Writer createCacheWriter(UrisCache urisCache, String cacheKey, Map<String, String> moduleOptions) {
+        try {
+            return urisCache.create(cacheKey, getBatchRef(), moduleOptions, getTotalCount());
+        } catch (IOException ex) {
+            LOG.log(WARNING, "Unable to cache uris", ex);
+            return null;
+        }
+    }
+
+    private UrisCache.Writer addToCache(UrisCache.Writer cacheWriter, String uri) {
+        try {
+            cacheWriter.add(uri);
+            return cacheWriter;
+        } catch (IOException ex) {
+            LOG.log(WARNING, "Unable to cache uris", ex);
+            cacheWriter.close();
+            return null;
+        }
+    }
+
+    private void commitCache(UrisCache.Writer cacheWriter) {
+        try {
+            cacheWriter.commit();
+        } catch (IOException ex) {
+            LOG.log(WARNING, "Unable to cache uris", ex);
+        }
+    }
+
+    protected BigInteger getPointInTime() {
+        String pointInTime = getProperty(POINT_IN_TIME);
+        if (isEmpty(pointInTime) || "false".equalsIgnoreCase(pointInTime)) {
+            return null;
+        }
+        try {
+            return new BigInteger(pointInTime);
+        } catch (NumberFormatException ex) {
+            LOG.log(WARNING, "Unable to parse {0} value {1} as a timestamp", new Object[]{POINT_IN_TIME, pointInTime});
+            return null;
+        }
+    }
+
     protected Queue<String> getQueue() {
         Queue<String> queue;
         if (options != null && options.shouldUseDiskQueue()) {
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uses a regular expression to derive the conflict key from a URI. The key is
+ * the first capturing group, or the entire match if the expression has no
+ * groups. URIs that do not match have no conflict key.
+ *
+ * @since 2.3.2
+ * @see Options#CONFLICT_KEY_REGEX
+ */
+public class RegexConflictKeyResolver implements ConflictKeyResolver {
+
+    private final Pattern pattern;
+
+    public RegexConflictKeyResolver(String regex) {
+        this(Pattern.compile(regex));
+    }
+
+    public RegexConflictKeyResolver(Pattern pattern) {
+        if (pattern == null) {
+            throw new NullPointerException("pattern must not be null");
+        }
+        this.pattern = pattern;
+    }
+
+    @Override
+    public String getConflictKey(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        Matcher matcher = pattern.matcher(uri);
+        if (!matcher.find()) {
+            return null;
+        }
+        return matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import com.marklogic.developer.corb.util.FileUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Restores the order in which batches were queued, for output that is written
+ * by the worker threads in whatever order they happen to finish. Each batch is
+ * identified by a sequence number. Batches that arrive early are held until all
+ * of the batches before them have been written, and once more than a fixed
+ * number of bytes are being held, any further early batches are spilled to
+ * temporary files.
+ *
+ * @since 2.3.2
+ */
+public class ReorderBuffer {
+
+    private static final Logger LOG = Logger.getLogger(ReorderBuffer.class.getName());
+    protected static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ExportFileWriter writer;
+    private final long maxBufferedBytes;
+    private final File spillDir;
+    private final TreeMap<Long, Object> pending = new TreeMap<Long, Object>();
+    private long nextSequence;
+    private long bufferedBytes;
+
+    /**
+     * @param writer receives the batches in sequence order
+     * @param maxBufferedBytes the number of bytes that can be held in memory
+     * before batches are spilled to disk
+     * @param spillDir the directory for spilled batches, or {@code null} for
+     * the default temporary directory
+     */
+    public ReorderBuffer(ExportFileWriter writer, long maxBufferedBytes, File spillDir) {
+        this.writer = writer;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Write the batch once all of the batches before it have been written.
+     *
+     * @param sequence the position of the batch, starting from 0
+     * @param buffer
+     * @throws IOException
+     */
+    public synchronized void put(long sequence, ByteBuffer buffer) throws IOException {
+        if (sequence < nextSequence || pending.containsKey(sequence)) {
+            throw new IllegalArgumentException("sequence " + sequence + " has already been written");
+        }
+        if (sequence == nextSequence) {
+            writer.write(buffer);
+            nextSequence++;
+            writeReady();
+        } else if (bufferedBytes + buffer.remaining() > maxBufferedBytes) {
+            pending.put(sequence, spill(buffer));
+        } else {
+            bufferedBytes += buffer.remaining();
+            pending.put(sequence, buffer);
+        }
+    }
+
+    /**
+     * Mark the batch as complete if nothing was written for it, for instance
+     * because it had no results or it failed.
+     *
+     * @param sequence
+     * @throws IOException
+     */
+    public synchronized void skip(long sequence) throws IOException {
+        if (sequence >= nextSequence && !pending.containsKey(sequence)) {
+            pending.put(sequence, EMPTY);
+            writeReady();
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private void writeReady() throws IOException {
+        while (!pending.isEmpty()) {
+            long first = pending.firstKey();
+            if (first != nextSequence) {
+                break;
+            }
+            write(pending.remove(first));
+            nextSequence++;
+        }
+    }
+
+    private void write(Object batch) throws IOException {
+        if (batch instanceof File) {
+            File file = (File) batch;
+            writer.write(unspill(file));
+            FileUtils.deleteFile(file);
+        } else {
+            ByteBuffer buffer = (ByteBuffer) batch;
+            bufferedBytes -= buffer.remaining();
+            writer.write(buffer);
+        }
+    }
+
+    private File spill(ByteBuffer buffer) throws IOException {
+        File file = File.createTempFile("corb-reorder", ".tmp", spillDir);
+        file.deleteOnExit();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            closeQuietly(out);
+        }
+        return file;
+    }
+
+    private ByteBuffer unspill(File file) throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write any batches that are still being held, in order, even though some
+     * of the batches before them never arrived.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (!pending.isEmpty()) {
+            LOG.log(Level.WARNING, "{0} batches were waiting for batch {1}, which never completed",
+                    new Object[]{pending.size(), nextSequence});
+            for (Object batch : pending.values()) {
+                write(batch);
+            }
+            pending.clear();
+        }
+    }
+}
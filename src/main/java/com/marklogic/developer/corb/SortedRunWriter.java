@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.marklogic.developer.corb.util.ParallelExternalSort;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sorts the lines written to an export file as they are received. Each thread
+ * collects lines in its own buffer, and whenever a buffer reaches the run size
+ * it is sorted and written to a run file next to the export file, so that the
+ * runs only have to be merged once all of the output has been written.
+ * <p>
+ * Writers are shared by file, and must be closed with {@link #closeAll()} to
+ * write any lines that are still buffered.
+ *
+ * @since 2.3.2
+ */
+public class SortedRunWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * Rough size of a String in memory, in addition to its characters.
+     */
+    private static final int STRING_OVERHEAD = 64;
+    private static final Map<String, SortedRunWriter> WRITERS = new HashMap<String, SortedRunWriter>();
+
+    private final File file;
+    private final String runExt;
+    private final ParallelExternalSort sorter;
+    private final long runSize;
+    private final AtomicInteger runCount = new AtomicInteger();
+    private final List<Buffer> buffers = new ArrayList<Buffer>();
+    private final ThreadLocal<Buffer> threadBuffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            Buffer buffer = new Buffer();
+            synchronized (buffers) {
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+    };
+
+    /**
+     * @param file the export file
+     * @param runExt the extension appended to the name of the export file to
+     * name each run
+     * @param sorter used to sort and save the runs
+     * @param runSize the approximate number of bytes of lines to hold in each
+     * thread's buffer before it is written as a run
+     */
+    public SortedRunWriter(File file, String runExt, ParallelExternalSort sorter, long runSize) {
+        if (runSize < 1) {
+            throw new IllegalArgumentException("runSize must be greater than 0");
+        }
+        this.file = file;
+        this.runExt = runExt;
+        this.sorter = sorter;
+        this.runSize = runSize;
+    }
+
+    /**
+     * @param file
+     * @return the shared writer for the file, or {@code null} if none has been
+     * registered
+     * @throws IOException
+     */
+    public static SortedRunWriter getInstance(File file) throws IOException {
+        synchronized (WRITERS) {
+            return WRITERS.get(file.getCanonicalPath());
+        }
+    }
+
+    /**
+     * Share the writer for its file, unless another writer has already been
+     * registered for the file.
+     *
+     * @param writer
+     * @return the shared writer for the file
+     * @throws IOException
+     */
+    public static SortedRunWriter register(SortedRunWriter writer) throws IOException {
+        String key = writer.file.getCanonicalPath();
+        synchronized (WRITERS) {
+            SortedRunWriter existing = WRITERS.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            WRITERS.put(key, writer);
+            return writer;
+        }
+    }
+
+    /**
+     * Write the lines still buffered by all of the shared writers as runs.
+     *
+     * @throws IOException
+     */
+    public static void closeAll() throws IOException {
+        List<SortedRunWriter> writers;
+        synchronized (WRITERS) {
+            writers = new ArrayList<SortedRunWriter>(WRITERS.values());
+            WRITERS.clear();
+        }
+        for (SortedRunWriter writer : writers) {
+            writer.close();
+        }
+    }
+
+    /**
+     * Add the lines of UTF-8 encoded output to the current thread's buffer.
+     *
+     * @param content
+     * @throws IOException
+     */
+    public void add(byte[] content) throws IOException {
+        Buffer buffer = threadBuffer.get();
+        synchronized (buffer) {
+            BufferedReader reader = new BufferedReader(new StringReader(new String(content, UTF_8)));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                buffer.lines.add(line);
+                buffer.size += STRING_OVERHEAD + 2L * line.length();
+            }
+            if (buffer.size >= runSize) {
+                flush(buffer);
+            }
+        }
+    }
+
+    private void flush(Buffer buffer) throws IOException {
+        if (buffer.lines.isEmpty()) {
+            return;
+        }
+        File run = new File(file.getPath() + runExt + runCount.incrementAndGet() + (sorter.isCompress() ? ".gz" : ""));
+        sorter.sortAndSave(buffer.lines, run);
+        buffer.lines = new ArrayList<String>();
+        buffer.size = 0;
+    }
+
+    /**
+     * @return the number of runs that have been written
+     */
+    public int getRunCount() {
+        return runCount.get();
+    }
+
+    /**
+     * Write the lines still buffered by each thread as runs.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        List<Buffer> remaining;
+        synchronized (buffers) {
+            remaining = new ArrayList<Buffer>(buffers);
+            buffers.clear();
+        }
+        for (Buffer buffer : remaining) {
+            synchronized (buffer) {
+                flush(buffer);
+            }
+        }
+    }
+
+    private static class Buffer {
+
+        private List<String> lines = new ArrayList<String>();
+        private long size;
+    }
+}
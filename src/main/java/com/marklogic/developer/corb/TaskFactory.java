@@ -57,6 +57,17 @@ public class TaskFactory {
     }
 
     public Task newProcessTask(String[] uris, boolean failOnError) {
+        return newProcessTask(uris, failOnError, -1);
+    }
+
+    /**
+     * @param uris
+     * @param failOnError
+     * @param sequence the position of the batch in the order that the batches
+     * are queued, or -1 if not tracked
+     * @return
+     */
+    public Task newProcessTask(String[] uris, boolean failOnError, long sequence) {
         TransformOptions options = manager.getOptions();
         if (null == options.getProcessTaskClass() && null == options.getProcessModule()) {
             throw new NullPointerException("null process task and xquery module");
@@ -68,6 +79,9 @@ public class TaskFactory {
         try {
             Task task = options.getProcessTaskClass() == null ? new Transform() : options.getProcessTaskClass().newInstance();
             setupTask(task, PROCESS_MODULE, options.getProcessModule(), uris, failOnError);
+            if (task instanceof AbstractTask) {
+                ((AbstractTask) task).setSequence(sequence);
+            }
             return task;
         } catch (Exception exc) {
             throw new IllegalArgumentException(exc.getMessage(), exc);
@@ -169,6 +183,10 @@ public class TaskFactory {
         task.setInputURI(uris);
         task.setFailOnError(failOnError);
         task.setExportDir(manager.getOptions().getExportFileDir());
+        if (task instanceof AbstractTask) {
+            ((AbstractTask) task).setCircuitBreaker(manager.circuitBreaker);
+            ((AbstractTask) task).setFailedUriCount(manager.failedUriCount);
+        }
 
         if (task instanceof ExportBatchToFileTask) {
             String fileName = ((ExportBatchToFileTask) task).getFileName();
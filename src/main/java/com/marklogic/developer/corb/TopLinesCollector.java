@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import com.marklogic.developer.corb.util.ParallelGzipOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Keeps only the first lines, in sort order, of the lines written to an export
+ * file. Each thread keeps a bounded heap of the best lines it has seen, so that
+ * memory use and the cost of each line are bounded by the limit rather than by
+ * the size of the export. When the collector is closed the heaps are merged,
+ * and the first lines are appended to the file in order.
+ * <p>
+ * Collectors are shared by file, and must be closed with {@link #closeAll()}.
+ *
+ * @since 2.3.2
+ */
+public class TopLinesCollector {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Map<String, TopLinesCollector> COLLECTORS = new HashMap<String, TopLinesCollector>();
+
+    private final File file;
+    private final Comparator<String> comparator;
+    private final boolean distinct;
+    private final int limit;
+    private final boolean gzip;
+    private final List<Heap> heaps = new ArrayList<Heap>();
+    private final ThreadLocal<Heap> threadHeap = new ThreadLocal<Heap>() {
+        @Override
+        protected Heap initialValue() {
+            Heap heap = new Heap();
+            synchronized (heaps) {
+                heaps.add(heap);
+            }
+            return heap;
+        }
+    };
+
+    /**
+     * @param file the export file to append the lines to
+     * @param comparator the sort order
+     * @param distinct whether lines that compare as equal should only be kept
+     * once
+     * @param limit the number of lines to keep
+     */
+    public TopLinesCollector(File file, Comparator<String> comparator, boolean distinct, int limit) {
+        this(file, comparator, distinct, limit, false);
+    }
+
+    /**
+     * @param file the export file to append the lines to
+     * @param comparator the sort order
+     * @param distinct whether lines that compare as equal should only be kept
+     * once
+     * @param limit the number of lines to keep
+     * @param gzip whether the lines should be appended as gzip members
+     */
+    public TopLinesCollector(File file, Comparator<String> comparator, boolean distinct, int limit, boolean gzip) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be greater than 0");
+        }
+        this.file = file;
+        this.comparator = comparator;
+        this.distinct = distinct;
+        this.limit = limit;
+        this.gzip = gzip;
+    }
+
+    /**
+     * @param file
+     * @return the shared collector for the file, or {@code null} if none has
+     * been registered
+     * @throws IOException
+     */
+    public static TopLinesCollector getInstance(File file) throws IOException {
+        synchronized (COLLECTORS) {
+            return COLLECTORS.get(file.getCanonicalPath());
+        }
+    }
+
+    /**
+     * Share the collector for its file, unless another collector has already
+     * been registered for the file.
+     *
+     * @param collector
+     * @return the shared collector for the file
+     * @throws IOException
+     */
+    public static TopLinesCollector register(TopLinesCollector collector) throws IOException {
+        String key = collector.file.getCanonicalPath();
+        synchronized (COLLECTORS) {
+            TopLinesCollector existing = COLLECTORS.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            COLLECTORS.put(key, collector);
+            return collector;
+        }
+    }
+
+    /**
+     * Close all of the shared collectors, appending their lines to their files.
+     *
+     * @throws IOException
+     */
+    public static void closeAll() throws IOException {
+        List<TopLinesCollector> collectors;
+        synchronized (COLLECTORS) {
+            collectors = new ArrayList<TopLinesCollector>(COLLECTORS.values());
+            COLLECTORS.clear();
+        }
+        for (TopLinesCollector collector : collectors) {
+            collector.close();
+        }
+    }
+
+    /**
+     * Offer the lines of UTF-8 encoded output to the current thread's heap.
+     *
+     * @param content
+     * @throws IOException
+     */
+    public void add(byte[] content) throws IOException {
+        Heap heap = threadHeap.get();
+        synchronized (heap) {
+            BufferedReader reader = new BufferedReader(new StringReader(new String(content, UTF_8)));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                heap.offer(line);
+            }
+        }
+    }
+
+    /**
+     * Merge the heaps of all of the threads.
+     *
+     * @return the first lines in sort order, up to the limit
+     */
+    public List<String> getLines() {
+        List<String> lines = new ArrayList<String>();
+        synchronized (heaps) {
+            for (Heap heap : heaps) {
+                synchronized (heap) {
+                    lines.addAll(heap.getLines());
+                }
+            }
+        }
+        Collections.sort(lines, comparator);
+        List<String> top = new ArrayList<String>(Math.min(limit, lines.size()));
+        String lastLine = null;
+        for (String line : lines) {
+            if (top.size() >= limit) {
+                break;
+            }
+            if (!distinct || lastLine == null || comparator.compare(line, lastLine) != 0) {
+                top.add(line);
+                lastLine = line;
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Append the first lines to the file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        List<String> lines = getLines();
+        synchronized (heaps) {
+            heaps.clear();
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+        BufferedWriter writer = null;
+        try {
+            OutputStream out = new FileOutputStream(file, true);
+            writer = new BufferedWriter(new OutputStreamWriter(gzip ? newGzipOutputStream(out) : out, UTF_8));
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static OutputStream newGzipOutputStream(OutputStream out) {
+        // BGZF blocks are also plain gzip members, so suit either EXPORT-FILE-COMPRESSION
+        return new ParallelGzipOutputStream(out, Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    private class Heap {
+
+        /**
+         * Reverse order, so that the head is the line that would be dropped
+         * first.
+         */
+        private final PriorityQueue<String> queue = new PriorityQueue<String>(Math.min(limit, 1024) + 1, Collections.reverseOrder(comparator));
+        /**
+         * Used instead of the queue for distinct lines, since lines that
+         * compare as equal are only kept once.
+         */
+        private final TreeSet<String> set = new TreeSet<String>(comparator);
+
+        void offer(String line) {
+            if (distinct) {
+                if (set.add(line) && set.size() > limit) {
+                    set.pollLast();
+                }
+            } else if (queue.size() < limit) {
+                queue.add(line);
+            } else if (comparator.compare(line, queue.peek()) < 0) {
+                queue.poll();
+                queue.add(line);
+            }
+        }
+
+        Collection<String> getLines() {
+            return distinct ? set : queue;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs consecutive batches on a worker thread inside one multi-statement
+ * transaction, so that the cost of the commit is shared by several batches.
+ * The transaction is committed once it contains
+ * {@value Options#TRANSACTION_GROUP_SIZE} batches, or has been open for
+ * {@value Options#TRANSACTION_GROUP_MAX_TIME} milliseconds. The time is also
+ * checked by a scheduler, so that the transaction of an idle worker thread is
+ * not kept open. If a batch or the commit fails, the transaction is rolled
+ * back and each of its batches is replayed in its own transaction.
+ *
+ * @since 2.3.2
+ */
+public class TransactionGroup {
+
+    private static final Logger LOG = Logger.getLogger(TransactionGroup.class.getName());
+    private static final ThreadLocal<TransactionGroup> CURRENT = new ThreadLocal<TransactionGroup>();
+    private static final Set<TransactionGroup> GROUPS = Collections.newSetFromMap(new ConcurrentHashMap<TransactionGroup, Boolean>());
+    private static ScheduledExecutorService scheduler;
+
+    private final ContentSource contentSource;
+    private final int maxSize;
+    private final long maxTimeMillis;
+    private final List<AbstractTask> batches = new ArrayList<AbstractTask>();
+    private Session session;
+    private long startMillis;
+    private long transactionCount;
+    private ScheduledFuture<?> expiry;
+    private CorbException expiryError;
+
+    /**
+     * @param contentSource
+     * @param maxSize the number of batches to commit together
+     * @param maxTimeMillis the maximum time to keep a transaction open, or
+     * {@code 0} for no limit
+     */
+    public TransactionGroup(ContentSource contentSource, int maxSize, long maxTimeMillis) {
+        this.contentSource = contentSource;
+        this.maxSize = maxSize;
+        this.maxTimeMillis = maxTimeMillis;
+    }
+
+    /**
+     * @param contentSource
+     * @param maxSize
+     * @param maxTimeMillis
+     * @return the transaction group for the current thread
+     */
+    public static TransactionGroup getCurrent(ContentSource contentSource, int maxSize, long maxTimeMillis) {
+        TransactionGroup group = CURRENT.get();
+        if (group == null || group.contentSource != contentSource || !GROUPS.contains(group)) {
+            group = new TransactionGroup(contentSource, maxSize, maxTimeMillis);
+            CURRENT.set(group);
+            GROUPS.add(group);
+        }
+        return group;
+    }
+
+    /**
+     * @return the session for the open transaction, starting a new transaction
+     * if necessary
+     */
+    public synchronized Session getSession() {
+        if (session == null || session.isClosed()) {
+            session = contentSource.newSession();
+            session.setAutoCommit(false);
+            session.setUpdate(Session.Update.TRUE);
+            startMillis = System.currentTimeMillis();
+            transactionCount++;
+            scheduleExpiry();
+        }
+        return session;
+    }
+
+    private void scheduleExpiry() {
+        if (maxTimeMillis <= 0) {
+            return;
+        }
+        final long transaction = transactionCount;
+        expiry = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                commitExpired(transaction);
+            }
+        }, maxTimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Commit the transaction if it is still open once its time is up. A batch
+     * that is running holds the lock, so the commit waits for it to finish.
+     *
+     * @param transaction the number of the transaction to commit
+     */
+    protected synchronized void commitExpired(long transaction) {
+        if (transaction != transactionCount || session == null) {
+            return;
+        }
+        LOG.log(Level.FINE, "committing {0} batches after {1} ms", new Object[]{batches.size(), maxTimeMillis});
+        try {
+            commit();
+        } catch (CorbException ex) {
+            LOG.log(Level.WARNING, "Unable to replay batches of an expired transaction", ex);
+            expiryError = ex;
+        }
+    }
+
+    /**
+     * Throw the error of a batch that could not be replayed after its
+     * transaction expired, so that the job fails as it would have if the
+     * worker thread had committed it.
+     *
+     * @throws CorbException
+     */
+    public synchronized void checkExpiryError() throws CorbException {
+        if (expiryError != null) {
+            CorbException ex = expiryError;
+            expiryError = null;
+            throw ex;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "transaction-group");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    public synchronized int size() {
+        return batches.size();
+    }
+
+    /**
+     * Record a batch that has been run in the open transaction, and commit if
+     * the group is full or has been open too long.
+     *
+     * @param replayTask a task that can replay the batch on its own if the
+     * transaction has to be rolled back
+     * @throws CorbException if the transaction fails and a batch cannot be
+     * replayed
+     */
+    public synchronized void add(AbstractTask replayTask) throws CorbException {
+        batches.add(replayTask);
+        if (batches.size() >= maxSize || maxTimeMillis > 0 && System.currentTimeMillis() - startMillis >= maxTimeMillis) {
+            commit();
+        }
+    }
+
+    /**
+     * Commit the open transaction. If the commit fails, the batches are
+     * replayed in their own transactions.
+     *
+     * @throws CorbException if a batch cannot be replayed
+     */
+    public synchronized void commit() throws CorbException {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.commit();
+            LOG.log(Level.FINE, "committed {0} batches", batches.size());
+            batches.clear();
+            close();
+        } catch (RequestException ex) {
+            LOG.log(Level.WARNING, "Unable to commit transaction with " + batches.size() + " batches, replaying each batch", ex);
+            rollbackAndReplay();
+        }
+    }
+
+    /**
+     * Roll back the open transaction and replay each of its batches in its own
+     * transaction.
+     *
+     * @throws CorbException if a batch cannot be replayed
+     */
+    public synchronized void rollbackAndReplay() throws CorbException {
+        rollback();
+        List<AbstractTask> replay = new ArrayList<AbstractTask>(batches);
+        batches.clear();
+        for (AbstractTask task : replay) {
+            try {
+                task.call();
+            } catch (CorbException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new CorbException(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Roll back the open transaction and discard its batches.
+     */
+    public synchronized void rollback() {
+        if (session != null && !session.isClosed()) {
+            try {
+                session.rollback();
+            } catch (RequestException ex) {
+                LOG.log(Level.WARNING, "Unable to roll back transaction", ex);
+            }
+        }
+        close();
+    }
+
+    private void close() {
+        if (session != null && !session.isClosed()) {
+            session.close();
+        }
+        session = null;
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+
+    /**
+     * Commit the open transactions of all threads and forget them. Called once
+     * all of the batches have completed.
+     *
+     * @throws CorbException
+     */
+    public static void commitAll() throws CorbException {
+        for (TransactionGroup group : GROUPS) {
+            group.commit();
+            GROUPS.remove(group);
+            group.checkExpiryError();
+        }
+    }
+
+    /**
+     * Roll back the open transactions of all threads and forget them.
+     */
+    public static void rollbackAll() {
+        for (TransactionGroup group : GROUPS) {
+            synchronized (group) {
+                group.batches.clear();
+                group.rollback();
+            }
+        }
+        GROUPS.clear();
+    }
+}
@@ -55,6 +55,7 @@ public class TransformOptions {
 
 	private String urisModule;
 	private String urisFile;
+	private String urisReplayFile;
 	private Class<? extends UrisLoader> urisLoaderCls;
 
 	private int threadCount = 1;
@@ -62,6 +63,15 @@ public class TransformOptions {
   private boolean useDiskQueue;
   private int diskQueueMaxInMemorySize = 1000;
   private File diskQueueTempDir;
+  private boolean useEndgameBatchSplit;
+  private int connectionFailureThreshold;
+  private ConflictKeyResolver conflictKeyResolver;
+  private File checkpointFile;
+  private int checkpointInterval = 60;
+  private boolean resume;
+  private boolean pointInTimeCaptured;
+  private File incrementalStateFile;
+  private String incrementalMark = IncrementalState.TIMESTAMP;
 	private boolean doInstall;
 	
 	private int numTpsForETC = 10;
@@ -161,6 +171,19 @@ public class TransformOptions {
 	public void setUrisFile(String urisFile) {
 		this.urisFile = urisFile;
 	}
+
+	/**
+	 * @return the {@value Options#ERROR_FILE_NAME} of a previous job to load
+	 * the URIs from
+	 * @since 2.3.2
+	 */
+	public String getUrisReplayFile() {
+		return this.urisReplayFile;
+	}
+
+	public void setUrisReplayFile(String urisReplayFile) {
+		this.urisReplayFile = urisReplayFile;
+	}
 	
 	public Class<? extends UrisLoader> getUrisLoaderClass() {
 		return this.urisLoaderCls;
@@ -356,6 +379,95 @@ public class TransformOptions {
         return this.diskQueueTempDir;
     }
     
+    public void setUseEndgameBatchSplit(boolean useEndgameBatchSplit) {
+        this.useEndgameBatchSplit = useEndgameBatchSplit;
+    }
+    
+    public boolean shouldUseEndgameBatchSplit() {
+        return this.useEndgameBatchSplit;
+    }
+    
+    public void setConnectionFailureThreshold(int connectionFailureThreshold) {
+        this.connectionFailureThreshold = connectionFailureThreshold;
+    }
+    
+    public int getConnectionFailureThreshold() {
+        return this.connectionFailureThreshold;
+    }
+    
+    public void setConflictKeyResolver(ConflictKeyResolver conflictKeyResolver) {
+        this.conflictKeyResolver = conflictKeyResolver;
+    }
+    
+    public ConflictKeyResolver getConflictKeyResolver() {
+        return this.conflictKeyResolver;
+    }
+
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public File getCheckpointFile() {
+        return this.checkpointFile;
+    }
+
+    /**
+     * @param checkpointInterval the number of seconds between checkpoints
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval > 0) {
+            this.checkpointInterval = checkpointInterval;
+        }
+    }
+
+    public int getCheckpointInterval() {
+        return this.checkpointInterval;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public boolean shouldResume() {
+        return this.resume;
+    }
+
+    /**
+     * @param pointInTimeCaptured {@code true} if the
+     * {@value Options#POINT_IN_TIME} was captured from the server when the job
+     * started, rather than specified
+     */
+    public void setPointInTimeCaptured(boolean pointInTimeCaptured) {
+        this.pointInTimeCaptured = pointInTimeCaptured;
+    }
+
+    public boolean isPointInTimeCaptured() {
+        return this.pointInTimeCaptured;
+    }
+
+    public void setIncrementalStateFile(File incrementalStateFile) {
+        this.incrementalStateFile = incrementalStateFile;
+    }
+
+    public File getIncrementalStateFile() {
+        return this.incrementalStateFile;
+    }
+
+    /**
+     * @param incrementalMark {@value IncrementalState#TIMESTAMP} or
+     * {@value IncrementalState#DATE_TIME}
+     */
+    public void setIncrementalMark(String incrementalMark) {
+        if (!IncrementalState.isMarkType(incrementalMark)) {
+            throw new IllegalArgumentException("Unsupported " + Options.INCREMENTAL_MARK + " " + incrementalMark);
+        }
+        this.incrementalMark = incrementalMark;
+    }
+
+    public String getIncrementalMark() {
+        return this.incrementalMark;
+    }
+    
     public void setNumTpsForETC(int numTpsForETC){
     	if(numTpsForETC > 0){
     		this.numTpsForETC = numTpsForETC;
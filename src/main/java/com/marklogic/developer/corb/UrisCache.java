@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2004-2016 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The use of the Apache License does not indicate that this project is
+ * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the results of a {@value Options#URIS_MODULE} in a local file, so that
+ * a job that is run again with the same selector and parameters can read the
+ * URIs instead of running the query again.
+ * <p>
+ * Each file is named with a digest of the selector and its parameters. It is
+ * compressed, and holds the time that it was created, the batch ref, the custom
+ * module options and the total count, followed by the URIs and the number of
+ * URIs written. It is written to a temporary file, and only renamed into place
+ * once all of the URIs have been written, so an incomplete file is never read.
+ *
+ * @since 2.3.2
+ */
+public class UrisCache {
+
+    private static final Logger LOG = Logger.getLogger(UrisCache.class.getName());
+    private static final int MAGIC = 0x434f5242;
+    private static final int VERSION = 1;
+    protected static final String FILE_EXT = ".uris.gz";
+    private static final String TEMP_EXT = ".tmp";
+
+    private final File dir;
+    private final long ttlMillis;
+
+    /**
+     * @param dir the directory in which to keep the files
+     * @param ttlMillis how long a file can be reused after it was created
+     */
+    public UrisCache(File dir, long ttlMillis) {
+        this.dir = dir;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param parts the selector and each of its parameters
+     * @return a digest of the parts, to name the file
+     */
+    public static String getKey(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                // distinguish null from empty, and ("ab", "c") from ("a", "bc")
+                if (part == null) {
+                    digest.update((byte) 0);
+                } else {
+                    digest.update((byte) 1);
+                    byte[] bytes = part.getBytes("UTF-8");
+                    digest.update(new byte[]{(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length});
+                    digest.update(bytes);
+                }
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public File getFile(String key) {
+        return new File(dir, key + FILE_EXT);
+    }
+
+    /**
+     * @param key
+     * @return a reader for the cached results, or {@code null} if there are
+     * none, or they have expired or can not be read
+     */
+    public Reader open(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        Reader reader = null;
+        try {
+            reader = new Reader(file);
+            if (System.currentTimeMillis() - reader.getCreated() > ttlMillis) {
+                LOG.log(Level.INFO, "cached uris {0} have expired", file);
+                reader.close();
+                delete(file);
+                return null;
+            }
+            return reader;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Unable to read cached uris " + file, ex);
+            closeQuietly(reader);
+            delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Start writing the results of the selector to a temporary file.
+     *
+     * @param key
+     * @param batchRef
+     * @param moduleOptions the custom module options returned by the selector
+     * @param totalCount
+     * @return
+     * @throws IOException
+     */
+    public Writer create(String key, String batchRef, Map<String, String> moduleOptions, int totalCount) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        return new Writer(getFile(key), batchRef, moduleOptions, totalCount);
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.log(Level.WARNING, "Unable to delete {0}", file);
+        }
+    }
+
+    /**
+     * Reads the URIs from a cached file, in the order that they were written.
+     */
+    public static class Reader implements Closeable {
+
+        private final File file;
+        private final DataInputStream in;
+        private final long created;
+        private final String batchRef;
+        private final Map<String, String> moduleOptions = new LinkedHashMap<String, String>();
+        private final int totalCount;
+        private long count;
+
+        protected Reader(File file) throws IOException {
+            this.file = file;
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException(file + " is not a uris cache file");
+                }
+                created = in.readLong();
+                batchRef = in.readBoolean() ? in.readUTF() : null;
+                for (int i = in.readInt(); i > 0; i--) {
+                    moduleOptions.put(in.readUTF(), in.readUTF());
+                }
+                totalCount = in.readInt();
+            } catch (IOException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public String getBatchRef() {
+            return batchRef;
+        }
+
+        public Map<String, String> getModuleOptions() {
+            return Collections.unmodifiableMap(moduleOptions);
+        }
+
+        public int getTotalCount() {
+            return totalCount;
+        }
+
+        /**
+         * @return the next URI, or {@code null} when there are no more
+         * @throws IOException if the file is incomplete
+         */
+        public String next() throws IOException {
+            if (in.readBoolean()) {
+                count++;
+                return in.readUTF();
+            }
+            if (in.readLong() != count) {
+                throw new IOException(file + " is incomplete");
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the results of a selector to a temporary file, which replaces the
+     * cached file when it is committed.
+     */
+    public static class Writer implements Closeable {
+
+        private final File file;
+        private final File tempFile;
+        private final DataOutputStream out;
+        private long count;
+        private boolean committed;
+
+        protected Writer(File file, String batchRef, Map<String, String> moduleOptions, int totalCount) throws IOException {
+            this.file = file;
+            tempFile = new File(file.getPath() + TEMP_EXT);
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile))));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeBoolean(batchRef != null);
+                if (batchRef != null) {
+                    out.writeUTF(batchRef);
+                }
+                out.writeInt(moduleOptions.size());
+                for (Map.Entry<String, String> option : moduleOptions.entrySet()) {
+                    out.writeUTF(option.getKey());
+                    out.writeUTF(option.getValue());
+                }
+                out.writeInt(totalCount);
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        public void add(String uri) throws IOException {
+            out.writeBoolean(true);
+            out.writeUTF(uri);
+            count++;
+        }
+
+        /**
+         * Finish writing, and replace the cached file.
+         *
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            out.writeBoolean(false);
+            out.writeLong(count);
+            out.close();
+            delete(file);
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + file);
+            }
+            committed = true;
+        }
+
+        /**
+         * Discard the temporary file, unless it has been committed.
+         */
+        @Override
+        public void close() {
+            if (!committed) {
+                closeQuietly(out);
+                delete(tempFile);
+            }
+        }
+    }
+}
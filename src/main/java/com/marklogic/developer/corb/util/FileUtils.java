@@ -19,11 +19,15 @@
 package com.marklogic.developer.corb.util;
 
 import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.net.URL;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Common file manipulation utilities
@@ -94,8 +98,31 @@ public final class FileUtils {
     }
 
     /**
-     * Determine how many lines are in the file. Returns 0 if the file is null
-     * or does not exist.
+     * Open the file for reading, decompressing it if it is gzip compressed.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static InputStream openInputStream(final File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), IOUtils.BUFFER_SIZE);
+        try {
+            in.mark(2);
+            int magic = in.read() | (in.read() << 8);
+            in.reset();
+            if (magic == GZIPInputStream.GZIP_MAGIC) {
+                return new GZIPInputStream(in, IOUtils.BUFFER_SIZE);
+            }
+            return in;
+        } catch (IOException ex) {
+            closeQuietly(in);
+            throw ex;
+        }
+    }
+
+    /**
+     * Determine how many lines are in the file, which may be gzip compressed.
+     * Returns 0 if the file is null or does not exist.
      *
      * @param file
      * @return
@@ -105,7 +132,7 @@ public final class FileUtils {
         if (file != null && file.exists()) {
             LineNumberReader lnr = null;
             try {
-                lnr = new LineNumberReader(new FileReader(file));
+                lnr = new LineNumberReader(new InputStreamReader(openInputStream(file)));
                 lnr.skip(Long.MAX_VALUE);
                 return lnr.getLineNumber();
             } finally {
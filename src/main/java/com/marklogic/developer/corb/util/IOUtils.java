@@ -18,9 +18,19 @@
  */
 package com.marklogic.developer.corb.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.zip.GZIPOutputStream;
 
 /**
  *
@@ -30,6 +40,23 @@ public final class IOUtils {
 
     public static final int BUFFER_SIZE = 32 * 1024;
 
+    /**
+     * Buffers are pooled per thread, so that copying a value of any size only
+     * needs a fixed amount of memory.
+     */
+    private static final ThreadLocal<ByteBuffer> BYTE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+    private static final ThreadLocal<CharBuffer> CHAR_BUFFER = new ThreadLocal<CharBuffer>() {
+        @Override
+        protected CharBuffer initialValue() {
+            return CharBuffer.allocate(BUFFER_SIZE);
+        }
+    };
+
     private IOUtils() {
     }
 
@@ -59,4 +86,199 @@ public final class IOUtils {
             }
         }
     }
+
+    /**
+     * @return the calling thread's pooled buffer, cleared, to collect writes
+     * in with {@link #put(byte[], ByteBuffer, WritableByteChannel)} and the
+     * copy methods that take a buffer
+     */
+    public static ByteBuffer getBuffer() {
+        ByteBuffer buffer = BYTE_BUFFER.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Copy the bytes of the <code>InputStream</code> to the channel, using a
+     * pooled buffer. The stream is not closed.
+     *
+     * @param in
+     * @param out
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(InputStream in, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = getBuffer();
+        long count = copy(in, buffer, out);
+        flush(buffer, out);
+        return count;
+    }
+
+    /**
+     * Copy the bytes of the <code>InputStream</code> into the buffer, writing
+     * the buffer to the channel whenever it is full. The bytes left in the
+     * buffer are written by {@link #flush(ByteBuffer, WritableByteChannel)}.
+     * The stream is not closed.
+     *
+     * @param in
+     * @param buffer
+     * @param out
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(InputStream in, ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        long count = 0;
+        int read;
+        while ((read = channel.read(buffer)) != -1) {
+            count += read;
+            if (!buffer.hasRemaining()) {
+                flush(buffer, out);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encode the characters of the <code>Reader</code> with the encoder and
+     * copy them to the channel, using pooled buffers. The reader is not closed.
+     *
+     * @param in
+     * @param out
+     * @param encoder
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(Reader in, WritableByteChannel out, CharsetEncoder encoder) throws IOException {
+        ByteBuffer buffer = getBuffer();
+        long count = copy(in, buffer, out, encoder);
+        flush(buffer, out);
+        return count;
+    }
+
+    /**
+     * Encode the characters of the <code>Reader</code> with the encoder into
+     * the buffer, writing the buffer to the channel whenever it is full. The
+     * bytes left in the buffer are written by
+     * {@link #flush(ByteBuffer, WritableByteChannel)}. The reader is not
+     * closed.
+     *
+     * @param in
+     * @param buffer
+     * @param out
+     * @param encoder
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(Reader in, ByteBuffer buffer, WritableByteChannel out, CharsetEncoder encoder) throws IOException {
+        CharBuffer chars = CHAR_BUFFER.get();
+        chars.clear();
+        encoder.reset();
+        long count = 0;
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            endOfInput = in.read(chars) == -1;
+            chars.flip();
+            count += encode(encoder, chars, buffer, out, endOfInput);
+            chars.compact();
+        }
+        CoderResult result;
+        do {
+            int start = buffer.position();
+            result = encoder.flush(buffer);
+            count += buffer.position() - start;
+            if (result.isOverflow()) {
+                flush(buffer, out);
+            }
+        } while (result.isOverflow());
+        return count;
+    }
+
+    private static long encode(CharsetEncoder encoder, CharBuffer chars, ByteBuffer bytes, WritableByteChannel out, boolean endOfInput) throws IOException {
+        long count = 0;
+        CoderResult result;
+        do {
+            int start = bytes.position();
+            result = encoder.encode(chars, bytes, endOfInput);
+            count += bytes.position() - start;
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isOverflow()) {
+                flush(bytes, out);
+            }
+        } while (result.isOverflow());
+        return count;
+    }
+
+    /**
+     * Append the bytes to the buffer, writing the buffer to the channel
+     * whenever it is full.
+     *
+     * @param bytes
+     * @param buffer
+     * @param out
+     * @throws IOException
+     */
+    public static void put(byte[] bytes, ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+            if (!buffer.hasRemaining()) {
+                flush(buffer, out);
+            }
+        }
+    }
+
+    /**
+     * Write the bytes collected in the buffer to the channel, and clear it.
+     *
+     * @param buffer
+     * @param out
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public static int flush(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        int count = write(buffer, out);
+        buffer.clear();
+        return count;
+    }
+
+    /**
+     * Write all of the remaining bytes of the buffer to the channel.
+     *
+     * @param buffer
+     * @param out
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public static int write(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        int count = 0;
+        while (buffer.hasRemaining()) {
+            count += out.write(buffer);
+        }
+        return count;
+    }
+
+    /**
+     * Compress the content as a complete gzip member, which can be appended to
+     * a gzip file.
+     *
+     * @param content
+     * @return the compressed content
+     * @throws IOException
+     */
+    public static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(buffer);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return buffer.toByteArray();
+    }
 }
@@ -0,0 +1,125 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb.util;
+
+/**
+ * A set of primitive long values using open addressing, which needs a fraction
+ * of the memory of a {@code HashSet<Long>}. Values are expected to already be
+ * well distributed hashes.
+ *
+ * @since 2.3.2
+ */
+public class LongHashSet {
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] table;
+    private int mask;
+    private int size;
+    private int threshold;
+    private boolean containsZero;
+
+    /**
+     * @param initialCapacity the number of values to allocate space for
+     */
+    public LongHashSet(int initialCapacity) {
+        int length = 2;
+        while (length * LOAD_FACTOR < initialCapacity) {
+            length <<= 1;
+        }
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        table = new long[length];
+        mask = length - 1;
+        threshold = (int) (length * LOAD_FACTOR);
+    }
+
+    /**
+     * @param value
+     * @return {@code true} if the value was not already in the set
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int i = index(value);
+        while (table[i] != 0) {
+            if (table[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        if (++size > threshold) {
+            resize();
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        int i = index(value);
+        while (table[i] != 0) {
+            if (table[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes the set will use after the next value is
+     * added
+     */
+    public long getNextMemoryUsage() {
+        return (size + 1 > threshold ? table.length * 2L : table.length) * 8L;
+    }
+
+    private int index(long value) {
+        return (int) (value ^ (value >>> 32)) & mask;
+    }
+
+    private void resize() {
+        long[] old = table;
+        allocate(old.length * 2);
+        for (long value : old) {
+            if (value != 0) {
+                int i = index(value);
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb.util;
+
+import static com.marklogic.developer.corb.util.IOUtils.closeQuietly;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sorts the lines of large files using multiple threads. The input is read in
+ * chunks that fit within a memory budget, and each chunk is sorted and saved to
+ * a temporary run file on its own thread. The runs are then merged: when there
+ * are more runs than threads, groups of runs are first merged concurrently, so
+ * that the final merge only has to read one run per thread. No merge reads more
+ * than {@value #DEFAULT_MAX_FAN_IN} runs at once, so a very large number of runs
+ * is merged in several passes.
+ *
+ * @since 2.3.2
+ */
+public class ParallelExternalSort {
+
+    /**
+     * The maximum number of runs to read at once, the same as
+     * {@code ExternalSort.DEFAULTMAXTEMPFILES}.
+     */
+    public static final int DEFAULT_MAX_FAN_IN = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Rough size of a String in memory, in addition to its characters.
+     */
+    private static final int STRING_OVERHEAD = 64;
+
+    private final Comparator<String> comparator;
+    private final Charset charset;
+    private final File tempDir;
+    private final boolean distinct;
+    private final boolean compress;
+    private final long maxMemory;
+    private final int threads;
+    private final int maxFanIn;
+
+    /**
+     * @param comparator
+     * @param charset the charset of the input, and of the sorted output
+     * @param tempDir the directory for run files, or {@code null} for the
+     * default temporary directory
+     * @param distinct whether lines that compare as equal should be removed
+     * @param compress whether run files should be gzip compressed
+     * @param maxMemory the number of bytes of lines that may be held in memory
+     * at once
+     * @param threads the number of threads to sort and merge with
+     */
+    public ParallelExternalSort(Comparator<String> comparator, Charset charset, File tempDir, boolean distinct, boolean compress, long maxMemory, int threads) {
+        this(comparator, charset, tempDir, distinct, compress, maxMemory, threads, DEFAULT_MAX_FAN_IN);
+    }
+
+    /**
+     * @param comparator
+     * @param charset the charset of the input, and of the sorted output
+     * @param tempDir the directory for run files, or {@code null} for the
+     * default temporary directory
+     * @param distinct whether lines that compare as equal should be removed
+     * @param compress whether run files should be gzip compressed
+     * @param maxMemory the number of bytes of lines that may be held in memory
+     * at once
+     * @param threads the number of threads to sort and merge with
+     * @param maxFanIn the maximum number of runs to read at once
+     */
+    public ParallelExternalSort(Comparator<String> comparator, Charset charset, File tempDir, boolean distinct, boolean compress, long maxMemory, int threads, int maxFanIn) {
+        if (maxMemory < 1) {
+            throw new IllegalArgumentException("maxMemory must be greater than 0");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be greater than 0");
+        }
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("maxFanIn must be greater than 1");
+        }
+        this.comparator = comparator;
+        this.charset = charset;
+        this.tempDir = tempDir;
+        this.distinct = distinct;
+        this.compress = compress;
+        this.maxMemory = maxMemory;
+        this.threads = threads;
+        this.maxFanIn = maxFanIn;
+    }
+
+    /**
+     * @return {@code true} if run files are gzip compressed
+     */
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Split the file, which may be gzip compressed, into sorted runs.
+     *
+     * @param file
+     * @param headerLineCount the number of lines at the start of the file to
+     * skip
+     * @return the sorted run files
+     * @throws IOException
+     */
+    public List<File> sortInBatch(File file, int headerLineCount) throws IOException {
+        ExecutorService executor = newExecutor();
+        // one chunk per thread being sorted, plus the one being read
+        Semaphore permits = new Semaphore(threads);
+        long chunkBudget = Math.max(1, maxMemory / (threads + 1));
+        List<Future<File>> runs = new ArrayList<Future<File>>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(FileUtils.openInputStream(file), charset), BUFFER_SIZE);
+            String line;
+            for (int i = 0; i < headerLineCount && reader.readLine() != null; i++) {
+                // skip the header
+            }
+            List<String> chunk = new ArrayList<String>();
+            long chunkSize = 0;
+            while ((line = reader.readLine()) != null) {
+                chunk.add(line);
+                chunkSize += STRING_OVERHEAD + 2L * line.length();
+                if (chunkSize >= chunkBudget) {
+                    runs.add(submitSort(executor, permits, chunk));
+                    chunk = new ArrayList<String>();
+                    chunkSize = 0;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                runs.add(submitSort(executor, permits, chunk));
+            }
+            return getAll(runs);
+        } catch (IOException ex) {
+            cancelAll(runs);
+            throw ex;
+        } finally {
+            closeQuietly(reader);
+            executor.shutdownNow();
+        }
+    }
+
+    private Future<File> submitSort(ExecutorService executor, final Semaphore permits, final List<String> chunk) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while sorting");
+        }
+        return executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                try {
+                    return sortAndSave(chunk);
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    protected File sortAndSave(List<String> lines) throws IOException {
+        return sortAndSave(lines, newRunFile());
+    }
+
+    /**
+     * Sort the lines and save them as a run that can be merged by
+     * {@link #mergeSortedFiles(List, File, boolean)}.
+     *
+     * @param lines
+     * @param run the file to write to
+     * @return the run file
+     * @throws IOException
+     */
+    public File sortAndSave(List<String> lines, File run) throws IOException {
+        Collections.sort(lines, comparator);
+        BufferedWriter writer = null;
+        try {
+            writer = newWriter(run, false, compress);
+            String lastLine = null;
+            for (String line : lines) {
+                if (!distinct || lastLine == null || comparator.compare(line, lastLine) != 0) {
+                    writer.write(line);
+                    writer.newLine();
+                    lastLine = line;
+                }
+            }
+        } finally {
+            closeQuietly(writer);
+        }
+        return run;
+    }
+
+    /**
+     * Merge the sorted runs into the output file, and delete them.
+     *
+     * @param runs
+     * @param output
+     * @param append whether to append to the output file
+     * @return the number of lines written
+     * @throws IOException
+     */
+    public int mergeSortedFiles(List<File> runs, File output, boolean append) throws IOException {
+        return mergeSortedFiles(runs, output, append, -1);
+    }
+
+    /**
+     * Merge the sorted runs into the output file, and delete them.
+     *
+     * @param runs
+     * @param output
+     * @param append whether to append to the output file
+     * @param limit the maximum number of lines to write, or -1 for all of them
+     * @return the number of lines written
+     * @throws IOException
+     */
+    public int mergeSortedFiles(List<File> runs, File output, boolean append, final int limit) throws IOException {
+        List<File> inputs = runs;
+        while (inputs.size() > maxFanIn || threads > 1 && inputs.size() > threads) {
+            inputs = mergeGroups(inputs, limit);
+        }
+        return merge(inputs, newWriter(output, append, false), limit);
+    }
+
+    /**
+     * Merge groups of runs concurrently, with at most one group per thread
+     * and at most {@code maxFanIn} runs per group.
+     *
+     * @param runs
+     * @param limit the maximum number of lines to write, or -1 for all of them
+     * @return the merged runs
+     * @throws IOException
+     */
+    private List<File> mergeGroups(List<File> runs, final int limit) throws IOException {
+        ExecutorService executor = newExecutor();
+        List<Future<File>> merged = new ArrayList<Future<File>>();
+        try {
+            int groupSize = Math.min(maxFanIn, (runs.size() + threads - 1) / threads);
+            for (int i = 0; i < runs.size(); i += groupSize) {
+                final List<File> group = new ArrayList<File>(runs.subList(i, Math.min(runs.size(), i + groupSize)));
+                merged.add(executor.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws IOException {
+                        File run = newRunFile();
+                        // the first lines of each group are enough to find the first lines overall
+                        merge(group, newWriter(run, false, compress), limit);
+                        return run;
+                    }
+                }));
+            }
+            return getAll(merged);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected int merge(List<File> runs, BufferedWriter writer, int limit) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()), new Comparator<Run>() {
+            @Override
+            public int compare(Run o1, Run o2) {
+                return comparator.compare(o1.line, o2.line);
+            }
+        });
+        int count = 0;
+        try {
+            for (File file : runs) {
+                Run run = new Run(newReader(file));
+                if (run.next()) {
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+            String lastLine = null;
+            while (!queue.isEmpty() && (limit < 0 || count < limit)) {
+                Run run = queue.poll();
+                if (!distinct || lastLine == null || comparator.compare(run.line, lastLine) != 0) {
+                    writer.write(run.line);
+                    writer.newLine();
+                    lastLine = run.line;
+                    count++;
+                }
+                if (run.next()) {
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+        } finally {
+            for (Run run : queue) {
+                run.close();
+            }
+            closeQuietly(writer);
+        }
+        for (File file : runs) {
+            FileUtils.deleteFile(file);
+        }
+        return count;
+    }
+
+    private File newRunFile() throws IOException {
+        File run = File.createTempFile("corb-sort", compress ? ".gz" : ".tmp", tempDir);
+        run.deleteOnExit();
+        return run;
+    }
+
+    private BufferedReader newReader(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (compress) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return new BufferedReader(new InputStreamReader(in, charset), BUFFER_SIZE);
+    }
+
+    private BufferedWriter newWriter(File file, boolean append, boolean gzip) throws IOException {
+        OutputStream out = new FileOutputStream(file, append);
+        if (gzip) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, charset), BUFFER_SIZE);
+    }
+
+    private ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "external-sort");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static List<File> getAll(List<Future<File>> futures) throws IOException {
+        List<File> files = new ArrayList<File>(futures.size());
+        try {
+            for (Future<File> future : futures) {
+                files.add(future.get());
+            }
+            return files;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            cancelAll(futures);
+            throw new InterruptedIOException("interrupted while sorting");
+        } catch (ExecutionException ex) {
+            cancelAll(futures);
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    private static void cancelAll(List<Future<File>> futures) {
+        for (Future<File> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private static class Run {
+
+        private final BufferedReader reader;
+        private String line;
+
+        Run(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        boolean next() throws IOException {
+            line = reader.readLine();
+            return line != null;
+        }
+
+        void close() {
+            closeQuietly(reader);
+        }
+    }
+}
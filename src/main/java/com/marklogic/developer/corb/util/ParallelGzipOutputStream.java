@@ -0,0 +1,287 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compresses a stream on multiple threads. The stream is split into
+ * independent blocks, each block is compressed as a complete gzip member on a
+ * worker thread, and the members are written in order. Concatenated members are
+ * a valid gzip file, so the output can be read by gunzip or
+ * {@link java.util.zip.GZIPInputStream} as usual.
+ * <p>
+ * In BGZF mode the blocks are limited to 64KB and each member records its
+ * compressed size, so that tools such as samtools and htslib can seek within
+ * the file and decompress blocks in parallel. A BGZF file should end with
+ * {@link #BGZF_EOF}, which is not written by this stream so that it can be
+ * appended to.
+ *
+ * @since 2.3.2
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    /**
+     * The largest BGZF block, which leaves room for the member to stay within
+     * 64KB even if the block can not be compressed.
+     */
+    public static final int BGZF_BLOCK_SIZE = 0xff00;
+    /**
+     * An empty BGZF block, which marks the end of a BGZF file.
+     */
+    public static final byte[] BGZF_EOF = new byte[]{
+        0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 0x42, 0x43, 2, 0,
+        0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int BGZF_HEADER_SIZE = 18;
+    private static final int TRAILER_SIZE = 8;
+
+    private final OutputStream out;
+    private final boolean bgzf;
+    private final int blockSize;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private byte[] block;
+    private int count;
+    private boolean closed;
+
+    /**
+     * @param out the stream to write the compressed members to
+     * @param threads the number of threads to compress with
+     * @param bgzf whether to write BGZF blocks
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, boolean bgzf) {
+        this(out, threads, bgzf, bgzf ? BGZF_BLOCK_SIZE : DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param out the stream to write the compressed members to
+     * @param threads the number of threads to compress with
+     * @param bgzf whether to write BGZF blocks
+     * @param blockSize the number of bytes in each block
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, boolean bgzf, int blockSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be greater than 0");
+        }
+        if (blockSize < 1 || bgzf && blockSize > BGZF_BLOCK_SIZE) {
+            throw new IllegalArgumentException("blockSize must be greater than 0" + (bgzf ? " and no more than " + BGZF_BLOCK_SIZE : ""));
+        }
+        this.out = out;
+        this.bgzf = bgzf;
+        this.blockSize = blockSize;
+        // enough to keep every thread busy while the oldest member is written
+        this.maxPending = threads * 2;
+        this.block = new byte[blockSize];
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "parallel-gzip");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] content = block;
+        final int length = count;
+        block = new byte[blockSize];
+        count = 0;
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return compressBlock(content, 0, length, bgzf);
+            }
+        }));
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Future<byte[]> member = pending.removeFirst();
+        try {
+            out.write(member.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    /**
+     * Compress the buffered bytes, even if they do not fill a block, and write
+     * all of the pending members.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    /**
+     * Write all of the remaining members and stop the worker threads, without
+     * closing the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            for (Future<byte[]> member : pending) {
+                member.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Compress the content on the current thread, as one gzip member, or as
+     * BGZF blocks.
+     *
+     * @param content
+     * @param bgzf whether to write BGZF blocks
+     * @return the compressed members
+     */
+    public static byte[] compress(byte[] content, boolean bgzf) {
+        if (!bgzf) {
+            return compressBlock(content, 0, content.length, false);
+        }
+        ByteArrayOutputStream members = new ByteArrayOutputStream(content.length / 4 + BGZF_HEADER_SIZE + TRAILER_SIZE);
+        for (int off = 0; off < content.length; off += BGZF_BLOCK_SIZE) {
+            byte[] member = compressBlock(content, off, Math.min(BGZF_BLOCK_SIZE, content.length - off), true);
+            members.write(member, 0, member.length);
+        }
+        return members.toByteArray();
+    }
+
+    protected static byte[] compressBlock(byte[] content, int off, int len, boolean bgzf) {
+        int headerSize = bgzf ? BGZF_HEADER_SIZE : GZIP_HEADER_SIZE;
+        // incompressible data grows by 5 bytes for every 16KB stored
+        byte[] member = new byte[headerSize + len + (len / 16384 + 1) * 5 + 16 + TRAILER_SIZE];
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        int size = headerSize;
+        try {
+            deflater.setInput(content, off, len);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (size == member.length - TRAILER_SIZE) {
+                    byte[] larger = new byte[member.length * 2];
+                    System.arraycopy(member, 0, larger, 0, size);
+                    member = larger;
+                }
+                size += deflater.deflate(member, size, member.length - TRAILER_SIZE - size);
+            }
+        } finally {
+            deflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, off, len);
+        member[0] = 0x1f;
+        member[1] = (byte) 0x8b;
+        member[2] = Deflater.DEFLATED;
+        member[9] = (byte) 0xff; // unknown OS
+        if (bgzf) {
+            member[3] = 4; // FEXTRA
+            member[10] = 6; // XLEN
+            member[12] = 'B';
+            member[13] = 'C';
+            member[14] = 2; // SLEN
+            writeShort(member, 16, size + TRAILER_SIZE - 1); // BSIZE
+        }
+        writeInt(member, size, (int) crc.getValue());
+        writeInt(member, size + 4, len);
+        size += TRAILER_SIZE;
+        if (size == member.length) {
+            return member;
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(member, 0, result, 0, size);
+        return result;
+    }
+
+    private static void writeShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        writeShort(b, off, value);
+        writeShort(b, off + 2, value >>> 16);
+    }
+}
@@ -23,6 +23,7 @@ import static com.marklogic.developer.corb.TestUtils.clearSystemProperties;
 import com.marklogic.xcc.ContentSource;
 import com.marklogic.xcc.ModuleInvoke;
 import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
 import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.QueryStackFrame;
@@ -37,8 +38,10 @@ import com.marklogic.xcc.types.XdmBinary;
 import com.marklogic.xcc.types.XdmItem;
 import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -47,8 +50,15 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  *
@@ -258,6 +268,176 @@ public class AbstractTaskTest {
         assertTrue(AbstractTask.MODULE_PROPS.get(FOO).contains(key2));
     }
 
+    @Test
+    public void testInvokeModule_pointInTime() throws Exception {
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.moduleUri = "module.xqy";
+        instance.moduleType = Options.PROCESS_MODULE;
+        instance.inputUris = new String[]{URI};
+        Properties props = new Properties();
+        props.setProperty(Options.POINT_IN_TIME, "12345");
+        instance.properties = props;
+
+        ContentSource cs = mock(ContentSource.class);
+        Session session = mock(Session.class);
+        ModuleInvoke request = mock(ModuleInvoke.class);
+        when(cs.newSession()).thenReturn(session);
+        when(session.newModuleInvoke(anyString())).thenReturn(request);
+        when(session.submitRequest(request)).thenReturn(mock(ResultSequence.class));
+        instance.cs = cs;
+
+        instance.invokeModule();
+        ArgumentCaptor<RequestOptions> requestOptions = ArgumentCaptor.forClass(RequestOptions.class);
+        verify(request).setOptions(requestOptions.capture());
+        assertEquals(new BigInteger("12345"), requestOptions.getValue().getEffectivePointInTime());
+    }
+
+    @Test
+    public void testInvokeModule_streamProcessResults() throws Exception {
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.moduleUri = "module.xqy";
+        instance.moduleType = Options.PROCESS_MODULE;
+        instance.inputUris = new String[]{URI};
+        Properties props = new Properties();
+        props.setProperty(Options.PROCESS_RESULT_BUFFER_SIZE, "1024");
+        instance.properties = props;
+
+        ContentSource cs = mock(ContentSource.class);
+        Session session = mock(Session.class);
+        ModuleInvoke request = mock(ModuleInvoke.class);
+        ResultSequence seq = mock(ResultSequence.class);
+        when(cs.newSession()).thenReturn(session);
+        when(session.newModuleInvoke(anyString())).thenReturn(request);
+        when(session.submitRequest(request)).thenReturn(seq);
+        when(seq.isCached()).thenReturn(false);
+        instance.cs = cs;
+
+        instance.invokeModule();
+        ArgumentCaptor<RequestOptions> requestOptions = ArgumentCaptor.forClass(RequestOptions.class);
+        verify(request).setOptions(requestOptions.capture());
+        assertFalse(requestOptions.getValue().getCacheResult());
+        assertEquals(1024, requestOptions.getValue().getResultBufferSize());
+        // the session is held open until the results have been processed
+        verify(session, times(1)).close();
+    }
+
+    @Test
+    public void testNewRequest_cacheProcessResults() throws Exception {
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.moduleUri = "module.xqy";
+        instance.moduleType = Options.PROCESS_MODULE;
+        Properties props = new Properties();
+        props.setProperty(Options.PROCESS_RESULT_CACHE, "true");
+        instance.properties = props;
+        Session session = mock(Session.class);
+        ModuleInvoke request = mock(ModuleInvoke.class);
+        when(session.newModuleInvoke(anyString())).thenReturn(request);
+
+        instance.newRequest(session);
+        ArgumentCaptor<RequestOptions> requestOptions = ArgumentCaptor.forClass(RequestOptions.class);
+        verify(request).setOptions(requestOptions.capture());
+        assertTrue(requestOptions.getValue().getCacheResult());
+    }
+
+    @Test
+    public void testGetPointInTime() {
+        AbstractTask instance = new AbstractTaskImpl();
+        Properties props = new Properties();
+        props.setProperty(Options.POINT_IN_TIME, "12345");
+        instance.properties = props;
+        instance.moduleType = Options.PRE_BATCH_MODULE;
+        assertNull(instance.getPointInTime());
+        instance.moduleType = Options.POST_BATCH_MODULE;
+        assertEquals(new BigInteger("12345"), instance.getPointInTime());
+        props.setProperty(Options.POINT_IN_TIME, "true");
+        assertNull(instance.getPointInTime());
+    }
+
+    @Test
+    public void testInvokeModule_hedgedRequest() throws Exception {
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.moduleUri = "module.xqy";
+        instance.moduleType = Options.PROCESS_MODULE;
+        instance.inputUris = new String[]{URI};
+        Properties props = new Properties();
+        props.setProperty(Options.HEDGE_REQUEST_PERCENTILE, "50");
+        instance.properties = props;
+
+        ContentSource cs = mock(ContentSource.class);
+        Session slowSession = mock(Session.class);
+        Session fastSession = mock(Session.class);
+        ModuleInvoke request = mock(ModuleInvoke.class);
+        final ResultSequence slowSeq = mock(ResultSequence.class);
+        ResultSequence fastSeq = mock(ResultSequence.class);
+        when(cs.newSession()).thenReturn(slowSession, fastSession);
+        when(slowSession.newModuleInvoke(anyString())).thenReturn(request);
+        when(fastSession.newModuleInvoke(anyString())).thenReturn(request);
+        when(slowSession.submitRequest(request)).thenAnswer(new Answer<ResultSequence>() {
+            @Override
+            public ResultSequence answer(InvocationOnMock invocation) throws Throwable {
+                // a request that completes even though it was cancelled
+                long end = System.currentTimeMillis() + 2000;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(Math.max(1, end - System.currentTimeMillis()));
+                    } catch (InterruptedException ex) {
+                        // keep waiting
+                    }
+                }
+                return slowSeq;
+            }
+        });
+        when(fastSession.submitRequest(request)).thenReturn(fastSeq);
+        instance.cs = cs;
+
+        AbstractTask.PROCESS_LATENCY.clear();
+        for (int i = 0; i < LatencyTracker.DEFAULT_MIN_SAMPLES; i++) {
+            AbstractTask.PROCESS_LATENCY.record(1);
+        }
+        long start = System.currentTimeMillis();
+        String[] result = instance.invokeModule();
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertArrayEquals(new String[]{URI}, result);
+        verify(slowSession, atLeastOnce()).close();
+        verify(fastSession, atLeastOnce()).close();
+        // the losing request's result is closed once it arrives
+        verify(slowSeq, timeout(3000)).close();
+        AbstractTask.PROCESS_LATENCY.clear();
+    }
+
+    @Test
+    public void testGetHedgeDelay_minimum() {
+        AbstractTask instance = new AbstractTaskImpl();
+        Properties props = new Properties();
+        props.setProperty(Options.HEDGE_REQUEST_PERCENTILE, "95");
+        instance.properties = props;
+        AbstractTask.PROCESS_LATENCY.clear();
+        for (int i = 0; i < LatencyTracker.DEFAULT_MIN_SAMPLES; i++) {
+            AbstractTask.PROCESS_LATENCY.record(1);
+        }
+        assertEquals(AbstractTask.MIN_HEDGE_DELAY, instance.getHedgeDelay());
+        AbstractTask.PROCESS_LATENCY.clear();
+    }
+
+    @Test
+    public void testGetHedgeDelay_notEnoughSamples() {
+        AbstractTask instance = new AbstractTaskImpl();
+        Properties props = new Properties();
+        props.setProperty(Options.HEDGE_REQUEST_PERCENTILE, "95");
+        instance.properties = props;
+        AbstractTask.PROCESS_LATENCY.clear();
+        assertEquals(-1, instance.getHedgeDelay());
+    }
+
+    @Test
+    public void testGetHedgeDelay_invalidPercentile() {
+        AbstractTask instance = new AbstractTaskImpl();
+        Properties props = new Properties();
+        props.setProperty(Options.HEDGE_REQUEST_PERCENTILE, "200");
+        instance.properties = props;
+        assertEquals(-1, instance.getHedgeDelay());
+    }
+
     @Test
     public void testGetIntProperty() {
         Properties props = new Properties();
@@ -330,6 +510,48 @@ public class AbstractTaskTest {
         assertTrue(testHandleRequestException("ServerConnectionException", serverException, false, 2));
     }
 
+    @Test
+    public void testHandleRequestException_failedUriCount() throws CorbException {
+        Request req = mock(Request.class);
+        RequestServerException serverException = new RequestServerException(ERROR_MSG, req);
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.failOnError = false;
+        instance.inputUris = new String[]{URI, URI};
+        instance.properties = new Properties();
+        AtomicLong failedUriCount = new AtomicLong();
+        instance.setFailedUriCount(failedUriCount);
+        instance.handleRequestException(serverException);
+        assertEquals(2, failedUriCount.get());
+    }
+
+    @Test(expected = CorbException.class)
+    public void testHandleRequestException_ServerConnectionException_circuitBreakerFailed() throws CorbException {
+        Request req = mock(Request.class);
+        ServerConnectionException serverException = new ServerConnectionException(ERROR_MSG, req);
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.failOnError = false;
+        CircuitBreaker circuitBreaker = mock(CircuitBreaker.class);
+        when(circuitBreaker.recordFailure()).thenReturn(true);
+        instance.setCircuitBreaker(circuitBreaker);
+        instance.handleRequestException(serverException);
+    }
+
+    @Test
+    public void testHandleRequestException_ServerConnectionException_circuitBreakerClosed() throws Exception {
+        Request req = mock(Request.class);
+        ServerConnectionException serverException = new ServerConnectionException(ERROR_MSG, req);
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.inputUris = new String[]{URI};
+        CircuitBreaker circuitBreaker = mock(CircuitBreaker.class);
+        when(circuitBreaker.recordFailure()).thenReturn(true);
+        when(circuitBreaker.awaitClosed()).thenReturn(true);
+        instance.setCircuitBreaker(circuitBreaker);
+        // no module, so the retried invocation returns immediately
+        assertEquals(0, instance.handleRequestException(serverException).length);
+        verify(circuitBreaker).awaitClosed();
+        assertEquals(0, instance.retryCount);
+    }
+
     @Test(expected = CorbException.class)
     public void testHandleRequestException_ServerConnectionException_fail() throws CorbException, IOException {
         Request req = mock(Request.class);
@@ -453,6 +675,7 @@ public class AbstractTaskTest {
         instance.properties.setProperty(Options.QUERY_RETRY_LIMIT, Integer.toString(retryLimit));
 
         instance.handleRequestException(exception);
+        ExportFileWriter.closeAll();
         List<LogRecord> records = testLogger.getLogRecords();
 
         boolean hasWarning = Level.WARNING.equals(records.get(0).getLevel());
@@ -584,6 +807,35 @@ public class AbstractTaskTest {
         assertFalse(TestUtils.readFile(errorFile).contains(delim));
     }
 
+    @Test
+    public void testWriteToErrorFile_json() throws CorbException, IOException {
+        File exportDir = TestUtils.createTempDirectory();
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.failOnError = false;
+        instance.inputUris = new String[]{FOO, "\"bar\""};
+        instance.exportDir = exportDir.getAbsolutePath();
+        instance.properties = new Properties();
+        instance.properties.setProperty(Options.ERROR_FILE_NAME, "errors.json");
+        instance.properties.setProperty(Options.ERROR_FILE_FORMAT, "json");
+        instance.handleRequestException(new RequestServerException(ERROR, mock(Request.class)));
+
+        ExportFileWriter.closeAll();
+        String[] lines = TestUtils.readFile(new File(exportDir, "errors.json")).split("\\r?\\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"uri\":\"foo\",\"code\":\"RequestServerException\",\"message\":\"" + ERROR + "\",\"attempts\":1,\"timestamp\":\""));
+        assertEquals("\"bar\"", ErrorJournal.getUri(lines[1], ";"));
+        // one timestamp for the batch
+        assertEquals(lines[0].substring(lines[0].indexOf("\"timestamp\"")), lines[1].substring(lines[1].indexOf("\"timestamp\"")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIsJsonErrorFile_unsupported() {
+        AbstractTask instance = new AbstractTaskImpl();
+        instance.properties = new Properties();
+        instance.properties.setProperty(Options.ERROR_FILE_FORMAT, "xml");
+        instance.isJsonErrorFile();
+    }
+
     /**
      * Test of asString method, of class AbstractTask.
      */
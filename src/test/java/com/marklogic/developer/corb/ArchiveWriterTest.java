@@ -0,0 +1,199 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ArchiveWriterTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws IOException {
+        ArchiveWriter.closeAll();
+    }
+
+    @Test
+    public void testWrite_zipSegments() throws IOException {
+        File dir = tempFolder.newFolder();
+        ArchiveWriter instance = new ArchiveWriter(dir, "ZIP", 1);
+        instance.write("a.txt", "a".getBytes("UTF-8"));
+        instance.write("b/c.txt", "c".getBytes("UTF-8"));
+        instance.close();
+        assertEquals(2, instance.getSegmentCount());
+        ZipFile zip = new ZipFile(new File(dir, "export-00002.zip"));
+        try {
+            assertEquals(1, zip.size());
+            assertEquals(1, zip.getEntry("b/c.txt").getSize());
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testWrite_zipDuplicate() throws IOException {
+        File dir = tempFolder.newFolder();
+        ArchiveWriter instance = new ArchiveWriter(dir, "zip", 1024 * 1024);
+        instance.write("a.txt", "a".getBytes("UTF-8"));
+        instance.write("b.txt", "b".getBytes("UTF-8"));
+        instance.write("a.txt", "aa".getBytes("UTF-8"));
+        instance.close();
+        assertEquals(2, instance.getSegmentCount());
+        ZipFile zip = new ZipFile(new File(dir, "export-00001.zip"));
+        try {
+            assertEquals(2, zip.size());
+            assertEquals(1, zip.getEntry("a.txt").getSize());
+        } finally {
+            zip.close();
+        }
+        zip = new ZipFile(new File(dir, "export-00002.zip"));
+        try {
+            assertEquals(1, zip.size());
+            assertEquals(2, zip.getEntry("a.txt").getSize());
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testWriteTarHeader_largeSize() throws IOException {
+        long size = 8L * 1024 * 1024 * 1024 + 5;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArchiveWriter.writeTarHeader(out, "big.txt", size);
+        byte[] header = out.toByteArray();
+        assertEquals(512, header.length);
+        assertEquals((byte) 0x80, header[124]);
+        long decoded = 0;
+        for (int i = 125; i < 136; i++) {
+            decoded = (decoded << 8) | (header[i] & 0xff);
+        }
+        assertEquals(size, decoded);
+        assertEquals(checksum(header, 0), Long.parseLong(field(header, 148, 8).trim(), 8));
+
+        out.reset();
+        ArchiveWriter.writeTarHeader(out, "max.txt", 077777777777L);
+        assertEquals(077777777777L, Long.parseLong(field(out.toByteArray(), 124, 12), 8));
+    }
+
+    @Test
+    public void testWrite_tar() throws IOException {
+        File dir = tempFolder.newFolder();
+        ArchiveWriter instance = new ArchiveWriter(dir, "tar", 1024 * 1024);
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            longName.append("dir").append(i).append('/');
+        }
+        instance.write("short.txt", "hello".getBytes("UTF-8"));
+        instance.write(longName + "long.txt", new byte[600]);
+        instance.write(longName.toString().replace("/", "") + ".txt", new byte[0]);
+        instance.close();
+
+        byte[] tar = TestUtils.readFileToByteArray(new File(dir, "export-00001.tar"));
+        assertEquals(0, tar.length % 512);
+        List<String> names = new ArrayList<String>();
+        int off = 0;
+        String longLink = null;
+        while (tar[off] != 0) {
+            String name = field(tar, off, 100);
+            String prefix = field(tar, off + 345, 155);
+            long size = Long.parseLong(field(tar, off + 124, 12), 8);
+            assertEquals(checksum(tar, off), Long.parseLong(field(tar, off + 148, 8).trim(), 8));
+            assertEquals("ustar", field(tar, off + 257, 6));
+            off += 512;
+            if (tar[off - 512 + 156] == 'L') {
+                longLink = field(tar, off, (int) size);
+            } else {
+                names.add(longLink != null ? longLink : prefix.isEmpty() ? name : prefix + "/" + name);
+                longLink = null;
+            }
+            off += (size + 511) / 512 * 512;
+        }
+        assertEquals(Arrays.asList("short.txt", longName + "long.txt", longName.toString().replace("/", "") + ".txt"), names);
+        assertEquals(off + 1024, tar.length);
+    }
+
+    @Test
+    public void testWrite_tarSpooled() throws IOException {
+        File dir = tempFolder.newFolder();
+        ArchiveWriter instance = new ArchiveWriter(dir, "tar", 1024 * 1024 * 1024);
+        final int size = ArchiveWriter.SPOOL_THRESHOLD + 1000;
+        instance.write("big.txt", new ArchiveWriter.EntryWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                for (int i = 0; i < size; i++) {
+                    out.write('a' + i % 26);
+                }
+            }
+        });
+        instance.close();
+
+        byte[] tar = TestUtils.readFileToByteArray(new File(dir, "export-00001.tar"));
+        assertEquals("big.txt", field(tar, 0, 100));
+        assertEquals(size, Long.parseLong(field(tar, 124, 12), 8));
+        assertEquals('a', tar[512]);
+        assertEquals('a' + (size - 1) % 26, tar[512 + size - 1]);
+        assertEquals(0, tar[512 + size]);
+        assertEquals(512 + (size + 511) / 512 * 512 + 1024, tar.length);
+    }
+
+    @Test
+    public void testRegister() throws IOException {
+        File dir = tempFolder.newFolder();
+        assertNull(ArchiveWriter.getInstance(dir));
+        ArchiveWriter instance = ArchiveWriter.register(new ArchiveWriter(dir, "zip", 1));
+        assertSame(instance, ArchiveWriter.register(new ArchiveWriter(dir, "zip", 1)));
+        assertSame(instance, ArchiveWriter.getInstance(dir));
+        ArchiveWriter.closeAll();
+        assertNull(ArchiveWriter.getInstance(dir));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_unsupportedFormat() {
+        new ArchiveWriter(new File("."), "rar", 1);
+    }
+
+    private static String field(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) {
+            end++;
+        }
+        return new String(b, off, end - off);
+    }
+
+    private static long checksum(byte[] b, int off) {
+        long sum = 0;
+        for (int i = 0; i < 512; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : b[off + i] & 0xff;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testComplete_mergesRanges() {
+        Checkpoint instance = new Checkpoint(new File(tempFolder.getRoot(), "job.checkpoint"), null);
+        instance.complete(10, 19, 0);
+        instance.complete(0, 4, 0);
+        instance.complete(30, 39, 0);
+        assertEquals(25, instance.getCompletedCount());
+        assertFalse(instance.isCompleted(5));
+        instance.complete(5, 9, 0);
+        assertTrue(instance.isCompleted(5));
+        assertTrue(instance.isCompleted(19));
+        assertFalse(instance.isCompleted(20));
+        instance.complete(20, 29, 0);
+        assertEquals(40, instance.getCompletedCount());
+        assertTrue(instance.isCompleted(39));
+        assertFalse(instance.isCompleted(40));
+    }
+
+    @Test
+    public void testTrack() throws Exception {
+        Checkpoint instance = new Checkpoint(new File(tempFolder.getRoot(), "job.checkpoint"), null);
+        Callable<String[]> task = instance.track(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return new String[]{"a", "b"};
+            }
+        }, 2, "/a.xml", "/b.xml");
+        assertFalse(instance.isCompleted(2));
+        assertArrayEquals(new String[]{"a", "b"}, task.call());
+        assertTrue(instance.isCompleted(2));
+        assertTrue(instance.isCompleted(3));
+    }
+
+    @Test
+    public void testTrack_failed() {
+        Checkpoint instance = new Checkpoint(new File(tempFolder.getRoot(), "job.checkpoint"), null);
+        Callable<String[]> task = instance.track(new Callable<String[]>() {
+            @Override
+            public String[] call() throws Exception {
+                throw new CorbException("failed");
+            }
+        }, 0, "/a.xml", "/b.xml");
+        try {
+            task.call();
+            fail();
+        } catch (Exception ex) {
+            assertEquals("failed", ex.getMessage());
+        }
+        assertEquals(0, instance.getCompletedCount());
+    }
+
+    @Test
+    public void testRestore() throws IOException {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        File exportFile = new File(tempFolder.getRoot(), "export.csv.part");
+        File threadFile = new File(tempFolder.getRoot(), "export.csv.part.thread-1");
+        TestUtils.writeFile(exportFile, "header\nline1\n");
+        Checkpoint instance = new Checkpoint(journal, exportFile);
+        instance.setTotal(100);
+        instance.setQueued(20);
+        instance.setHeaderLineCount(1);
+        instance.start(60000);
+        instance.complete(0, 9, 0);
+        instance.close();
+
+        // output written after the checkpoint
+        TestUtils.writeFile(exportFile, "header\nline1\nline2\n");
+        TestUtils.writeFile(threadFile, "line3\n");
+
+        Checkpoint restored = new Checkpoint(journal, exportFile);
+        assertTrue(restored.restore());
+        assertEquals(100, restored.getTotal());
+        assertEquals(20, restored.getQueued());
+        assertEquals(1, restored.getHeaderLineCount());
+        assertEquals(10, restored.getCompletedCount());
+        assertTrue(restored.isCompleted(9));
+        assertFalse(restored.isCompleted(10));
+        assertEquals("header\nline1\n", TestUtils.readFile(exportFile));
+        assertFalse(threadFile.exists());
+    }
+
+    @Test
+    public void testRestore_otherFilesUnchanged() throws IOException {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        File exportFile = new File(tempFolder.getRoot(), "export.csv.part");
+        File backupFile = new File(tempFolder.getRoot(), "export.csv.part.bak");
+        File errorFile = new File(tempFolder.getRoot(), "export.csv.part.errors");
+        TestUtils.writeFile(exportFile, "line1\n");
+        TestUtils.writeFile(backupFile, "backup\n");
+        Checkpoint instance = new Checkpoint(journal, exportFile);
+        instance.start(60000);
+        instance.close();
+
+        TestUtils.writeFile(backupFile, "backup\nline2\n");
+        TestUtils.writeFile(errorFile, "error\n");
+        assertTrue(new Checkpoint(journal, exportFile).restore());
+        assertEquals("backup\nline2\n", TestUtils.readFile(backupFile));
+        assertEquals("error\n", TestUtils.readFile(errorFile));
+        assertFalse(TestUtils.readFile(journal).contains(backupFile.getName()));
+    }
+
+    @Test
+    public void testTrack_deferCompletion() throws Exception {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        File exportFile = new File(tempFolder.getRoot(), "export.csv.part");
+        TestUtils.writeFile(exportFile, "header\n");
+        final Checkpoint instance = new Checkpoint(journal, exportFile);
+        instance.start(60000);
+        final ExportFileWriter.WriteListener[] listener = new ExportFileWriter.WriteListener[1];
+        Callable<String[]> task = instance.track(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                listener[0] = Checkpoint.deferCompletion();
+                return new String[0];
+            }
+        }, 0, "/a.xml");
+        task.call();
+        assertNotNull(listener[0]);
+        assertFalse(instance.isCompleted(0));
+        assertNull(Checkpoint.deferCompletion());
+
+        // the output of a batch that is still in progress
+        TestUtils.writeFile(exportFile, "header\nline1\nline2\n");
+        listener[0].written(exportFile, 13);
+        assertTrue(instance.isCompleted(0));
+        instance.close();
+
+        Checkpoint restored = new Checkpoint(journal, exportFile);
+        assertTrue(restored.restore());
+        assertTrue(restored.isCompleted(0));
+        assertEquals("header\nline1\n", TestUtils.readFile(exportFile));
+    }
+
+    @Test
+    public void testTrack_threadPartFile() throws Exception {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        File exportFile = new File(tempFolder.getRoot(), "export.csv.part");
+        final File threadFile = new File(tempFolder.getRoot(), "export.csv.part.thread-" + Thread.currentThread().getId());
+        Checkpoint instance = new Checkpoint(journal, exportFile);
+        instance.start(60000);
+        instance.track(new Callable<String[]>() {
+            @Override
+            public String[] call() throws IOException {
+                TestUtils.writeFile(threadFile, "line1\n");
+                return new String[0];
+            }
+        }, 0, "/a.xml").call();
+        // the output of a batch that is still in progress
+        TestUtils.writeFile(threadFile, "line1\nline2\n");
+        instance.close();
+
+        Checkpoint restored = new Checkpoint(journal, exportFile);
+        assertTrue(restored.restore());
+        assertTrue(restored.isCompleted(0));
+        assertEquals("line1\n", TestUtils.readFile(threadFile));
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        Checkpoint instance = new Checkpoint(journal, null);
+        String[] uris = new String[]{"/0.xml", "/1.xml", "/2.xml", "/3.xml", "/4.xml", "/5.xml"};
+        // completed out of order, and merged into one range
+        instance.track(new NoopTask(), 2, "/2.xml", "/3.xml").call();
+        instance.track(new NoopTask(), 0, "/0.xml", "/1.xml").call();
+        instance.track(new NoopTask(), 5, "/5.xml").call();
+        instance.write();
+
+        Checkpoint restored = new Checkpoint(journal, null);
+        assertTrue(restored.restore());
+        for (int i = 0; i < uris.length; i++) {
+            assertTrue(!restored.isCompleted(i) || restored.verify(i, uris[i]));
+        }
+
+        restored = new Checkpoint(journal, null);
+        assertTrue(restored.restore());
+        assertTrue(restored.verify(0, "/0.xml"));
+        assertTrue(restored.verify(1, "/2.xml"));
+        assertTrue(restored.verify(2, "/1.xml"));
+        assertFalse(restored.verify(3, "/3.xml"));
+    }
+
+    private static class NoopTask implements Callable<String[]> {
+
+        @Override
+        public String[] call() {
+            return new String[0];
+        }
+    }
+
+    @Test
+    public void testRestore_lastLineIncomplete() throws IOException {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        Checkpoint instance = new Checkpoint(journal, null);
+        instance.setTotal(10);
+        instance.complete(0, 4, 0);
+        instance.write();
+        TestUtils.writeFile(journal, TestUtils.readFile(journal) + "checkpoint\t1\t10\t10\t-1\t0-9");
+
+        Checkpoint restored = new Checkpoint(journal, null);
+        assertTrue(restored.restore());
+        assertEquals(5, restored.getCompletedCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRestore_noDigest() throws IOException {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        TestUtils.writeFile(journal, "checkpoint\t1\t10\t10\t-1\t0-9\n");
+        new Checkpoint(journal, null).restore();
+    }
+
+    @Test
+    public void testRestore_noJournal() throws IOException {
+        Checkpoint instance = new Checkpoint(new File(tempFolder.getRoot(), "job.checkpoint"), null);
+        assertFalse(instance.restore());
+        assertEquals(0, instance.getCompletedCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRestore_exportFileShorter() throws IOException {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        File exportFile = new File(tempFolder.getRoot(), "export.csv.part");
+        TestUtils.writeFile(exportFile, "line1\nline2\n");
+        Checkpoint instance = new Checkpoint(journal, exportFile);
+        instance.start(60000);
+        instance.close();
+        TestUtils.writeFile(exportFile, "line1\n");
+        new Checkpoint(journal, exportFile).restore();
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        File journal = new File(tempFolder.getRoot(), "job.checkpoint");
+        Checkpoint instance = new Checkpoint(journal, null);
+        instance.start(60000);
+        instance.complete(0, 0, 0);
+        instance.close();
+        assertTrue(journal.exists());
+        Checkpoint restored = new Checkpoint(journal, null);
+        assertTrue(restored.restore());
+        assertTrue(restored.isCompleted(0));
+        restored.delete();
+        assertFalse(journal.exists());
+    }
+}
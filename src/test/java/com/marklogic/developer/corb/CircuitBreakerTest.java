@@ -0,0 +1,177 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CircuitBreakerTest {
+
+    private PausableThreadPoolExecutor pool;
+
+    @Before
+    public void setUp() {
+        pool = new PausableThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1), new Manager.CallerBlocksPolicy());
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testRecordFailure_belowThreshold() {
+        CircuitBreaker instance = new CircuitBreaker(pool, mock(ContentSource.class), 3, 10, 1);
+        assertFalse(instance.recordFailure());
+        assertFalse(instance.recordFailure());
+        instance.recordSuccess();
+        assertFalse(instance.recordFailure());
+        assertFalse(instance.isOpen());
+        assertFalse(pool.isPaused());
+        instance.shutdown();
+    }
+
+    @Test
+    public void testRecordFailure_opensAndClosesWhenProbeSucceeds() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mock(Session.class);
+        AdhocQuery query = mock(AdhocQuery.class);
+        when(contentSource.newSession()).thenReturn(session);
+        when(session.newAdhocQuery(anyString())).thenReturn(query);
+        when(session.submitRequest(any(Request.class)))
+                .thenThrow(new ServerConnectionException("down", query))
+                .thenReturn(mock(ResultSequence.class));
+
+        CircuitBreaker instance = new CircuitBreaker(pool, contentSource, 2, 10, 5);
+        assertFalse(instance.recordFailure());
+        assertTrue(instance.recordFailure());
+        assertTrue(instance.isOpen());
+        assertTrue(pool.isPaused());
+        assertTrue(instance.awaitClosed());
+        assertFalse(instance.isOpen());
+        assertFalse(pool.isPaused());
+        instance.shutdown();
+    }
+
+    @Test
+    public void testRecordFailure_failsWhenProbeLimitExhausted() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mock(Session.class);
+        AdhocQuery query = mock(AdhocQuery.class);
+        when(contentSource.newSession()).thenReturn(session);
+        when(session.newAdhocQuery(anyString())).thenReturn(query);
+        when(session.submitRequest(any(Request.class))).thenThrow(new ServerConnectionException("down", query));
+
+        // long enough for the checks to run before the circuit becomes half-open
+        CircuitBreaker instance = new CircuitBreaker(pool, contentSource, 1, 200, 1);
+        assertTrue(instance.recordFailure());
+        assertFalse(instance.awaitClosed());
+        assertTrue(instance.isFailed());
+        assertTrue(instance.recordFailure());
+        assertFalse(pool.isPaused());
+        instance.shutdown();
+    }
+
+    @Test
+    public void testRecordFailure_doesNotResumeUserPause() throws Exception {
+        CircuitBreaker instance = new CircuitBreaker(pool, mock(ContentSource.class), 1, 60000, 1);
+        pool.pause();
+        assertTrue(instance.recordFailure());
+        instance.shutdown();
+        assertTrue(instance.isFailed());
+        assertTrue(pool.isPaused());
+    }
+
+    @Test
+    public void testHalfOpen_closesOnSuccess() throws Exception {
+        CircuitBreaker instance = newFailedCircuitBreaker();
+        awaitHalfOpen(instance);
+        instance.recordSuccess();
+        assertFalse(instance.isHalfOpen());
+        assertFalse(instance.isFailed());
+        assertFalse(instance.isOpen());
+        assertTrue(instance.recordFailure());
+        assertTrue(instance.isOpen());
+        instance.shutdown();
+    }
+
+    @Test
+    public void testHalfOpen_reopensOnFailure() throws Exception {
+        CircuitBreaker instance = newFailedCircuitBreaker();
+        awaitHalfOpen(instance);
+        assertTrue(instance.recordFailure());
+        assertTrue(instance.isOpen());
+        assertTrue(pool.isPaused());
+        instance.shutdown();
+        assertFalse(pool.isPaused());
+    }
+
+    @Test
+    public void testReleasePause() throws Exception {
+        CircuitBreaker instance = new CircuitBreaker(pool, mock(ContentSource.class), 1, 60000, 1);
+        assertTrue(instance.recordFailure());
+        assertTrue(pool.isPaused());
+        // paused by a command while the circuit is open
+        instance.releasePause();
+        instance.shutdown();
+        assertTrue(instance.isFailed());
+        assertTrue(pool.isPaused());
+    }
+
+    private CircuitBreaker newFailedCircuitBreaker() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mock(Session.class);
+        AdhocQuery query = mock(AdhocQuery.class);
+        when(contentSource.newSession()).thenReturn(session);
+        when(session.newAdhocQuery(anyString())).thenReturn(query);
+        when(session.submitRequest(any(Request.class))).thenThrow(new ServerConnectionException("down", query));
+
+        CircuitBreaker instance = new CircuitBreaker(pool, contentSource, 1, 10, 1);
+        assertTrue(instance.recordFailure());
+        assertFalse(instance.awaitClosed());
+        return instance;
+    }
+
+    private static void awaitHalfOpen(CircuitBreaker instance) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!instance.isHalfOpen() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertTrue(instance.isHalfOpen());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_invalidThreshold() {
+        new CircuitBreaker(pool, mock(ContentSource.class), 0, 10, 1);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class DistinctFilterTest {
+
+    private static final String NL = System.getProperty("line.separator");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws IOException {
+        DistinctFilter.closeAll();
+    }
+
+    private static String filter(DistinctFilter instance, String content) throws IOException {
+        return new String(instance.filter(content.getBytes("UTF-8")), "UTF-8");
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        DistinctFilter instance = new DistinctFilter(tempFolder.newFile(), tempFolder.getRoot(), 1024 * 1024);
+        assertEquals("a" + NL + "b" + NL, filter(instance, "a\nb\na\n"));
+        assertEquals("c" + NL, filter(instance, "b\r\nc\n"));
+        assertEquals(0, instance.getSpillCount());
+    }
+
+    @Test
+    public void testFilter_spill() throws IOException {
+        File file = tempFolder.newFile();
+        File spillDir = tempFolder.newFolder();
+        // the smallest budget, so that every partition spills after 1536 lines
+        DistinctFilter instance = new DistinctFilter(file, spillDir, 0);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 150000; i++) {
+            content.append(i % 110000).append('\n');
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(instance.filter(content.toString().getBytes("UTF-8")));
+        out.close();
+        assertTrue(instance.getSpillCount() > 0);
+        instance.close();
+        assertEquals(0, spillDir.list().length);
+
+        List<String> lines = Arrays.asList(TestUtils.readFile(file).split(NL));
+        Set<String> distinct = new HashSet<String>(lines);
+        assertEquals(110000, lines.size());
+        assertEquals(110000, distinct.size());
+    }
+
+    @Test
+    public void testFilter_spillRepartitioned() throws IOException {
+        File file = tempFolder.newFile();
+        File spillDir = tempFolder.newFolder();
+        // each partition spills several times what fits in its budget
+        DistinctFilter instance = new DistinctFilter(file, spillDir, 0);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            content.append(i % 250000).append('\n');
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(instance.filter(content.toString().getBytes("UTF-8")));
+        out.close();
+        instance.close();
+        assertEquals(0, spillDir.list().length);
+
+        List<String> lines = Arrays.asList(TestUtils.readFile(file).split(NL));
+        Set<String> distinct = new HashSet<String>(lines);
+        assertEquals(250000, lines.size());
+        assertEquals(250000, distinct.size());
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertEquals(DistinctFilter.fingerprint("abc"), DistinctFilter.fingerprint("abc"));
+        assertNotEquals(DistinctFilter.fingerprint("abc"), DistinctFilter.fingerprint("acb"));
+    }
+
+    @Test
+    public void testRegister() throws IOException {
+        File file = tempFolder.newFile();
+        assertNull(DistinctFilter.getInstance(file));
+        DistinctFilter instance = DistinctFilter.register(new DistinctFilter(file, null, 1024));
+        assertSame(instance, DistinctFilter.register(new DistinctFilter(file, null, 1024)));
+        assertSame(instance, DistinctFilter.getInstance(file));
+        DistinctFilter.closeAll();
+        assertNull(DistinctFilter.getInstance(file));
+    }
+}
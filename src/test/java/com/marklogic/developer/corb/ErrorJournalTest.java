@@ -0,0 +1,63 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ErrorJournalTest {
+
+    @Test
+    public void testToJson() {
+        assertEquals("{\"uri\":\"/a.xml\",\"code\":\"XDMP-FOO\",\"message\":\"line 1\\nline 2\",\"attempts\":3,\"timestamp\":\"1970-01-01T00:00:01.000Z\"}",
+                ErrorJournal.toJson("/a.xml", "XDMP-FOO", "line 1\nline 2", 3, 1000));
+        assertEquals("{\"uri\":\"/a.xml\",\"code\":null,\"message\":null,\"attempts\":1,\"timestamp\":\"1970-01-01T00:00:00.000Z\"}",
+                ErrorJournal.toJson("/a.xml", null, null, 1, 0));
+    }
+
+    @Test
+    public void testToJson_formattedTimestamp() {
+        String timestamp = ErrorJournal.formatTimestamp(1000);
+        assertEquals("1970-01-01T00:00:01.000Z", timestamp);
+        assertEquals(ErrorJournal.toJson("/a.xml", "XDMP-FOO", "message", 2, 1000),
+                ErrorJournal.toJson("/a.xml", "XDMP-FOO", "message", 2, timestamp));
+    }
+
+    @Test
+    public void testGetUri_json() {
+        String uri = "/dir/\"quoted\"\\\u00e9\t.xml";
+        String json = ErrorJournal.toJson(uri, "XDMP-FOO", "message", 1, 0);
+        for (char c : json.toCharArray()) {
+            assertTrue(c < 0x80);
+        }
+        assertEquals(uri, ErrorJournal.getUri(json, ";"));
+    }
+
+    @Test
+    public void testGetUri_text() {
+        assertEquals("/a.xml", ErrorJournal.getUri("/a.xml;message; with delim", ";"));
+        assertEquals("/a.xml", ErrorJournal.getUri("/a.xml", ";"));
+        assertEquals("/a.xml", ErrorJournal.getUri("/a.xml|message", "|"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetUri_unterminated() {
+        ErrorJournal.getUri("{\"uri\":\"/a.xml", ";");
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ErrorJournalUrisLoaderTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private List<String> load(String content, Properties properties) throws IOException, CorbException {
+        File file = tempFolder.newFile();
+        TestUtils.writeFile(file, content);
+        TransformOptions options = new TransformOptions();
+        options.setUrisReplayFile(file.getAbsolutePath());
+        ErrorJournalUrisLoader instance = new ErrorJournalUrisLoader();
+        instance.setOptions(options);
+        instance.setProperties(properties);
+        List<String> uris = new ArrayList<String>();
+        try {
+            instance.open();
+            assertEquals(3, instance.getTotalCount());
+            while (instance.hasNext()) {
+                uris.add(instance.next());
+            }
+            assertNull(instance.next());
+        } finally {
+            instance.close();
+        }
+        return uris;
+    }
+
+    @Test
+    public void testOpen_json() throws IOException, CorbException {
+        String content = ErrorJournal.toJson("/b.xml", "XDMP-FOO", "failed", 1, 0) + "\n"
+                + ErrorJournal.toJson("/a.xml", "XDMP-FOO", "failed", 1, 0) + "\n"
+                + ErrorJournal.toJson("/b.xml", "XDMP-BAR", "failed again", 2, 0) + "\n"
+                + "\n"
+                + ErrorJournal.toJson("/c;d.xml", null, null, 1, 0) + "\n";
+        assertEquals(Arrays.asList("/b.xml", "/a.xml", "/c;d.xml"), load(content, new Properties()));
+    }
+
+    @Test
+    public void testOpen_text() throws IOException, CorbException {
+        Properties properties = new Properties();
+        properties.setProperty(Options.BATCH_URI_DELIM, "|");
+        String content = "/b.xml|failed\n/a.xml|failed\n/b.xml|failed\n/c.xml\n";
+        assertEquals(Arrays.asList("/b.xml", "/a.xml", "/c.xml"), load(content, properties));
+    }
+
+    @Test(expected = CorbException.class)
+    public void testOpen_missingFile() throws CorbException {
+        TransformOptions options = new TransformOptions();
+        options.setUrisReplayFile(new File(tempFolder.getRoot(), "missing").getAbsolutePath());
+        ErrorJournalUrisLoader instance = new ErrorJournalUrisLoader();
+        instance.setOptions(options);
+        instance.open();
+    }
+}
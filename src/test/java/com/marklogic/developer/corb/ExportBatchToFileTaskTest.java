@@ -18,11 +18,18 @@
  */
 package com.marklogic.developer.corb;
 
+import com.marklogic.developer.corb.util.FileUtils;
+import com.marklogic.xcc.ResultItem;
 import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.types.XdmItem;
 import java.io.File;
+import java.io.StringReader;
+import java.util.List;
 import java.util.Properties;
 import static org.junit.Assert.*;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -35,6 +42,9 @@ public class ExportBatchToFileTaskTest {
     private static final String EMPTY = "";
     private static final String TXT_EXT = ".txt";
     
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    
     /**
      * Test of getFileName method, of class ExportBatchToFileTask.
      */
@@ -133,4 +143,240 @@ public class ExportBatchToFileTaskTest {
         assertFalse(file.exists());
     }
 
+    @Test
+    public void testWriteToFile_processModule() throws Exception {
+        ResultSequence seq = mock(ResultSequence.class);
+        ResultItem resultItem = mock(ResultItem.class);
+        XdmItem xdmItem = mock(XdmItem.class);
+        when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+        when(seq.next()).thenReturn(resultItem);
+        when(resultItem.getItem()).thenReturn(xdmItem);
+        when(xdmItem.asReader()).thenReturn(new StringReader("foo"));
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "testWriteToFileProcessModule.txt");
+        ExportBatchToFileTask instance = new ExportBatchToFileTask();
+        instance.properties = props;
+        instance.exportDir = tempFolder.newFolder().toString();
+        instance.setModuleType(Options.PROCESS_MODULE);
+        instance.writeToFile(seq);
+        ExportFileWriter.closeAll();
+        File file = new File(instance.exportDir, instance.getPartFileName());
+        assertEquals("foo\n", TestUtils.readFile(file));
+    }
+
+    @Test
+    public void testWriteToFile_partPerThread() throws Exception {
+        ResultSequence seq = mock(ResultSequence.class);
+        ResultItem resultItem = mock(ResultItem.class);
+        XdmItem xdmItem = mock(XdmItem.class);
+        when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+        when(seq.next()).thenReturn(resultItem);
+        when(resultItem.getItem()).thenReturn(xdmItem);
+        when(xdmItem.asReader()).thenReturn(new StringReader("foo"));
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "testWriteToFilePartPerThread.txt");
+        props.setProperty(Options.EXPORT_FILE_PART_PER_THREAD, Boolean.TRUE.toString());
+        ExportBatchToFileTask instance = new ExportBatchToFileTask();
+        instance.properties = props;
+        instance.exportDir = tempFolder.newFolder().toString();
+        instance.setModuleType(Options.PROCESS_MODULE);
+        instance.writeToFile(seq);
+        assertFalse(new File(instance.exportDir, instance.getPartFileName()).exists());
+        List<File> threadPartFiles = instance.getThreadPartFiles();
+        assertEquals(1, threadPartFiles.size());
+        assertEquals(new File(instance.exportDir, instance.getThreadPartFileName()), threadPartFiles.get(0));
+        assertEquals("foo\n", TestUtils.readFile(threadPartFiles.get(0)));
+    }
+
+    @Test
+    public void testCall_ordered() throws Exception {
+        File exportDir = tempFolder.newFolder();
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "testCallOrdered.txt");
+        props.setProperty(Options.EXPORT_FILE_ORDERED, Boolean.TRUE.toString());
+        for (int sequence : new int[]{2, 1, 0}) {
+            ResultSequence seq = mock(ResultSequence.class);
+            ResultItem resultItem = mock(ResultItem.class);
+            XdmItem xdmItem = mock(XdmItem.class);
+            when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+            when(seq.next()).thenReturn(resultItem);
+            when(resultItem.getItem()).thenReturn(xdmItem);
+            when(xdmItem.asReader()).thenReturn(new StringReader(String.valueOf(sequence)));
+            ExportBatchToFileTask instance = new ExportBatchToFileTask();
+            instance.properties = props;
+            instance.exportDir = exportDir.toString();
+            instance.setModuleType(Options.PROCESS_MODULE);
+            instance.setSequence(sequence);
+            if (sequence == 1) {
+                // nothing to write, but the batches after it must still be released
+                instance.call();
+            } else {
+                instance.writeToFile(seq);
+                instance.call();
+            }
+        }
+        ExportFileWriter.closeAll();
+        assertEquals("0\n2\n", TestUtils.readFile(new File(exportDir, "testCallOrdered.txt")));
+    }
+
+    @Test
+    public void testWriteToFile_distinct() throws Exception {
+        File exportDir = tempFolder.newFolder();
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "testWriteToFileDistinct.txt");
+        props.setProperty(Options.EXPORT_FILE_SORT, "distinct");
+        for (String value : new String[]{"b", "a", "b"}) {
+            ResultSequence seq = mock(ResultSequence.class);
+            ResultItem resultItem = mock(ResultItem.class);
+            XdmItem xdmItem = mock(XdmItem.class);
+            when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+            when(seq.next()).thenReturn(resultItem);
+            when(resultItem.getItem()).thenReturn(xdmItem);
+            when(xdmItem.asReader()).thenReturn(new StringReader(value));
+            ExportBatchToFileTask instance = new ExportBatchToFileTask();
+            instance.properties = props;
+            instance.exportDir = exportDir.toString();
+            instance.setModuleType(Options.PROCESS_MODULE);
+            instance.writeToFile(seq);
+        }
+        ExportFileWriter.closeAll();
+        DistinctFilter.closeAll();
+        String separator = System.getProperty("line.separator");
+        assertEquals("b" + separator + "a" + separator, TestUtils.readFile(new File(exportDir, "testWriteToFileDistinct.txt")));
+    }
+
+    @Test
+    public void testWriteToFile_sortLimit() throws Exception {
+        File exportDir = tempFolder.newFolder();
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "testWriteToFileSortLimit.txt");
+        props.setProperty(Options.EXPORT_FILE_SORT, "descending");
+        props.setProperty(Options.EXPORT_FILE_SORT_LIMIT, "2");
+        for (String value : new String[]{"b", "d", "a", "c"}) {
+            ResultSequence seq = mock(ResultSequence.class);
+            ResultItem resultItem = mock(ResultItem.class);
+            XdmItem xdmItem = mock(XdmItem.class);
+            when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+            when(seq.next()).thenReturn(resultItem);
+            when(resultItem.getItem()).thenReturn(xdmItem);
+            when(xdmItem.asReader()).thenReturn(new StringReader(value));
+            ExportBatchToFileTask instance = new ExportBatchToFileTask();
+            instance.properties = props;
+            instance.exportDir = exportDir.toString();
+            instance.setModuleType(Options.PROCESS_MODULE);
+            instance.writeToFile(seq);
+        }
+        File partFile = new File(exportDir, "testWriteToFileSortLimit.txt");
+        assertFalse(partFile.exists());
+        TopLinesCollector.closeAll();
+        String separator = System.getProperty("line.separator");
+        assertEquals("d" + separator + "c" + separator, TestUtils.readFile(partFile));
+    }
+
+    @Test
+    public void testWriteToFile_partitions() throws Exception {
+        File exportDir = tempFolder.newFolder();
+        TestUtils.writeFile(new File(exportDir, "partitions.csv"), "letter\n");
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "partitions.csv");
+        props.setProperty(Options.EXPORT_FILE_PARTITIONS, "3");
+        props.setProperty(Options.EXPORT_FILE_PARTITION_KEY, "^(\\w+),");
+        props.setProperty(Options.EXPORT_FILE_SORT, "distinct");
+        for (String value : new String[]{"a,1", "b,2", "a,1", "c,3", "a,4"}) {
+            ResultSequence seq = mock(ResultSequence.class);
+            ResultItem resultItem = mock(ResultItem.class);
+            XdmItem xdmItem = mock(XdmItem.class);
+            when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+            when(seq.next()).thenReturn(resultItem);
+            when(resultItem.getItem()).thenReturn(xdmItem);
+            when(xdmItem.asReader()).thenReturn(new StringReader(value));
+            ExportBatchToFileTask instance = new ExportBatchToFileTask();
+            instance.properties = props;
+            instance.exportDir = exportDir.toString();
+            instance.setModuleType(Options.PROCESS_MODULE);
+            instance.writeToFile(seq);
+        }
+        PartitionedFileWriter.closeAll();
+        DistinctFilter.closeAll();
+        assertEquals("letter\n", TestUtils.readFile(new File(exportDir, "partitions.csv")));
+
+        String separator = System.getProperty("line.separator");
+        HashPartitioner partitioner = new HashPartitioner("^(\\w+),");
+        StringBuilder[] expected = new StringBuilder[3];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = new StringBuilder("letter\n");
+        }
+        for (String line : new String[]{"a,1", "b,2", "c,3", "a,4"}) {
+            expected[partitioner.getPartition(line, 3)].append(line).append(separator);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].toString(), TestUtils.readFile(new File(exportDir, "partitions-p0000" + i + ".csv")));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetPartitionedFileWriter_sorted() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "partitions.csv");
+        props.setProperty(Options.EXPORT_FILE_PARTITIONS, "3");
+        props.setProperty(Options.EXPORT_FILE_SORT, "ascending");
+        ExportBatchToFileTask instance = new ExportBatchToFileTask();
+        instance.properties = props;
+        instance.setModuleType(Options.PROCESS_MODULE);
+        instance.getPartitionedFileWriter(new File(tempFolder.newFolder(), "partitions.csv"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetPartitioner_wrongType() {
+        ExportBatchToFileTask instance = new ExportBatchToFileTask();
+        instance.properties = new Properties();
+        instance.properties.setProperty(Options.EXPORT_FILE_PARTITIONER, "java.lang.String");
+        instance.getPartitioner();
+    }
+
+    @Test
+    public void testWriteToFile_gzip() throws Exception {
+        File exportDir = tempFolder.newFolder();
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "testWriteToFileGzip.txt.gz");
+        props.setProperty(Options.EXPORT_FILE_COMPRESSION, "gzip");
+        for (String value : new String[]{"a", "b"}) {
+            ResultSequence seq = mock(ResultSequence.class);
+            ResultItem resultItem = mock(ResultItem.class);
+            XdmItem xdmItem = mock(XdmItem.class);
+            when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+            when(seq.next()).thenReturn(resultItem);
+            when(resultItem.getItem()).thenReturn(xdmItem);
+            when(xdmItem.asReader()).thenReturn(new StringReader(value));
+            ExportBatchToFileTask instance = new ExportBatchToFileTask();
+            instance.properties = props;
+            instance.exportDir = exportDir.toString();
+            instance.setModuleType(Options.PROCESS_MODULE);
+            instance.writeToFile(seq);
+        }
+        ExportFileWriter.closeAll();
+        File partFile = new File(exportDir, "testWriteToFileGzip.txt.gz");
+        assertEquals(2, FileUtils.getLineCount(partFile));
+    }
+
+    @Test
+    public void testGetRolledFileName() {
+        ExportBatchToFileTask instance = new ExportBatchToFileTask();
+        instance.properties = new Properties();
+        instance.properties.setProperty(Options.EXPORT_FILE_NAME, "export.csv.gz");
+        assertEquals("export-00002.csv.gz", instance.getRolledFileName(2));
+        instance.properties.setProperty(Options.EXPORT_FILE_NAME, "/tmp/v1.0/export");
+        assertEquals("/tmp/v1.0/export-00012", instance.getRolledFileName(12));
+        instance.properties.setProperty(Options.EXPORT_FILE_NAME, "100%.txt");
+        assertEquals("100%-00001.txt", instance.getRolledFileName(1));
+    }
+
+    @Test
+    public void testGetPartitionFileName() {
+        ExportBatchToFileTask instance = new ExportBatchToFileTask();
+        instance.properties = new Properties();
+        instance.properties.setProperty(Options.EXPORT_FILE_NAME, "export.csv.gz");
+        assertEquals("export-p00002.csv.gz", instance.getPartitionFileName(2));
+    }
+
 }
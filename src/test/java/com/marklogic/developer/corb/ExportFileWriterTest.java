@@ -0,0 +1,182 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ExportFileWriterTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws IOException {
+        ExportFileWriter.closeAll();
+    }
+
+    private static ByteBuffer bytes(String value) throws IOException {
+        return ByteBuffer.wrap(value.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        File file = tempFolder.newFile();
+        ExportFileWriter instance = new ExportFileWriter(file, 2);
+        for (int i = 0; i < 10; i++) {
+            instance.write(bytes(i + "\n"));
+        }
+        instance.close();
+        assertEquals("0\n1\n2\n3\n4\n5\n6\n7\n8\n9\n", TestUtils.readFile(file));
+    }
+
+    @Test(timeout = 10000)
+    public void testWrite_largerThanCapacity() throws IOException {
+        File file = tempFolder.newFile();
+        ExportFileWriter instance = new ExportFileWriter(file, 4);
+        for (int i = 0; i < 3; i++) {
+            instance.write(bytes("0123456789\n"));
+        }
+        instance.close();
+        assertEquals(33, TestUtils.readFile(file).length());
+    }
+
+    @Test
+    public void testWrite_appends() throws IOException {
+        File file = tempFolder.newFile();
+        ExportFileWriter instance = new ExportFileWriter(file, 10);
+        instance.write(bytes("a"));
+        instance.close();
+        instance = new ExportFileWriter(file, 10);
+        instance.write(bytes("b"));
+        instance.close();
+        assertEquals("ab", TestUtils.readFile(file));
+    }
+
+    @Test
+    public void testWrite_listener() throws IOException {
+        File file = tempFolder.newFile();
+        TestUtils.writeFile(file, "header\n");
+        final List<Long> lengths = new ArrayList<Long>();
+        ExportFileWriter.WriteListener listener = new ExportFileWriter.WriteListener() {
+            @Override
+            public void written(File written, long length) {
+                lengths.add(length);
+            }
+        };
+        ExportFileWriter instance = new ExportFileWriter(file, 10);
+        instance.write(bytes("a\n"), listener);
+        instance.write(bytes("bc\n"));
+        instance.write(bytes(""), listener);
+        instance.write(bytes("d\n"), listener);
+        instance.close();
+        assertEquals("header\na\nbc\nd\n", TestUtils.readFile(file));
+        assertEquals(3, lengths.size());
+        assertEquals(9L, lengths.get(0).longValue());
+        assertEquals(12L, lengths.get(1).longValue());
+        assertEquals(14L, lengths.get(2).longValue());
+    }
+
+    @Test
+    public void testWrite_rollingLines() throws IOException {
+        File dir = tempFolder.newFolder();
+        File file = new File(dir, "export.csv");
+        TestUtils.writeFile(file, "header\n");
+        ExportFileWriter instance = new ExportFileWriter(file, 10, 0, 3, "export-%05d.csv");
+        instance.write(bytes("1\n2\n"));
+        instance.write(bytes("3\n"));
+        instance.write(bytes("4\n5\n"));
+        instance.write(bytes("6\n7\n8\n9\n"));
+        instance.close();
+        assertEquals(3, instance.getFileCount());
+        assertEquals("header\n1\n2\n3\n", TestUtils.readFile(file));
+        assertEquals("header\n4\n5\n", TestUtils.readFile(new File(dir, "export-00002.csv")));
+        // a batch is not split, even if it is over the limit by itself
+        assertEquals("header\n6\n7\n8\n9\n", TestUtils.readFile(new File(dir, "export-00003.csv")));
+    }
+
+    @Test
+    public void testWrite_rollingBytes() throws IOException {
+        File dir = tempFolder.newFolder();
+        File file = new File(dir, "export");
+        ExportFileWriter instance = new ExportFileWriter(file, 10, 4, 0, "export-%05d");
+        for (int i = 0; i < 5; i++) {
+            instance.write(bytes(i + "\n"));
+        }
+        instance.close();
+        assertEquals(3, instance.getFileCount());
+        assertEquals("0\n1\n", TestUtils.readFile(file));
+        assertEquals("2\n3\n", TestUtils.readFile(new File(dir, "export-00002")));
+        assertEquals("4\n", TestUtils.readFile(new File(dir, "export-00003")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_rollingWithoutPattern() throws IOException {
+        new ExportFileWriter(tempFolder.newFile(), 10, 1, 0, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrite_afterClose() throws IOException {
+        ExportFileWriter instance = new ExportFileWriter(tempFolder.newFile(), 10);
+        instance.close();
+        instance.write(bytes("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_invalidCapacity() throws IOException {
+        new ExportFileWriter(tempFolder.newFile(), 0);
+    }
+
+    @Test
+    public void testGetInstance_concurrentWriters() throws Exception {
+        final File file = tempFolder.newFile();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int i = 0; i < 500; i++) {
+                        ExportFileWriter.getInstance(file).write(bytes("line\n"));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertSame(ExportFileWriter.getInstance(file), ExportFileWriter.getInstance(file));
+        ExportFileWriter.closeAll();
+        assertEquals(2000, TestUtils.readFile(file).split("\n").length);
+    }
+}
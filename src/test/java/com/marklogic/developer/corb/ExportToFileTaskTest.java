@@ -22,14 +22,29 @@ import static com.marklogic.developer.corb.AbstractTask.TRUE;
 import static com.marklogic.developer.corb.TestUtils.clearSystemProperties;
 import com.marklogic.xcc.ResultItem;
 import com.marklogic.xcc.ResultSequence;
+import com.marklogic.developer.corb.util.IOUtils;
+import com.marklogic.xcc.types.XdmBinary;
 import com.marklogic.xcc.types.XdmItem;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.ZipFile;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.junit.Rule;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -105,7 +120,7 @@ public class ExportToFileTaskTest {
         when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
         when(seq.next()).thenReturn(resultItem);
         when(resultItem.getItem()).thenReturn(xdmItem);
-        when(xdmItem.asString()).thenReturn("testWriteToFile");
+        when(xdmItem.asReader()).thenReturn(new StringReader("testWriteToFile \u00e9t\u00e9"));
         
         ExportToFileTask instance = new ExportToFileTask(); 
         instance.exportDir = tempFolder.newFolder().toString();
@@ -114,8 +129,98 @@ public class ExportToFileTaskTest {
         instance.writeToFile(seq);
         File file = new File(instance.exportDir, instance.getFileName());
         assertTrue(file.exists());
+        assertArrayEquals(("testWriteToFile \u00e9t\u00e9\n").getBytes("UTF-8"), TestUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testWriteToFile_binary() throws Exception {
+        ResultSequence seq = mock(ResultSequence.class);
+        ResultItem resultItem = mock(ResultItem.class);
+        XdmBinary xdmItem = mock(XdmBinary.class);
+        byte[] value = new byte[IOUtils.BUFFER_SIZE * 3 + 7];
+        new Random(1).nextBytes(value);
+        when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+        when(seq.next()).thenReturn(resultItem);
+        when(resultItem.getItem()).thenReturn(xdmItem);
+        when(xdmItem.asInputStream()).thenReturn(new ByteArrayInputStream(value));
+
+        ExportToFileTask instance = new ExportToFileTask();
+        instance.exportDir = tempFolder.newFolder().toString();
+        instance.setInputURI("/testFile.bin");
+        instance.writeToFile(seq);
+        byte[] written = TestUtils.readFileToByteArray(new File(instance.exportDir, instance.getFileName()));
+        assertEquals(value.length + 1, written.length);
+        assertArrayEquals(value, Arrays.copyOf(written, value.length));
     }
     
+    @Test
+    public void testWriteItems_chunks() throws Exception {
+        ResultSequence seq = mock(ResultSequence.class);
+        ResultItem resultItem = mock(ResultItem.class);
+        XdmItem xdmItem = mock(XdmItem.class);
+        when(seq.hasNext()).thenReturn(Boolean.TRUE, Boolean.TRUE, Boolean.TRUE, Boolean.FALSE);
+        when(seq.next()).thenReturn(resultItem);
+        when(resultItem.getItem()).thenReturn(xdmItem);
+        when(xdmItem.asReader()).thenReturn(new StringReader("one"), new StringReader("two"), new StringReader("three"));
+        ExportFileWriter writer = mock(ExportFileWriter.class);
+        final List<String> chunks = new ArrayList<String>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ByteBuffer buffer = (ByteBuffer) invocation.getArguments()[0];
+                chunks.add(new String(buffer.array(), buffer.position(), buffer.remaining(), "UTF-8"));
+                return null;
+            }
+        }).when(writer).write(any(ByteBuffer.class));
+
+        ExportToFileTask instance = new ExportToFileTask();
+        instance.writeItems(seq, writer, 8);
+        // chunks end with whole items
+        assertEquals(Arrays.asList("one\ntwo\n", "three\n"), chunks);
+    }
+
+    @Test
+    public void testWriteToFile_archive() throws Exception {
+        File exportDir = tempFolder.newFolder();
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_ARCHIVE, "zip");
+        for (String uri : new String[]{"/a/one.xml", "/b/two.xml"}) {
+            ResultSequence seq = mock(ResultSequence.class);
+            ResultItem resultItem = mock(ResultItem.class);
+            XdmItem xdmItem = mock(XdmItem.class);
+            when(seq.hasNext()).thenReturn(Boolean.TRUE).thenReturn(Boolean.TRUE).thenReturn(Boolean.FALSE);
+            when(seq.next()).thenReturn(resultItem);
+            when(resultItem.getItem()).thenReturn(xdmItem);
+            when(xdmItem.asReader()).thenReturn(new StringReader(uri));
+            ExportToFileTask instance = new ExportToFileTask();
+            instance.properties = props;
+            instance.exportDir = exportDir.toString();
+            instance.setInputURI(uri);
+            instance.writeToFile(seq);
+        }
+        ArchiveWriter.closeAll();
+        assertArrayEquals(new String[]{"export-00001.zip"}, exportDir.list());
+        ZipFile zip = new ZipFile(new File(exportDir, "export-00001.zip"));
+        try {
+            assertEquals(2, zip.size());
+            assertNotNull(zip.getEntry("a/one.xml"));
+            assertNotNull(zip.getEntry("b/two.xml"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testMakeParentDirs() throws Exception {
+        File dir = new File(tempFolder.getRoot(), "a/b");
+        ExportToFileTask.makeParentDirs(new File(dir, "one.xml"));
+        assertTrue(dir.isDirectory());
+        // cached, so not recreated
+        assertTrue(dir.delete());
+        ExportToFileTask.makeParentDirs(new File(dir, "two.xml"));
+        assertFalse(dir.exists());
+    }
+
     @Test
     public void testWriteToFile_noResults() throws Exception {
         ResultSequence seq = mock(ResultSequence.class);
@@ -159,7 +264,7 @@ public class ExportToFileTaskTest {
         when(seq.hasNext()).thenReturn(true).thenReturn(true).thenReturn(false);
         when(seq.next()).thenReturn(resultItem);
         when(resultItem.getItem()).thenReturn(item);
-        when(item.asString()).thenReturn("item");
+        when(item.asReader()).thenReturn(new StringReader("item"), new StringReader("item"));
         ExportToFileTask instance = new ExportToFileTask();
         String[] uris = {"foo.xqy"};
         instance.inputUris = uris;
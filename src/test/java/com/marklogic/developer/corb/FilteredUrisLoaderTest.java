@@ -0,0 +1,164 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class FilteredUrisLoaderTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private FilteredUrisLoader getLoader(Properties properties) throws IOException {
+        return getLoader(properties, new FileUrisLoader());
+    }
+
+    private FilteredUrisLoader getLoader(Properties properties, UrisLoader loader) throws IOException {
+        File urisFile = tempFolder.newFile();
+        TestUtils.writeFile(urisFile, "/d.xml\n/a.xml\n\n/c.xml\n/a.xml\n/b.xml\n");
+        TransformOptions options = new TransformOptions();
+        options.setUrisFile(urisFile.getAbsolutePath());
+        FilteredUrisLoader instance = new FilteredUrisLoader(loader);
+        instance.setOptions(options);
+        instance.setProperties(properties);
+        return instance;
+    }
+
+    private static List<String> load(FilteredUrisLoader instance) throws CorbException {
+        List<String> uris = new ArrayList<String>();
+        try {
+            instance.open();
+            while (instance.hasNext()) {
+                uris.add(instance.next());
+            }
+            assertNull(instance.next());
+        } finally {
+            instance.close();
+        }
+        return uris;
+    }
+
+    private File newUrisFile(String content) throws IOException {
+        File file = tempFolder.newFile();
+        TestUtils.writeFile(file, content);
+        return file;
+    }
+
+    @Test
+    public void testExclude() throws IOException, CorbException {
+        Properties properties = new Properties();
+        properties.setProperty(Options.EXCLUDE_URIS_FILE, newUrisFile("/a.xml\n /c.xml \n/e.xml\n").getAbsolutePath());
+        FilteredUrisLoader instance = getLoader(properties);
+        instance.open();
+        assertEquals(2, instance.getTotalCount());
+        instance.close();
+        instance = getLoader(properties);
+        assertEquals(Arrays.asList("/d.xml", "/b.xml"), load(instance));
+        assertEquals(3, instance.getFilteredCount());
+    }
+
+    @Test
+    public void testInclude() throws IOException, CorbException {
+        Properties properties = new Properties();
+        properties.setProperty(Options.INCLUDE_URIS_FILE, newUrisFile("/a.xml\n/c.xml\n/e.xml\n").getAbsolutePath());
+        properties.setProperty(Options.URIS_DEDUP, "true");
+        assertEquals(Arrays.asList("/a.xml", "/c.xml"), load(getLoader(properties)));
+    }
+
+    @Test
+    public void testDedup() throws IOException, CorbException {
+        Properties properties = new Properties();
+        properties.setProperty(Options.URIS_DEDUP, "true");
+        assertEquals(Arrays.asList("/d.xml", "/a.xml", "/c.xml", "/b.xml"), load(getLoader(properties)));
+    }
+
+    @Test
+    public void testExclude_replacePatternAndGzip() throws IOException, CorbException {
+        File excludeFile = tempFolder.newFile("exclude.gz");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(excludeFile));
+        try {
+            out.write("/d.xml\n/b.xml\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Properties properties = new Properties();
+        properties.setProperty(Options.EXCLUDE_URIS_FILE, excludeFile.getAbsolutePath());
+        properties.setProperty(Options.URIS_REPLACE_PATTERN, "\\.xml,");
+        assertEquals(Arrays.asList("/a", "/c", "/a"), load(getLoader(properties)));
+    }
+
+    @Test
+    public void testSorted() throws IOException, CorbException {
+        Properties properties = new Properties();
+        properties.setProperty(Options.EXCLUDE_URIS_FILE, newUrisFile("/c.xml\n/e.xml\n/c.xml\n").getAbsolutePath());
+        properties.setProperty(Options.INCLUDE_URIS_FILE, newUrisFile("/a.xml\n/c.xml\n/d.xml\n").getAbsolutePath());
+        properties.setProperty(Options.URIS_FILTER_MAX_IN_MEMORY_SIZE, "1");
+        FilteredUrisLoader instance = getLoader(properties);
+        assertEquals(Arrays.asList("/a.xml", "/a.xml", "/d.xml"), load(instance));
+        assertEquals(3, instance.getTotalCount());
+        assertEquals(2, instance.getFilteredCount());
+    }
+
+    @Test
+    public void testSorted_dedup() throws IOException, CorbException {
+        Properties properties = new Properties();
+        properties.setProperty(Options.EXCLUDE_URIS_FILE, newUrisFile("/b.xml\n").getAbsolutePath());
+        properties.setProperty(Options.URIS_DEDUP, "true");
+        properties.setProperty(Options.URIS_FILTER_MAX_IN_MEMORY_SIZE, "2");
+        FilteredUrisLoader instance = getLoader(properties);
+        assertEquals(Arrays.asList("/a.xml", "/c.xml", "/d.xml"), load(instance));
+        assertEquals(2, instance.getFilteredCount());
+    }
+
+    @Test
+    public void testDedup_spillsPastMaxInMemorySize() throws IOException, CorbException {
+        Properties properties = new Properties();
+        properties.setProperty(Options.EXCLUDE_URIS_FILE, newUrisFile("/c.xml\n").getAbsolutePath());
+        properties.setProperty(Options.URIS_DEDUP, "true");
+        properties.setProperty(Options.URIS_FILTER_MAX_IN_MEMORY_SIZE, "2");
+        FilteredUrisLoader instance = getLoader(properties, new FileUrisLoader() {
+            @Override
+            public int getTotalCount() {
+                return 1;
+            }
+        });
+        assertEquals(Arrays.asList("/a.xml", "/b.xml", "/d.xml"), load(instance));
+        assertEquals(3, instance.getTotalCount());
+        assertEquals(2, instance.getFilteredCount());
+    }
+
+    @Test(expected = CorbException.class)
+    public void testOpen_excludeFileNotFound() throws IOException, CorbException {
+        Properties properties = new Properties();
+        properties.setProperty(Options.EXCLUDE_URIS_FILE, new File(tempFolder.getRoot(), "missing").getAbsolutePath());
+        load(getLoader(properties));
+    }
+}
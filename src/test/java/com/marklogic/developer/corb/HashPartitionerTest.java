@@ -0,0 +1,63 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HashPartitionerTest {
+
+    @Test
+    public void testGetKey() {
+        HashPartitioner instance = new HashPartitioner("^([^,]+),");
+        assertEquals("a", instance.getKey("a,1"));
+        assertNull(instance.getKey("a"));
+        assertEquals("a,", new HashPartitioner("^[^,]+,").getKey("a,1"));
+        assertEquals("a,1", new HashPartitioner().getKey("a,1"));
+    }
+
+    @Test
+    public void testGetPartition_sameKey() {
+        HashPartitioner instance = new HashPartitioner("^([^,]+),");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(instance.getPartition("key" + i + ",1", 7), instance.getPartition("key" + i + ",2", 7));
+        }
+    }
+
+    @Test
+    public void testGetPartition_range() {
+        HashPartitioner instance = new HashPartitioner();
+        int[] counts = new int[8];
+        for (int i = 0; i < 8000; i++) {
+            int partition = instance.getPartition("key" + i, counts.length);
+            assertTrue(partition >= 0 && partition < counts.length);
+            counts[partition]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 500);
+        }
+    }
+
+    @Test
+    public void testGetPartition_noMatch() {
+        HashPartitioner instance = new HashPartitioner("^([^,]+),");
+        assertEquals(0, instance.getPartition("nokey", 5));
+        assertEquals(0, instance.getPartition("a,1", 1));
+    }
+}
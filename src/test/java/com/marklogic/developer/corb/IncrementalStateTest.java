@@ -0,0 +1,94 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IncrementalStateTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testCaptureAndSave_timestamp() throws IOException, RequestException {
+        File file = new File(tempFolder.getRoot(), "job.state");
+        Session session = mock(Session.class);
+        when(session.getCurrentServerPointInTime()).thenReturn(new BigInteger("14812345678900"), new BigInteger("14812345679999"));
+
+        IncrementalState instance = new IncrementalState(file, IncrementalState.TIMESTAMP);
+        assertNull(instance.getMark());
+        assertEquals("14812345678900", instance.capture(session));
+        assertFalse(file.exists());
+        instance.save();
+
+        instance = new IncrementalState(file, IncrementalState.TIMESTAMP);
+        assertEquals("14812345678900", instance.getMark());
+        instance.capture(session);
+        assertEquals("14812345678900", instance.getMark());
+        instance.save();
+        assertEquals("14812345679999", new IncrementalState(file, IncrementalState.TIMESTAMP).getMark());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testCapture_dateTime() throws IOException, RequestException {
+        File file = new File(tempFolder.getRoot(), "job.state");
+        Session session = mock(Session.class);
+        AdhocQuery query = mock(AdhocQuery.class);
+        ResultSequence result = mock(ResultSequence.class);
+        when(session.newAdhocQuery(IncrementalState.CURRENT_DATE_TIME_QUERY)).thenReturn(query);
+        when(session.submitRequest(query)).thenReturn(result);
+        when(result.asString()).thenReturn("2016-11-30T01:02:03.456Z");
+
+        IncrementalState instance = new IncrementalState(file, IncrementalState.DATE_TIME);
+        assertEquals("2016-11-30T01:02:03.456Z", instance.capture(session));
+        verify(result).close();
+        instance.save();
+        assertEquals("2016-11-30T01:02:03.456Z", new IncrementalState(file, IncrementalState.DATE_TIME).getMark());
+        // a timestamp can not be compared with a dateTime
+        assertNull(new IncrementalState(file, IncrementalState.TIMESTAMP).getMark());
+    }
+
+    @Test
+    public void testSave_notCaptured() throws IOException {
+        File file = new File(tempFolder.getRoot(), "job.state");
+        IncrementalState instance = new IncrementalState(file, IncrementalState.TIMESTAMP);
+        instance.save();
+        assertNull(instance.getPendingMark());
+        assertFalse(file.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncrementalState_unsupportedMark() {
+        new IncrementalState(new File(tempFolder.getRoot(), "job.state"), "lastModified");
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.marklogic.xcc.ResultSequence;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyAffinitySchedulerTest {
+
+    private static final int THREADS = 4;
+    private PausableThreadPoolExecutor pool;
+    private CompletionService<String[]> completionService;
+    private final Map<String, AtomicInteger> running = new HashMap<String, AtomicInteger>();
+    private final AtomicInteger maxRunningPerKey = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final AtomicInteger totalRunning = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        pool = new PausableThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(2), new Manager.CallerBlocksPolicy());
+        completionService = new ExecutorCompletionService<String[]>(pool);
+        for (String key : new String[]{"a", "b", "c", "d"}) {
+            running.put(key, new AtomicInteger());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testSubmit_neverRunsConflictingTasksConcurrently() throws Exception {
+        KeyAffinityScheduler instance = new KeyAffinityScheduler(pool, completionService, new RegexConflictKeyResolver("^/([a-z])/"), 3);
+        String[] keys = {"a", "a", "b", "a", "c", "b", "d", "a", "c", "a", "b", "d"};
+        for (int i = 0; i < keys.length; i++) {
+            String uri = "/" + keys[i] + "/" + i + ".xml";
+            instance.submit(new SleepingTask(keys[i], uri), uri);
+        }
+        instance.drain();
+        assertEquals(0, instance.getPendingCount());
+        for (int i = 0; i < keys.length; i++) {
+            assertNotNull(completionService.take().get());
+        }
+        assertEquals(1, maxRunningPerKey.get());
+        assertTrue(maxRunning.get() > 1);
+    }
+
+    @Test
+    public void testSubmit_noConflictKey() throws Exception {
+        KeyAffinityScheduler instance = new KeyAffinityScheduler(pool, completionService, new RegexConflictKeyResolver("^/([a-z])/"), 1);
+        instance.submit(new SleepingTask(null, "/1.xml"), "/1.xml");
+        instance.submit(new SleepingTask(null, "/2.xml"), "/2.xml");
+        assertEquals(0, instance.getPendingCount());
+        completionService.take();
+        completionService.take();
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        KeyAffinityScheduler instance = new KeyAffinityScheduler(pool, completionService, new RegexConflictKeyResolver("^/([a-z])/"), 10);
+        pool.pause();
+        instance.submit(new SleepingTask("a", "/a/1.xml"), "/a/1.xml");
+        instance.submit(new SleepingTask("a", "/a/2.xml"), "/a/2.xml");
+        assertEquals(1, instance.getPendingCount());
+        instance.shutdown();
+        assertEquals(0, instance.getPendingCount());
+        instance.drain();
+        pool.resume();
+    }
+
+    @Test(timeout = 10000)
+    public void testDispatchPending_saturatedQueue() throws Exception {
+        // reports free space that the populating thread has already taken
+        ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(1) {
+            @Override
+            public int remainingCapacity() {
+                return 1;
+            }
+        };
+        PausableThreadPoolExecutor saturatedPool = new PausableThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, queue, new Manager.CallerBlocksPolicy());
+        try {
+            CompletionService<String[]> saturatedService = new ExecutorCompletionService<String[]>(saturatedPool);
+            KeyAffinityScheduler instance = new KeyAffinityScheduler(saturatedPool, saturatedService, new RegexConflictKeyResolver("^/([a-z])/"), 10);
+            final CountDownLatch release = new CountDownLatch(1);
+            instance.submit(new Callable<String[]>() {
+                @Override
+                public String[] call() throws Exception {
+                    release.await();
+                    return new String[]{"/a/1.xml"};
+                }
+            }, "/a/1.xml");
+            // fill the queue while the only worker is busy
+            saturatedService.submit(new SleepingTask(null, "/1.xml"));
+            instance.submit(new SleepingTask("a", "/a/2.xml"), "/a/2.xml");
+            assertEquals(1, instance.getPendingCount());
+
+            // the worker must not block on the full queue when it dispatches /a/2.xml
+            release.countDown();
+            assertNotNull(saturatedService.take().get());
+            assertNotNull(saturatedService.take().get());
+            instance.drain();
+            assertEquals(0, instance.getPendingCount());
+            assertArrayEquals(new String[]{"/a/2.xml"}, saturatedService.take().get());
+        } finally {
+            saturatedPool.shutdownNow();
+        }
+    }
+
+    private class SleepingTask extends AbstractTask {
+
+        private final String key;
+        private final String uri;
+
+        SleepingTask(String key, String uri) {
+            this.key = key;
+            this.uri = uri;
+        }
+
+        @Override
+        public String[] call() throws Exception {
+            int total = totalRunning.incrementAndGet();
+            updateMax(maxRunning, total);
+            if (key != null) {
+                updateMax(maxRunningPerKey, running.get(key).incrementAndGet());
+            }
+            try {
+                Thread.sleep(20);
+            } finally {
+                if (key != null) {
+                    running.get(key).decrementAndGet();
+                }
+                totalRunning.decrementAndGet();
+            }
+            return new String[]{uri};
+        }
+
+        @Override
+        protected String processResult(ResultSequence seq) throws CorbException {
+            return null;
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testGetPercentile() {
+        LatencyTracker instance = new LatencyTracker(100, 10);
+        for (int i = 1; i <= 100; i++) {
+            instance.record(i);
+        }
+        assertEquals(100, instance.getSampleCount());
+        assertEquals(50, instance.getPercentile(50));
+        assertEquals(95, instance.getPercentile(95));
+        assertEquals(100, instance.getPercentile(100));
+    }
+
+    @Test
+    public void testGetPercentile_notEnoughSamples() {
+        LatencyTracker instance = new LatencyTracker(100, 10);
+        instance.record(5);
+        assertEquals(-1, instance.getPercentile(50));
+    }
+
+    @Test
+    public void testRecord_slidingWindow() {
+        LatencyTracker instance = new LatencyTracker(10, 1);
+        for (int i = 0; i < 10; i++) {
+            instance.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            instance.record(1);
+        }
+        assertEquals(10, instance.getSampleCount());
+        assertEquals(1, instance.getPercentile(100));
+    }
+
+    @Test
+    public void testClear() {
+        LatencyTracker instance = new LatencyTracker(10, 1);
+        instance.record(1);
+        instance.clear();
+        assertEquals(0, instance.getSampleCount());
+        assertEquals(-1, instance.getPercentile(90));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetPercentile_invalid() {
+        new LatencyTracker().getPercentile(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_invalidWindow() {
+        new LatencyTracker(0, 0);
+    }
+}
@@ -39,6 +39,7 @@ import com.marklogic.xcc.exceptions.XccConfigException;
 import com.marklogic.xcc.types.XdmItem;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.math.BigInteger;
 import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.util.List;
@@ -345,6 +346,253 @@ public class ManagerTest {
         assertEquals(10, instance.options.getDiskQueueMaxInMemorySize());
     }
 
+    @Test
+    public void testGetBatchSize_endgameBatchSplit() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.BATCH_SIZE, "10");
+        props.setProperty(Options.ENDGAME_BATCH_SPLIT, "true");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        assertTrue(instance.options.shouldUseEndgameBatchSplit());
+        instance.options.setThreadCount(2);
+        assertEquals(10, instance.getBatchSize(100));
+        assertEquals(10, instance.getBatchSize(20));
+        assertEquals(8, instance.getBatchSize(15));
+        assertEquals(2, instance.getBatchSize(3));
+        assertEquals(1, instance.getBatchSize(1));
+    }
+
+    @Test
+    public void testInitOptions_conflictKeyRegex() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.CONFLICT_KEY_REGEX, "^/([^/]+)/");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        assertTrue(instance.options.getConflictKeyResolver() instanceof RegexConflictKeyResolver);
+        assertEquals("parent", instance.options.getConflictKeyResolver().getConflictKey("/parent/child.xml"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitOptions_conflictKeyRegexWithTransactionGroupSize() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.CONFLICT_KEY_REGEX, "^/([^/]+)/");
+        props.setProperty(Options.TRANSACTION_GROUP_SIZE, "10");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        fail();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitOptions_conflictKeyResolverInvalidClass() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.CONFLICT_KEY_RESOLVER, "java.lang.String");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        fail();
+    }
+
+    @Test
+    public void testInit_pointInTime() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.POINT_IN_TIME, "true");
+        Manager instance = getMockManagerWithEmptyResults();
+        when(instance.contentSource.newSession().getCurrentServerPointInTime()).thenReturn(new BigInteger("12345"));
+        instance.init(args, props);
+        assertEquals("12345", instance.properties.getProperty(Options.POINT_IN_TIME));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitOptions_resumeWithoutCheckpointFile() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.RESUME, "true");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        fail();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitOptions_checkpointFileWithExportFileSortDistinct() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.CHECKPOINT_FILE, "checkpoint.txt");
+        props.setProperty(Options.EXPORT_FILE_SORT, "distinct");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        fail();
+    }
+
+    @Test
+    public void testInitOptions_checkpointFile() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        File checkpointFile = new File("checkpoint.txt");
+        props.setProperty(Options.CHECKPOINT_FILE, checkpointFile.getAbsolutePath());
+        props.setProperty(Options.CHECKPOINT_INTERVAL, "5");
+        props.setProperty(Options.RESUME, "true");
+        props.setProperty(Options.EXPORT_FILE_SORT, "ascending|distinct");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        assertEquals(checkpointFile.getAbsoluteFile(), instance.getOptions().getCheckpointFile().getAbsoluteFile());
+        assertEquals(5, instance.getOptions().getCheckpointInterval());
+        assertTrue(instance.getOptions().shouldResume());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInitCheckpoint_totalMismatch() throws Exception {
+        File journal = File.createTempFile("job", ".checkpoint");
+        journal.deleteOnExit();
+        Checkpoint checkpoint = new Checkpoint(journal, null);
+        checkpoint.setTotal(10);
+        checkpoint.write();
+
+        Manager instance = new Manager();
+        instance.getOptions().setCheckpointFile(journal);
+        instance.getOptions().setResume(true);
+        instance.initCheckpoint(11);
+        fail();
+    }
+
+    @Test
+    public void testInitCheckpoint_resumeExportFile() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+        args[11] = null;
+        args[12] = null;
+        File exportFile = new File(EXPORT_FILE_DIR, EXPORT_FILE_NAME);
+        File errorFile = new File(EXPORT_FILE_DIR, "errors.txt");
+        File journal = new File(EXPORT_FILE_DIR, "job.checkpoint");
+        TestUtils.writeFile(exportFile, "line1\n");
+        TestUtils.writeFile(errorFile, "error1\n");
+        Checkpoint checkpoint = new Checkpoint(journal, exportFile);
+        checkpoint.setTotal(10);
+        checkpoint.start(60000);
+        checkpoint.complete(0, 4, 0);
+        checkpoint.close();
+        // output written after the checkpoint
+        TestUtils.writeFile(exportFile, "line1\nline2\n");
+
+        Properties props = new Properties();
+        props.setProperty(Options.CHECKPOINT_FILE, journal.getAbsolutePath());
+        props.setProperty(Options.RESUME, "true");
+        props.setProperty(Options.ERROR_FILE_NAME, errorFile.getName());
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        assertTrue(instance.initCheckpoint(10));
+        assertEquals("line1\n", TestUtils.readFile(exportFile));
+        assertEquals("error1\n", TestUtils.readFile(errorFile));
+    }
+
+    @Test
+    public void testInitCheckpoint_resumeWithoutCheckpoint() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+        args[11] = null;
+        args[12] = null;
+        File exportFile = new File(EXPORT_FILE_DIR, EXPORT_FILE_NAME);
+        TestUtils.writeFile(exportFile, "line1\n");
+
+        Properties props = new Properties();
+        props.setProperty(Options.CHECKPOINT_FILE, new File(EXPORT_FILE_DIR, "job.checkpoint").getAbsolutePath());
+        props.setProperty(Options.RESUME, "true");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        assertTrue(exportFile.exists());
+        assertFalse(instance.initCheckpoint(10));
+        assertFalse(exportFile.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitOptions_incrementalMarkInvalid() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.INCREMENTAL_STATE_FILE, "job.state");
+        props.setProperty(Options.INCREMENTAL_MARK, "lastModified");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        fail();
+    }
+
+    @Test
+    public void testIsCompleteRun() {
+        Manager instance = new Manager();
+        assertTrue(instance.isCompleteRun());
+        instance.failedUriCount.set(1);
+        assertFalse(instance.isCompleteRun());
+        instance.failedUriCount.set(0);
+        instance.stopCommand = true;
+        assertFalse(instance.isCompleteRun());
+        instance.stopCommand = false;
+        instance.monitor = new Monitor(null, null, instance);
+        instance.monitor.setTaskCount(10);
+        assertFalse(instance.isCompleteRun());
+        instance.monitor.completed = 10;
+        assertTrue(instance.isCompleteRun());
+        instance.execError = true;
+        assertFalse(instance.isCompleteRun());
+    }
+
+    @Test
+    public void testIsAllCompleted() {
+        Manager instance = new Manager();
+        assertTrue(instance.isAllCompleted());
+        instance.failedUriCount.set(1);
+        assertTrue(instance.isAllCompleted());
+        instance.pendingTasksDropped = true;
+        assertFalse(instance.isAllCompleted());
+        instance.pendingTasksDropped = false;
+        instance.stopCommand = true;
+        assertFalse(instance.isAllCompleted());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInit_pointInTimeInvalid() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.POINT_IN_TIME, "yesterday");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        fail();
+    }
+
+    @Test
+    public void testGetBatchSize_withoutEndgameBatchSplit() throws Exception {
+        clearSystemProperties();
+        String[] args = getDefaultArgs();
+
+        Properties props = new Properties();
+        props.setProperty(Options.BATCH_SIZE, "10");
+        Manager instance = getMockManagerWithEmptyResults();
+        instance.init(args, props);
+        assertFalse(instance.options.shouldUseEndgameBatchSplit());
+        assertEquals(10, instance.getBatchSize(1));
+    }
+
     @Test(expected = NumberFormatException.class)
     public void testInitOptions_setDISK_QUEUE_MAX_IN_MEMORY_SIZE_property_NaN() throws Exception {
         clearSystemProperties();
@@ -813,7 +1061,7 @@ public class ManagerTest {
 
         assertEquals(xccRootValue, instance.options.getXDBC_ROOT());
         List<LogRecord> records = testLogger.getLogRecords();
-        assertEquals(19, records.size());
+        assertEquals(20, records.size());
     }
 
     @Test(expected = NullPointerException.class)
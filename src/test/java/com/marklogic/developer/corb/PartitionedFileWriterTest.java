@@ -0,0 +1,102 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class PartitionedFileWriterTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws IOException {
+        PartitionedFileWriter.closeAll();
+    }
+
+    private static Partitioner firstCharacter() {
+        return new Partitioner() {
+            @Override
+            public int getPartition(String line, int partitions) {
+                return line.isEmpty() ? 0 : (line.charAt(0) - 'a') % partitions;
+            }
+        };
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        File dir = tempFolder.newFolder();
+        File file = new File(dir, "export.csv");
+        TestUtils.writeFile(file, "header\n");
+        PartitionedFileWriter instance = new PartitionedFileWriter(file, "export-p%05d.csv", 2, firstCharacter());
+        instance.write("a1\nb1\r\nc1\n".getBytes("UTF-8"));
+        instance.write("d1\nc2".getBytes("UTF-8"));
+        instance.close();
+        assertEquals("header\na1\nc1\nc2", TestUtils.readFile(new File(dir, "export-p00000.csv")));
+        assertEquals("header\nb1\r\nd1\n", TestUtils.readFile(new File(dir, "export-p00001.csv")));
+        assertEquals("header\n", TestUtils.readFile(file));
+    }
+
+    @Test
+    public void testSplit() throws IOException {
+        PartitionedFileWriter instance = new PartitionedFileWriter(new File(tempFolder.newFolder(), "export.csv"), "export-p%05d.csv", 3, firstCharacter());
+        byte[][] parts = instance.split("a\nb\na\n".getBytes("UTF-8"));
+        assertEquals("a\na\n", new String(parts[0], "UTF-8"));
+        assertEquals("b\n", new String(parts[1], "UTF-8"));
+        assertNull(parts[2]);
+        instance.close();
+        assertTrue(instance.getFile(2).exists());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSplit_outOfRange() throws IOException {
+        PartitionedFileWriter instance = new PartitionedFileWriter(new File(tempFolder.newFolder(), "export.csv"), "export-p%05d.csv", 2, new Partitioner() {
+            @Override
+            public int getPartition(String line, int partitions) {
+                return partitions;
+            }
+        });
+        try {
+            instance.split("a\n".getBytes("UTF-8"));
+        } finally {
+            instance.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrite_closed() throws IOException {
+        PartitionedFileWriter instance = new PartitionedFileWriter(new File(tempFolder.newFolder(), "export.csv"), "export-p%05d.csv", 2, firstCharacter());
+        instance.close();
+        instance.write(0, new byte[]{'a'});
+    }
+
+    @Test
+    public void testGetInstance() throws IOException {
+        File file = new File(tempFolder.newFolder(), "export.csv");
+        PartitionedFileWriter instance = PartitionedFileWriter.getInstance(file, "export-p%05d.csv", 2, firstCharacter());
+        assertSame(instance, PartitionedFileWriter.getInstance(file, "export-p%05d.csv", 2, firstCharacter()));
+        assertEquals(2, instance.getPartitionCount());
+    }
+}
@@ -26,12 +26,19 @@ import static com.marklogic.developer.corb.TestUtils.clearSystemProperties;
 import static com.marklogic.developer.corb.TestUtils.createTempDirectory;
 import com.marklogic.xcc.Request;
 import com.marklogic.xcc.exceptions.RequestPermissionException;
+import com.marklogic.developer.corb.util.IOUtils;
+import com.marklogic.developer.corb.util.ParallelGzipOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 import static org.mockito.Mockito.mock;
 
 /**
@@ -258,6 +265,236 @@ public class PostBatchUpdateFileTaskTest {
         assertEquals(splitAndAppendNewline("BEGIN,letter,a,b,d,z,END"), result);
     }
 
+    @Test
+    public void testCall_concatenateThreadPartFiles() throws Exception {
+        File file = createTempDirectory();
+        File exportFile = new File(file, "export.txt");
+        writeFile(exportFile, "BEGIN\n");
+        writeFile(new File(file, "export.txt" + ExportBatchToFileTask.THREAD_PART_EXT + "1"), Z + D);
+        writeFile(new File(file, "export.txt" + ExportBatchToFileTask.THREAD_PART_EXT + "2"), A);
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_BOTTOM_CONTENT, "END");
+        String result = testRemoveDuplicatesAndSort(exportFile, props);
+        assertEquals(splitAndAppendNewline("BEGIN,z,d,a,END"), result);
+        assertEquals(1, file.list().length);
+    }
+
+    @Test
+    public void testCall_mergeSortedThreadPartFiles() throws Exception {
+        File file = createTempDirectory();
+        File exportFile = new File(file, "export.txt");
+        writeFile(exportFile, "BEGIN\nletter\n");
+        writeFile(new File(file, "export.txt" + ExportBatchToFileTask.THREAD_PART_EXT + "1"), Z + D + B);
+        writeFile(new File(file, "export.txt" + ExportBatchToFileTask.THREAD_PART_EXT + "2"), D + A);
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_HEADER_LINE_COUNT, "2");
+        props.setProperty(Options.EXPORT_FILE_SORT, "ascending|distinct");
+        String result = testRemoveDuplicatesAndSort(exportFile, props);
+        assertEquals(splitAndAppendNewline("BEGIN,letter,a,b,d,z"), result);
+        assertEquals(1, file.list().length);
+    }
+
+    @Test
+    public void testCall_mergeSortedThreadPartFiles_noPartFile() throws Exception {
+        File file = createTempDirectory();
+        File exportFile = new File(file, "export.txt");
+        writeFile(new File(file, "export.txt" + ExportBatchToFileTask.THREAD_PART_EXT + "1"), Z + B);
+        writeFile(new File(file, "export.txt" + ExportBatchToFileTask.THREAD_PART_EXT + "2"), D + A);
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_SORT, "descending");
+        String result = testRemoveDuplicatesAndSort(exportFile, props);
+        assertEquals(splitAndAppendNewline("z,d,b,a"), result);
+    }
+
+    @Test
+    public void testCall_removeDuplicatesAndSort_parallel() throws Exception {
+        File file = createTempDirectory();
+        File exportFile = new File(file, "export.txt");
+        StringBuilder content = new StringBuilder("letter\n");
+        for (int i = 0; i < 1000; i++) {
+            content.append(Z).append(D).append(B).append(A);
+        }
+        writeFile(exportFile, content.toString());
+        File tempDir = createTempDirectory();
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_HEADER_LINE_COUNT, "1");
+        props.setProperty(Options.EXPORT_FILE_SORT, "descending|distinct");
+        props.setProperty(Options.EXPORT_FILE_SORT_COMPRESS, Boolean.TRUE.toString());
+        props.setProperty(Options.EXPORT_FILE_SORT_MAX_MEMORY, "1");
+        props.setProperty(Options.EXPORT_FILE_SORT_TEMP_DIR, tempDir.toString());
+        props.setProperty(Options.EXPORT_FILE_SORT_THREADS, "3");
+        String result = testRemoveDuplicatesAndSort(exportFile, props);
+        assertEquals(splitAndAppendNewline("letter,z,d,b,a"), result);
+        assertEquals(0, tempDir.list().length);
+    }
+
+    @Test
+    public void testCall_mergeSortedRuns() throws Exception {
+        File file = createTempDirectory();
+        File exportFile = new File(file, "export.txt");
+        writeFile(exportFile, "letter\n");
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, exportFile.toString());
+        props.setProperty(Options.EXPORT_FILE_HEADER_LINE_COUNT, "1");
+        props.setProperty(Options.EXPORT_FILE_SORT, "ascending|distinct");
+        props.setProperty(Options.EXPORT_FILE_SORT_COMPRESS, Boolean.TRUE.toString());
+        props.setProperty(Options.EXPORT_FILE_SORT_RUN_SIZE, "1");
+        ExportBatchToFileTask task = new ExportBatchToFileTask();
+        task.properties = props;
+        task.setModuleType(Options.PROCESS_MODULE);
+        SortedRunWriter runWriter = task.getSortedRunWriter(exportFile);
+        runWriter.add((Z + D + B).getBytes("UTF-8"));
+        runWriter.add((A + D).getBytes("UTF-8"));
+        SortedRunWriter.closeAll();
+        assertEquals(1, task.getSortedRunFiles().size());
+
+        String result = testRemoveDuplicatesAndSort(exportFile, props);
+        assertEquals(splitAndAppendNewline("letter,a,b,d,z"), result);
+        assertEquals(1, file.list().length);
+    }
+
+    @Test
+    public void testCall_gzip() throws Exception {
+        File file = createTempDirectory();
+        File exportFile = new File(file, "export.txt.gz");
+        FileOutputStream out = new FileOutputStream(exportFile);
+        out.write(IOUtils.gzip("letter\n".getBytes("UTF-8")));
+        out.write(IOUtils.gzip((B + A).getBytes("UTF-8")));
+        out.close();
+        writeFile(new File(file, "export.txt.gz" + ExportBatchToFileTask.SORTED_RUN_EXT + "0"), D);
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, exportFile.getName());
+        props.setProperty(Options.EXPORT_FILE_COMPRESSION, "gzip");
+        props.setProperty(Options.EXPORT_FILE_BOTTOM_CONTENT, "end");
+        PostBatchUpdateFileTask instance = new PostBatchUpdateFileTask();
+        instance.properties = props;
+        instance.exportDir = file.toString();
+        instance.call();
+        String separator = System.getProperty("line.separator");
+        assertEquals("letter\nb\na\nd\nend" + separator, readGzip(exportFile));
+        assertEquals(1, file.list().length);
+    }
+
+    @Test
+    public void testCall_gzipSort() throws Exception {
+        File file = createTempDirectory();
+        File exportFile = new File(file, "export.txt.gz");
+        FileOutputStream out = new FileOutputStream(exportFile);
+        out.write(IOUtils.gzip("letter\n".getBytes("UTF-8")));
+        out.write(IOUtils.gzip((Z + D + B).getBytes("UTF-8")));
+        out.write(IOUtils.gzip((A + D).getBytes("UTF-8")));
+        out.close();
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, exportFile.getName());
+        props.setProperty(Options.EXPORT_FILE_COMPRESSION, "gzip");
+        props.setProperty(Options.EXPORT_FILE_HEADER_LINE_COUNT, "1");
+        props.setProperty(Options.EXPORT_FILE_SORT, "ascending|distinct");
+        PostBatchUpdateFileTask instance = new PostBatchUpdateFileTask();
+        instance.properties = props;
+        instance.exportDir = file.toString();
+        instance.call();
+        String separator = System.getProperty("line.separator");
+        assertEquals("letter" + separator + "a" + separator + "b" + separator + "d" + separator + "z" + separator, readGzip(exportFile));
+        assertEquals(1, file.list().length);
+    }
+
+    @Test
+    public void testCall_bgzfSort() throws Exception {
+        File file = createTempDirectory();
+        File exportFile = new File(file, "export.txt.gz");
+        FileOutputStream out = new FileOutputStream(exportFile);
+        out.write(ParallelGzipOutputStream.compress((Z + D + B + A).getBytes("UTF-8"), true));
+        out.close();
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, exportFile.getName());
+        props.setProperty(Options.EXPORT_FILE_COMPRESSION, "bgzf");
+        props.setProperty(Options.EXPORT_FILE_COMPRESSION_THREADS, "2");
+        props.setProperty(Options.EXPORT_FILE_SORT, "descending");
+        PostBatchUpdateFileTask instance = new PostBatchUpdateFileTask();
+        instance.properties = props;
+        instance.exportDir = file.toString();
+        instance.call();
+        String separator = System.getProperty("line.separator");
+        assertEquals("z" + separator + "d" + separator + "b" + separator + "a" + separator, readGzip(exportFile));
+        byte[] compressed = TestUtils.readFileToByteArray(exportFile);
+        byte[] eof = Arrays.copyOfRange(compressed, compressed.length - ParallelGzipOutputStream.BGZF_EOF.length, compressed.length);
+        assertArrayEquals(ParallelGzipOutputStream.BGZF_EOF, eof);
+    }
+
+    @Test
+    public void testCall_rolledFiles() throws Exception {
+        File file = createTempDirectory();
+        writeFile(new File(file, "export.csv.part"), "letter\n" + A);
+        writeFile(new File(file, "export-00002.csv.part"), "letter\n" + B);
+        writeFile(new File(file, "export-00003.csv.part"), "letter\n" + D);
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "export.csv");
+        props.setProperty(Options.EXPORT_FILE_PART_EXT, ".part");
+        props.setProperty(Options.EXPORT_FILE_MAX_LINES, "1");
+        props.setProperty(Options.EXPORT_FILE_BOTTOM_CONTENT, "end");
+        PostBatchUpdateFileTask instance = new PostBatchUpdateFileTask();
+        instance.properties = props;
+        instance.exportDir = file.toString();
+        instance.call();
+        String separator = System.getProperty("line.separator");
+        String[] names = file.list();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"export-00001.csv", "export-00002.csv", "export-00003.csv"}, names);
+        assertEquals("letter\nb\nend" + separator, TestUtils.readFile(new File(file, "export-00002.csv")));
+    }
+
+    @Test
+    public void testCall_partitionFiles() throws Exception {
+        File file = createTempDirectory();
+        writeFile(new File(file, "export.csv.part"), "letter\n");
+        writeFile(new File(file, "export-p00000.csv.part"), "letter\n" + A);
+        writeFile(new File(file, "export-p00001.csv.part"), "letter\n" + B + D);
+
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_NAME, "export.csv");
+        props.setProperty(Options.EXPORT_FILE_PART_EXT, ".part");
+        props.setProperty(Options.EXPORT_FILE_PARTITIONS, "2");
+        props.setProperty(Options.EXPORT_FILE_HEADER_LINE_COUNT, "1");
+        props.setProperty(Options.EXPORT_FILE_BOTTOM_CONTENT, "end");
+        PostBatchUpdateFileTask instance = new PostBatchUpdateFileTask();
+        instance.properties = props;
+        instance.exportDir = file.toString();
+        instance.call();
+        String separator = System.getProperty("line.separator");
+        String[] names = file.list();
+        Arrays.sort(names);
+        // the part file only had the header
+        assertArrayEquals(new String[]{"export-p00000.csv", "export-p00001.csv"}, names);
+        assertEquals("letter\nb\nd\nend" + separator, TestUtils.readFile(new File(file, "export-p00001.csv")));
+    }
+
+    private static String readGzip(File file) throws IOException {
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            out.write(buffer, 0, len);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.append(content);
+        writer.close();
+    }
+
     @Test
     public void testCall_removeDuplicatesAndSort_customComparator() throws Exception {
         assertTrue(testCustomComparator(null, "b,z...,d....,d....,a....."));
@@ -320,6 +557,15 @@ public class PostBatchUpdateFileTaskTest {
         assertEquals(splitAndAppendNewline("z,d,b,a"), result);
     }
 
+    @Test
+    public void testCall_removeDuplicatesAndSort_limit() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_SORT, "ascending|distinct");
+        props.setProperty(Options.EXPORT_FILE_SORT_LIMIT, "3");
+        String result = testRemoveDuplicatesAndSort(props);
+        assertEquals(splitAndAppendNewline("a,b,d"), result);
+    }
+
     @Test
     public void testCall_removeDuplicatesAndSort_invalidValue() throws Exception {
         Properties props = new Properties();
@@ -396,6 +642,20 @@ public class PostBatchUpdateFileTaskTest {
         return TestUtils.readFile(output);
     }
 
+    @Test
+    public void testCopyHeaderIntoFile_utf8() throws IOException {
+        File input = File.createTempFile(TEMP_FILE_PREFIX, ".tmp");
+        input.deleteOnExit();
+        File output = File.createTempFile(TEMP_FILE_PREFIX, ".tmp");
+        output.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(input);
+        out.write("caf\u00e9,\u65e5\u672c\nb\n".getBytes("UTF-8"));
+        out.close();
+        PostBatchUpdateFileTask instance = new PostBatchUpdateFileTask();
+        instance.copyHeaderIntoFile(input, 1, output);
+        assertEquals("caf\u00e9,\u65e5\u672c" + System.getProperty("line.separator"), new String(TestUtils.readFileToByteArray(output), "UTF-8"));
+    }
+
     @Test(expected = NullPointerException.class)
     public void testCall() throws Exception {
 
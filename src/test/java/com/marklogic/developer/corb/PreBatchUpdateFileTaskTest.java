@@ -20,8 +20,13 @@ package com.marklogic.developer.corb;
 
 import com.marklogic.xcc.Request;
 import com.marklogic.xcc.exceptions.RequestPermissionException;
+import com.marklogic.developer.corb.util.FileUtils;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
@@ -89,6 +94,40 @@ public class PreBatchUpdateFileTaskTest {
         assertEquals(content.concat(new String(PreBatchUpdateFileTask.NEWLINE)), TestUtils.readFile(partFile));
     }
 
+    @Test
+    public void testWriteTopContent_gzip() throws Exception {
+        String content = "foo,bar,baz";
+        File tempDir = TestUtils.createTempDirectory();
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_TOP_CONTENT, content);
+        props.setProperty(Options.EXPORT_FILE_NAME, "topContent.gz");
+        props.setProperty(Options.EXPORT_FILE_COMPRESSION, "gzip");
+
+        PreBatchUpdateFileTask instance = new PreBatchUpdateFileTask();
+        instance.properties = props;
+        instance.exportDir = tempDir.toString();
+        instance.writeTopContent();
+        File partFile = new File(tempDir, instance.getPartFileName());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(partFile))));
+        assertEquals(content, reader.readLine());
+        assertNull(reader.readLine());
+        reader.close();
+        assertEquals(1, FileUtils.getLineCount(partFile));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteTopContent_unsupportedCompression() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Options.EXPORT_FILE_TOP_CONTENT, "foo");
+        props.setProperty(Options.EXPORT_FILE_NAME, "topContent.bz2");
+        props.setProperty(Options.EXPORT_FILE_COMPRESSION, "bzip2");
+
+        PreBatchUpdateFileTask instance = new PreBatchUpdateFileTask();
+        instance.properties = props;
+        instance.exportDir = TestUtils.createTempDirectory().toString();
+        instance.writeTopContent();
+    }
+
     /**
      * Test of call method, of class PreBatchUpdateFileTask.
      */
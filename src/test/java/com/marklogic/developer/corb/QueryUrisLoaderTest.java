@@ -24,6 +24,7 @@ import com.marklogic.xcc.ModuleInvoke;
 import com.marklogic.xcc.ResultItem;
 import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
+import com.marklogic.xcc.UserCredentials;
 import com.marklogic.xcc.exceptions.RequestException;
 import com.marklogic.xcc.types.XdmItem;
 import com.marklogic.xcc.types.XdmVariable;
@@ -31,10 +32,14 @@ import java.io.File;
 import java.io.FileWriter;
 import java.util.NoSuchElementException;
 import java.util.Properties;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -43,6 +48,9 @@ import static org.mockito.Mockito.when;
  */
 public class QueryUrisLoaderTest {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     private String foo = "foo";
     private String bar = "bar";
     private String none = "none";
@@ -281,6 +289,132 @@ public class QueryUrisLoaderTest {
         instance.close();
     }
 
+    @Test
+    public void testOpen_urisCache() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mock(Session.class);
+        AdhocQuery request = mock(AdhocQuery.class);
+        ResultSequence resultSequence = mock(ResultSequence.class);
+        ResultItem batchRefItem = mockResultItem("report.csv");
+        ResultItem optionItem = mockResultItem("PROCESS-MODULE.foo=bar");
+        ResultItem countItem = mockResultItem("2");
+        ResultItem uriItem1 = mockResultItem("/a.xml");
+        ResultItem uriItem2 = mockResultItem("/b.xml");
+        UserCredentials credentials = mockUserCredentials("user");
+        when(contentSource.newSession()).thenReturn(session);
+        when(session.getContentBaseName()).thenReturn("db");
+        when(session.getUserCredentials()).thenReturn(credentials);
+        when(session.newAdhocQuery(anyString())).thenReturn(request);
+        when(session.submitRequest(request)).thenReturn(resultSequence);
+        when(resultSequence.next()).thenReturn(optionItem, batchRefItem, countItem, uriItem1, uriItem2);
+        when(resultSequence.hasNext()).thenReturn(true, true, false);
+
+        File cacheDir = tempFolder.newFolder();
+        Properties props = new Properties();
+        props.setProperty(Options.URIS_CACHE_DIR, cacheDir.getAbsolutePath());
+        props.setProperty("URIS-MODULE.foo", foo);
+        props.setProperty(Options.POINT_IN_TIME, "1000");
+        QueryUrisLoader instance = getUrisCacheLoader(contentSource, props);
+        instance.options.setPointInTimeCaptured(true);
+        instance.open();
+        assertEquals(2, instance.getTotalCount());
+        assertEquals("/a.xml", instance.next());
+        assertEquals("/b.xml", instance.next());
+        instance.close();
+        assertEquals(1, cacheDir.list().length);
+
+        Session unavailableSession = mock(Session.class);
+        when(unavailableSession.getContentBaseName()).thenReturn("db");
+        when(unavailableSession.getUserCredentials()).thenReturn(credentials);
+        when(unavailableSession.newAdhocQuery(anyString())).thenThrow(new IllegalStateException("unavailable"));
+        ContentSource unavailable = mock(ContentSource.class);
+        when(unavailable.newSession()).thenReturn(unavailableSession);
+        props = new Properties();
+        props.setProperty(Options.URIS_CACHE_DIR, cacheDir.getAbsolutePath());
+        props.setProperty("URIS-MODULE.foo", foo);
+        props.setProperty(Options.URIS_REPLACE_PATTERN, "\\.xml,");
+        // captured again when the job is run again
+        props.setProperty(Options.POINT_IN_TIME, "2000");
+        instance = getUrisCacheLoader(unavailable, props);
+        instance.options.setPointInTimeCaptured(true);
+        instance.open();
+        verify(unavailableSession, never()).newAdhocQuery(anyString());
+        assertEquals("report.csv", instance.getBatchRef());
+        assertEquals(bar, props.getProperty("PROCESS-MODULE.foo"));
+        assertEquals(2, instance.getTotalCount());
+        assertEquals("/a", instance.next());
+        assertEquals("/b", instance.next());
+        assertFalse(instance.hasNext());
+        instance.close();
+
+        // a different database is not read from the cache
+        when(unavailableSession.getContentBaseName()).thenReturn("other");
+        props = new Properties();
+        props.setProperty(Options.URIS_CACHE_DIR, cacheDir.getAbsolutePath());
+        props.setProperty("URIS-MODULE.foo", foo);
+        instance = getUrisCacheLoader(unavailable, props);
+        try {
+            instance.open();
+            fail();
+        } catch (IllegalStateException ex) {
+            assertEquals("unavailable", ex.getMessage());
+        } finally {
+            instance.close();
+        }
+        when(unavailableSession.getContentBaseName()).thenReturn("db");
+
+        // different parameters are not read from the cache
+        props = new Properties();
+        props.setProperty(Options.URIS_CACHE_DIR, cacheDir.getAbsolutePath());
+        props.setProperty("URIS-MODULE.foo", bar);
+        instance = getUrisCacheLoader(unavailable, props);
+        try {
+            instance.open();
+            fail();
+        } catch (IllegalStateException ex) {
+            assertEquals("unavailable", ex.getMessage());
+        } finally {
+            instance.close();
+        }
+    }
+
+    @Test
+    public void testGetUrisCache_incrementalStateFile() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Options.URIS_CACHE_DIR, tempFolder.newFolder().getAbsolutePath());
+        QueryUrisLoader instance = getUrisCacheLoader(mock(ContentSource.class), props);
+        assertNotNull(instance.getUrisCache());
+        // the uris must be selected at the mark that is saved when the job completes
+        instance.options.setIncrementalStateFile(new File(tempFolder.getRoot(), "job.state"));
+        assertNull(instance.getUrisCache());
+    }
+
+    private QueryUrisLoader getUrisCacheLoader(ContentSource contentSource, Properties props) {
+        TransformOptions transformOptions = new TransformOptions();
+        transformOptions.setUrisModule("INLINE-XQUERY|for $i in (1,2) return $i");
+        QueryUrisLoader instance = new QueryUrisLoader();
+        instance.properties = props;
+        instance.options = transformOptions;
+        instance.cs = contentSource;
+        instance.collection = "";
+        return instance;
+    }
+
+    private static UserCredentials mockUserCredentials(String userName) {
+        UserCredentials credentials = mock(UserCredentials.class);
+        when(credentials.getUserName()).thenReturn(userName);
+        return credentials;
+    }
+
+    private static ResultItem mockResultItem(String value) {
+        ResultItem item = mock(ResultItem.class);
+        XdmItem xdmItem = mock(XdmItem.class);
+        when(item.getItem()).thenReturn(xdmItem);
+        when(item.asString()).thenReturn(value);
+        when(xdmItem.asString()).thenReturn(value);
+        return item;
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testOpen_badAdhocFilenameIsEmpty() throws Exception {
         QueryUrisLoader instance = new QueryUrisLoader();
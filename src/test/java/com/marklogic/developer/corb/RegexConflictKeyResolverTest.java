@@ -0,0 +1,51 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RegexConflictKeyResolverTest {
+
+    @Test
+    public void testGetConflictKey_group() {
+        RegexConflictKeyResolver instance = new RegexConflictKeyResolver("^/parent/([^/]+)/");
+        assertEquals("a", instance.getConflictKey("/parent/a/child1.xml"));
+        assertEquals("a", instance.getConflictKey("/parent/a/child2.xml"));
+        assertEquals("b", instance.getConflictKey("/parent/b/child1.xml"));
+    }
+
+    @Test
+    public void testGetConflictKey_wholeMatch() {
+        RegexConflictKeyResolver instance = new RegexConflictKeyResolver("^/[^/]+/");
+        assertEquals("/parent/", instance.getConflictKey("/parent/a/child1.xml"));
+    }
+
+    @Test
+    public void testGetConflictKey_noMatch() {
+        RegexConflictKeyResolver instance = new RegexConflictKeyResolver("^/parent/([^/]+)/");
+        assertNull(instance.getConflictKey("/other.xml"));
+        assertNull(instance.getConflictKey(null));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testConstructor_null() {
+        new RegexConflictKeyResolver((java.util.regex.Pattern) null);
+    }
+}
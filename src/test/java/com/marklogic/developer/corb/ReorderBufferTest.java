@@ -0,0 +1,105 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ReorderBufferTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static ByteBuffer bytes(String value) throws IOException {
+        return ByteBuffer.wrap(value.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testPut_outOfOrder() throws IOException {
+        File file = tempFolder.newFile();
+        ExportFileWriter writer = new ExportFileWriter(file, 10);
+        ReorderBuffer instance = new ReorderBuffer(writer, 1024, tempFolder.getRoot());
+        instance.put(2, bytes("c"));
+        instance.put(1, bytes("b"));
+        assertEquals(2, instance.getPendingCount());
+        instance.put(0, bytes("a"));
+        assertEquals(0, instance.getPendingCount());
+        instance.put(3, bytes("d"));
+        writer.close();
+        assertEquals("abcd", TestUtils.readFile(file));
+    }
+
+    @Test
+    public void testPut_spill() throws IOException {
+        File file = tempFolder.newFile();
+        File spillDir = tempFolder.newFolder();
+        ExportFileWriter writer = new ExportFileWriter(file, 10);
+        ReorderBuffer instance = new ReorderBuffer(writer, 2, spillDir);
+        instance.put(3, bytes("dd"));
+        instance.put(2, bytes("cc"));
+        instance.put(1, bytes("bb"));
+        assertEquals(2, spillDir.list().length);
+        instance.put(0, bytes("aa"));
+        assertEquals(0, spillDir.list().length);
+        writer.close();
+        assertEquals("aabbccdd", TestUtils.readFile(file));
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        File file = tempFolder.newFile();
+        ExportFileWriter writer = new ExportFileWriter(file, 10);
+        ReorderBuffer instance = new ReorderBuffer(writer, 1024, null);
+        instance.put(1, bytes("b"));
+        instance.skip(0);
+        instance.skip(1);
+        instance.put(2, bytes("c"));
+        assertEquals(0, instance.getPendingCount());
+        writer.close();
+        assertEquals("bc", TestUtils.readFile(file));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPut_duplicate() throws IOException {
+        ExportFileWriter writer = new ExportFileWriter(tempFolder.newFile(), 10);
+        try {
+            ReorderBuffer instance = new ReorderBuffer(writer, 1024, null);
+            instance.put(0, bytes("a"));
+            instance.put(0, bytes("a"));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testClose_missingBatch() throws IOException {
+        File file = tempFolder.newFile();
+        ExportFileWriter writer = new ExportFileWriter(file, 10);
+        ReorderBuffer instance = writer.getReorderBuffer();
+        instance.put(2, bytes("c"));
+        instance.put(1, bytes("b"));
+        writer.close();
+        assertEquals("bc", TestUtils.readFile(file));
+    }
+}
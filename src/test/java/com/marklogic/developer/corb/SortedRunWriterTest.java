@@ -0,0 +1,94 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.marklogic.developer.corb.util.ParallelExternalSort;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class SortedRunWriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Comparator<String> NATURAL = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return o1.compareTo(o2);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws IOException {
+        SortedRunWriter.closeAll();
+    }
+
+    private SortedRunWriter newWriter(File file, long runSize) {
+        ParallelExternalSort sorter = new ParallelExternalSort(NATURAL, UTF_8, tempFolder.getRoot(), true, false, 1024, 1);
+        return new SortedRunWriter(file, ".run-", sorter, runSize);
+    }
+
+    @Test
+    public void testAdd() throws IOException {
+        File file = new File(tempFolder.getRoot(), "export.txt");
+        SortedRunWriter instance = newWriter(file, 1);
+        instance.add("c\nb\nb\n".getBytes("UTF-8"));
+        assertEquals(1, instance.getRunCount());
+        File run = new File(file.getPath() + ".run-1");
+        assertEquals(String.format("b%nc%n"), TestUtils.readFile(run));
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        File file = new File(tempFolder.getRoot(), "export.txt");
+        SortedRunWriter instance = newWriter(file, 1024 * 1024);
+        instance.add("z\ny\n".getBytes("UTF-8"));
+        instance.add("x\r\n".getBytes("UTF-8"));
+        assertEquals(0, instance.getRunCount());
+        instance.close();
+        assertEquals(1, instance.getRunCount());
+        assertEquals(String.format("x%ny%nz%n"), TestUtils.readFile(new File(file.getPath() + ".run-1")));
+    }
+
+    @Test
+    public void testRegister() throws IOException {
+        File file = new File(tempFolder.getRoot(), "export.txt");
+        assertNull(SortedRunWriter.getInstance(file));
+        SortedRunWriter instance = SortedRunWriter.register(newWriter(file, 1024));
+        assertSame(instance, SortedRunWriter.register(newWriter(file, 1024)));
+        assertSame(instance, SortedRunWriter.getInstance(file));
+        instance.add("a\n".getBytes("UTF-8"));
+        SortedRunWriter.closeAll();
+        assertNull(SortedRunWriter.getInstance(file));
+        assertEquals(1, instance.getRunCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_invalidRunSize() {
+        newWriter(new File(tempFolder.getRoot(), "export.txt"), 0);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class TopLinesCollectorTest {
+
+    private static final String NL = System.getProperty("line.separator");
+    private static final Comparator<String> ASCENDING = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return o1.compareTo(o2);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws IOException {
+        TopLinesCollector.closeAll();
+    }
+
+    private static void add(TopLinesCollector instance, String content) throws IOException {
+        instance.add(content.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testGetLines() throws IOException {
+        TopLinesCollector instance = new TopLinesCollector(tempFolder.newFile(), ASCENDING, false, 3);
+        add(instance, "e\nb\nd\n");
+        add(instance, "b\r\na\nc\n");
+        assertEquals(Arrays.asList("a", "b", "b"), instance.getLines());
+    }
+
+    @Test
+    public void testGetLines_descending() throws IOException {
+        TopLinesCollector instance = new TopLinesCollector(tempFolder.newFile(), Collections.reverseOrder(ASCENDING), false, 2);
+        add(instance, "e\nb\nd\na\n");
+        assertEquals(Arrays.asList("e", "d"), instance.getLines());
+    }
+
+    @Test
+    public void testGetLines_distinct() throws IOException {
+        TopLinesCollector instance = new TopLinesCollector(tempFolder.newFile(), ASCENDING, true, 3);
+        add(instance, "b\nb\na\nd\nc\na\n");
+        assertEquals(Arrays.asList("a", "b", "c"), instance.getLines());
+    }
+
+    @Test
+    public void testGetLines_threads() throws IOException, InterruptedException {
+        final TopLinesCollector instance = new TopLinesCollector(tempFolder.newFile(), ASCENDING, true, 5);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final int offset = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 1000; j++) {
+                            add(instance, String.format("%04d%n", (j * 4 + offset) % 2000));
+                        }
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList("0000", "0001", "0002", "0003", "0004"), instance.getLines());
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        File file = tempFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(("header" + NL).getBytes("UTF-8"));
+        out.close();
+        TopLinesCollector instance = TopLinesCollector.register(new TopLinesCollector(file, ASCENDING, false, 2));
+        add(instance, "c\nb\na\n");
+        TopLinesCollector.closeAll();
+        assertEquals("header" + NL + "a" + NL + "b" + NL, TestUtils.readFile(file));
+    }
+
+    @Test
+    public void testRegister() throws IOException {
+        File file = tempFolder.newFile();
+        assertNull(TopLinesCollector.getInstance(file));
+        TopLinesCollector instance = TopLinesCollector.register(new TopLinesCollector(file, ASCENDING, false, 1));
+        assertSame(instance, TopLinesCollector.register(new TopLinesCollector(file, ASCENDING, false, 1)));
+        assertSame(instance, TopLinesCollector.getInstance(file));
+        TopLinesCollector.closeAll();
+        assertNull(TopLinesCollector.getInstance(file));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_invalidLimit() {
+        new TopLinesCollector(new File("out.txt"), ASCENDING, false, 0);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import com.marklogic.xcc.AdhocQuery;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransactionGroupTest {
+
+    @After
+    public void tearDown() {
+        TransactionGroup.rollbackAll();
+    }
+
+    @Test
+    public void testInvokeModule_commitsEveryGroupSize() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mockSession(contentSource);
+
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(new String[]{"/" + i}, newTask(contentSource, "/" + i).call());
+        }
+        verify(session, times(2)).commit();
+        TransactionGroup.commitAll();
+        verify(session, times(3)).commit();
+        verify(session, never()).rollback();
+    }
+
+    @Test
+    public void testCommit_failureReplaysEachBatch() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mockSession(contentSource);
+        doThrow(new ServerConnectionException("commit failed", mock(Request.class))).when(session).commit();
+
+        newTask(contentSource, "/1").call();
+        newTask(contentSource, "/2").call();
+        verify(session).rollback();
+        // two grouped requests, then each batch replayed on its own
+        verify(session, times(4)).submitRequest(any(Request.class));
+    }
+
+    @Test
+    public void testGetCurrent() {
+        ContentSource contentSource = mock(ContentSource.class);
+        TransactionGroup group = TransactionGroup.getCurrent(contentSource, 2, 0);
+        assertSame(group, TransactionGroup.getCurrent(contentSource, 2, 0));
+        assertNotSame(group, TransactionGroup.getCurrent(mock(ContentSource.class), 2, 0));
+    }
+
+    @Test
+    public void testAdd_maxTime() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mockSession(contentSource);
+        TransactionGroup group = new TransactionGroup(contentSource, 100, 1);
+        // a running batch holds the lock
+        synchronized (group) {
+            group.getSession();
+            Thread.sleep(5);
+            group.add(new Transform());
+        }
+        verify(session).commit();
+        assertEquals(0, group.size());
+    }
+
+    @Test
+    public void testCommitExpired_idle() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mockSession(contentSource);
+        TransactionGroup group = new TransactionGroup(contentSource, 100, 20);
+        synchronized (group) {
+            assertSame(session, group.getSession());
+            group.add(new Transform());
+        }
+        verify(session).setAutoCommit(false);
+        verify(session).setUpdate(Session.Update.TRUE);
+        // no more batches arrive, so the scheduler commits
+        verify(session, timeout(2000)).commit();
+        verify(session, timeout(2000)).close();
+        assertEquals(0, group.size());
+    }
+
+    @Test
+    public void testCommitExpired_committed() throws Exception {
+        ContentSource contentSource = mock(ContentSource.class);
+        Session session = mockSession(contentSource);
+        TransactionGroup group = new TransactionGroup(contentSource, 100, 1000);
+        group.getSession();
+        group.commit();
+        group.getSession();
+        // the first transaction has already been committed
+        group.commitExpired(1);
+        verify(session, times(1)).commit();
+        group.commitExpired(2);
+        verify(session, times(2)).commit();
+    }
+
+    private static Session mockSession(ContentSource contentSource) throws Exception {
+        Session session = mock(Session.class);
+        when(contentSource.newSession()).thenReturn(session);
+        when(session.newAdhocQuery(anyString())).thenReturn(mock(AdhocQuery.class));
+        when(session.submitRequest(any(Request.class))).thenReturn(mock(ResultSequence.class));
+        return session;
+    }
+
+    private static Task newTask(ContentSource contentSource, String uri) {
+        Transform task = new Transform();
+        task.setContentSource(contentSource);
+        task.setModuleType(Options.PROCESS_MODULE);
+        task.setAdhocQuery("()");
+        Properties properties = new Properties();
+        properties.setProperty(Options.TRANSACTION_GROUP_SIZE, "2");
+        task.setProperties(properties);
+        task.setInputURI(uri);
+        return task;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class UrisCacheTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testGetKey() {
+        assertEquals(UrisCache.getKey("a", "bc"), UrisCache.getKey("a", "bc"));
+        assertNotEquals(UrisCache.getKey("a", "bc"), UrisCache.getKey("ab", "c"));
+        assertNotEquals(UrisCache.getKey("a", null), UrisCache.getKey("a", ""));
+        assertEquals(64, UrisCache.getKey("a").length());
+    }
+
+    @Test
+    public void testCreateAndOpen() throws IOException {
+        UrisCache instance = new UrisCache(new File(tempFolder.getRoot(), "cache"), 60000);
+        Map<String, String> moduleOptions = new LinkedHashMap<String, String>();
+        moduleOptions.put("PROCESS-MODULE.foo", "bar");
+        UrisCache.Writer writer = instance.create("key", "report.csv", moduleOptions, 2);
+        writer.add("/a.xml");
+        writer.add("/\u00e9.xml");
+        assertNull(instance.open("key"));
+        writer.commit();
+        writer.close();
+
+        UrisCache.Reader reader = instance.open("key");
+        try {
+            assertEquals("report.csv", reader.getBatchRef());
+            assertEquals(moduleOptions, reader.getModuleOptions());
+            assertEquals(2, reader.getTotalCount());
+            assertEquals("/a.xml", reader.next());
+            assertEquals("/\u00e9.xml", reader.next());
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+        assertNull(instance.open("other"));
+    }
+
+    @Test
+    public void testClose_notCommitted() throws IOException {
+        File dir = tempFolder.newFolder();
+        UrisCache instance = new UrisCache(dir, 60000);
+        UrisCache.Writer writer = instance.create("key", null, new LinkedHashMap<String, String>(), 1);
+        writer.add("/a.xml");
+        writer.close();
+        assertNull(instance.open("key"));
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testOpen_expired() throws IOException {
+        File dir = tempFolder.newFolder();
+        UrisCache.Writer writer = new UrisCache(dir, 60000).create("key", null, new LinkedHashMap<String, String>(), 0);
+        writer.commit();
+        UrisCache instance = new UrisCache(dir, -1);
+        assertNull(instance.open("key"));
+        assertFalse(instance.getFile("key").exists());
+    }
+
+    @Test
+    public void testOpen_notCacheFile() throws IOException {
+        File dir = tempFolder.newFolder();
+        UrisCache instance = new UrisCache(dir, 60000);
+        TestUtils.writeFile(instance.getFile("key"), "/a.xml\n");
+        assertNull(instance.open("key"));
+        assertFalse(instance.getFile("key").exists());
+    }
+}
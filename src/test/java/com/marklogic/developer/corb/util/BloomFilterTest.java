@@ -0,0 +1,60 @@
+/*
+ * * Copyright (c) 2004-2016 MarkLogic Corporation
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ * *
+ * * The use of the Apache License does not indicate that this project is
+ * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb.util;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+
+    @Test
+    public void testMightContain() {
+        Random random = new Random(42);
+        long[] added = new long[10000];
+        BloomFilter instance = new BloomFilter(added.length, 0.01);
+        for (int i = 0; i < added.length; i++) {
+            added[i] = random.nextLong();
+            instance.add(added[i]);
+        }
+        for (long hash : added) {
+            assertTrue(instance.mightContain(hash));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (instance.mightContain(random.nextLong())) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300);
+    }
+
+    @Test
+    public void testSize() {
+        BloomFilter instance = new BloomFilter(1000, 0.01);
+        assertEquals(7, instance.getHashCount());
+        assertEquals(1200, instance.getMemoryUsage());
+        assertFalse(new BloomFilter(0, 0.5).mightContain(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFalsePositiveRateInvalid() {
+        new BloomFilter(1000, 1);
+    }
+}
@@ -152,6 +152,30 @@ public class FileUtilsTest {
         assertEquals(12, FileUtils.getLineCount(exampleContentFile));
     }
 
+    @Test
+    public void testGetLineCount_gzip() throws IOException {
+        File file = File.createTempFile("lineCount", ".gz");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(IOUtils.gzip("a\nb\n".getBytes()));
+        out.write(IOUtils.gzip("c\n".getBytes()));
+        out.close();
+        assertEquals(3, FileUtils.getLineCount(file));
+    }
+
+    @Test
+    public void testOpenInputStream_notCompressed() throws IOException {
+        File file = File.createTempFile("openInputStream", TEXT_FILE_EXT);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(0x1f);
+        out.close();
+        InputStream in = FileUtils.openInputStream(file);
+        assertEquals(0x1f, in.read());
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
     @Test
     public void testMoveFile() throws IOException {
         File file = File.createTempFile("moveFile", TEXT_FILE_EXT);
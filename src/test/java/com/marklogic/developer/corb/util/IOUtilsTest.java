@@ -19,6 +19,7 @@
 package com.marklogic.developer.corb.util;
 
 import static com.marklogic.developer.corb.util.IOUtils.BUFFER_SIZE;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
@@ -27,9 +28,15 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -305,4 +312,111 @@ public class IOUtilsTest {
         }
         return size;
     }
+
+    @Test
+    public void testCopy_inputStream() throws IOException {
+        byte[] value = new byte[BUFFER_SIZE * 2 + 1];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long count = IOUtils.copy(new ByteArrayInputStream(value), Channels.newChannel(out));
+        assertEquals(value.length, count);
+        assertArrayEquals(value, out.toByteArray());
+    }
+
+    @Test
+    public void testCopy_reader() throws IOException {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < BUFFER_SIZE * 2) {
+            value.append("caf\u00e9 \ud83d\ude00 ");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long count = IOUtils.copy(new StringReader(value.toString()), Channels.newChannel(out), Charset.forName("UTF-8").newEncoder());
+        byte[] expected = value.toString().getBytes("UTF-8");
+        assertEquals(expected.length, count);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void testCopy_buffered() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int[] writes = new int[1];
+        WritableByteChannel channel = new FilterChannel(Channels.newChannel(out)) {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                writes[0]++;
+                return super.write(src);
+            }
+        };
+        ByteBuffer buffer = IOUtils.getBuffer();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String value = "item " + i;
+            if (i % 2 == 0) {
+                IOUtils.copy(new ByteArrayInputStream(value.getBytes("UTF-8")), buffer, channel);
+            } else {
+                IOUtils.copy(new StringReader(value), buffer, channel, Charset.forName("UTF-8").newEncoder());
+            }
+            IOUtils.put("\n".getBytes("UTF-8"), buffer, channel);
+            expected.append(value).append('\n');
+        }
+        assertEquals(0, writes[0]);
+        IOUtils.flush(buffer, channel);
+        assertEquals(1, writes[0]);
+        assertEquals(expected.toString(), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testPut_largerThanBuffer() throws IOException {
+        byte[] value = new byte[BUFFER_SIZE * 2 + 1];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        ByteBuffer buffer = IOUtils.getBuffer();
+        IOUtils.put(value, buffer, channel);
+        assertEquals(BUFFER_SIZE * 2, out.size());
+        IOUtils.flush(buffer, channel);
+        assertArrayEquals(value, out.toByteArray());
+    }
+
+    private static class FilterChannel implements WritableByteChannel {
+
+        private final WritableByteChannel channel;
+
+        FilterChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testGzip_concatenatedMembers() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(IOUtils.gzip("foo\n".getBytes("UTF-8")));
+        out.write(IOUtils.gzip("bar\n".getBytes("UTF-8")));
+        Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), "UTF-8");
+        StringBuilder result = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            result.append((char) c);
+        }
+        assertEquals("foo\nbar\n", result.toString());
+    }
 }
@@ -0,0 +1,59 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LongHashSetTest {
+
+    @Test
+    public void testAdd() {
+        LongHashSet instance = new LongHashSet(4);
+        for (long i = -1000; i < 1000; i++) {
+            assertTrue(instance.add(i * 0x9E3779B97F4A7C15L));
+        }
+        for (long i = -1000; i < 1000; i++) {
+            assertFalse(instance.add(i * 0x9E3779B97F4A7C15L));
+            assertTrue(instance.contains(i * 0x9E3779B97F4A7C15L));
+        }
+        assertEquals(2000, instance.size());
+        assertFalse(instance.contains(1));
+    }
+
+    @Test
+    public void testAdd_zero() {
+        LongHashSet instance = new LongHashSet(4);
+        assertFalse(instance.contains(0));
+        assertTrue(instance.add(0));
+        assertFalse(instance.add(0));
+        assertTrue(instance.contains(0));
+        assertEquals(1, instance.size());
+    }
+
+    @Test
+    public void testGetNextMemoryUsage() {
+        LongHashSet instance = new LongHashSet(3);
+        assertEquals(4 * 8, instance.getNextMemoryUsage());
+        instance.add(1);
+        instance.add(2);
+        instance.add(3);
+        assertEquals(8 * 8, instance.getNextMemoryUsage());
+    }
+}
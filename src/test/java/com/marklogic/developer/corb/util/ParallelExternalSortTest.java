@@ -0,0 +1,155 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb.util;
+
+import com.marklogic.developer.corb.TestUtils;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ParallelExternalSortTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Comparator<String> NATURAL = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return o1.compareTo(o2);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File createFile(List<String> lines) throws IOException {
+        File file = tempFolder.newFile();
+        FileWriter writer = new FileWriter(file);
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+        }
+        writer.close();
+        return file;
+    }
+
+    private List<String> randomLines(int count, int range) {
+        Random random = new Random(count);
+        List<String> lines = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(String.format("%06d", random.nextInt(range)));
+        }
+        return lines;
+    }
+
+    private List<String> sort(List<String> lines, boolean distinct, boolean compress, long maxMemory, int threads) throws IOException {
+        File input = createFile(lines);
+        File tempDir = tempFolder.newFolder();
+        File output = tempFolder.newFile();
+        ParallelExternalSort instance = new ParallelExternalSort(NATURAL, UTF_8, tempDir, distinct, compress, maxMemory, threads);
+        List<File> runs = instance.sortInBatch(input, 0);
+        assertTrue(runs.size() > 1);
+        instance.mergeSortedFiles(runs, output, false);
+        assertEquals(0, tempDir.list().length);
+        return Arrays.asList(TestUtils.readFile(output).split("\\r?\\n"));
+    }
+
+    @Test
+    public void testSort() throws IOException {
+        List<String> lines = randomLines(10000, 1000000);
+        List<String> result = sort(lines, false, false, 100000, 4);
+        Collections.sort(lines);
+        assertEquals(lines, result);
+    }
+
+    @Test
+    public void testSort_distinctCompressed() throws IOException {
+        List<String> lines = randomLines(10000, 100);
+        List<String> result = sort(lines, true, true, 50000, 3);
+        assertEquals(100, result.size());
+        List<String> expected = new ArrayList<String>(result);
+        Collections.sort(expected);
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testSort_singleThread() throws IOException {
+        List<String> lines = randomLines(1000, 1000000);
+        List<String> result = sort(lines, false, false, 10000, 1);
+        Collections.sort(lines);
+        assertEquals(lines, result);
+    }
+
+    @Test
+    public void testMergeSortedFiles_maxFanIn() throws IOException {
+        for (int threads : new int[]{1, 2}) {
+            List<String> lines = randomLines(2000, 1000000);
+            File input = createFile(lines);
+            File tempDir = tempFolder.newFolder();
+            File output = tempFolder.newFile();
+            final AtomicInteger maxRuns = new AtomicInteger();
+            ParallelExternalSort instance = new ParallelExternalSort(NATURAL, UTF_8, tempDir, false, false, 2000, threads, 3) {
+                @Override
+                protected int merge(List<File> runs, BufferedWriter writer, int limit) throws IOException {
+                    synchronized (maxRuns) {
+                        maxRuns.set(Math.max(maxRuns.get(), runs.size()));
+                    }
+                    return super.merge(runs, writer, limit);
+                }
+            };
+            List<File> runs = instance.sortInBatch(input, 0);
+            assertTrue(runs.size() > 9);
+            instance.mergeSortedFiles(runs, output, false);
+            assertEquals(3, maxRuns.get());
+            assertEquals(0, tempDir.list().length);
+            Collections.sort(lines);
+            assertEquals(lines, Arrays.asList(TestUtils.readFile(output).split("\\r?\\n")));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_maxFanIn() {
+        new ParallelExternalSort(NATURAL, UTF_8, null, false, false, 1024, 1, 1);
+    }
+
+    @Test
+    public void testSortInBatch_header() throws IOException {
+        File input = createFile(Arrays.asList("header", "b", "a"));
+        File output = tempFolder.newFile();
+        ParallelExternalSort instance = new ParallelExternalSort(NATURAL, UTF_8, null, false, false, 1024, 2);
+        instance.mergeSortedFiles(instance.sortInBatch(input, 1), output, false);
+        assertEquals("a\nb\n", TestUtils.readFile(output).replace(System.getProperty("line.separator"), "\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_noThreads() {
+        new ParallelExternalSort(NATURAL, UTF_8, null, false, false, 1024, 0);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+  * * Copyright (c) 2004-2016 MarkLogic Corporation
+  * *
+  * * Licensed under the Apache License, Version 2.0 (the "License");
+  * * you may not use this file except in compliance with the License.
+  * * You may obtain a copy of the License at
+  * *
+  * * http://www.apache.org/licenses/LICENSE-2.0
+  * *
+  * * Unless required by applicable law or agreed to in writing, software
+  * * distributed under the License is distributed on an "AS IS" BASIS,
+  * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * * See the License for the specific language governing permissions and
+  * * limitations under the License.
+  * *
+  * * The use of the Apache License does not indicate that this project is
+  * * affiliated with the Apache Software Foundation.
+ */
+package com.marklogic.developer.corb.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ParallelGzipOutputStreamTest {
+
+    private static byte[] sample(int size) {
+        byte[] content = new byte[size];
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            // compressible, but not trivially
+            content[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return content;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            out.write(buffer, 0, len);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        byte[] content = sample(1000000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelGzipOutputStream instance = new ParallelGzipOutputStream(out, 4, false, 64 * 1024);
+        instance.write(content, 0, 1000);
+        instance.write(content[1000]);
+        instance.write(content, 1001, content.length - 1001);
+        instance.close();
+        assertArrayEquals(content, gunzip(out.toByteArray()));
+    }
+
+    @Test
+    public void testWrite_bgzf() throws IOException {
+        byte[] content = sample(300000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelGzipOutputStream instance = new ParallelGzipOutputStream(out, 3, true);
+        instance.write(content);
+        instance.close();
+        out.write(ParallelGzipOutputStream.BGZF_EOF);
+        byte[] compressed = out.toByteArray();
+        assertArrayEquals(content, gunzip(compressed));
+
+        // every block records its own size, so the blocks can be walked without decompressing
+        int blocks = 0;
+        int off = 0;
+        while (off < compressed.length) {
+            assertEquals('B', compressed[off + 12]);
+            assertEquals('C', compressed[off + 13]);
+            int blockSize = (compressed[off + 16] & 0xff | (compressed[off + 17] & 0xff) << 8) + 1;
+            assertTrue(blockSize <= 65536);
+            off += blockSize;
+            blocks++;
+        }
+        assertEquals(off, compressed.length);
+        // 4 full blocks, 1 partial block and the end of file marker
+        assertEquals(6, blocks);
+    }
+
+    @Test
+    public void testFinish() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelGzipOutputStream instance = new ParallelGzipOutputStream(out, 2, false);
+        instance.write("foo".getBytes("UTF-8"));
+        instance.finish();
+        out.write(ParallelGzipOutputStream.compress("bar".getBytes("UTF-8"), false));
+        assertEquals("foobar", new String(gunzip(out.toByteArray()), "UTF-8"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrite_closed() throws IOException {
+        ParallelGzipOutputStream instance = new ParallelGzipOutputStream(new ByteArrayOutputStream(), 1, false);
+        instance.close();
+        instance.write(1);
+    }
+
+    @Test
+    public void testCompress_bgzf() throws IOException {
+        byte[] content = sample(ParallelGzipOutputStream.BGZF_BLOCK_SIZE + 1);
+        assertArrayEquals(content, gunzip(ParallelGzipOutputStream.compress(content, true)));
+    }
+
+    @Test
+    public void testCompress_incompressible() throws IOException {
+        byte[] content = new byte[100000];
+        new Random(7).nextBytes(content);
+        assertArrayEquals(content, gunzip(ParallelGzipOutputStream.compress(content, false)));
+    }
+
+    @Test
+    public void testBgzfEof() throws IOException {
+        assertEquals(0, gunzip(ParallelGzipOutputStream.BGZF_EOF).length);
+        assertEquals(0, ParallelGzipOutputStream.compress(new byte[0], true).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_bgzfBlockSize() {
+        new ParallelGzipOutputStream(new ByteArrayOutputStream(), 1, true, 65536);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_threads() {
+        new ParallelGzipOutputStream(new ByteArrayOutputStream(), 0, false);
+    }
+}